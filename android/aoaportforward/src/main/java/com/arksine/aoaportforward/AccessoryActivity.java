@@ -22,7 +22,7 @@ public class AccessoryActivity extends AppCompatActivity {
             // Broadcast
             Intent connectIntent = new Intent(getString(R.string.ACTION_CONNECT_ACCESSORY));
             connectIntent.putExtra(UsbManager.EXTRA_ACCESSORY, accessory);
-            sendBroadcast(connectIntent);
+            Utils.sendServiceBroadcast(this, connectIntent);
         }
 
         finish();
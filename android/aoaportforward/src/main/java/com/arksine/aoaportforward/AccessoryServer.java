@@ -7,33 +7,45 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbManager;
-import android.os.Handler;
+import android.content.SharedPreferences;
 import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import com.arksine.portforwardcore.CacheStats;
+import com.arksine.portforwardcore.FrameScheduler;
+import com.arksine.portforwardcore.HttpCache;
+import com.arksine.portforwardcore.HttpCacheProxy;
+import com.arksine.portforwardcore.LinkStats;
+import com.arksine.portforwardcore.MuxChannel;
+import com.arksine.portforwardcore.MuxLog;
+import com.arksine.portforwardcore.MuxServer;
+import com.arksine.portforwardcore.PortMapping;
+
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
- *  Connects to the USB Accessory.  After a connections has been established, this class
- *  listens on the provided port for connections.  Connections are then forwarded over USB
+ *  Connects to the USB Accessory.  After a connections has been established, a MuxServer
+ *  listens on the provided ports for connections.  Connections are then forwarded over USB
  *  to the real server, each socket with its own unique ID.  Socket data is muxed when sending
- *  over USB and demuxed when received.
+ *  over USB and demuxed when received.  The host may also connect to device ports that have
+ *  been exposed as reverse ports.
+ *
+ *  Cached mappings put an HttpCacheProxy on the local port instead, in front of a mux
+ *  listener on a free loopback port.  The proxies share one HttpCache and outlive the links,
+ *  so fresh responses are still answered while the accessory is away.
+ *
+ *  Datagram mappings forward UDP ports, each datagram carried whole over the link.
+ *
+ *  Local mappings listen on a local domain socket instead of a TCP port, and attach the
+ *  clients they accept to whichever link is open.  Clients in this process can skip the
+ *  socket altogether and open a MuxChannel straight onto the link.
  */
 
 class AccessoryServer {
@@ -43,9 +55,28 @@ class AccessoryServer {
     private static final String MANUFACTURER = "Arksine";
     private static final String MODEL = "PortForward";
     private static final String ACTION_USB_PERMISSION = "com.arksine.aoaportforward.USB_PERMISSION";
-    private static final int HARD_CONNECTION_LIMIT = 640;
 
-    private final Object ACC_WRITE_LOCK = new Object();
+    static {
+        // Route mux core logging through logcat
+        MuxLog.setPrinter(new MuxLog.Printer() {
+            @Override
+            public void println(char level, String tag, String msg) {
+                switch (level) {
+                    case 'E':
+                        Log.e(tag, msg);
+                        break;
+                    case 'W':
+                        Log.w(tag, msg);
+                        break;
+                    case 'I':
+                        Log.i(tag, msg);
+                        break;
+                    default:
+                        Log.d(tag, msg);
+                }
+            }
+        });
+    }
 
     interface Callbacks {
         void onAccessoryConnected(boolean connected, int numClients);
@@ -83,31 +114,34 @@ class AccessoryServer {
     private Context mContext;
     private Callbacks mAccessoryCallbacks;
     private UsbManager mUsbManger;
-    private AtomicBoolean mAccessoryConnected = new AtomicBoolean(false);
     private AtomicBoolean mUsbReceiverRegistered = new AtomicBoolean(false);
 
     private UsbAccessory mAccessory;
-    private ParcelFileDescriptor mFileDescriptor = null;
-    private FileInputStream mAccessoryInputStream = null;
-    private FileOutputStream mAccessoryOutputStream = null;
-
-    private Selector mSelector = null;
-    private volatile ServerSocketChannel mServerChannel = null;
-    private volatile AtomicReferenceArray<SocketChannel> mSocketArray;
-    private AtomicInteger mConnectionCount = new AtomicInteger(0);
-    private int mMaxConnections = 40;
+    private volatile MuxServer mMuxServer = null;
     private int localPort;
     private int remotePort;
-
-    private Thread mAccessoryReadThread = null;
-    private Thread mSocketThread = null ;
-    private Handler mSocketEventHandler;
+    // Mappings added at runtime, applied to each link as it opens
+    private final ConcurrentHashMap<Integer, PortMapping> mExtraMappings =
+            new ConcurrentHashMap<>();
+    // Device ports the host may connect to and whether they are compressed, applied to each
+    // link as it opens
+    private final ConcurrentHashMap<Integer, Boolean> mReversePorts = new ConcurrentHashMap<>();
+    // UDP ports forwarded as datagrams, applied to each link as it opens
+    private final ConcurrentHashMap<Integer, PortMapping> mDatagramMappings =
+            new ConcurrentHashMap<>();
+    // Proxies of cached mappings, by the local port they listen on
+    // Typed as the interface, ConcurrentHashMap.keySet() links to a view missing before API 24
+    private final ConcurrentMap<Integer, HttpCacheProxy> mCacheProxies =
+            new ConcurrentHashMap<>();
+    private HttpCache mHttpCache = null;
+    // Listeners of local mappings, by socket name, typed as the interface for the same reason
+    private final ConcurrentMap<String, LocalSocketListener> mLocalListeners =
+            new ConcurrentHashMap<>();
 
     AccessoryServer(Context context, Callbacks accCbs) {
         this.mContext = context;
         this.mAccessoryCallbacks = accCbs;
         this.mUsbManger = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
-        this.mSocketArray = new AtomicReferenceArray<SocketChannel>(mMaxConnections);
 
         registerReceiver();
     }
@@ -138,28 +172,12 @@ class AccessoryServer {
 
     void open(UsbAccessory acc, int lPort, int rPort) {
 
-        if (this.mAccessoryConnected.get()) {
-            // check to see if listener thread is running, if not start it
-            if (mSocketThread != null && mSocketThread.isAlive()) {
-                // make sure that the current connection is listening on the correct port
-                if (this.localPort == lPort && this.remotePort == rPort) {
-                    mAccessoryCallbacks.onAccessoryConnected(true, mConnectionCount.get());
-                    return;
-                } else {
-                    // TODO: I should do this in another thread to prevent blocking,
-                    // or just disallow binding to a new socket without stopping the service
-                    disconnectAllClients();
-                    Utils.closeItem(mServerChannel);
-                    Utils.closeItem(mSelector);
-                    Utils.stopThread(mSocketThread);
-                }
-            }
-
-            this.localPort = lPort;
-            this.remotePort = rPort;
-            mSocketThread = new Thread(mSocketSelector);
-            mSocketThread.start();
-            mAccessoryCallbacks.onAccessoryConnected(true, 0);
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive()) {
+            // make sure that the current connection is listening on the correct port, other
+            // mappings and their clients are left alone
+            setPorts(lPort, rPort);
+            mAccessoryCallbacks.onAccessoryConnected(true, muxServer.getConnectionCount());
             return;
         }
 
@@ -186,490 +204,364 @@ class AccessoryServer {
 
     }
 
-    public boolean isOpen() {
-        return mAccessoryConnected.get();
+    /**
+     * Moves the main mapping to new ports, for links opened afterwards and on the open link
+     * without a reconnect.  A new remote port only redirects new connections on the listener
+     * already bound.  A new local port is bound alongside the old one, which then stops
+     * accepting unless it is also an additional mapping.  Connected clients keep flowing
+     * either way, the changes are applied on the mux's acceptor thread.
+     */
+    void setPorts(int lPort, int rPort) {
+        int oldPort = this.localPort;
+        this.localPort = lPort;
+        this.remotePort = rPort;
+        MuxServer muxServer = mMuxServer;
+        if (muxServer == null || !muxServer.isActive()) {
+            return;
+        }
+        if (!muxServer.hasMapping(lPort, rPort)) {
+            muxServer.addMapping(lPort, rPort);
+        }
+        if (oldPort != lPort && !mExtraMappings.containsKey(oldPort)) {
+            muxServer.removeMapping(oldPort);
+        }
     }
 
-    void close() {
-
-        // the stop reading function can block, so close in a new thread to prevent
-        // from blocking UI thread
-        Thread closeThread = new Thread(mCloseRunnable);
-        closeThread.start();
-
+    /**
+     * Forwards an additional local port, now if the accessory is open and on every link
+     * opened afterwards
+     */
+    void addMapping(int lPort, int rPort, boolean compressed) {
+        addMapping(lPort, rPort, compressed, FrameScheduler.PRIORITY_NORMAL);
     }
 
-
-    private boolean isValidAccessory(UsbAccessory acc) {
-        if (acc != null) {
-            if (MANUFACTURER.equals(acc.getManufacturer()) &&
-                    MODEL.equals(acc.getModel())) {
-                return true;
-            }
-        }
-        return false;
+    void addMapping(int lPort, int rPort, boolean compressed, int priority) {
+        addMapping(lPort, rPort, compressed, priority, false);
     }
 
-    private UsbAccessory detectAccessory() {
-        UsbManager usbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
-        UsbAccessory[] accessoryList = usbManager.getAccessoryList();
-
-        if (accessoryList != null && !(accessoryList.length == 0)) {
-            UsbAccessory accessory = accessoryList[0];
-            if (isValidAccessory(accessory)) {
-                return accessory;
-
-            } else {
-                Log.e(TAG, "Connected Accessory is not a match for expected accessory\n" +
-                        "Expected Accessory: " + MANUFACTURER + ":" + MODEL + "\n" +
-                        "Connected Accessory: " + accessory.getManufacturer() + ":" +
-                        accessory.getModel());
+    /**
+     * As above.  A cached mapping answers HTTP requests from the shared cache where it can,
+     * the mux listens on an internal port behind the cache's proxy, bound afresh with each
+     * link.
+     */
+    void addMapping(int lPort, int rPort, boolean compressed, int priority, boolean cached) {
+        if (cached || mCacheProxies.containsKey(lPort)) {
+            // Switching between plain and cached frees the local port first
+            removeMapping(lPort);
+        }
+        if (cached) {
+            try {
+                HttpCacheProxy proxy = new HttpCacheProxy(lPort, 0, getHttpCache());
+                proxy.start();
+                mCacheProxies.put(lPort, proxy);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start cache proxy on port " + lPort + ": " +
+                        e.getMessage());
+                mAccessoryCallbacks.onError("Unable to cache port " + lPort);
+                return;
             }
         }
 
-        Log.i(TAG, "Accessory not found");
-        return null;
+        PortMapping mapping = new PortMapping(lPort, rPort, compressed, priority);
+        mExtraMappings.put(lPort, mapping);
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive()) {
+            addToLink(muxServer, mapping);
+        }
     }
 
-    private void openAccessory(UsbAccessory accessory) {
-        mAccessory = accessory;
-        mFileDescriptor = mUsbManger.openAccessory(mAccessory);
-
-        if (mFileDescriptor != null) {
-            FileDescriptor fd = mFileDescriptor.getFileDescriptor();
-            mAccessoryOutputStream = new FileOutputStream(fd);
-            mAccessoryInputStream = new FileInputStream(fd);
-
-            mAccessoryConnected.set(true);
-            writeCommand(PortCommand.ACCESSORY_CONNECTED, remotePort);
-            mAccessoryReadThread = new Thread(null, mAccessoryReadRunnable, "Accessory Read Thread");
-            mAccessoryReadThread.start();
-            mSocketThread = new Thread(null, mSocketSelector, "Connection Listener Thread");
-            mSocketThread.start();
-            mAccessoryCallbacks.onAccessoryConnected(true, 0);
-
-        } else {
-            Log.d(TAG, "Unable to open Accessory File Descriptor");
-            mAccessoryCallbacks.onAccessoryConnected(false, 0);
+    /**
+     * Listens for a mapping on a link.  A cached mapping's proxy is pointed at a listener on
+     * a port the mux binds itself, so no other process can take it first.
+     */
+    private void addToLink(MuxServer muxServer, PortMapping mapping) {
+        HttpCacheProxy proxy = mCacheProxies.get(mapping.getLocalPort());
+        if (proxy == null) {
+            muxServer.addMapping(mapping.getLocalPort(), mapping.getRemotePort(),
+                    mapping.isCompressed(), mapping.getPriority());
+            return;
+        }
+        try {
+            proxy.setUpstreamPort(muxServer.addEphemeralMapping(mapping.getRemotePort(),
+                    mapping.isCompressed(), mapping.getPriority()));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to listen behind cache proxy on port " +
+                    mapping.getLocalPort() + ": " + e.getMessage());
         }
     }
 
-    private void writeToAccessory(byte[] data, int length) {
-        if (mAccessoryOutputStream != null) {
-            synchronized (ACC_WRITE_LOCK) {
-                try {
-                    mAccessoryOutputStream.write(data, 0, length);
-                    mAccessoryOutputStream.flush();
-                } catch (IOException e) {
-                    close();
-                }
-            }
+    void removeMapping(int lPort) {
+        mExtraMappings.remove(lPort);
+        HttpCacheProxy proxy = mCacheProxies.remove(lPort);
+        int muxPort = lPort;
+        if (proxy != null) {
+            muxPort = proxy.getUpstreamPort();
+            proxy.stop();
+        }
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive() && muxPort != 0) {
+            muxServer.removeMapping(muxPort);
         }
     }
 
-    private void writeCommand(PortCommand command) {
-        byte[] commandBuf = ByteBuffer.allocate(4)
-                .put(command.getBytes())
-                .putShort((short)0) // empty payload
-                .array();
-
-        writeToAccessory(commandBuf, 4);
+    /**
+     * Forwards datagrams on a local UDP port, now if the accessory is open and on every link
+     * opened afterwards
+     */
+    void addDatagramMapping(int lPort, int rPort, int priority) {
+        mDatagramMappings.put(lPort, new PortMapping(lPort, rPort, false, priority));
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive()) {
+            muxServer.addDatagramMapping(lPort, rPort, priority);
+        }
     }
 
-    private void writeCommand(PortCommand command, short data) {
-        byte[] commandBuf = ByteBuffer.allocate(6)
-                .put(command.getBytes())
-                .putShort((short)2)  // two byte payload (sizeof short)
-                .putShort((data))
-                .array();
+    void removeDatagramMapping(int lPort) {
+        mDatagramMappings.remove(lPort);
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive()) {
+            muxServer.removeDatagramMapping(lPort);
+        }
+    }
 
-        writeToAccessory(commandBuf, 6);
+    /**
+     * Forwards connections to a local domain socket, to a remote port on the host.  The
+     * socket is listened on until the mapping is removed, whether or not the accessory is
+     * open.
+     */
+    void addLocalMapping(String name, boolean filesystem, int rPort, boolean compressed,
+                         int priority) {
+        removeLocalMapping(name);
+        LocalSocketListener listener = new LocalSocketListener(mContext, name, filesystem,
+                new PortMapping(0, rPort, compressed, priority), this);
+        try {
+            listener.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to listen on local socket " + name + ": " + e.getMessage());
+            mAccessoryCallbacks.onError("Unable to listen on " + name);
+            return;
+        }
+        mLocalListeners.put(name, listener);
     }
 
-    private void writeCommand(PortCommand command, int data) {
-        byte[] commandBuf = ByteBuffer.allocate(8)
-                .put(command.getBytes())
-                .putShort((short)4)  // four byte payload (sizeof integer)
-                .putInt(data)
-                .array();
+    void removeLocalMapping(String name) {
+        LocalSocketListener listener = mLocalListeners.remove(name);
+        if (listener != null) {
+            listener.stop();
+        }
+    }
 
-        writeToAccessory(commandBuf, 8);
+    /**
+     * Stops the listeners of local mappings, once the service is done with them
+     */
+    void stopLocalListeners() {
+        for (String name : mLocalListeners.keySet()) {
+            removeLocalMapping(name);
+        }
     }
 
+    /**
+     * Returns the mux of the open link.  A link that failed leaves its stopped mux in place
+     * until the accessory is opened again.
+     */
+    private MuxServer getActiveMuxServer() throws IOException {
+        MuxServer muxServer = mMuxServer;
+        if (muxServer == null || !muxServer.isActive()) {
+            throw new IOException("Accessory not open");
+        }
+        return muxServer;
+    }
 
-    private boolean writeToSocket(short socket_id, ByteBuffer outBuf) {
-        // TODO: Need to synchronize writes and disconnects, so a socket that reads EOF doesn't
-        // disconnect in the middle of a write
-        SocketChannel socketChannel = mSocketArray.get(socket_id);
-        if (socketChannel != null) {
-            synchronized (socketChannel.socket()) {
-                if (DEBUG)
-                    Log.d(TAG, "Writing to socket: " + socket_id + "\n" +
-                            " Length: " + outBuf.remaining());
-                try {
-                    while (outBuf.hasRemaining()) {
-                        socketChannel.write(outBuf);
-                    }
-                } catch (IOException e) {
-                    Log.i(TAG, "Connection write error");
-                    // because the connection failed, whatever is left in this buffer
-                    outBuf.position(outBuf.limit());
-                    return false;
-                }
+    /**
+     * Hands a client accepted by a local listener to the open link.  If it can't be attached
+     * the client is closed.
+     */
+    void attachClient(PortMapping mapping, MuxServer.ClientStream client) throws IOException {
+        MuxServer muxServer;
+        try {
+            muxServer = getActiveMuxServer();
+        } catch (IOException e) {
+            try {
+                client.close();
+            } catch (IOException closeError) {
+                // already closed
             }
+            throw e;
+        }
+        if (!muxServer.attachClient(mapping, client)) {
+            throw new IOException("Unable to attach client");
+        }
+    }
 
-        } else {
-            if (DEBUG)
-                Log.w(TAG, "No Socket Mapped to id: " + socket_id);
+    /**
+     * Opens a stream to a remote port on the host that is read and written in this process
+     */
+    MuxChannel openChannel(int rPort, boolean compressed, int priority) throws IOException {
+        MuxChannel channel = getActiveMuxServer().openChannel(
+                new PortMapping(0, rPort, compressed, priority));
+        if (channel == null) {
+            // Closed since it was checked
+            throw new IOException("Accessory not open");
+        }
+        return channel;
+    }
 
+    private synchronized HttpCache getHttpCache() {
+        if (mHttpCache == null) {
+            mHttpCache = new HttpCache(HttpCache.DEFAULT_MEMORY_BYTES,
+                    new File(mContext.getCacheDir(), "http"), HttpCache.DEFAULT_DISK_BYTES);
         }
-        return true;
+        return mHttpCache;
     }
 
-    private void disconnectAllClients() {
-        if (mConnectionCount.get() > 0) {
-            for (int i = 0; i < mMaxConnections; i++) {
-                disconnectSocket((short)i, true, false);
+    /**
+     * Stops the proxies of cached mappings, once the service is done with them
+     */
+    void stopCacheProxies() {
+        for (Integer lPort : mCacheProxies.keySet()) {
+            HttpCacheProxy proxy = mCacheProxies.remove(lPort);
+            if (proxy != null) {
+                proxy.stop();
             }
         }
     }
 
-    private Short createSocketId() {
-        int socketId = mConnectionCount.get();
-
-
-        // Check the size, grow the array if necessary up to the Hard connection limit
-        if (socketId == mMaxConnections) {
-            if (mMaxConnections >= HARD_CONNECTION_LIMIT) {
-                return null;
-            }
+    /**
+     * Lets the host connect to a local port on the device, now if the accessory is open and
+     * on every link opened afterwards
+     */
+    void addReversePort(int port, boolean compressed) {
+        mReversePorts.put(port, compressed);
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive()) {
+            muxServer.addReversePort(port, compressed);
+        }
+    }
 
-            // Grow the array
-            AtomicReferenceArray<SocketChannel> tempArray =
-                    new AtomicReferenceArray<SocketChannel>(mMaxConnections * 2);
-            for (int i = 0; i < mMaxConnections; i++) {
-                tempArray.set(i, mSocketArray.get(i));
-            }
-            mMaxConnections *= 2;
-            mSocketArray = tempArray;
+    void removeReversePort(int port) {
+        mReversePorts.remove(port);
+        MuxServer muxServer = mMuxServer;
+        if (muxServer != null && muxServer.isActive()) {
+            muxServer.removeReversePort(port);
         }
+    }
 
-        for (int j = 0; j < mMaxConnections; j++) {
-            if (mSocketArray.get(socketId) == null) {
-                return (short)socketId;
-            }
+    /**
+     * Returns the counters of the open link, or null if the accessory isn't open
+     */
+    LinkStats getLinkStats() {
+        MuxServer muxServer = mMuxServer;
+        return (muxServer != null) ? muxServer.getLinkStats() : null;
+    }
 
-            socketId++;
-            if (socketId >= mMaxConnections)
-                socketId = 0;
-        }
+    /**
+     * Returns the counters of the shared HTTP cache, or null if no mapping has been cached
+     */
+    synchronized CacheStats getCacheStats() {
+        return (mHttpCache != null) ? mHttpCache.getStats() : null;
+    }
 
-        // This should never be reached
-        return null;
+    public boolean isOpen() {
+        MuxServer muxServer = mMuxServer;
+        return muxServer != null && muxServer.isActive();
     }
 
-    private void disconnectSocket(short socketId, boolean sendResponse, boolean updateService) {
-        // TODO: need to synchronize with writes so a socket isn't disconnected
-        SocketChannel socketChannel = mSocketArray.getAndSet(socketId, null);
-        if (socketChannel != null) {
-            if (DEBUG)
-                Log.d(TAG, "Disconnect socket id: "+ socketId);
+    int getConnectionCount() {
+        MuxServer muxServer = mMuxServer;
+        return (muxServer != null) ? muxServer.getConnectionCount() : 0;
+    }
 
-            // TODO: Id rather synchronize on a field of the sc
-            synchronized (socketChannel.socket()) {
-                Utils.closeItem(socketChannel);
-            }
-            int count = mConnectionCount.decrementAndGet();
+    void close() {
 
-            if (sendResponse) {
-            writeCommand(PortCommand.DISCONNECT_SOCKET, socketId);
-            }
+        // the stop reading function can block, so close in a new thread to prevent
+        // from blocking UI thread
+        Thread closeThread = new Thread(mCloseRunnable);
+        closeThread.start();
 
-            if (updateService) {
-                mAccessoryCallbacks.onConnectionUpdate(count);
-            }
-        }
     }
 
-    private final Runnable mSocketSelector = new Runnable() {
-        @Override
-        public void run() {
-            // set up selector and server
-            try {
-                mSelector = Selector.open();
-                mServerChannel = ServerSocketChannel.open();
-                mServerChannel.configureBlocking(false);
-                mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), localPort));
-                mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to Open and configure server socket connection");
-                if (DEBUG) {
-                    e.printStackTrace();
-                }
-                if (mServerChannel != null && mServerChannel.isOpen()) {
-                    Utils.closeItem(mServerChannel);
-                }
-                return;
-            }
-
-            byte[] inputArray = new byte[8192];
-            ByteBuffer inputBuffer = ByteBuffer.wrap(inputArray);
-            inputBuffer.position(6);  // Leave space for the header when reading
-            Short nextSocketId = createSocketId();
-            int bytesRead;
-
-            while (mServerChannel.isOpen()) {
-                try {
-                    mSelector.select();
-                } catch (IOException e) {
-                    Log.e(TAG, "Selector failed, exiting socket loop");
-                    break;
-                }
-                //  TODO: closed selector exception
-                Set selectedKeys = mSelector.selectedKeys();
-                Iterator iter = selectedKeys.iterator();
-
-                while (iter.hasNext()) {
-
-                    SelectionKey key = (SelectionKey) iter.next();
-
-                    if (key.isAcceptable()) {
-                        if (nextSocketId != null) {
-                            SocketChannel client;
-                            try {
-                                client = mServerChannel.accept();
-                                client.configureBlocking(false);
-                                client.register(mSelector, SelectionKey.OP_READ, nextSocketId);
-                            } catch (IOException e) {
-                                Log.i(TAG, "Unable to connect to client");
-                                continue;
-                            }
-                            writeCommand(PortCommand.CONNECT_SOCKET, nextSocketId); // tell connection to start
-                            mConnectionCount.incrementAndGet(); // Increment current connection count
-                            mSocketArray.set(nextSocketId, client);
-                        }
-                        nextSocketId = createSocketId();
-                    } else if (key.isReadable()) {
-                        SocketChannel client = (SocketChannel) key.channel();
-                        try {
-                            bytesRead = client.read(inputBuffer);
-                        } catch (IOException e) {
-                            Log.i(TAG, "Socket read error, id: " + key.attachment());
-                            disconnectSocket((short)key.attachment(),true, true);
-                            continue;
-                        }
-                        if (bytesRead > 0) {
-                            // Add the header
-                            inputBuffer.flip();
-                            inputBuffer.put(PortCommand.DATA_PACKET.getBytes());
-                            inputBuffer.putShort((short)(bytesRead + 2));  // Payload = bytes read + socket id
-                            inputBuffer.putShort((short)key.attachment());
-                            writeToAccessory(inputArray, inputBuffer.limit());
-
-                            // Prepare for next read
-                            inputBuffer.clear();
-                            inputBuffer.position(6);
-                        } else if (bytesRead == -1) {
-                            // Socket disconnected
-                            if (DEBUG)
-                                Log.d(TAG, "EOF Reached, Socket Id: " + key.attachment());
-                            // TODO: In theory I shouldn't need to send a disconnect, as the server
-                            // Should know to disconnect, correct?  Is this always applicable to
-                            // EOF reads? (ie: if the socket sends EOF, we are sure that
-                            // the server's respose will send an EOF, and the server will never
-                            // send EOF before the socket
-                            disconnectSocket((short)key.attachment(), true, true);
-                        }
-                    }
-                    iter.remove();
-                }
-            }
 
-            if (mServerChannel.isOpen()){
-                Utils.closeItem(mServerChannel);
+    private boolean isValidAccessory(UsbAccessory acc) {
+        if (acc != null) {
+            if (MANUFACTURER.equals(acc.getManufacturer()) &&
+                    MODEL.equals(acc.getModel())) {
+                return true;
             }
         }
-    };
-
-    private final Runnable mAccessoryReadRunnable = new Runnable() {
-        private int mBytesRead;
-        private PortCommand mCurrentCommand = PortCommand.NONE;
-        private int mPayloadSize = 0;
-        private byte[] mInputArray = new byte[16384];
-        private ByteBuffer mInputBuffer;
-        private ByteBuffer mSplitHeaderBuffer = ByteBuffer.allocate(4);
-        private ByteBuffer mSplitPayloadBuffer = ByteBuffer.allocateDirect(8192);
-        private boolean mPayloadSplit = false;
-        private boolean mHeaderSplit = false;
+        return false;
+    }
 
-        @Override
-        public void run() {
-            mInputBuffer = ByteBuffer.wrap(mInputArray);
-            outerloop:
-            while (mAccessoryConnected.get()) {
-                try {
-                    mBytesRead = mAccessoryInputStream.read(mInputArray);
-                } catch (IOException e) {
-                    break;
-                }
+    private UsbAccessory detectAccessory() {
+        UsbManager usbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
+        UsbAccessory[] accessoryList = usbManager.getAccessoryList();
 
-                if (mBytesRead > 0) {
-                    if (DEBUG)
-                        Log.d(TAG, "Bytes read: " + mBytesRead);
-                    // reset buffer
-                    mInputBuffer.position(0);
-                    mInputBuffer.limit(mBytesRead);
-
-                    while (mInputBuffer.remaining() >= 4) {
-                        if (mHeaderSplit) {
-                            processSplitHeader();
-                        } else if (mPayloadSplit) {
-                            // Payload split between packets, assemble and process
-                            Utils.bufferFill(mSplitPayloadBuffer, mInputBuffer);
-                            if (mSplitPayloadBuffer.hasRemaining()) {
-                                Log.w(TAG, "Payload remaining larger than incoming packet.\n" +
-                                        "This should not happen as usb transfers are larger than" +
-                                        " Socket transfers");
-                                break;
-                            } else {
-                                // overflow payload is in current buffer process
-                                mSplitPayloadBuffer.flip();
-
-                                // Process packet, check for termination
-                                if (!processPacket(mCurrentCommand, mSplitPayloadBuffer))
-                                    break outerloop;
-
-                                mSplitPayloadBuffer.clear();
-                                mPayloadSplit = false;
-
-                                // Continue the next loop to check input buffer size and get
-                                // next command
-                                continue;
-                            }
-                        } else {
-                            // Header is the next part of the buffer, retreive it
-                            mCurrentCommand = PortCommand.getCommandFromValue(mInputBuffer.getShort());
-                            mPayloadSize = mInputBuffer.getShort() & 0xFFFF;
-                        }
+        if (accessoryList != null && !(accessoryList.length == 0)) {
+            UsbAccessory accessory = accessoryList[0];
+            if (isValidAccessory(accessory)) {
+                return accessory;
 
-                        if (mPayloadSize == 0) {
-                            // There is no payload, process
-                            if (DEBUG)
-                                Log.i(TAG, "Empty payload");
-                            if (!processPacket(mCurrentCommand, null))
-                                break outerloop;
-                        } else if (mPayloadSize <= mInputBuffer.remaining()) {
-                            // The buffer contains the entire payload, process
-
-                            // Reset Limit to payload size
-                            int cur_limit = mInputBuffer.limit();
-                            mInputBuffer.limit(mInputBuffer.position() + mPayloadSize);
-                            if (!processPacket(mCurrentCommand, mInputBuffer))
-                                break outerloop;
-
-                            // reset Input buffer limit
-                            mInputBuffer.limit(cur_limit);
-
-                        } else {
-                            // The buffer only contains a partial section of the payload,
-                            // split and store it
-                            storeSplitPayload();
-                            break;
-                        }
-                    }
+            } else {
+                Log.e(TAG, "Connected Accessory is not a match for expected accessory\n" +
+                        "Expected Accessory: " + MANUFACTURER + ":" + MODEL + "\n" +
+                        "Connected Accessory: " + accessory.getManufacturer() + ":" +
+                        accessory.getModel());
+            }
+        }
 
-                    if (mInputBuffer.hasRemaining()) {
-                        Log.w(TAG, "Buffer not empty after processing, packet header is split");
-                        Utils.bufferFill(mSplitHeaderBuffer, mInputBuffer);
-                        mHeaderSplit = true;
-                        if (mInputBuffer.hasRemaining()) {
-                            // If the Input buffer has remaining after the fill, Process the
-                            // header and store the remaining bytes in the split payload buffer
+        Log.i(TAG, "Accessory not found");
+        return null;
+    }
 
-                            processSplitHeader();
-                            storeSplitPayload();
-                        }
-                    }
-                }
+    private void openAccessory(UsbAccessory accessory) {
+        mAccessory = accessory;
+        ParcelFileDescriptor fileDescriptor = mUsbManger.openAccessory(mAccessory);
+
+        if (fileDescriptor != null) {
+            MuxServer muxServer = new MuxServer(new UsbAccessoryTransport(fileDescriptor),
+                    mMuxCallbacks);
+            // Probe the link so a wedged accessory fails its clients quickly
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            muxServer.setHeartbeat(
+                    prefs.getLong(PortForwardManager.EXTRA_HEARTBEAT_INTERVAL,
+                            MuxServer.DEFAULT_HEARTBEAT_INTERVAL_MS),
+                    prefs.getInt(PortForwardManager.EXTRA_HEARTBEAT_MAX_MISSED,
+                            MuxServer.DEFAULT_HEARTBEAT_MAX_MISSED));
+            muxServer.setSelectorThreads(prefs.getInt(PortForwardManager.EXTRA_SELECTOR_THREADS,
+                    MuxServer.DEFAULT_SELECTOR_THREADS));
+            // Exposed before the link starts, so the host's first requests aren't refused
+            for (Map.Entry<Integer, Boolean> port : mReversePorts.entrySet()) {
+                muxServer.addReversePort(port.getKey(), port.getValue());
             }
-
-            if (mAccessoryConnected.compareAndSet(true, false)) {
-                // Accessory disconnected, either due to error or socket disconnection
-                close();
+            muxServer.start(localPort, remotePort);
+            for (PortMapping mapping : mExtraMappings.values()) {
+                if (mapping.getLocalPort() != localPort ||
+                        mCacheProxies.containsKey(mapping.getLocalPort())) {
+                    addToLink(muxServer, mapping);
+                }
             }
-        }
-
-        private void processSplitHeader() {
-            if (DEBUG)
-                Log.d(TAG, "Processing Split Header");
-            int headerRem = mSplitHeaderBuffer.remaining();
-            if (headerRem > 0) {
-                Utils.bufferFill(mSplitHeaderBuffer, mInputBuffer);
+            for (PortMapping mapping : mDatagramMappings.values()) {
+                muxServer.addDatagramMapping(mapping.getLocalPort(), mapping.getRemotePort(),
+                        mapping.getPriority());
             }
+            mMuxServer = muxServer;
+            mAccessoryCallbacks.onAccessoryConnected(true, 0);
 
-            mSplitHeaderBuffer.flip();
-            mCurrentCommand = PortCommand.getCommandFromValue(mSplitHeaderBuffer.getShort());
-            mPayloadSize = mSplitHeaderBuffer.getShort() & 0xFFFF;
-            mSplitHeaderBuffer.clear();
-            mHeaderSplit = false;
+        } else {
+            Log.d(TAG, "Unable to open Accessory File Descriptor");
+            mAccessoryCallbacks.onAccessoryConnected(false, 0);
         }
+    }
 
-        private void storeSplitPayload() {
-            if (DEBUG)
-                Log.d(TAG, "Split Packet Detected");
-            mSplitPayloadBuffer.limit(mPayloadSize);
-            if (mInputBuffer.hasRemaining()) {
-                Utils.bufferFill(mSplitPayloadBuffer, mInputBuffer);
-            }
-            mPayloadSplit = true;
-        }
-
-        private boolean processPacket(PortCommand cmd ,ByteBuffer packetBuffer) {
-            switch (cmd) {
-                case CONNECT_SOCKET:
-                case ACCESSORY_CONNECTED:
-                    Log.i(TAG, "Should not receive command from server: " + cmd);
-                    break;
-                case DISCONNECT_SOCKET: {
-                    Log.i(TAG, "Server disconnected socket");
-                    Short id = packetBuffer.getShort();
-                    disconnectSocket(id, false, true);
-                    break;
-                }
-                case DATA_PACKET: {
-                    Short id = packetBuffer.getShort();
-                    if (!writeToSocket(id, packetBuffer))
-                        disconnectSocket(id, true, true);
-
-                    break;
-                }
-                case CONNECTION_RESP: {
-                    Short id = packetBuffer.getShort();
-                    boolean response = (packetBuffer.getShort() > 0);
-
-                    if (response) {
-                        if (DEBUG)
-                            Log.d(TAG, "Response success, Socket Id: " + id);
-                        mAccessoryCallbacks.onConnectionUpdate(mConnectionCount.get());
-                    } else {
-                        // Socket didn't connect, remove it from the array and close,
-                        // Don't need to update connection count as it hasn't been added
-                        if (DEBUG)
-                            Log.d(TAG, "Response failure, Socket Id: " + id);
-
-                        // This will disconnect the current socket and decrement the connection count
-                        disconnectSocket(id, false, false);
-                    }
-                    break;
-                }
-                case TERMINATE_ACCESSORY:
-                    Log.d(TAG, "Terminating Server");
-                    return false;
-                default:
-                    Log.i(TAG, "Unknown Command received");
-            }
+    private final MuxServer.Callbacks mMuxCallbacks = new MuxServer.Callbacks() {
+        @Override
+        public void onConnectionUpdate(int connectionCount) {
+            mAccessoryCallbacks.onConnectionUpdate(connectionCount);
+        }
 
-            return true;
+        @Override
+        public void onLinkClosed() {
+            // Accessory disconnected, either due to error or termination from the host
+            close();
         }
     };
 
@@ -680,30 +572,21 @@ class AccessoryServer {
 
             if (DEBUG)
                 Log.d(TAG, "Closing Accessory");
-            if (mAccessoryConnected.compareAndSet(true, false)) {
-                if (DEBUG)
-                    Log.d(TAG, "Sending Termination Command");
-                writeCommand(PortCommand.TERMINATE_ACCESSORY);
+
+            // Sends the termination command if the link is still up, then closes all
+            // sockets and the accessory file descriptor
+            // The ports behind the cache proxies are freed with the link, and may be taken by
+            // anyone once it's gone
+            for (HttpCacheProxy proxy : mCacheProxies.values()) {
+                proxy.setUpstreamPort(0);
+            }
+            MuxServer muxServer = mMuxServer;
+            if (muxServer != null) {
+                muxServer.stop();
+                Log.i(TAG, "Link closed: " + muxServer.getLinkStats());
             }
 
-            // Attempt to close socket items
-            Utils.closeItem(mServerChannel);
-            disconnectAllClients();
-            Utils.closeItem(mSelector);
-
-            // Stop socket threads
-            Utils.stopThread(mSocketThread);
-            Utils.stopThread(mAccessoryReadThread, 1000);
-            Utils.closeItem(mAccessoryInputStream);
-            Utils.closeItem(mAccessoryOutputStream);
-            Utils.closeItem(mFileDescriptor);
-
-            mServerChannel = null;
-            mAccessoryInputStream = null;
-            mAccessoryOutputStream = null;
-            mFileDescriptor = null;
-            mSocketThread = null;
-            mAccessoryReadThread = null;
+            mMuxServer = null;
             mAccessoryCallbacks.onClose();
         }
     };
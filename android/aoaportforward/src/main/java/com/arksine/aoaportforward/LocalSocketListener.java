@@ -0,0 +1,195 @@
+package com.arksine.aoaportforward;
+
+import android.content.Context;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import com.arksine.portforwardcore.MuxServer;
+import com.arksine.portforwardcore.PortMapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *  Listens on a local domain socket, in the abstract namespace or on the filesystem in the
+ *  app's socket directory, and attaches each client to the open link as a stream of its
+ *  mapping.  Local sockets skip the loopback TCP stack, and a filesystem socket can be
+ *  restricted by its file permissions.
+ *  Like the cache proxies, a listener outlives the links: clients arriving while the
+ *  accessory is away are closed.
+ */
+
+class LocalSocketListener {
+    private static final String TAG = LocalSocketListener.class.getSimpleName();
+
+    private final String mName;
+    // Where a filesystem socket is bound, null in the abstract namespace
+    private final File mPath;
+    private final LocalSocketAddress mAddress;
+    private final PortMapping mMapping;
+    private final AccessoryServer mServer;
+    private LocalServerSocket mServerSocket = null;
+    // The socket bound to a filesystem path, which the server socket accepts on
+    private LocalSocket mBoundSocket = null;
+    private volatile boolean mRunning = false;
+    private Thread mAcceptThread = null;
+
+    LocalSocketListener(Context context, String name, boolean filesystem, PortMapping mapping,
+                        AccessoryServer server) {
+        this.mName = name;
+        if (filesystem) {
+            mPath = new File(getSocketDir(context), name);
+            mAddress = new LocalSocketAddress(mPath.getPath(),
+                    LocalSocketAddress.Namespace.FILESYSTEM);
+        } else {
+            mPath = null;
+            mAddress = new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT);
+        }
+        this.mMapping = mapping;
+        this.mServer = server;
+    }
+
+    /**
+     * Returns the directory filesystem sockets are bound in, which only the app can write to
+     */
+    static File getSocketDir(Context context) {
+        return context.getDir("sockets", Context.MODE_PRIVATE);
+    }
+
+    void start() throws IOException {
+        if (mPath != null) {
+            // A plain file name, so the socket can't be bound outside the directory
+            if (mName.isEmpty() || mName.indexOf(File.separatorChar) >= 0 ||
+                    mName.equals(".") || mName.equals("..")) {
+                throw new IOException("Invalid socket name " + mName);
+            }
+            // A socket file left behind by an earlier run fails the bind
+            if (mPath.exists() && !mPath.delete()) {
+                throw new IOException("Unable to remove stale socket " + mName);
+            }
+            LocalSocket socket = new LocalSocket();
+            try {
+                socket.bind(mAddress);
+            } catch (IOException e) {
+                closeSocket(socket);
+                throw e;
+            }
+            // Bound, so the file is ours to remove
+            mBoundSocket = socket;
+            try {
+                mServerSocket = new LocalServerSocket(socket.getFileDescriptor());
+            } catch (IOException e) {
+                releaseBoundSocket();
+                throw e;
+            }
+        } else {
+            mServerSocket = new LocalServerSocket(mName);
+        }
+        mRunning = true;
+        mAcceptThread = new Thread(null, mAcceptRunnable, "Local Socket Accept " + mName);
+        mAcceptThread.start();
+    }
+
+    void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        // Closing the server socket doesn't wake accept(), a connection of our own does
+        LocalSocket wake = new LocalSocket();
+        try {
+            wake.connect(mAddress);
+        } catch (IOException e) {
+            Log.i(TAG, "Unable to wake listener on " + mName);
+        }
+        closeSocket(wake);
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.i(TAG, "Error closing listener on " + mName);
+        }
+        releaseBoundSocket();
+        try {
+            mAcceptThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseBoundSocket() {
+        if (mBoundSocket != null) {
+            closeSocket(mBoundSocket);
+            mBoundSocket = null;
+            mPath.delete();
+        }
+    }
+
+    private static void closeSocket(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private final Runnable mAcceptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (mRunning) {
+                final LocalSocket client;
+                try {
+                    client = mServerSocket.accept();
+                } catch (IOException e) {
+                    if (mRunning) {
+                        Log.e(TAG, "Listener on " + mName + " failed: " + e.getMessage());
+                    }
+                    break;
+                }
+                if (!mRunning) {
+                    closeSocket(client);
+                    break;
+                }
+                try {
+                    mServer.attachClient(mMapping, new LocalClient(client));
+                } catch (IOException e) {
+                    Log.i(TAG, "Dropped client on " + mName + ": " + e.getMessage());
+                }
+            }
+        }
+    };
+
+    /**
+     * An accepted local socket as the mux sees it
+     */
+    private static class LocalClient implements MuxServer.ClientStream {
+        private final LocalSocket mSocket;
+
+        LocalClient(LocalSocket socket) {
+            this.mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            mSocket.shutdownOutput();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -7,6 +7,14 @@ import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbManager;
 import android.preference.PreferenceManager;
 
+import com.arksine.portforwardcore.CacheStats;
+import com.arksine.portforwardcore.FrameScheduler;
+import com.arksine.portforwardcore.LinkStats;
+import com.arksine.portforwardcore.MuxChannel;
+
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Manager for the library
  */
@@ -14,6 +22,19 @@ import android.preference.PreferenceManager;
 public class PortForwardManager {
     public static final String EXTRA_LOCAL_PORT = "com.arksine.aoaportforward.EXTRA_LOCAL_PORT";
     public static final String EXTRA_REMOTE_PORT = "com.arksine.aoaportforward.EXTRA_REMOTE_PORT";
+    public static final String EXTRA_DEVICE_PORT = "com.arksine.aoaportforward.EXTRA_DEVICE_PORT";
+    public static final String EXTRA_COMPRESS = "com.arksine.aoaportforward.EXTRA_COMPRESS";
+    public static final String EXTRA_PRIORITY = "com.arksine.aoaportforward.EXTRA_PRIORITY";
+    public static final String EXTRA_CACHE = "com.arksine.aoaportforward.EXTRA_CACHE";
+    public static final String EXTRA_DATAGRAM = "com.arksine.aoaportforward.EXTRA_DATAGRAM";
+    public static final String EXTRA_SOCKET_NAME = "com.arksine.aoaportforward.EXTRA_SOCKET_NAME";
+    public static final String EXTRA_FILESYSTEM = "com.arksine.aoaportforward.EXTRA_FILESYSTEM";
+    public static final String EXTRA_HEARTBEAT_INTERVAL =
+            "com.arksine.aoaportforward.EXTRA_HEARTBEAT_INTERVAL";
+    public static final String EXTRA_HEARTBEAT_MAX_MISSED =
+            "com.arksine.aoaportforward.EXTRA_HEARTBEAT_MAX_MISSED";
+    public static final String EXTRA_SELECTOR_THREADS =
+            "com.arksine.aoaportforward.EXTRA_SELECTOR_THREADS";
 
     private PortForwardManager() {}
 
@@ -24,7 +45,7 @@ public class PortForwardManager {
         } else {
             // Broadcast
             Intent connectIntent = new Intent(context.getString(R.string.ACTION_CONNECT_ACCESSORY));
-            context.sendBroadcast(connectIntent);
+            Utils.sendServiceBroadcast(context, connectIntent);
         }
     }
 
@@ -39,7 +60,7 @@ public class PortForwardManager {
             Intent connectIntent = new Intent(context.getString(R.string.ACTION_CONNECT_ACCESSORY));
             connectIntent.putExtra(EXTRA_LOCAL_PORT, localPort);
             connectIntent.putExtra(EXTRA_REMOTE_PORT, remotePort);
-            context.sendBroadcast(connectIntent);
+            Utils.sendServiceBroadcast(context, connectIntent);
         }
     }
 
@@ -53,7 +74,7 @@ public class PortForwardManager {
             // Broadcast
             Intent connectIntent = new Intent(context.getString(R.string.ACTION_CONNECT_ACCESSORY));
             connectIntent.putExtra(UsbManager.EXTRA_ACCESSORY, accessory);
-            context.sendBroadcast(connectIntent);
+            Utils.sendServiceBroadcast(context, connectIntent);
         }
     }
 
@@ -71,13 +92,245 @@ public class PortForwardManager {
             connectIntent.putExtra(UsbManager.EXTRA_ACCESSORY, accessory);
             connectIntent.putExtra(EXTRA_LOCAL_PORT, localPort);
             connectIntent.putExtra(EXTRA_REMOTE_PORT, remotePort);
-            context.sendBroadcast(connectIntent);
+            Utils.sendServiceBroadcast(context, connectIntent);
         }
     }
 
     public static void stopPortForwardService(Context context) {
         Intent stopIntent = new Intent(context.getString(R.string.ACTION_STOP_SERVICE));
-        context.sendBroadcast(stopIntent);
+        Utils.sendServiceBroadcast(context, stopIntent);
+    }
+
+    /**
+     * Forwards connections on another local port to a remote port on the host, sharing the
+     * accessory link.  Mapping a local port that is already forwarded changes where its new
+     * connections go.  The mapping lasts until it is removed or the service stops.
+     */
+    public static void addMapping(Context context, int localPort, int remotePort) {
+        addMapping(context, localPort, remotePort, false);
+    }
+
+    /**
+     * As above.  A compressed mapping deflates its connections' data over the link when the
+     * host supports it, trading CPU for bandwidth on compressible traffic such as JSON or HTML.
+     */
+    public static void addMapping(Context context, int localPort, int remotePort,
+                                  boolean compress) {
+        addMapping(context, localPort, remotePort, compress, FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * As above, with the share of the link the mapping's connections get while the link is
+     * busy.  Interactive mappings keep their latency low alongside bulk transfers.
+     *
+     * @param priority one of the FrameScheduler priorities
+     */
+    public static void addMapping(Context context, int localPort, int remotePort,
+                                  boolean compress, int priority) {
+        addMapping(context, localPort, remotePort, compress, priority, false);
+    }
+
+    /**
+     * As above.  A cached mapping is for HTTP/1.1 servers: cacheable GET responses are kept
+     * on the device, in memory and in the app's cache directory, and answered from there
+     * while fresh, even while the accessory is disconnected.  Stale responses are revalidated
+     * with the host.  The device parses every request on a cached mapping, so only cache
+     * mappings to HTTP servers.
+     */
+    public static void addMapping(Context context, int localPort, int remotePort,
+                                  boolean compress, int priority, boolean cache) {
+        Intent mappingIntent = new Intent(context.getString(R.string.ACTION_ADD_MAPPING));
+        mappingIntent.putExtra(EXTRA_LOCAL_PORT, localPort);
+        mappingIntent.putExtra(EXTRA_REMOTE_PORT, remotePort);
+        mappingIntent.putExtra(EXTRA_COMPRESS, compress);
+        mappingIntent.putExtra(EXTRA_PRIORITY, priority);
+        mappingIntent.putExtra(EXTRA_CACHE, cache);
+        Utils.sendServiceBroadcast(context, mappingIntent);
+    }
+
+    /**
+     * Stops listening on a local port.  Clients already connected through it are not dropped.
+     */
+    public static void removeMapping(Context context, int localPort) {
+        Intent mappingIntent = new Intent(context.getString(R.string.ACTION_REMOVE_MAPPING));
+        mappingIntent.putExtra(EXTRA_LOCAL_PORT, localPort);
+        Utils.sendServiceBroadcast(context, mappingIntent);
+    }
+
+    /**
+     * Forwards datagrams sent to a local UDP port to a remote UDP port on the host, and the
+     * host's replies back to their sender, for protocols such as DNS or game traffic.  Each
+     * datagram crosses the link whole.  While the link is congested datagrams are dropped
+     * rather than delayed, as UDP itself would.  The mapping lasts until it is removed or the
+     * service stops.
+     */
+    public static void addDatagramMapping(Context context, int localPort, int remotePort) {
+        addDatagramMapping(context, localPort, remotePort, FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * As above, with the mapping's share of the link while it is busy
+     *
+     * @param priority one of the FrameScheduler priorities
+     */
+    public static void addDatagramMapping(Context context, int localPort, int remotePort,
+                                          int priority) {
+        Intent mappingIntent = new Intent(context.getString(R.string.ACTION_ADD_MAPPING));
+        mappingIntent.putExtra(EXTRA_LOCAL_PORT, localPort);
+        mappingIntent.putExtra(EXTRA_REMOTE_PORT, remotePort);
+        mappingIntent.putExtra(EXTRA_PRIORITY, priority);
+        mappingIntent.putExtra(EXTRA_DATAGRAM, true);
+        Utils.sendServiceBroadcast(context, mappingIntent);
+    }
+
+    /**
+     * Stops forwarding a local UDP port
+     */
+    public static void removeDatagramMapping(Context context, int localPort) {
+        Intent mappingIntent = new Intent(context.getString(R.string.ACTION_REMOVE_MAPPING));
+        mappingIntent.putExtra(EXTRA_LOCAL_PORT, localPort);
+        mappingIntent.putExtra(EXTRA_DATAGRAM, true);
+        Utils.sendServiceBroadcast(context, mappingIntent);
+    }
+
+    /**
+     * Forwards connections to a local domain socket in the abstract namespace, which clients
+     * reach with LocalSocket, to a remote port on the host.  Local sockets skip the loopback
+     * TCP stack, so connect faster and cost less per byte than a mapped port.  The socket is
+     * listened on until the mapping is removed or the service stops.
+     */
+    public static void addLocalMapping(Context context, String socketName, int remotePort) {
+        addLocalMapping(context, socketName, false, remotePort, false,
+                FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * As above.  A filesystem socket is bound in the app's socket directory under the file
+     * name given, at the path getLocalSocketPath returns, and its file permissions decide who
+     * may connect.  Names that aren't a plain file name are refused.
+     *
+     * @param priority one of the FrameScheduler priorities
+     */
+    public static void addLocalMapping(Context context, String socketName, boolean filesystem,
+                                       int remotePort, boolean compress, int priority) {
+        Intent mappingIntent = new Intent(context.getString(R.string.ACTION_ADD_MAPPING));
+        mappingIntent.putExtra(EXTRA_SOCKET_NAME, socketName);
+        mappingIntent.putExtra(EXTRA_FILESYSTEM, filesystem);
+        mappingIntent.putExtra(EXTRA_REMOTE_PORT, remotePort);
+        mappingIntent.putExtra(EXTRA_COMPRESS, compress);
+        mappingIntent.putExtra(EXTRA_PRIORITY, priority);
+        Utils.sendServiceBroadcast(context, mappingIntent);
+    }
+
+    /**
+     * Returns the path a filesystem socket of the given name is bound at
+     */
+    public static String getLocalSocketPath(Context context, String socketName) {
+        return new File(LocalSocketListener.getSocketDir(context), socketName).getPath();
+    }
+
+    /**
+     * Stops listening on a local domain socket.  Clients already connected through it are
+     * not dropped.
+     */
+    public static void removeLocalMapping(Context context, String socketName) {
+        Intent mappingIntent = new Intent(context.getString(R.string.ACTION_REMOVE_MAPPING));
+        mappingIntent.putExtra(EXTRA_SOCKET_NAME, socketName);
+        Utils.sendServiceBroadcast(context, mappingIntent);
+    }
+
+    /**
+     * Lets the host open connections to a server listening on a local port of the device,
+     * carried over the accessory link alongside forwarded connections.  The port stays
+     * exposed until it is removed or the service stops.  Only the app hosting the library,
+     * or one signed with the same key, can expose a port.
+     */
+    public static void addReversePort(Context context, int devicePort) {
+        addReversePort(context, devicePort, false);
+    }
+
+    public static void addReversePort(Context context, int devicePort, boolean compress) {
+        Intent reverseIntent = new Intent(context.getString(R.string.ACTION_ADD_REVERSE_PORT));
+        reverseIntent.putExtra(EXTRA_DEVICE_PORT, devicePort);
+        reverseIntent.putExtra(EXTRA_COMPRESS, compress);
+        Utils.sendServiceBroadcast(context, reverseIntent);
+    }
+
+    /**
+     * Stops the host from opening new connections to a device port.  Open connections are
+     * not dropped.
+     */
+    public static void removeReversePort(Context context, int devicePort) {
+        Intent reverseIntent = new Intent(context.getString(R.string.ACTION_REMOVE_REVERSE_PORT));
+        reverseIntent.putExtra(EXTRA_DEVICE_PORT, devicePort);
+        Utils.sendServiceBroadcast(context, reverseIntent);
+    }
+
+    /**
+     * Returns a snapshot of the accessory link's traffic and connection counters, including
+     * those of each open connection.  Returns null if the service isn't running in this
+     * process or the accessory isn't open.  Cheap enough to poll, nothing on the forwarding
+     * path is locked to take it.
+     */
+    public static LinkStats getLinkStats() {
+        return PortForwardService.getLinkStats();
+    }
+
+    /**
+     * Opens a connection to a remote port on the host for this process's own use, in place of
+     * connecting to a mapping's local port.  The channel is read and written without blocking,
+     * straight to and from the link, so nothing is copied through a loopback socket.  Returns
+     * null if the service isn't running in this process.
+     *
+     * @throws IOException if the accessory isn't open
+     */
+    public static MuxChannel openChannel(int remotePort) throws IOException {
+        return openChannel(remotePort, false, FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    public static MuxChannel openChannel(int remotePort, boolean compress, int priority)
+            throws IOException {
+        return PortForwardService.openChannel(remotePort, compress, priority);
+    }
+
+    /**
+     * Returns the hit ratio, bytes saved and size of the cache shared by cached mappings, or
+     * null if the service isn't running in this process or no mapping is cached.
+     */
+    public static CacheStats getCacheStats() {
+        return PortForwardService.getCacheStats();
+    }
+
+    /**
+     * Sets how often the link is probed, and how many probes in a row may go unanswered before
+     * the link is declared dead and every connection is dropped.  An interval of 0 stops
+     * probing.  Applies to links opened afterwards.
+     */
+    public static void setHeartbeat(Context context, long intervalMs, int maxMissed) {
+        if (intervalMs < 0 || maxMissed < 1) {
+            throw new IllegalArgumentException("Invalid heartbeat " + intervalMs + " ms, " +
+                    maxMissed + " missed");
+        }
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        sharedPrefs.edit()
+                .putLong(EXTRA_HEARTBEAT_INTERVAL, intervalMs)
+                .putInt(EXTRA_HEARTBEAT_MAX_MISSED, maxMissed)
+                .apply();
+    }
+
+    /**
+     * Sets how many threads read forwarded sockets.  More threads help with many busy
+     * connections on multi-core devices; per thread counters are in getLinkStats().  Applies
+     * to links opened afterwards.
+     */
+    public static void setSelectorThreads(Context context, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid selector thread count " + count);
+        }
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        sharedPrefs.edit()
+                .putInt(EXTRA_SELECTOR_THREADS, count)
+                .apply();
     }
 
     public static void setPorts(Context context, int localPort, int remotePort) {
@@ -18,12 +18,21 @@ import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.arksine.portforwardcore.CacheStats;
+import com.arksine.portforwardcore.FrameScheduler;
+import com.arksine.portforwardcore.LinkStats;
+import com.arksine.portforwardcore.MuxChannel;
+
+import java.io.IOException;
 import java.util.Locale;
 
 
 public class PortForwardService extends Service {
     private static final String TAG = PortForwardService.class.getSimpleName();
 
+    // The running service's server, read by PortForwardManager for link counters
+    private static volatile AccessoryServer sAccessoryServer = null;
+
     private NotificationManager mNotificationManager;
     private Notification.Builder mNotificationBuilder;
     private AccessoryServer mAccessoryServer;
@@ -37,11 +46,18 @@ public class PortForwardService extends Service {
 
         IntentFilter filter = new IntentFilter(getString(R.string.ACTION_STOP_SERVICE));
         filter.addAction(Intent.ACTION_SHUTDOWN);
-        registerReceiver(mServiceReciever, filter);
+        filter.addAction(getString(R.string.ACTION_CONNECT_ACCESSORY));
+        filter.addAction(getString(R.string.ACTION_ADD_MAPPING));
+        filter.addAction(getString(R.string.ACTION_REMOVE_MAPPING));
+        filter.addAction(getString(R.string.ACTION_ADD_REVERSE_PORT));
+        filter.addAction(getString(R.string.ACTION_REMOVE_REVERSE_PORT));
+        // Mappings and reverse ports open the device to the host, only the app may change them
+        registerReceiver(mServiceReciever, filter, Utils.getServicePermission(this), null);
 
         mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         Bitmap largeIcon = Utils.generateLargeNotificationIcon(this, R.drawable.ic_notifcation_large);
         Intent stopIntent = new Intent(getString(R.string.ACTION_STOP_SERVICE));
+        stopIntent.setPackage(getPackageName());
         PendingIntent stopPendingIntent = PendingIntent.getBroadcast(this, R.integer.REQUEST_STOP_SERVICE,
                 stopIntent, 0);
 
@@ -71,6 +87,7 @@ public class PortForwardService extends Service {
         }
 
         mAccessoryServer = new AccessoryServer(this, mAccessoryCallbacks);
+        sAccessoryServer = mAccessoryServer;
     }
 
     @Override
@@ -89,16 +106,46 @@ public class PortForwardService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        sAccessoryServer = null;
         if (mAccessoryServer != null) {
             if (mAccessoryServer.isOpen())
                 mAccessoryServer.close();
             mAccessoryServer.unregisterReceiver();
+            mAccessoryServer.stopCacheProxies();
+            mAccessoryServer.stopLocalListeners();
         }
         unregisterReceiver(mServiceReciever);
     }
 
+    static LinkStats getLinkStats() {
+        AccessoryServer server = sAccessoryServer;
+        return (server != null) ? server.getLinkStats() : null;
+    }
+
+    static CacheStats getCacheStats() {
+        AccessoryServer server = sAccessoryServer;
+        return (server != null) ? server.getCacheStats() : null;
+    }
+
+    static MuxChannel openChannel(int remotePort, boolean compress, int priority)
+            throws IOException {
+        AccessoryServer server = sAccessoryServer;
+        return (server != null) ? server.openChannel(remotePort, compress, priority) : null;
+    }
+
     private void connectServer(Intent intent) {
-        if (!mAccessoryServer.isOpen()) {
+        if (mAccessoryServer.isOpen()) {
+            // New ports are applied to the running link, its clients stay connected
+            int localPort = intent.getIntExtra(PortForwardManager.EXTRA_LOCAL_PORT, -1);
+            int remotePort = intent.getIntExtra(PortForwardManager.EXTRA_REMOTE_PORT, -1);
+            if (localPort != -1 && remotePort != -1 &&
+                    (localPort != mLocalPort || remotePort != mRemotePort)) {
+                mLocalPort = localPort;
+                mRemotePort = remotePort;
+                mAccessoryServer.setPorts(localPort, remotePort);
+                mAccessoryCallbacks.onConnectionUpdate(mAccessoryServer.getConnectionCount());
+            }
+        } else {
             mLocalPort = intent.getIntExtra(PortForwardManager.EXTRA_LOCAL_PORT, -1);
             mRemotePort = intent.getIntExtra(PortForwardManager.EXTRA_REMOTE_PORT, -1);
 
@@ -171,6 +218,56 @@ public class PortForwardService extends Service {
                 }
             } else if (action.equals(getString(R.string.ACTION_CONNECT_ACCESSORY))) {
                 connectServer(intent);
+            } else if (action.equals(getString(R.string.ACTION_ADD_MAPPING))) {
+                int localPort = intent.getIntExtra(PortForwardManager.EXTRA_LOCAL_PORT, -1);
+                int remotePort = intent.getIntExtra(PortForwardManager.EXTRA_REMOTE_PORT, -1);
+                boolean compress = intent.getBooleanExtra(PortForwardManager.EXTRA_COMPRESS, false);
+                int priority = intent.getIntExtra(PortForwardManager.EXTRA_PRIORITY,
+                        FrameScheduler.PRIORITY_NORMAL);
+                boolean cache = intent.getBooleanExtra(PortForwardManager.EXTRA_CACHE, false);
+                boolean datagram = intent.getBooleanExtra(PortForwardManager.EXTRA_DATAGRAM,
+                        false);
+                String socketName = intent.getStringExtra(PortForwardManager.EXTRA_SOCKET_NAME);
+                if (socketName != null) {
+                    if (remotePort > 0 && priority >= FrameScheduler.PRIORITY_INTERACTIVE &&
+                            priority <= FrameScheduler.PRIORITY_BULK) {
+                        mAccessoryServer.addLocalMapping(socketName, intent.getBooleanExtra(
+                                PortForwardManager.EXTRA_FILESYSTEM, false), remotePort,
+                                compress, priority);
+                    }
+                } else if (localPort > 0 && remotePort > 0 &&
+                        priority >= FrameScheduler.PRIORITY_INTERACTIVE &&
+                        priority <= FrameScheduler.PRIORITY_BULK) {
+                    if (datagram) {
+                        mAccessoryServer.addDatagramMapping(localPort, remotePort, priority);
+                    } else {
+                        mAccessoryServer.addMapping(localPort, remotePort, compress, priority,
+                                cache);
+                    }
+                }
+            } else if (action.equals(getString(R.string.ACTION_REMOVE_MAPPING))) {
+                int localPort = intent.getIntExtra(PortForwardManager.EXTRA_LOCAL_PORT, -1);
+                String socketName = intent.getStringExtra(PortForwardManager.EXTRA_SOCKET_NAME);
+                if (socketName != null) {
+                    mAccessoryServer.removeLocalMapping(socketName);
+                } else if (localPort > 0) {
+                    if (intent.getBooleanExtra(PortForwardManager.EXTRA_DATAGRAM, false)) {
+                        mAccessoryServer.removeDatagramMapping(localPort);
+                    } else {
+                        mAccessoryServer.removeMapping(localPort);
+                    }
+                }
+            } else if (action.equals(getString(R.string.ACTION_ADD_REVERSE_PORT))) {
+                int devicePort = intent.getIntExtra(PortForwardManager.EXTRA_DEVICE_PORT, -1);
+                boolean compress = intent.getBooleanExtra(PortForwardManager.EXTRA_COMPRESS, false);
+                if (devicePort > 0) {
+                    mAccessoryServer.addReversePort(devicePort, compress);
+                }
+            } else if (action.equals(getString(R.string.ACTION_REMOVE_REVERSE_PORT))) {
+                int devicePort = intent.getIntExtra(PortForwardManager.EXTRA_DEVICE_PORT, -1);
+                if (devicePort > 0) {
+                    mAccessoryServer.removeReversePort(devicePort);
+                }
             }
         }
     };
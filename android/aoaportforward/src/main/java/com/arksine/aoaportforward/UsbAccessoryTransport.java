@@ -0,0 +1,50 @@
+package com.arksine.aoaportforward;
+
+import android.os.ParcelFileDescriptor;
+
+import com.arksine.portforwardcore.AccessoryTransport;
+import com.arksine.portforwardcore.MuxUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * AccessoryTransport backed by the file descriptor returned from UsbManager.openAccessory()
+ */
+
+class UsbAccessoryTransport implements AccessoryTransport {
+    private final ParcelFileDescriptor mFileDescriptor;
+    private final FileInputStream mAccessoryInputStream;
+    private final FileOutputStream mAccessoryOutputStream;
+
+    UsbAccessoryTransport(ParcelFileDescriptor fileDescriptor) {
+        this.mFileDescriptor = fileDescriptor;
+        FileDescriptor fd = mFileDescriptor.getFileDescriptor();
+        this.mAccessoryOutputStream = new FileOutputStream(fd);
+        this.mAccessoryInputStream = new FileInputStream(fd);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mAccessoryInputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mAccessoryOutputStream.write(buffer, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mAccessoryOutputStream.flush();
+    }
+
+    @Override
+    public void close() {
+        MuxUtils.closeItem(mAccessoryInputStream);
+        MuxUtils.closeItem(mAccessoryOutputStream);
+        MuxUtils.closeItem(mFileDescriptor);
+    }
+}
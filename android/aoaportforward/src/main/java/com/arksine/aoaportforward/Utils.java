@@ -2,12 +2,12 @@ package com.arksine.aoaportforward;
 
 import android.app.ActivityManager;
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 /**
  * Static Utility Functions
@@ -28,6 +28,22 @@ public class Utils {
         return false;
     }
 
+    /**
+     * Returns the signature permission that guards the service's receiver.  It is named after
+     * the app hosting the library, so only apps signed with the same key may hold it.
+     */
+    public static String getServicePermission(Context context) {
+        return context.getPackageName() + ".permission.PORT_FORWARD";
+    }
+
+    /**
+     * Sends a broadcast to the service, delivered only within this app
+     */
+    public static void sendServiceBroadcast(Context context, Intent intent) {
+        intent.setPackage(context.getPackageName());
+        context.sendBroadcast(intent, getServicePermission(context));
+    }
+
     public static void closeItem(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -101,31 +117,4 @@ public class Utils {
         return new String(hexChars);
     }
 
-    public static void bufferFill(ByteBuffer dest, ByteBuffer source) {
-        int destRem = dest.remaining();
-        if (destRem >= source.remaining()) {
-            dest.put(source);
-        } else {
-            byte[] sourceArray;
-            if (source.hasArray()) {
-                sourceArray = source.array();
-            } else {
-                sourceArray = new byte[destRem];
-                source.get(sourceArray);
-            }
-            int sourceEnd = source.position() + destRem;
-            dest.put(sourceArray, source.position(), destRem);
-            source.position(sourceEnd);
-        }
-    }
-
-    // Like the above, but always reads from source array
-    public static void bufferFill(ByteBuffer dest, ByteBuffer source, byte[] sourceArray) {
-        int transfer = (dest.remaining() < source.remaining())
-                ? dest.remaining() : source.remaining();
-        int sourceEnd = source.position() + transfer;
-        dest.put(sourceArray, source.position(), transfer);
-        source.position(sourceEnd);
-    }
-
 }
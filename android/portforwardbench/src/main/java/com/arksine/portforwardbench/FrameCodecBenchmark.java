@@ -0,0 +1,105 @@
+package com.arksine.portforwardbench;
+
+import com.arksine.portforwardcore.BufferPool;
+import com.arksine.portforwardcore.FrameCodec;
+import com.arksine.portforwardcore.MuxServer;
+import com.arksine.portforwardcore.PortCommand;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the frame codec: the control commands built for every connect/disconnect, the
+ * DATA_PACKET header written in front of every socket read, and the command lookup done for
+ * every received frame.  Each operation is one frame, encoded into a reused direct buffer as
+ * the mux does with its pooled slabs.  The largest data length fills a jumbo slab, which
+ * leaves room for and takes an extended header.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+
+    @Param({"64", "1400", "8186", "131064"})
+    public int dataLength;
+
+    private ByteBuffer mDataFrame;
+    private int mDataOffset;
+    private ByteBuffer mControlFrame;
+    private short mSocketId = 0;
+    private int mCommandIndex = 0;
+
+    // Values seen on the receive side, including one that isn't a command
+    private static final short[] COMMAND_VALUES = {
+            PortCommand.DATA_PACKET.getValue(),
+            PortCommand.WINDOW_UPDATE.getValue(),
+            PortCommand.DISCONNECT_SOCKET.getValue(),
+            PortCommand.CONNECTION_RESP.getValue(),
+            PortCommand.TERMINATE_ACCESSORY.getValue(),
+            (short) 0x7F7F
+    };
+
+    @Setup
+    public void setUp() {
+        // Room for the header the read's slab would leave
+        mDataOffset = (dataLength > BufferPool.FRAME_SLAB_SIZE - FrameCodec.DATA_HEADER_SIZE)
+                ? FrameCodec.EXTENDED_DATA_HEADER_SIZE : FrameCodec.DATA_HEADER_SIZE;
+        mDataFrame = ByteBuffer.allocateDirect(mDataOffset + dataLength);
+        mControlFrame = ByteBuffer.allocateDirect(BufferPool.CONTROL_SLAB_SIZE);
+    }
+
+    private short nextSocketId() {
+        mSocketId = (short) ((mSocketId + 1) % 40);
+        return mSocketId;
+    }
+
+    @Benchmark
+    public ByteBuffer emptyCommand() {
+        mControlFrame.clear();
+        return FrameCodec.encodeCommand(mControlFrame, PortCommand.TERMINATE_ACCESSORY);
+    }
+
+    @Benchmark
+    public ByteBuffer shortCommand() {
+        mControlFrame.clear();
+        return FrameCodec.encodeCommand(mControlFrame, PortCommand.DISCONNECT_SOCKET,
+                nextSocketId());
+    }
+
+    @Benchmark
+    public ByteBuffer accessoryConnected() {
+        mControlFrame.clear();
+        return FrameCodec.encodeAccessoryConnected(mControlFrame, 8000, MuxServer.CAPABILITIES);
+    }
+
+    @Benchmark
+    public int dataHeader() {
+        // Same sequence as the selector loop after a socket read
+        mDataFrame.clear();
+        mDataFrame.position(mDataFrame.capacity());
+        mDataFrame.flip();
+        return FrameCodec.putDataHeader(mDataFrame, mDataOffset, PortCommand.DATA_PACKET,
+                nextSocketId());
+    }
+
+    @Benchmark
+    public PortCommand decodeCommand() {
+        mCommandIndex = (mCommandIndex + 1) % COMMAND_VALUES.length;
+        return FrameCodec.decodeCommand(COMMAND_VALUES[mCommandIndex]);
+    }
+}
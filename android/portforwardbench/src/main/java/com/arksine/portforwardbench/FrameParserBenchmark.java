@@ -0,0 +1,148 @@
+package com.arksine.portforwardbench;
+
+import com.arksine.portforwardcore.FrameParser;
+import com.arksine.portforwardcore.MuxLog;
+import com.arksine.portforwardcore.PortCommand;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the accessory frame parser over synthetic streams.  parseLatency reports ns/frame,
+ * parseThroughput reports frames and megabytes per second.  Transfers are parsed as the
+ * accessory reader hands them over, as buffers, and plain data split across transfers is
+ * taken in pieces the way the mux streams it to sockets.  Run with "-prof gc" (the default
+ * for the jmh task) for the allocation rate.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameParserBenchmark {
+    static final int FRAMES = 4096;
+
+    @Param({"INTERACTIVE", "BULK", "MIXED", "JUMBO"})
+    public FrameStreams.FrameMix mix;
+
+    @Param({"TRANSFER", "HEADER", "PAYLOAD_TAIL"})
+    public FrameStreams.SplitMode split;
+
+    private ByteBuffer[] mChunks;
+    private long mStreamBytes;
+    private FrameParser mParser;
+    private final ConsumingHandler mHandler = new ConsumingHandler();
+
+    /**
+     * Counts parsed frames and payload bytes, so the parser's work can't be eliminated
+     */
+    static class ConsumingHandler implements FrameParser.StreamingFrameHandler {
+        long frames;
+        long payloadBytes;
+
+        @Override
+        public boolean onFrame(PortCommand command, ByteBuffer payload) {
+            frames++;
+            if (payload != null) {
+                payloadBytes += payload.remaining();
+                payload.position(payload.limit());
+            }
+            return true;
+        }
+
+        @Override
+        public int getStreamPrefixLength(PortCommand command) {
+            // The socket id, as the mux asks for
+            return (command == PortCommand.DATA_PACKET) ? 2 : -1;
+        }
+
+        @Override
+        public boolean onFramePiece(PortCommand command, ByteBuffer prefix, ByteBuffer piece,
+                                    boolean last) {
+            payloadBytes += piece.remaining();
+            piece.position(piece.limit());
+            if (last) {
+                frames++;
+                payloadBytes += prefix.remaining();
+            }
+            return true;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Traffic {
+        public long frames;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+            bytes = 0;
+        }
+
+        public double megabytes() {
+            return bytes / (1024.0 * 1024.0);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // keep logging out of the measurement
+        MuxLog.setPrinter(new MuxLog.Printer() {
+            @Override
+            public void println(char level, String tag, String msg) {}
+        });
+
+        FrameStreams.Stream stream = FrameStreams.build(mix, FRAMES, 1234L);
+        List<byte[]> chunks = FrameStreams.split(stream, split, 5678L);
+        mChunks = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < mChunks.length; i++) {
+            mChunks[i] = ByteBuffer.wrap(chunks.get(i));
+        }
+        mStreamBytes = stream.bytes.length;
+        mParser = new FrameParser(mHandler);
+    }
+
+    private long parseStream() {
+        long before = mHandler.frames;
+        for (ByteBuffer chunk : mChunks) {
+            chunk.clear();
+            mParser.parse(chunk);
+        }
+        return mHandler.frames - before;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FRAMES)
+    public long parseLatency() {
+        return parseStream();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long parseThroughput(Traffic traffic) {
+        long frames = parseStream();
+        traffic.frames += frames;
+        traffic.bytes += mStreamBytes;
+        return frames;
+    }
+}
@@ -0,0 +1,209 @@
+package com.arksine.portforwardbench;
+
+import com.arksine.portforwardcore.BufferPool;
+import com.arksine.portforwardcore.FrameCodec;
+import com.arksine.portforwardcore.PortCommand;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds synthetic accessory byte streams for the benchmarks.  A stream is a sequence of
+ * frames drawn from a FrameMix, which is then cut into transfer sized chunks according to
+ * a SplitMode, the same way the accessory read loop receives it.
+ */
+
+public class FrameStreams {
+    // Largest DATA_PACKET payload read into a frame slab (slab - header + socket id)
+    public static final int MAX_DATA_PAYLOAD =
+            BufferPool.FRAME_SLAB_SIZE - FrameCodec.DATA_HEADER_SIZE + 2;
+    // Largest payload read into a jumbo slab, which takes an extended header
+    public static final int MAX_JUMBO_PAYLOAD =
+            BufferPool.JUMBO_SLAB_SIZE - FrameCodec.EXTENDED_DATA_HEADER_SIZE + 2;
+    public static final int TRANSFER_SIZE = 16384;
+
+    public enum FrameMix {
+        // Request/response traffic, small writes and the occasional control frame
+        INTERACTIVE,
+        // A single large download, every socket read fills the selector buffer
+        BULK,
+        // Mostly small frames with some medium and bulk frames mixed in, plus control frames
+        MIXED,
+        // As MIXED once jumbo frames are agreed, bulk frames run up to the largest short
+        // header payload and some fill a jumbo slab, with an extended header
+        JUMBO
+    }
+
+    public enum SplitMode {
+        // Chunks are cut at the transfer size regardless of frame boundaries
+        TRANSFER,
+        // Every chunk ends one to three bytes into a frame header
+        HEADER,
+        // Every chunk ends a few bytes short of the end of a payload
+        PAYLOAD_TAIL
+    }
+
+    public static class Stream {
+        public final byte[] bytes;
+        public final int[] frameStarts;
+        public final int frameCount;
+
+        Stream(byte[] bytes, int[] frameStarts) {
+            this.bytes = bytes;
+            this.frameStarts = frameStarts;
+            this.frameCount = frameStarts.length;
+        }
+    }
+
+    private FrameStreams() {}
+
+    public static Stream build(FrameMix mix, int frameCount, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer stream = ByteBuffer.allocate(frameCount * (MAX_DATA_PAYLOAD + 4));
+        int[] frameStarts = new int[frameCount];
+
+        for (int i = 0; i < frameCount; i++) {
+            // Room for the largest frame, so only jumbo streams grow
+            stream = ensureRoom(stream, MAX_JUMBO_PAYLOAD + FrameCodec.EXTENDED_HEADER_SIZE);
+            frameStarts[i] = stream.position();
+            short socketId = (short) random.nextInt(40);
+            int roll = random.nextInt(100);
+            switch (mix) {
+                case INTERACTIVE:
+                    if (roll < 5) {
+                        putControlFrame(stream, socketId, random);
+                    } else {
+                        putDataFrame(stream, socketId, 32 + random.nextInt(480), random);
+                    }
+                    break;
+                case BULK:
+                    putDataFrame(stream, socketId, MAX_DATA_PAYLOAD - 2, random);
+                    break;
+                case JUMBO:
+                    if (roll < 5) {
+                        putControlFrame(stream, socketId, random);
+                    } else if (roll < 80) {
+                        putDataFrame(stream, socketId, 64 + random.nextInt(1336), random);
+                    } else if (roll < 92) {
+                        putDataFrame(stream, socketId, 1400 + random.nextInt(14984), random);
+                    } else if (roll < 97) {
+                        putDataFrame(stream, socketId,
+                                16384 + random.nextInt(FrameCodec.MAX_SHORT_PAYLOAD - 16386),
+                                random);
+                    } else {
+                        putDataFrame(stream, socketId, MAX_JUMBO_PAYLOAD - 2, random);
+                    }
+                    break;
+                case MIXED:
+                default:
+                    if (roll < 5) {
+                        putControlFrame(stream, socketId, random);
+                    } else if (roll < 80) {
+                        putDataFrame(stream, socketId, 64 + random.nextInt(1336), random);
+                    } else if (roll < 95) {
+                        putDataFrame(stream, socketId, 1400 + random.nextInt(2696), random);
+                    } else {
+                        putDataFrame(stream, socketId, MAX_DATA_PAYLOAD - 2, random);
+                    }
+            }
+        }
+
+        byte[] bytes = new byte[stream.position()];
+        System.arraycopy(stream.array(), 0, bytes, 0, bytes.length);
+        return new Stream(bytes, frameStarts);
+    }
+
+    /**
+     * Cuts the stream into chunks of at most TRANSFER_SIZE bytes.  Each chunk is returned in
+     * its own array starting at index zero, as the accessory read buffer would be.
+     */
+    public static List<byte[]> split(Stream stream, SplitMode mode, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> chunks = new ArrayList<>();
+        int start = 0;
+        int frame = 0;
+
+        while (start < stream.bytes.length) {
+            int end = Math.min(start + TRANSFER_SIZE, stream.bytes.length);
+            if (mode != SplitMode.TRANSFER && end < stream.bytes.length) {
+                // find the last frame that starts inside this chunk
+                while (frame + 1 < stream.frameCount && stream.frameStarts[frame + 1] < end) {
+                    frame++;
+                }
+                int frameStart = stream.frameStarts[frame];
+                int frameEnd = (frame + 1 < stream.frameCount)
+                        ? stream.frameStarts[frame + 1] : stream.bytes.length;
+
+                int candidate;
+                if (mode == SplitMode.HEADER) {
+                    candidate = frameStart + 1 + random.nextInt(3);
+                } else {
+                    candidate = frameEnd - 1 - random.nextInt(3);
+                    if (candidate > end) {
+                        // The last frame runs past the chunk, cut the one before it instead
+                        candidate = frameStart - 1 - random.nextInt(3);
+                    }
+                }
+
+                // The cut must fall inside the chunk and keep it large enough to
+                // contain a header
+                if (candidate > start + 4 && candidate <= end) {
+                    end = candidate;
+                }
+            }
+
+            byte[] chunk = new byte[end - start];
+            System.arraycopy(stream.bytes, start, chunk, 0, chunk.length);
+            chunks.add(chunk);
+            start = end;
+        }
+
+        return chunks;
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer stream, int room) {
+        if (stream.remaining() >= room) {
+            return stream;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(stream.capacity() * 2,
+                stream.position() + room));
+        stream.flip();
+        return larger.put(stream);
+    }
+
+    /**
+     * Payloads too large for the short header take an extended one, as the host sends them
+     */
+    private static void putDataFrame(ByteBuffer stream, short socketId, int dataLength,
+                                     Random random) {
+        int payloadLength = dataLength + 2;
+        if (payloadLength <= FrameCodec.MAX_SHORT_PAYLOAD) {
+            stream.put(PortCommand.DATA_PACKET.getBytes());
+            stream.putShort((short) payloadLength);
+        } else {
+            stream.putShort((short) (PortCommand.DATA_PACKET.getValue() |
+                    FrameCodec.EXTENDED_HEADER_FLAG));
+            stream.putInt(payloadLength);
+        }
+        stream.putShort(socketId);
+        int end = stream.position() + dataLength;
+        while (stream.position() < end) {
+            stream.put((byte) random.nextInt());
+        }
+    }
+
+    private static void putControlFrame(ByteBuffer stream, short socketId, Random random) {
+        if (random.nextBoolean()) {
+            stream.put(PortCommand.CONNECTION_RESP.getBytes());
+            stream.putShort((short) 4);
+            stream.putShort(socketId);
+            stream.putShort((short) 1);
+        } else {
+            stream.put(PortCommand.DISCONNECT_SOCKET.getBytes());
+            stream.putShort((short) 2);
+            stream.putShort(socketId);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.arksine.portforwardbench;
+
+import com.arksine.portforwardcore.LoopbackHost;
+import com.arksine.portforwardcore.LoopbackTransport;
+import com.arksine.portforwardcore.MuxChannel;
+import com.arksine.portforwardcore.MuxLog;
+import com.arksine.portforwardcore.MuxServer;
+import com.arksine.portforwardcore.PortMapping;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares clients reaching the mux through its loopback TCP listener with clients attached
+ * through MuxServer.attachClient, the path local domain socket listeners take on the device.
+ * The JVM can't open a local domain socket, so an attached client is a pair of OS pipes, which
+ * like a local socket bypass the TCP stack.  A channel client uses MuxServer.openChannel and
+ * skips streams altogether, reading and writing the link from its own buffers.  All run
+ * against a LoopbackHost and an echo server.  connectLatency reports us per connect, first
+ * byte echoed and close, echoThroughput reports megabytes per second over a connection kept
+ * open.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ListenerBenchmark {
+
+    public enum Listener {
+        // A socket connected to the mapping's local port
+        TCP,
+        // Pipes attached to the link, standing in for an accepted local socket
+        ATTACHED,
+        // A MuxChannel read and written by the benchmark thread
+        CHANNEL
+    }
+
+    @Param({"TCP", "ATTACHED", "CHANNEL"})
+    public Listener listener;
+
+    @Param({"1024", "16384"})
+    public int payloadSize;
+
+    private ServerSocket mEchoServer;
+    private MuxServer mMuxServer;
+    private LoopbackHost mHost;
+    private int mLocalPort;
+    private Connection mConnection;
+    private byte[] mPayload;
+    private byte[] mEchoed;
+    // Released by channel callbacks, waited on when a channel isn't ready
+    private final Semaphore mChannelReady = new Semaphore(0);
+
+    /**
+     * A client's ends of a forwarded connection, streams or a channel
+     */
+    private static class Connection {
+        final DataInputStream in;
+        final OutputStream out;
+        final MuxChannel channel;
+        final Closeable[] ends;
+
+        Connection(InputStream in, OutputStream out, Closeable... ends) {
+            this.in = new DataInputStream(in);
+            this.out = out;
+            this.channel = null;
+            this.ends = ends;
+        }
+
+        Connection(MuxChannel channel) {
+            this.in = null;
+            this.out = null;
+            this.channel = channel;
+            this.ends = new Closeable[] {channel};
+        }
+
+        void close() {
+            for (Closeable end : ends) {
+                try {
+                    end.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Traffic {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+
+        public double megabytes() {
+            return bytes / (1024.0 * 1024.0);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // keep logging out of the measurement
+        MuxLog.setPrinter(new MuxLog.Printer() {
+            @Override
+            public void println(char level, String tag, String msg) {}
+        });
+
+        mEchoServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread echoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptEchoClients();
+            }
+        }, "Echo Accept");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        ServerSocket probe = new ServerSocket(0);
+        mLocalPort = probe.getLocalPort();
+        probe.close();
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        mHost = new LoopbackHost(pair[1]);
+        mHost.start();
+        mMuxServer = new MuxServer(pair[0], new MuxServer.Callbacks() {
+            @Override
+            public void onConnectionUpdate(int connectionCount) {}
+
+            @Override
+            public void onLinkClosed() {}
+        });
+        mMuxServer.start(mLocalPort, mEchoServer.getLocalPort());
+
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        mEchoed = new byte[payloadSize];
+        // Also waits for the listener to be bound
+        mConnection = connect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mConnection.close();
+        mMuxServer.stop();
+        mHost.stop();
+        mEchoServer.close();
+    }
+
+    private void acceptEchoClients() {
+        while (!mEchoServer.isClosed()) {
+            final Socket client;
+            try {
+                client = mEchoServer.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread echo = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[16384];
+                    try {
+                        client.setTcpNoDelay(true);
+                        InputStream in = client.getInputStream();
+                        OutputStream out = client.getOutputStream();
+                        int read;
+                        while ((read = in.read(buf)) > 0) {
+                            out.write(buf, 0, read);
+                        }
+                    } catch (IOException e) {
+                        // client gone
+                    }
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        // already closed
+                    }
+                }
+            });
+            echo.setDaemon(true);
+            echo.start();
+        }
+    }
+
+    private Connection connect() throws Exception {
+        if (listener == Listener.TCP) {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), mLocalPort);
+                    socket.setTcpNoDelay(true);
+                    return new Connection(socket.getInputStream(), socket.getOutputStream(),
+                            socket);
+                } catch (ConnectException e) {
+                    // listener not bound yet
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    Thread.sleep(20);
+                }
+            }
+        }
+
+        if (listener == Listener.CHANNEL) {
+            MuxChannel channel = mMuxServer.openChannel(
+                    new PortMapping(0, mEchoServer.getLocalPort()));
+            if (channel == null) {
+                throw new IOException("Link down");
+            }
+            channel.setListener(new MuxChannel.Listener() {
+                @Override
+                public void onReadable(MuxChannel channel) {
+                    mChannelReady.release();
+                }
+
+                @Override
+                public void onWritable(MuxChannel channel) {
+                    mChannelReady.release();
+                }
+            });
+            return new Connection(channel);
+        }
+
+        final Pipe up = Pipe.open();
+        final Pipe down = Pipe.open();
+        MuxServer.ClientStream attached = new MuxServer.ClientStream() {
+            @Override
+            public InputStream getInputStream() {
+                return Channels.newInputStream(up.source());
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return Channels.newOutputStream(down.sink());
+            }
+
+            @Override
+            public void shutdownOutput() throws IOException {
+                down.sink().close();
+            }
+
+            @Override
+            public void close() throws IOException {
+                up.source().close();
+                down.sink().close();
+            }
+        };
+        if (!mMuxServer.attachClient(new PortMapping(0, mEchoServer.getLocalPort()), attached)) {
+            throw new IOException("Link down");
+        }
+        return new Connection(Channels.newInputStream(down.source()),
+                Channels.newOutputStream(up.sink()), up.sink(), down.source());
+    }
+
+    private void echo(Connection connection, int length) throws Exception {
+        if (connection.channel == null) {
+            connection.out.write(mPayload, 0, length);
+            connection.in.readFully(mEchoed, 0, length);
+            return;
+        }
+        ByteBuffer out = ByteBuffer.wrap(mPayload, 0, length);
+        ByteBuffer in = ByteBuffer.wrap(mEchoed, 0, length);
+        while (in.hasRemaining()) {
+            int sent = out.hasRemaining() ? connection.channel.write(out) : 0;
+            int received = connection.channel.read(in);
+            if (received < 0) {
+                throw new IOException("Echo closed");
+            }
+            if (sent == 0 && received == 0) {
+                mChannelReady.tryAcquire(10, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte connectLatency() throws Exception {
+        Connection connection = connect();
+        echo(connection, 1);
+        connection.close();
+        return mEchoed[0];
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte echoThroughput(Traffic traffic) throws Exception {
+        echo(mConnection, payloadSize);
+        traffic.bytes += payloadSize;
+        return mEchoed[payloadSize - 1];
+    }
+}
@@ -0,0 +1,217 @@
+package com.arksine.portforwardcore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reader stage for the accessory transport.  The read thread does nothing but fill transfer
+ * buffers from the transport, the dispatch thread parses and dispatches them, so the IN pipe
+ * is drained again as soon as a read completes rather than once its frames are handled.
+ *
+ * The two threads share a ring of pre-allocated buffers.  Slots are filled and dispatched in
+ * order, a permit per free slot and per filled slot passes them between the threads, so
+ * nothing is allocated or copied per read.  A full ring means dispatch can't keep up with the
+ * link, the read thread then stalls until a slot is freed.  Stalls and the time spent in them
+ * are counted, along with how many slots are filled.
+ */
+
+public class AccessoryReader {
+    private static final String TAG = AccessoryReader.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int TRANSFER_SIZE = 16384;
+    public static final int DEFAULT_RING_SIZE = 16;
+
+    public interface Consumer {
+        /**
+         * Called on the dispatch thread with each transfer read, positioned at its start and
+         * limited to its end.  The buffer is reused once this returns.
+         *
+         * @return false to stop reading
+         */
+        boolean onTransfer(ByteBuffer transfer);
+
+        /**
+         * Called on the dispatch thread once reading has stopped, because the transport
+         * closed or failed or the consumer asked to stop
+         */
+        void onEndOfStream();
+    }
+
+    private final AccessoryTransport mTransport;
+    private final Consumer mConsumer;
+    private final ByteBuffer[] mSlots;
+    // Bytes read into each slot, -1 marks the end of the stream
+    private final int[] mLengths;
+    private final Semaphore mFreeSlots;
+    private final Semaphore mFilledSlots = new Semaphore(0);
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+    private Thread mReadThread = null;
+    private Thread mDispatchThread = null;
+
+    // Counters, each written by one thread
+    private volatile long mTransferCount = 0;
+    private volatile long mByteCount = 0;
+    private volatile long mStallCount = 0;
+    private volatile long mStallNanos = 0;
+    private volatile int mPeakOccupancy = 0;
+
+    public AccessoryReader(AccessoryTransport transport, Consumer consumer) {
+        this(transport, consumer, DEFAULT_RING_SIZE);
+    }
+
+    public AccessoryReader(AccessoryTransport transport, Consumer consumer, int ringSize) {
+        if (ringSize < 2) {
+            throw new IllegalArgumentException("Invalid ring size " + ringSize);
+        }
+        this.mTransport = transport;
+        this.mConsumer = consumer;
+        this.mSlots = new ByteBuffer[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            mSlots[i] = ByteBuffer.wrap(new byte[TRANSFER_SIZE]);
+        }
+        this.mLengths = new int[ringSize];
+        this.mFreeSlots = new Semaphore(ringSize);
+    }
+
+    public void start() {
+        if (mRunning.compareAndSet(false, true)) {
+            mReadThread = new Thread(null, mReadRunnable, "Accessory Read Thread");
+            mDispatchThread = new Thread(null, mDispatchRunnable, "Accessory Dispatch Thread");
+            mDispatchThread.start();
+            mReadThread.start();
+        }
+    }
+
+    /**
+     * Stops the dispatch thread, waiting up to the timeout for the frames already read.  The
+     * read thread exits once the transport is closed, which releases a read in progress.
+     */
+    public void stop(int timeout) {
+        mRunning.set(false);
+        MuxUtils.stopThread(mDispatchThread, timeout);
+        MuxUtils.stopThread(mReadThread);
+        mDispatchThread = null;
+        mReadThread = null;
+    }
+
+    public int getRingSize() {
+        return mSlots.length;
+    }
+
+    /**
+     * Returns the number of slots read but not yet dispatched
+     */
+    public int getOccupancy() {
+        return mFilledSlots.availablePermits();
+    }
+
+    public int getPeakOccupancy() {
+        return mPeakOccupancy;
+    }
+
+    public long getTransferCount() {
+        return mTransferCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Returns the number of times the read thread found the ring full
+     */
+    public long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns the total time the read thread spent waiting for a free slot, time in which
+     * nothing was draining the IN pipe
+     */
+    public long getStallNanos() {
+        return mStallNanos;
+    }
+
+    private final Runnable mReadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int next = 0;
+            try {
+                while (mRunning.get()) {
+                    if (!mFreeSlots.tryAcquire()) {
+                        long start = System.nanoTime();
+                        mStallCount++;
+                        mFreeSlots.acquire();
+                        mStallNanos += System.nanoTime() - start;
+                    }
+
+                    ByteBuffer slot = mSlots[next];
+                    int length;
+                    try {
+                        length = mTransport.read(slot.array(), 0, slot.capacity());
+                    } catch (IOException e) {
+                        if (DEBUG)
+                            MuxLog.d(TAG, "Accessory read error");
+                        length = -1;
+                    }
+                    mLengths[next] = length;
+                    next = (next + 1) % mSlots.length;
+                    if (length > 0) {
+                        mTransferCount++;
+                        mByteCount += length;
+                    }
+                    mFilledSlots.release();
+
+                    int occupancy = mFilledSlots.availablePermits();
+                    if (occupancy > mPeakOccupancy) {
+                        mPeakOccupancy = occupancy;
+                    }
+                    if (length < 0) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Reader interrupted");
+            }
+        }
+    };
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int next = 0;
+            try {
+                while (mRunning.get()) {
+                    mFilledSlots.acquire();
+                    int length = mLengths[next];
+                    if (length < 0) {
+                        // Transport closed
+                        break;
+                    }
+
+                    ByteBuffer slot = mSlots[next];
+                    slot.clear();
+                    slot.limit(length);
+                    boolean more = length == 0 || mConsumer.onTransfer(slot);
+                    next = (next + 1) % mSlots.length;
+                    mFreeSlots.release();
+                    if (!more) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Dispatcher interrupted");
+            }
+
+            mRunning.set(false);
+            // A reader waiting for a slot is let go
+            mFreeSlots.release(mSlots.length);
+            mConsumer.onEndOfStream();
+        }
+    };
+}
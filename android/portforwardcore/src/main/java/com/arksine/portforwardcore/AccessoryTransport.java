@@ -0,0 +1,18 @@
+package com.arksine.portforwardcore;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The byte link between the mux and the USB host.  On Android this wraps the file descriptor
+ * returned by UsbManager.openAccessory(), on a plain JVM it can be a LoopbackTransport.
+ *
+ * Reads and writes are expected to come from different threads.  A read blocks until at
+ * least one byte is available, and returns -1 once the link has been closed.
+ */
+
+public interface AccessoryTransport extends Closeable {
+    int read(byte[] buffer, int offset, int length) throws IOException;
+    void write(byte[] buffer, int offset, int length) throws IOException;
+    void flush() throws IOException;
+}
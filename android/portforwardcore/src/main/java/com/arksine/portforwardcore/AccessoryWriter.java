@@ -0,0 +1,298 @@
+package com.arksine.portforwardcore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer stage for the accessory transport.  Any thread may queue complete frames,
+ * the writer thread packs as many pending frames as fit into one transfer and writes them
+ * with a single call, so a burst of small socket reads becomes a few full size USB bulk
+ * transfers rather than many tiny ones.
+ *
+ * Pending frames are ordered by a FrameScheduler.  Control frames go out first and the data
+ * of busy streams is interleaved by weight, so one bulk transfer can't hold up the others.
+ *
+ * When the queue runs dry before a transfer is full the writer waits up to the coalescing
+ * delay for more frames, measured from the first frame of the transfer.
+ *
+ * Frames are pooled buffers.  Ownership passes to the writer when a frame is queued, it is
+ * released back to the pool once copied into a transfer, or dropped on shutdown.
+ *
+ * Time spent blocked on a full queue is counted, it is only measured once the queue has
+ * refused a frame, so an unsaturated link pays nothing for it.
+ */
+
+public class AccessoryWriter {
+    private static final String TAG = AccessoryWriter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int TRANSFER_SIZE = 16384;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_COALESCE_DELAY_US = 100;
+
+    // Queued last by shutdown() to let the writer drain everything queued before it
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    public interface ErrorListener {
+        void onWriteError(IOException e);
+    }
+
+    private final AccessoryTransport mTransport;
+    private final ErrorListener mErrorListener;
+    private final BufferPool mBufferPool;
+    private final FrameScheduler mQueue;
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+    private volatile long mCoalesceDelayNanos =
+            TimeUnit.MICROSECONDS.toNanos(DEFAULT_COALESCE_DELAY_US);
+    private Thread mWriteThread = null;
+
+    private final byte[] mTransferArray = new byte[TRANSFER_SIZE];
+    private int mTransferLength = 0;
+    private int mTransferFrames = 0;
+
+    // Counters
+    private final AtomicLong mTransferCount = new AtomicLong(0);
+    private final AtomicLong mFrameCount = new AtomicLong(0);
+    private final AtomicLong mByteCount = new AtomicLong(0);
+    private final AtomicInteger mMaxFramesPerTransfer = new AtomicInteger(0);
+    private final AtomicInteger mPeakQueueDepth = new AtomicInteger(0);
+    private final AtomicLong mWriteWaitNanos = new AtomicLong(0);
+
+    public AccessoryWriter(AccessoryTransport transport, BufferPool pool, ErrorListener listener) {
+        this(transport, pool, listener, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AccessoryWriter(AccessoryTransport transport, BufferPool pool, ErrorListener listener,
+                           int queueCapacity) {
+        this.mTransport = transport;
+        this.mBufferPool = pool;
+        this.mErrorListener = listener;
+        this.mQueue = new FrameScheduler(queueCapacity);
+    }
+
+    public void setCoalesceDelay(long delay, TimeUnit unit) {
+        mCoalesceDelayNanos = unit.toNanos(delay);
+    }
+
+    public void start() {
+        if (mRunning.compareAndSet(false, true)) {
+            mWriteThread = new Thread(null, mWriteRunnable, "Accessory Write Thread");
+            mWriteThread.start();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning.get();
+    }
+
+    /**
+     * Queues a complete control frame, from its position to its limit.  It is sent ahead of
+     * any queued data.  Blocks while the queue is full, returns false if the writer stopped
+     * before the frame could be queued.  Either way the frame belongs to the writer once this
+     * returns.
+     */
+    public boolean write(ByteBuffer frame) {
+        return write(frame, null);
+    }
+
+    /**
+     * As above, for a data frame of the stream with the given flow.  It is sent in the
+     * stream's turn.
+     */
+    public boolean write(ByteBuffer frame, FrameScheduler.Flow flow) {
+        if (mRunning.get() && mQueue.offer(frame, flow)) {
+            updatePeak(mPeakQueueDepth, mQueue.size());
+            return true;
+        }
+
+        // The queue is full, wait for the writer to catch up
+        long start = System.nanoTime();
+        try {
+            while (mRunning.get()) {
+                if (mQueue.offer(frame, flow, 100, TimeUnit.MILLISECONDS)) {
+                    mWriteWaitNanos.addAndGet(System.nanoTime() - start);
+                    updatePeak(mPeakQueueDepth, mQueue.size());
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriteWaitNanos.addAndGet(System.nanoTime() - start);
+        mBufferPool.release(frame);
+        return false;
+    }
+
+    /**
+     * Queues a frame that is worth nothing late, such as a datagram, only if the flow has
+     * fewer than maxBacklog frames waiting and the queue has room.  Never blocks, a frame
+     * that isn't queued is released and false returned.
+     */
+    public boolean tryWrite(ByteBuffer frame, FrameScheduler.Flow flow, int maxBacklog) {
+        if (mRunning.get() && mQueue.offer(frame, flow, maxBacklog)) {
+            updatePeak(mPeakQueueDepth, mQueue.size());
+            return true;
+        }
+        mBufferPool.release(frame);
+        return false;
+    }
+
+    /**
+     * Queues a control frame about a stream, such as its DISCONNECT_SOCKET, behind the data
+     * the stream already has queued.  Never blocks.
+     */
+    public boolean writeAfter(ByteBuffer frame, FrameScheduler.Flow flow) {
+        if (!mRunning.get()) {
+            mBufferPool.release(frame);
+            return false;
+        }
+        mQueue.offerControl(frame, flow);
+        updatePeak(mPeakQueueDepth, mQueue.size());
+        return true;
+    }
+
+    /**
+     * Writes out every frame queued so far, then stops the writer thread
+     */
+    public void shutdown(int timeout) {
+        if (mWriteThread != null && mWriteThread.isAlive()) {
+            mQueue.offerLast(END_OF_STREAM);
+            MuxUtils.stopThread(mWriteThread, timeout);
+        }
+        mRunning.set(false);
+        mQueue.clear(mBufferPool);
+        mWriteThread = null;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getPeakQueueDepth() {
+        return mPeakQueueDepth.get();
+    }
+
+    public long getTransferCount() {
+        return mTransferCount.get();
+    }
+
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    /**
+     * Returns the total time callers were blocked on a full queue
+     */
+    public long getWriteWaitNanos() {
+        return mWriteWaitNanos.get();
+    }
+
+    public double getAverageFramesPerTransfer() {
+        long transfers = mTransferCount.get();
+        return (transfers == 0) ? 0 : (double) mFrameCount.get() / transfers;
+    }
+
+    public int getMaxFramesPerTransfer() {
+        return mMaxFramesPerTransfer.get();
+    }
+
+    private static void updatePeak(AtomicInteger peak, int value) {
+        int current = peak.get();
+        while (value > current && !peak.compareAndSet(current, value)) {
+            current = peak.get();
+        }
+    }
+
+    private void flushTransfer() throws IOException {
+        if (mTransferLength > 0) {
+            writeTransfer(mTransferLength, mTransferFrames);
+            mTransferLength = 0;
+            mTransferFrames = 0;
+        }
+    }
+
+    private void writeTransfer(int length, int frames) throws IOException {
+        mTransport.write(mTransferArray, 0, length);
+        mTransport.flush();
+
+        mTransferCount.incrementAndGet();
+        mFrameCount.addAndGet(frames);
+        mByteCount.addAndGet(length);
+        updatePeak(mMaxFramesPerTransfer, frames);
+        if (DEBUG)
+            MuxLog.d(TAG, "Transfer written, frames: " + frames + " length: " + length);
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (mRunning.get()) {
+                    ByteBuffer frame = mQueue.take();
+                    long deadline = System.nanoTime() + mCoalesceDelayNanos;
+
+                    while (frame != null) {
+                        if (frame == END_OF_STREAM) {
+                            flushTransfer();
+                            return;
+                        }
+
+                        int length = frame.remaining();
+                        if (length > TRANSFER_SIZE) {
+                            // Too large to pack, stream it through in transfer sized pieces.
+                            // The first piece tops up the pending transfer and the tail is
+                            // left to pack with the frames after it.
+                            mTransferFrames++;
+                            while (frame.remaining() > TRANSFER_SIZE - mTransferLength) {
+                                int piece = TRANSFER_SIZE - mTransferLength;
+                                frame.get(mTransferArray, mTransferLength, piece);
+                                writeTransfer(TRANSFER_SIZE, mTransferFrames);
+                                mTransferLength = 0;
+                                mTransferFrames = 0;
+                            }
+                            int tail = frame.remaining();
+                            frame.get(mTransferArray, mTransferLength, tail);
+                            mTransferLength += tail;
+                        } else {
+                            if (length > TRANSFER_SIZE - mTransferLength) {
+                                flushTransfer();
+                            }
+                            frame.get(mTransferArray, mTransferLength, length);
+                            mTransferLength += length;
+                            mTransferFrames++;
+                        }
+                        mBufferPool.release(frame);
+
+                        frame = mQueue.poll();
+                        if (frame == null && mTransferLength < TRANSFER_SIZE) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait > 0) {
+                                frame = mQueue.poll(wait, TimeUnit.NANOSECONDS);
+                            }
+                        }
+                    }
+
+                    flushTransfer();
+                }
+            } catch (InterruptedException e) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Writer interrupted");
+            } catch (IOException e) {
+                MuxLog.i(TAG, "Accessory write error");
+                if (mRunning.compareAndSet(true, false)) {
+                    mErrorListener.onWriteError(e);
+                }
+            } finally {
+                mRunning.set(false);
+            }
+        }
+    };
+}
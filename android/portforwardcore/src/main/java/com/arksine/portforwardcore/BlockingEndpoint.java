@@ -0,0 +1,170 @@
+package com.arksine.portforwardcore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Serves a client with blocking streams, such as a local domain socket, with a thread for
+ * each direction.  The reader only reads the client while the host's window is open, so a
+ * client sending faster than the link is held back by its own socket.  The writer delivers
+ * the host's data as it is queued and grants the window back once it has been written.
+ */
+
+final class BlockingEndpoint extends StreamEndpoint {
+    private static final String TAG = BlockingEndpoint.class.getSimpleName();
+
+    // Most read from or written to the client at a time
+    private static final int BUFFER_SIZE = 65536;
+
+    private final MuxServer mServer;
+    private final MuxServer.ClientStream mClient;
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+    private MuxStream mStream = null;
+
+    // Wakes both threads, for a window update, queued data or the endpoint closing
+    private final Object mSignal = new Object();
+    private volatile boolean mOpen = true;
+    private boolean mOutboundReady = false;
+
+    BlockingEndpoint(MuxServer server, MuxServer.ClientStream client) throws IOException {
+        this.mServer = server;
+        this.mClient = client;
+        this.mInput = client.getInputStream();
+        this.mOutput = client.getOutputStream();
+    }
+
+    @Override
+    void start(MuxStream stream) {
+        mStream = stream;
+        String id = String.valueOf(stream.socketId & 0xFFFF);
+        Thread reader = new Thread(null, mReadRunnable, "Endpoint Read Thread " + id);
+        Thread writer = new Thread(null, mWriteRunnable, "Endpoint Write Thread " + id);
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    @Override
+    void onOutboundReady() {
+        synchronized (mSignal) {
+            mOutboundReady = true;
+            mSignal.notifyAll();
+        }
+    }
+
+    @Override
+    void onSendWindow() {
+        synchronized (mSignal) {
+            mSignal.notifyAll();
+        }
+    }
+
+    @Override
+    void shutdownOutput() throws IOException {
+        mClient.shutdownOutput();
+    }
+
+    @Override
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    void close() {
+        mOpen = false;
+        MuxUtils.closeItem(mClient);
+        synchronized (mSignal) {
+            mSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the host will take more of the stream's data
+     *
+     * @return false if the endpoint closed while waiting
+     */
+    private boolean awaitWindow() throws InterruptedException {
+        synchronized (mSignal) {
+            while (mOpen && mStream.sendWindow(1) == 0) {
+                mSignal.wait();
+            }
+            return mOpen;
+        }
+    }
+
+    private final Runnable mReadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            FrameDeflater deflater = mStream.compressed ? new FrameDeflater() : null;
+            byte[] data = new byte[BUFFER_SIZE];
+            ByteBuffer pending = ByteBuffer.wrap(data);
+            try {
+                while (awaitWindow()) {
+                    int count = mInput.read(data);
+                    if (count < 0) {
+                        // Client finished sending
+                        mServer.clientShutdown(mStream);
+                        break;
+                    }
+                    pending.clear();
+                    pending.limit(count);
+                    while (pending.hasRemaining() && awaitWindow()) {
+                        mServer.sendFromEndpoint(mStream, pending, deflater);
+                    }
+                }
+            } catch (IOException e) {
+                if (mOpen) {
+                    MuxLog.i(TAG, "Endpoint read error, id: " + (mStream.socketId & 0xFFFF));
+                    mServer.endpointFailed(mStream);
+                }
+            } catch (InterruptedException e) {
+                // Exiting
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    };
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            try {
+                while (true) {
+                    synchronized (mSignal) {
+                        mOutboundReady = false;
+                    }
+                    buffer.clear();
+                    int count = mServer.takeOutbound(mStream, buffer);
+                    if (count == 0) {
+                        synchronized (mSignal) {
+                            while (mOpen && !mOutboundReady) {
+                                mSignal.wait();
+                            }
+                            if (!mOpen) {
+                                return;
+                            }
+                        }
+                        continue;
+                    }
+                    mOutput.write(buffer.array(), 0, count);
+                    mOutput.flush();
+                    mServer.outboundDelivered(mStream, count);
+                }
+            } catch (IOException e) {
+                if (mOpen) {
+                    MuxLog.i(TAG, "Endpoint write error, id: " + (mStream.socketId & 0xFFFF));
+                    mServer.endpointFailed(mStream);
+                }
+            } catch (InterruptedException e) {
+                // Exiting
+            }
+        }
+    };
+}
@@ -0,0 +1,147 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size direct buffers (slabs), grouped into size classes.  Buffers are
+ * acquired by the stage that fills them and released by the stage that finishes with them,
+ * which may be a different thread.  Once the pool is warm, frames move from socket reads
+ * through the writer queue to the transport without allocating, so the GC has nothing to
+ * collect on the forwarding path.
+ *
+ * A miss allocates a new slab, a release to a full class drops the slab for the GC.
+ */
+
+public class BufferPool {
+    private static final String TAG = BufferPool.class.getSimpleName();
+
+    // Control frames are at most a header and a few fields
+    public static final int CONTROL_SLAB_SIZE = 64;
+    // Socket reads, a full DATA_PACKET frame
+    public static final int FRAME_SLAB_SIZE = 8192;
+    // Socket reads once the host accepts jumbo frames
+    public static final int JUMBO_SLAB_SIZE = 131072;
+
+    private final SizeClass[] mSizeClasses;
+
+    // Metrics
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+    private final AtomicInteger mOutstanding = new AtomicInteger(0);
+    private final AtomicInteger mPeakOutstanding = new AtomicInteger(0);
+
+    private static class SizeClass {
+        final int slabSize;
+        final ArrayBlockingQueue<ByteBuffer> freeSlabs;
+
+        SizeClass(int slabSize, int maxPooled) {
+            this.slabSize = slabSize;
+            this.freeSlabs = new ArrayBlockingQueue<>(maxPooled);
+        }
+    }
+
+    /**
+     * Creates the pool used by the mux, with control, frame and jumbo frame size classes
+     */
+    public BufferPool() {
+        this(new int[] {CONTROL_SLAB_SIZE, FRAME_SLAB_SIZE, JUMBO_SLAB_SIZE},
+                new int[] {256, 128, 16});
+    }
+
+    /**
+     * @param slabSizes slab size of each class, in ascending order
+     * @param maxPooled the most free slabs kept by each class
+     */
+    public BufferPool(int[] slabSizes, int[] maxPooled) {
+        mSizeClasses = new SizeClass[slabSizes.length];
+        for (int i = 0; i < slabSizes.length; i++) {
+            mSizeClasses[i] = new SizeClass(slabSizes[i], maxPooled[i]);
+        }
+    }
+
+    /**
+     * Returns a cleared slab from the smallest class that holds at least minSize bytes
+     */
+    public ByteBuffer acquire(int minSize) {
+        SizeClass sizeClass = classFor(minSize);
+        if (sizeClass == null) {
+            throw new IllegalArgumentException("No slab class for " + minSize + " bytes");
+        }
+
+        ByteBuffer slab = sizeClass.freeSlabs.poll();
+        if (slab != null) {
+            mHits.incrementAndGet();
+            slab.clear();
+        } else {
+            mMisses.incrementAndGet();
+            slab = ByteBuffer.allocateDirect(sizeClass.slabSize);
+        }
+
+        int outstanding = mOutstanding.incrementAndGet();
+        int peak = mPeakOutstanding.get();
+        while (outstanding > peak && !mPeakOutstanding.compareAndSet(peak, outstanding)) {
+            peak = mPeakOutstanding.get();
+        }
+        return slab;
+    }
+
+    /**
+     * Returns a slab to its class.  The caller must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer slab) {
+        if (slab == null) {
+            return;
+        }
+
+        mOutstanding.decrementAndGet();
+        for (SizeClass sizeClass : mSizeClasses) {
+            if (sizeClass.slabSize == slab.capacity()) {
+                sizeClass.freeSlabs.offer(slab);
+                return;
+            }
+        }
+        MuxLog.w(TAG, "Released buffer does not belong to the pool: " + slab.capacity());
+    }
+
+    private SizeClass classFor(int size) {
+        for (SizeClass sizeClass : mSizeClasses) {
+            if (sizeClass.slabSize >= size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public double getHitRatio() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    public int getOutstandingCount() {
+        return mOutstanding.get();
+    }
+
+    public int getPeakOutstandingCount() {
+        return mPeakOutstanding.get();
+    }
+
+    public int getPooledCount() {
+        int pooled = 0;
+        for (SizeClass sizeClass : mSizeClasses) {
+            pooled += sizeClass.freeSlabs.size();
+        }
+        return pooled;
+    }
+}
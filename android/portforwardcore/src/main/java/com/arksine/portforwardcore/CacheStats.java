@@ -0,0 +1,119 @@
+package com.arksine.portforwardcore;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the counters of an HttpCache.  Every request through a cache proxy is counted
+ * once: answered from the cache while fresh, revalidated with the host and then answered from
+ * the cache, fetched from the host and stored, or passed through because it or its response
+ * can't be cached.  Bytes saved is the response data that didn't have to cross the link.
+ */
+
+public final class CacheStats {
+    private final long mRequests;
+    private final long mHits;
+    private final long mRevalidations;
+    private final long mMisses;
+    private final long mPassed;
+    private final long mBytesSaved;
+    private final long mEvictions;
+    private final int mMemoryEntries;
+    private final long mMemoryBytes;
+    private final int mDiskEntries;
+    private final long mDiskBytes;
+
+    CacheStats(long requests, long hits, long revalidations, long misses, long passed,
+               long bytesSaved, long evictions, int memoryEntries, long memoryBytes,
+               int diskEntries, long diskBytes) {
+        this.mRequests = requests;
+        this.mHits = hits;
+        this.mRevalidations = revalidations;
+        this.mMisses = misses;
+        this.mPassed = passed;
+        this.mBytesSaved = bytesSaved;
+        this.mEvictions = evictions;
+        this.mMemoryEntries = memoryEntries;
+        this.mMemoryBytes = memoryBytes;
+        this.mDiskEntries = diskEntries;
+        this.mDiskBytes = diskBytes;
+    }
+
+    public long getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * Requests answered from the cache without asking the host
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Requests for stale responses the host confirmed unchanged, answered from the cache
+     */
+    public long getRevalidations() {
+        return mRevalidations;
+    }
+
+    /**
+     * Cacheable requests fetched from the host
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Requests passed through because they or their response can't be cached
+     */
+    public long getPassed() {
+        return mPassed;
+    }
+
+    /**
+     * Share of all requests answered from the cache, including revalidated ones
+     */
+    public double getHitRatio() {
+        return (mRequests == 0) ? 0 : (double) (mHits + mRevalidations) / mRequests;
+    }
+
+    /**
+     * Response bytes answered from the cache rather than carried over the link
+     */
+    public long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    /**
+     * Entries dropped to stay within the cache's bounds
+     */
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    public int getMemoryEntries() {
+        return mMemoryEntries;
+    }
+
+    public long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    public int getDiskEntries() {
+        return mDiskEntries;
+    }
+
+    public long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d requests, %d hits, %d revalidated, %d misses, %d passed (hit ratio %.2f), " +
+                        "saved %d bytes, memory %d entries/%d bytes, disk %d entries/%d bytes, " +
+                        "evicted %d",
+                mRequests, mHits, mRevalidations, mMisses, mPassed, getHitRatio(), mBytesSaved,
+                mMemoryEntries, mMemoryBytes, mDiskEntries, mDiskBytes, mEvictions);
+    }
+}
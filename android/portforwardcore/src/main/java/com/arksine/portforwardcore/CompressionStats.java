@@ -0,0 +1,80 @@
+package com.arksine.portforwardcore;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the compression counters of one stream.  Raw bytes are socket data, wire bytes
+ * are what crossed the link for it.  Frames that were not compressed count the same on both
+ * sides, so the ratios reflect the saving on all of the stream's data.
+ */
+
+public final class CompressionStats {
+    private final int mSocketId;
+    private final long mRawBytesSent;
+    private final long mWireBytesSent;
+    private final long mDeflateNanos;
+    private final long mRawBytesReceived;
+    private final long mWireBytesReceived;
+    private final long mInflateNanos;
+
+    CompressionStats(int socketId, long rawBytesSent, long wireBytesSent, long deflateNanos,
+                     long rawBytesReceived, long wireBytesReceived, long inflateNanos) {
+        this.mSocketId = socketId;
+        this.mRawBytesSent = rawBytesSent;
+        this.mWireBytesSent = wireBytesSent;
+        this.mDeflateNanos = deflateNanos;
+        this.mRawBytesReceived = rawBytesReceived;
+        this.mWireBytesReceived = wireBytesReceived;
+        this.mInflateNanos = inflateNanos;
+    }
+
+    public int getSocketId() {
+        return mSocketId;
+    }
+
+    public long getRawBytesSent() {
+        return mRawBytesSent;
+    }
+
+    public long getWireBytesSent() {
+        return mWireBytesSent;
+    }
+
+    /**
+     * Time spent compressing outgoing frames, including frames that didn't shrink
+     */
+    public long getDeflateNanos() {
+        return mDeflateNanos;
+    }
+
+    public long getRawBytesReceived() {
+        return mRawBytesReceived;
+    }
+
+    public long getWireBytesReceived() {
+        return mWireBytesReceived;
+    }
+
+    public long getInflateNanos() {
+        return mInflateNanos;
+    }
+
+    /**
+     * Raw bytes per byte sent over the link, 1 when nothing was saved
+     */
+    public double getSendRatio() {
+        return (mWireBytesSent == 0) ? 1 : (double) mRawBytesSent / mWireBytesSent;
+    }
+
+    public double getReceiveRatio() {
+        return (mWireBytesReceived == 0) ? 1 : (double) mRawBytesReceived / mWireBytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Socket %d sent %d/%d (%.2fx, %d us), received %d/%d (%.2fx, %d us)",
+                mSocketId, mRawBytesSent, mWireBytesSent, getSendRatio(), mDeflateNanos / 1000,
+                mRawBytesReceived, mWireBytesReceived, getReceiveRatio(), mInflateNanos / 1000);
+    }
+}
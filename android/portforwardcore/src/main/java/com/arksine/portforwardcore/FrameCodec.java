@@ -0,0 +1,225 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the frames exchanged over the accessory transport.  Each frame is a
+ * two byte command, a two byte payload size and the payload.
+ *
+ * Peers that agree on CAPABILITY_JUMBO_FRAMES may also send frames with an extended header,
+ * marked by the top bit of the command, which is followed by a four byte payload size.  The
+ * extended header is only used for payloads too large for the short one, so every frame
+ * describes its own layout and no switch over point is needed.
+ *
+ * Nothing here allocates.  Frames are encoded in place into caller supplied buffers, and
+ * commands are decoded with a table indexed by the high then low byte of the command value,
+ * so a lookup costs the same however many commands there are.
+ */
+
+public class FrameCodec {
+    public static final int HEADER_SIZE = 4;
+    public static final int DATA_HEADER_SIZE = 6;  // Header + socket id
+    public static final int EXTENDED_HEADER_SIZE = 6;
+    public static final int EXTENDED_DATA_HEADER_SIZE = 8;
+    public static final int DATAGRAM_HEADER_SIZE = 8;  // Header + flow id + port
+    public static final short EXTENDED_HEADER_FLAG = (short) 0x8000;
+    public static final int MAX_SHORT_PAYLOAD = 0xFFFF;
+
+    // Version of the frame format, exchanged with the capabilities.  Peers that don't send one
+    // are version 1.
+    public static final int PROTOCOL_VERSION = 2;
+    // Socket id sent in place of a stream when a reverse connect fails, never allocated
+    public static final short NO_SOCKET_ID = (short) 0xFFFF;
+
+    // Optional features, announced with ACCESSORY_CONNECTED and answered with CAPABILITIES
+    public static final int CAPABILITY_DEFLATE = 0x01;
+    public static final int CAPABILITY_JUMBO_FRAMES = 0x02;
+    public static final int CAPABILITY_HEARTBEAT = 0x04;
+    public static final int CAPABILITY_HALF_CLOSE = 0x08;
+    public static final int CAPABILITY_DATAGRAM = 0x10;
+    // Per stream options, sent with CONNECT_SOCKET and REVERSE_CONNECT_RESP
+    public static final short STREAM_FLAG_DEFLATE = 0x01;
+
+    // Indexed by the command's high byte, then its low byte.  Rows without a command are null.
+    private static final PortCommand[][] COMMAND_TABLE = new PortCommand[256][];
+
+    static {
+        for (PortCommand cmd : PortCommand.values()) {
+            int value = cmd.getValue() & 0xFFFF;
+            PortCommand[] row = COMMAND_TABLE[value >>> 8];
+            if (row == null) {
+                row = new PortCommand[256];
+                COMMAND_TABLE[value >>> 8] = row;
+            }
+            row[value & 0xFF] = cmd;
+        }
+    }
+
+    private FrameCodec() {}
+
+    /**
+     * Returns the command for a header value, or NONE if the value is unknown.  The extended
+     * header flag is ignored.
+     */
+    public static PortCommand decodeCommand(short value) {
+        PortCommand[] row = COMMAND_TABLE[(value >>> 8) & 0x7F];
+        if (row != null) {
+            PortCommand cmd = row[value & 0xFF];
+            if (cmd != null) {
+                return cmd;
+            }
+        }
+        return PortCommand.NONE;
+    }
+
+    /**
+     * Encodes a command frame at the buffer's position.  The buffer is typically a pooled
+     * control slab, flipped by the caller once the frame is complete.
+     */
+    public static ByteBuffer encodeCommand(ByteBuffer dst, PortCommand command) {
+        return dst.putShort(command.getValue())
+                .putShort((short)0); // empty payload
+    }
+
+    /**
+     * Returns true if a header value starts an extended header
+     */
+    public static boolean isExtendedHeader(short value) {
+        return (value & EXTENDED_HEADER_FLAG) != 0;
+    }
+
+    public static ByteBuffer encodeCommand(ByteBuffer dst, PortCommand command, short data) {
+        return dst.putShort(command.getValue())
+                .putShort((short)2)  // two byte payload (sizeof short)
+                .putShort(data);
+    }
+
+    public static ByteBuffer encodeCommand(ByteBuffer dst, PortCommand command, int data) {
+        return dst.putShort(command.getValue())
+                .putShort((short)4)  // four byte payload (sizeof integer)
+                .putInt(data);
+    }
+
+    public static ByteBuffer encodeCommand(ByteBuffer dst, PortCommand command, short socketId,
+                                           int data) {
+        return dst.putShort(command.getValue())
+                .putShort((short)6)  // socket id followed by an integer
+                .putShort(socketId)
+                .putInt(data);
+    }
+
+    /**
+     * Encodes an ACCESSORY_CONNECTED frame: the default port on the host, the capabilities
+     * of the device and its protocol version.  Hosts that predate capabilities ignore them
+     * and never answer.
+     */
+    public static ByteBuffer encodeAccessoryConnected(ByteBuffer dst, int port,
+                                                      int capabilities) {
+        return dst.putShort(PortCommand.ACCESSORY_CONNECTED.getValue())
+                .putShort((short)12)
+                .putInt(port)
+                .putInt(capabilities)
+                .putInt(PROTOCOL_VERSION);
+    }
+
+    /**
+     * Encodes a CONNECT_SOCKET frame: the socket id, the receive window for the stream, the
+     * port on the host to connect it to and the stream flags.  Hosts that predate the window,
+     * the port or the flags ignore the trailing fields.
+     */
+    public static ByteBuffer encodeConnectSocket(ByteBuffer dst, short socketId, int window,
+                                                 int remotePort, short flags) {
+        return dst.putShort(PortCommand.CONNECT_SOCKET.getValue())
+                .putShort((short)10)
+                .putShort(socketId)
+                .putInt(window)
+                .putShort((short)remotePort)
+                .putShort(flags);
+    }
+
+    /**
+     * Encodes a REVERSE_CONNECT_RESP frame: the host's request tag, the socket id assigned to
+     * the new stream, or NO_SOCKET_ID if the device port could not be reached, the receive
+     * window and the flags of the stream.
+     */
+    public static ByteBuffer encodeReverseConnectResp(ByteBuffer dst, short requestTag,
+                                                      short socketId, int window, short flags) {
+        return dst.putShort(PortCommand.REVERSE_CONNECT_RESP.getValue())
+                .putShort((short)10)
+                .putShort(requestTag)
+                .putShort(socketId)
+                .putInt(window)
+                .putShort(flags);
+    }
+
+    /**
+     * Encodes a PING or PONG frame: the probe's sequence number and the sender's timestamp.
+     * A PONG echoes the PING it answers, so the sender can time the round trip without
+     * keeping track of its probes.
+     */
+    public static ByteBuffer encodeProbe(ByteBuffer dst, PortCommand command, int sequence,
+                                         long timestamp) {
+        return dst.putShort(command.getValue())
+                .putShort((short)12)
+                .putInt(sequence)
+                .putLong(timestamp);
+    }
+
+    /**
+     * Encodes a DATAGRAM frame carrying one datagram whole, from the data's position to its
+     * limit.  The flow id names the device side peer, the port the host side one.  A
+     * datagram always fits the short header.
+     */
+    public static ByteBuffer encodeDatagram(ByteBuffer dst, short flowId, int port,
+                                            ByteBuffer data) {
+        return dst.putShort(PortCommand.DATAGRAM.getValue())
+                .putShort((short) (data.remaining() + 4))
+                .putShort(flowId)
+                .putShort((short) port)
+                .put(data);
+    }
+
+    /**
+     * Writes a DATA_PACKET header in front of socket data.  The frame buffer must be flipped,
+     * with the data starting after the first DATA_HEADER_SIZE bytes.  The header is written
+     * in place, the position is left at the start of the frame.
+     *
+     * @return the length of the complete frame
+     */
+    public static int putDataHeader(ByteBuffer frame, short socketId) {
+        return putDataHeader(frame, PortCommand.DATA_PACKET, socketId);
+    }
+
+    /**
+     * Writes the header of a DATA_PACKET or DATA_PACKET_DEFLATE frame, as above
+     */
+    public static int putDataHeader(ByteBuffer frame, PortCommand command, short socketId) {
+        return putDataHeader(frame, DATA_HEADER_SIZE, command, socketId);
+    }
+
+    /**
+     * Writes a data frame header in front of data that starts at dataOffset and ends at the
+     * frame's limit.  A short header is used if the payload fits one, otherwise an extended
+     * header, which needs EXTENDED_DATA_HEADER_SIZE bytes of room.  The position is left at
+     * the start of the header.
+     *
+     * @return the length of the complete frame
+     */
+    public static int putDataHeader(ByteBuffer frame, int dataOffset, PortCommand command,
+                                    short socketId) {
+        int payloadLength = frame.limit() - dataOffset + 2;  // Payload = data + socket id
+        int start;
+        if (payloadLength <= MAX_SHORT_PAYLOAD) {
+            start = dataOffset - DATA_HEADER_SIZE;
+            frame.putShort(start, command.getValue());
+            frame.putShort(start + 2, (short) payloadLength);
+        } else {
+            start = dataOffset - EXTENDED_DATA_HEADER_SIZE;
+            frame.putShort(start, (short) (command.getValue() | EXTENDED_HEADER_FLAG));
+            frame.putInt(start + 2, payloadLength);
+        }
+        frame.putShort(dataOffset - 2, socketId);
+        frame.position(start);
+        return frame.limit() - start;
+    }
+}
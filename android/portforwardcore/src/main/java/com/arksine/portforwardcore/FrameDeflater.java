@@ -0,0 +1,63 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the data of DATA_PACKET frames in place, turning them into DATA_PACKET_DEFLATE
+ * frames.  Each frame is compressed on its own as raw deflate, so a frame that doesn't shrink
+ * can simply be sent as it is without the peer's inflater losing track.
+ *
+ * One instance serves every stream, it belongs to the thread that reads the sockets.
+ */
+
+class FrameDeflater {
+    // Smaller reads rarely gain enough to pay for the deflate call
+    static final int MIN_COMPRESS_SIZE = 128;
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] mInput = new byte[BufferPool.FRAME_SLAB_SIZE];
+    private byte[] mOutput = new byte[BufferPool.FRAME_SLAB_SIZE];
+
+    /**
+     * Compresses the data of a flipped frame, from dataOffset to the limit.  If the data shrinks
+     * it is replaced by its compressed form and the frame's limit is lowered, otherwise the
+     * frame is left untouched.
+     *
+     * @return true if the frame now holds compressed data
+     */
+    boolean deflate(ByteBuffer frame, int dataOffset, MuxStream stream) {
+        int length = frame.limit() - dataOffset;
+        if (length < MIN_COMPRESS_SIZE) {
+            stream.onDeflateSkipped(length);
+            return false;
+        }
+        if (mInput.length < length) {
+            mInput = new byte[length];
+            mOutput = new byte[length];
+        }
+
+        long start = System.nanoTime();
+        frame.position(dataOffset);
+        frame.get(mInput, 0, length);
+        frame.position(0);
+
+        mDeflater.reset();
+        mDeflater.setInput(mInput, 0, length);
+        mDeflater.finish();
+        // Anything that doesn't fit in less than the input isn't worth sending
+        int compressed = mDeflater.deflate(mOutput, 0, length - 1);
+        boolean shrunk = mDeflater.finished();
+        if (shrunk) {
+            frame.position(dataOffset);
+            frame.put(mOutput, 0, compressed);
+            frame.flip();
+        }
+        stream.onDeflate(length, shrunk ? compressed : length, System.nanoTime() - start);
+        return shrunk;
+    }
+
+    void end() {
+        mDeflater.end();
+    }
+}
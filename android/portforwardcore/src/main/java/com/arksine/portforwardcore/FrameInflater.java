@@ -0,0 +1,76 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Restores the data of DATA_PACKET_DEFLATE frames.  Each frame was compressed on its own, so
+ * the inflater is reset between frames and one instance serves every stream.  It belongs to
+ * the accessory dispatch thread.
+ */
+
+class FrameInflater {
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mInput = new byte[BufferPool.FRAME_SLAB_SIZE];
+    private byte[] mOutput = new byte[BufferPool.FRAME_SLAB_SIZE * 2];
+    private ByteBuffer mOutputBuffer = ByteBuffer.wrap(mOutput);
+
+    /**
+     * Inflates a frame's compressed data, from the payload's position to its limit.  The
+     * returned buffer is reused by the next call.
+     *
+     * @return the original data, or null if the payload is not valid deflate data
+     */
+    ByteBuffer inflate(ByteBuffer payload, MuxStream stream) {
+        int length = payload.remaining();
+        long start = System.nanoTime();
+
+        byte[] input;
+        int offset;
+        if (payload.hasArray()) {
+            input = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+            payload.position(payload.limit());
+        } else {
+            if (mInput.length < length) {
+                mInput = new byte[length];
+            }
+            payload.get(mInput, 0, length);
+            input = mInput;
+            offset = 0;
+        }
+
+        mInflater.reset();
+        mInflater.setInput(input, offset, length);
+        int total = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (total == mOutput.length) {
+                    // Only grows when a peer sends frames larger than any seen so far
+                    byte[] larger = new byte[mOutput.length * 2];
+                    System.arraycopy(mOutput, 0, larger, 0, total);
+                    mOutput = larger;
+                    mOutputBuffer = ByteBuffer.wrap(mOutput);
+                }
+                int inflated = mInflater.inflate(mOutput, total, mOutput.length - total);
+                if (inflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    // Truncated
+                    return null;
+                }
+                total += inflated;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+
+        stream.onInflate(length, total, System.nanoTime() - start);
+        mOutputBuffer.clear();
+        mOutputBuffer.limit(total);
+        return mOutputBuffer;
+    }
+
+    void end() {
+        mInflater.end();
+    }
+}
@@ -0,0 +1,357 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the frame stream read from the accessory transport.  Each frame is a two byte
+ * command, a two byte payload size and the payload, or an extended header with a four byte
+ * payload size.  Frames may be split across reads at any point.  A frame that arrives whole
+ * is handed over as a slice of the input.  Partial headers and payloads are otherwise stored
+ * until the rest arrives, the split payload buffer growing to the largest payload seen.
+ *
+ * A StreamingFrameHandler may take some commands in pieces instead.  Only a short prefix of a
+ * split payload, such as a socket id, is stored, the rest is handed over a slice of input at
+ * a time as it arrives, so large data frames are never reassembled or copied.
+ *
+ * Frames parsed, frames that had to be reassembled and frames streamed are counted.  The
+ * counters are only written by the parsing thread.
+ */
+
+public class FrameParser {
+    private static final String TAG = FrameParser.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Larger payloads are taken as a corrupt stream rather than allocated
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    public interface FrameHandler {
+        /**
+         * Called for each complete frame.  The payload is null for empty frames, otherwise
+         * it is positioned at the start of the payload and limited to its end.
+         *
+         * @return false to stop parsing
+         */
+        boolean onFrame(PortCommand command, ByteBuffer payload);
+    }
+
+    public interface StreamingFrameHandler extends FrameHandler {
+        /**
+         * Returns the number of leading payload bytes needed before a split payload of the
+         * command can be handled in pieces, or -1 if it must be reassembled
+         */
+        int getStreamPrefixLength(PortCommand command);
+
+        /**
+         * Called for each piece of a streamed payload, in order.  The prefix holds the first
+         * bytes of the payload and is passed again with every piece, the piece holds the
+         * payload bytes that follow it in the current input.  The last piece may be empty.
+         *
+         * @return false to stop parsing
+         */
+        boolean onFramePiece(PortCommand command, ByteBuffer prefix, ByteBuffer piece,
+                             boolean last);
+    }
+
+    // Longest stream prefix a handler may ask for
+    public static final int MAX_STREAM_PREFIX = 16;
+
+    private final FrameHandler mHandler;
+    private final StreamingFrameHandler mStreamHandler;
+    private PortCommand mCurrentCommand = PortCommand.NONE;
+    private int mPayloadSize = 0;
+    private ByteBuffer mInputBuffer = ByteBuffer.allocate(0);
+    private ByteBuffer mSplitHeaderBuffer = ByteBuffer.allocate(FrameCodec.EXTENDED_HEADER_SIZE);
+    private ByteBuffer mSplitPayloadBuffer = ByteBuffer.allocateDirect(8192);
+    private boolean mPayloadSplit = false;
+    private boolean mHeaderSplit = false;
+    // Streamed payload, its prefix and the bytes still to come after it
+    private final ByteBuffer mStreamPrefix = ByteBuffer.allocate(MAX_STREAM_PREFIX);
+    private int mStreamRemaining = 0;
+    private boolean mStreaming = false;
+
+    // Counters
+    private volatile long mFrameCount = 0;
+    private volatile long mSplitHeaderCount = 0;
+    private volatile long mSplitPayloadCount = 0;
+    private volatile long mStreamedPayloadCount = 0;
+
+    public FrameParser(FrameHandler handler) {
+        this.mHandler = handler;
+        this.mStreamHandler = (handler instanceof StreamingFrameHandler)
+                ? (StreamingFrameHandler) handler : null;
+    }
+
+    /**
+     * Parses the first length bytes of input.  The array is expected to be the same on
+     * each call, as it is the read buffer of the accessory.
+     *
+     * @return false if the handler requested that parsing stop, or a payload size is invalid
+     */
+    public boolean parse(byte[] input, int length) {
+        if (!mInputBuffer.hasArray() || mInputBuffer.array() != input) {
+            mInputBuffer = ByteBuffer.wrap(input);
+        }
+
+        // reset buffer
+        mInputBuffer.position(0);
+        mInputBuffer.limit(length);
+        return parseInput();
+    }
+
+    /**
+     * Parses the input from its position to its limit.  Nothing in the input is referenced
+     * once this returns, partial frames are copied, so the buffer may be refilled.
+     *
+     * @return as above
+     */
+    public boolean parse(ByteBuffer input) {
+        mInputBuffer = input;
+        return parseInput();
+    }
+
+    private boolean parseInput() {
+        while (mInputBuffer.hasRemaining()) {
+            if (mHeaderSplit) {
+                // Header split between reads, complete it
+                if (!fillSplitHeader()) {
+                    break;
+                }
+                if (!processSplitHeader()) {
+                    return false;
+                }
+            } else if (mPayloadSplit) {
+                // Payload split between reads, assemble and process
+                MuxUtils.bufferFill(mSplitPayloadBuffer, mInputBuffer);
+                if (mSplitPayloadBuffer.hasRemaining()) {
+                    // The rest arrives with the next read
+                    break;
+                }
+
+                // overflow payload is in current buffer process
+                mSplitPayloadBuffer.flip();
+
+                // Process packet, check for termination
+                mFrameCount++;
+                if (!mHandler.onFrame(mCurrentCommand, mSplitPayloadBuffer))
+                    return false;
+
+                mSplitPayloadBuffer.clear();
+                mPayloadSplit = false;
+
+                // Continue the next loop to check input buffer size and get
+                // next command
+                continue;
+            } else if (mStreaming) {
+                // Payload handed over as it arrives
+                if (!streamPayload()) {
+                    return false;
+                }
+                continue;
+            } else if (mInputBuffer.remaining() < FrameCodec.HEADER_SIZE ||
+                    (FrameCodec.isExtendedHeader(mInputBuffer.getShort(mInputBuffer.position())) &&
+                            mInputBuffer.remaining() < FrameCodec.EXTENDED_HEADER_SIZE)) {
+                if (DEBUG)
+                    MuxLog.w(TAG, "Buffer not empty after processing, packet header is split");
+                mSplitHeaderBuffer.limit(FrameCodec.HEADER_SIZE);
+                fillSplitHeader();
+                mHeaderSplit = true;
+                mSplitHeaderCount++;
+                break;
+            } else {
+                // Header is the next part of the buffer, retreive it
+                short value = mInputBuffer.getShort();
+                mCurrentCommand = FrameCodec.decodeCommand(value);
+                if (FrameCodec.isExtendedHeader(value)) {
+                    mPayloadSize = mInputBuffer.getInt();
+                    if (!checkPayloadSize()) {
+                        return false;
+                    }
+                } else {
+                    mPayloadSize = mInputBuffer.getShort() & 0xFFFF;
+                }
+            }
+
+            if (mPayloadSize == 0) {
+                // There is no payload, process
+                if (DEBUG)
+                    MuxLog.i(TAG, "Empty payload");
+                mFrameCount++;
+                if (!mHandler.onFrame(mCurrentCommand, null))
+                    return false;
+            } else if (mPayloadSize <= mInputBuffer.remaining()) {
+                // The buffer contains the entire payload, process
+
+                // Reset Limit to payload size
+                int cur_limit = mInputBuffer.limit();
+                int payloadEnd = mInputBuffer.position() + mPayloadSize;
+                mInputBuffer.limit(payloadEnd);
+                mFrameCount++;
+                if (!mHandler.onFrame(mCurrentCommand, mInputBuffer))
+                    return false;
+
+                // reset Input buffer limit, skipping anything the handler didn't consume
+                mInputBuffer.limit(cur_limit);
+                mInputBuffer.position(payloadEnd);
+
+            } else if (startStream()) {
+                // Streamed from the next loop
+                continue;
+            } else {
+                // The buffer only contains a partial section of the payload,
+                // split and store it
+                storeSplitPayload();
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of frames whose header was split between reads
+     */
+    public long getSplitHeaderCount() {
+        return mSplitHeaderCount;
+    }
+
+    /**
+     * Returns the number of frames whose payload was split between reads
+     */
+    public long getSplitPayloadCount() {
+        return mSplitPayloadCount;
+    }
+
+    /**
+     * Returns the number of split payloads handed over in pieces rather than reassembled
+     */
+    public long getStreamedPayloadCount() {
+        return mStreamedPayloadCount;
+    }
+
+    /**
+     * Discards any partially received frame
+     */
+    public void reset() {
+        mCurrentCommand = PortCommand.NONE;
+        mPayloadSize = 0;
+        mSplitHeaderBuffer.clear();
+        mSplitPayloadBuffer.clear();
+        mHeaderSplit = false;
+        mPayloadSplit = false;
+        mStreaming = false;
+    }
+
+    /**
+     * Starts streaming the current payload if the handler takes its command in pieces
+     */
+    private boolean startStream() {
+        if (mStreamHandler == null) {
+            return false;
+        }
+        int prefix = mStreamHandler.getStreamPrefixLength(mCurrentCommand);
+        if (prefix < 0 || prefix > mPayloadSize || prefix > MAX_STREAM_PREFIX) {
+            return false;
+        }
+        mStreamPrefix.clear();
+        mStreamPrefix.limit(prefix);
+        mStreamRemaining = mPayloadSize - prefix;
+        mStreaming = true;
+        mStreamedPayloadCount++;
+        return true;
+    }
+
+    /**
+     * Completes the prefix, then hands the handler whatever part of the payload the input
+     * holds as a slice of it
+     */
+    private boolean streamPayload() {
+        if (mStreamPrefix.hasRemaining()) {
+            MuxUtils.bufferFill(mStreamPrefix, mInputBuffer);
+            if (mStreamPrefix.hasRemaining()) {
+                return true;
+            }
+        }
+
+        int piece = Math.min(mInputBuffer.remaining(), mStreamRemaining);
+        if (piece == 0 && mStreamRemaining > 0) {
+            // The rest arrives with the next read
+            return true;
+        }
+        mStreamRemaining -= piece;
+        boolean last = mStreamRemaining == 0;
+        if (last) {
+            mStreaming = false;
+            mFrameCount++;
+        }
+
+        int curLimit = mInputBuffer.limit();
+        int pieceEnd = mInputBuffer.position() + piece;
+        mInputBuffer.limit(pieceEnd);
+        mStreamPrefix.position(0);
+        boolean more = mStreamHandler.onFramePiece(mCurrentCommand, mStreamPrefix, mInputBuffer,
+                last);
+        mStreamPrefix.position(mStreamPrefix.limit());
+        mInputBuffer.limit(curLimit);
+        mInputBuffer.position(pieceEnd);
+        return more;
+    }
+
+    /**
+     * Adds input to the split header, widening it once the command shows that the header is
+     * extended.  Returns true once the header is complete.
+     */
+    private boolean fillSplitHeader() {
+        MuxUtils.bufferFill(mSplitHeaderBuffer, mInputBuffer);
+        if (!mSplitHeaderBuffer.hasRemaining() &&
+                mSplitHeaderBuffer.limit() == FrameCodec.HEADER_SIZE &&
+                FrameCodec.isExtendedHeader(mSplitHeaderBuffer.getShort(0))) {
+            mSplitHeaderBuffer.limit(FrameCodec.EXTENDED_HEADER_SIZE);
+            MuxUtils.bufferFill(mSplitHeaderBuffer, mInputBuffer);
+        }
+        return !mSplitHeaderBuffer.hasRemaining();
+    }
+
+    private boolean processSplitHeader() {
+        if (DEBUG)
+            MuxLog.d(TAG, "Processing Split Header");
+        mSplitHeaderBuffer.flip();
+        short value = mSplitHeaderBuffer.getShort();
+        mCurrentCommand = FrameCodec.decodeCommand(value);
+        if (FrameCodec.isExtendedHeader(value)) {
+            mPayloadSize = mSplitHeaderBuffer.getInt();
+        } else {
+            mPayloadSize = mSplitHeaderBuffer.getShort() & 0xFFFF;
+        }
+        mSplitHeaderBuffer.clear();
+        mHeaderSplit = false;
+        return checkPayloadSize();
+    }
+
+    private boolean checkPayloadSize() {
+        if (mPayloadSize < 0 || mPayloadSize > MAX_PAYLOAD_SIZE) {
+            MuxLog.e(TAG, "Invalid payload size: " + (mPayloadSize & 0xFFFFFFFFL));
+            return false;
+        }
+        return true;
+    }
+
+    private void storeSplitPayload() {
+        if (DEBUG)
+            MuxLog.d(TAG, "Split Packet Detected");
+        if (mPayloadSize > mSplitPayloadBuffer.capacity()) {
+            // Only jumbo frames outgrow the buffer, keep room for the largest seen
+            mSplitPayloadBuffer = ByteBuffer.allocateDirect(
+                    Math.max(mPayloadSize, mSplitPayloadBuffer.capacity() * 2));
+        }
+        mSplitPayloadBuffer.limit(mPayloadSize);
+        if (mInputBuffer.hasRemaining()) {
+            MuxUtils.bufferFill(mSplitPayloadBuffer, mInputBuffer);
+        }
+        mPayloadSplit = true;
+        mSplitPayloadCount++;
+    }
+}
@@ -0,0 +1,298 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders the frames waiting for the accessory writer.  Control frames are sent ahead of all
+ * data.  Data frames are queued per stream and streams with data waiting take turns by
+ * deficit round robin: on each turn a stream is credited its quantum and sends frames while
+ * its credit covers them, so over time each busy stream gets a share of the link in
+ * proportion to its weight, whatever the size of its frames.  A stream with a single small
+ * frame waits at most one round behind the bulk streams, rather than behind everything they
+ * have queued.
+ *
+ * A control frame about a stream that still has data queued, such as its DISCONNECT_SOCKET,
+ * is queued behind that data so the host never sees the close before the last of the data.
+ *
+ * The scheduler holds a bounded number of frames in total, callers block while it is full.
+ * Datagrams are offered with a backlog limit for their flow instead, and are refused rather
+ * than wait once the flow or the scheduler is full.
+ */
+
+public class FrameScheduler {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BULK = 2;
+
+    // Share of the link per round, in multiples of QUANTUM, indexed by priority
+    private static final int[] WEIGHTS = {8, 4, 1};
+    public static final int QUANTUM = AccessoryWriter.TRANSFER_SIZE;
+
+    /**
+     * The data frames of one stream
+     */
+    static final class Flow {
+        private final ArrayDeque<ByteBuffer> mFrames = new ArrayDeque<>();
+        private volatile int mPriority;
+        private int mDeficit = 0;
+        private boolean mActive = false;
+        private boolean mCredited = false;
+
+        Flow(int priority) {
+            this.mPriority = checkPriority(priority);
+        }
+
+        void setPriority(int priority) {
+            this.mPriority = checkPriority(priority);
+        }
+
+        int getPriority() {
+            return mPriority;
+        }
+    }
+
+    private final int mCapacity;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final ArrayDeque<ByteBuffer> mControl = new ArrayDeque<>();
+    // Flows with frames waiting, the one whose turn it is first
+    private final ArrayDeque<Flow> mActiveFlows = new ArrayDeque<>();
+    // Sent once everything else has been
+    private ByteBuffer mLast = null;
+    private int mCount = 0;
+
+    public FrameScheduler(int capacity) {
+        this.mCapacity = capacity;
+    }
+
+    static int checkPriority(int priority) {
+        if (priority < PRIORITY_INTERACTIVE || priority > PRIORITY_BULK) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        return priority;
+    }
+
+    /**
+     * Queues a frame if there is room.  Frames without a flow are control frames, frames
+     * with one are data of that stream.
+     */
+    public boolean offer(ByteBuffer frame, Flow flow) {
+        mLock.lock();
+        try {
+            if (mCount >= mCapacity) {
+                return false;
+            }
+            enqueue(frame, flow);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * As above, waiting up to the timeout for room
+     */
+    public boolean offer(ByteBuffer frame, Flow flow, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount >= mCapacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            enqueue(frame, flow);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a data frame if there is room, refusing it while the flow already has
+     * maxBacklog frames queued
+     */
+    public boolean offer(ByteBuffer frame, Flow flow, int maxBacklog) {
+        mLock.lock();
+        try {
+            if (mCount >= mCapacity || flow.mFrames.size() >= maxBacklog) {
+                return false;
+            }
+            enqueue(frame, flow);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a control frame about a stream, behind any data the stream has queued.  Control
+     * frames never wait for room, they are small and keep the link moving.
+     */
+    public void offerControl(ByteBuffer frame, Flow flow) {
+        mLock.lock();
+        try {
+            if (flow != null && flow.mActive) {
+                flow.mFrames.add(frame);
+                mCount++;
+            } else {
+                enqueue(frame, null);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame to be returned after every other frame, used to mark the end of the
+     * stream.  Only one may be queued.
+     */
+    public void offerLast(ByteBuffer frame) {
+        mLock.lock();
+        try {
+            mLast = frame;
+            mCount++;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next frame to send, or null if nothing is queued
+     */
+    public ByteBuffer poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public ByteBuffer take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                mNotEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void enqueue(ByteBuffer frame, Flow flow) {
+        if (flow == null) {
+            mControl.add(frame);
+        } else {
+            flow.mFrames.add(frame);
+            if (!flow.mActive) {
+                flow.mActive = true;
+                mActiveFlows.add(flow);
+            }
+        }
+        mCount++;
+        mNotEmpty.signal();
+    }
+
+    private ByteBuffer dequeue() {
+        ByteBuffer frame = mControl.poll();
+        while (frame == null) {
+            Flow flow = mActiveFlows.peek();
+            if (flow == null) {
+                if (mLast == null) {
+                    return null;
+                }
+                frame = mLast;
+                mLast = null;
+                break;
+            }
+            if (!flow.mCredited) {
+                // Start of the flow's turn
+                flow.mDeficit += WEIGHTS[flow.mPriority] * QUANTUM;
+                flow.mCredited = true;
+            }
+            ByteBuffer head = flow.mFrames.peek();
+            if (head.remaining() > flow.mDeficit) {
+                // Credit used up, the rest waits for its next turn
+                mActiveFlows.poll();
+                mActiveFlows.add(flow);
+                flow.mCredited = false;
+                continue;
+            }
+            frame = flow.mFrames.poll();
+            flow.mDeficit -= frame.remaining();
+            if (flow.mFrames.isEmpty()) {
+                // An idle flow doesn't bank credit
+                mActiveFlows.poll();
+                flow.mActive = false;
+                flow.mCredited = false;
+                flow.mDeficit = 0;
+            }
+        }
+        mCount--;
+        mNotFull.signal();
+        return frame;
+    }
+
+    /**
+     * Drops every queued frame, returning them to the pool
+     */
+    public void clear(BufferPool pool) {
+        mLock.lock();
+        try {
+            ByteBuffer frame;
+            while ((frame = mControl.poll()) != null) {
+                pool.release(frame);
+            }
+            Flow flow;
+            while ((flow = mActiveFlows.poll()) != null) {
+                while ((frame = flow.mFrames.poll()) != null) {
+                    pool.release(frame);
+                }
+                flow.mActive = false;
+                flow.mCredited = false;
+                flow.mDeficit = 0;
+            }
+            // The end marker isn't a pooled frame
+            mLast = null;
+            mCount = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
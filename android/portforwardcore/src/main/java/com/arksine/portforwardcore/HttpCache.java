@@ -0,0 +1,420 @@
+package com.arksine.portforwardcore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Responses kept by HttpCacheProxy.  Entries are held in memory, and when a directory is
+ * given, on disk too.  Each tier is bounded in bytes and evicts the least recently used entry
+ * first.  An entry pushed out of memory moves to disk if there is room, and moves back to
+ * memory when it is used again.  Anything left on disk is deleted when the cache is created,
+ * the disk tier stretches the memory tier rather than keeping responses across restarts.
+ *
+ * Freshness follows the response's Cache-Control max-age or s-maxage, then its Expires, then
+ * a tenth of the time since it was last modified.  A response marked no-cache, or with no
+ * freshness at all, is kept for revalidation with its validators.
+ *
+ * Access is synchronized, the cache is touched once or twice per request.
+ */
+
+public class HttpCache {
+    private static final String TAG = HttpCache.class.getSimpleName();
+
+    public static final long DEFAULT_MEMORY_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_DISK_BYTES = 32 * 1024 * 1024;
+    // Responses larger than this are passed through without being kept
+    public static final int MAX_ENTRY_BYTES = 1024 * 1024;
+    // Cap on the freshness guessed from Last-Modified
+    static final long MAX_HEURISTIC_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final int DISK_MAGIC = 0x48434531;
+    private static final String DISK_SUFFIX = ".entry";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Headers a 304 refreshes on the stored response
+    private static final String[] REVALIDATED_HEADERS = {"Cache-Control", "Expires", "Date",
+            "ETag", "Last-Modified", "Age"};
+
+    /**
+     * A stored response.  The head has its body framed with Content-Length and no hop by hop
+     * headers, so it can be written to any client as it is.
+     */
+    static final class Entry {
+        final HttpHead head;
+        final byte[] body;
+        // When the response was received or last revalidated
+        final long responseMillis;
+        final long freshUntilMillis;
+        final int size;
+
+        Entry(HttpHead head, byte[] body, long responseMillis) {
+            this.head = head;
+            this.body = body;
+            this.responseMillis = responseMillis;
+            this.freshUntilMillis = responseMillis + freshnessMillis(head) - ageMillis(head);
+            this.size = head.toBytes().length + body.length;
+        }
+
+        boolean isFresh(long now) {
+            return now < freshUntilMillis;
+        }
+
+        boolean hasValidator() {
+            return head.contains("ETag") || head.contains("Last-Modified");
+        }
+
+        /**
+         * Returns the age to report when serving the entry
+         */
+        long getAgeSeconds(long now) {
+            return (ageMillis(head) + Math.max(0, now - responseMillis)) / 1000;
+        }
+
+        /**
+         * Returns a copy refreshed by the headers of a 304 from the host
+         */
+        Entry revalidated(HttpHead notModified, long now) {
+            HttpHead merged = new HttpHead(head);
+            for (String name : REVALIDATED_HEADERS) {
+                String value = notModified.get(name);
+                if (value != null) {
+                    merged.set(name, value);
+                }
+            }
+            return new Entry(merged, body, now);
+        }
+    }
+
+    private final long mMaxMemoryBytes;
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+    private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+    // Sizes of the entries on disk, by key
+    private final LinkedHashMap<String, Integer> mDisk = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMemoryBytes = 0;
+    private long mDiskBytes = 0;
+    private long mEvictions = 0;
+
+    // Request counters, from every proxy thread
+    private final AtomicLong mRequests = new AtomicLong(0);
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mRevalidations = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+    private final AtomicLong mPassed = new AtomicLong(0);
+    private final AtomicLong mBytesSaved = new AtomicLong(0);
+
+    /**
+     * Creates a cache held in memory only
+     */
+    public HttpCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Creates a cache held in memory, spilling to a directory of its own
+     */
+    public HttpCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+        if (maxMemoryBytes <= 0 || maxDiskBytes < 0) {
+            throw new IllegalArgumentException("Invalid cache size " + maxMemoryBytes + "/" +
+                    maxDiskBytes);
+        }
+        this.mMaxMemoryBytes = maxMemoryBytes;
+        this.mMaxDiskBytes = maxDiskBytes;
+        if (directory != null && maxDiskBytes > 0 &&
+                (directory.isDirectory() || directory.mkdirs())) {
+            this.mDirectory = directory;
+            File[] stale = directory.listFiles();
+            if (stale != null) {
+                for (File file : stale) {
+                    if (file.getName().endsWith(DISK_SUFFIX) && !file.delete()) {
+                        MuxLog.w(TAG, "Unable to delete " + file);
+                    }
+                }
+            }
+        } else {
+            if (directory != null && maxDiskBytes > 0) {
+                MuxLog.w(TAG, "Unable to use cache directory " + directory);
+            }
+            this.mDirectory = null;
+        }
+    }
+
+    /**
+     * Returns the largest response that will be kept
+     */
+    public int getMaxEntryBytes() {
+        return (int) Math.min(MAX_ENTRY_BYTES, mMaxMemoryBytes);
+    }
+
+    /**
+     * Returns the entry for a key, moving it to memory if it was on disk, or null
+     */
+    synchronized Entry get(String key) {
+        Entry entry = mMemory.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        Integer size = mDisk.remove(key);
+        if (size == null) {
+            return null;
+        }
+        mDiskBytes -= size;
+        File file = fileFor(key);
+        entry = readEntry(file, key);
+        deleteFile(file);
+        if (entry != null) {
+            putInMemory(key, entry);
+        }
+        return entry;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        removeEntry(key);
+        if (entry.size <= getMaxEntryBytes()) {
+            putInMemory(key, entry);
+        }
+    }
+
+    synchronized void remove(String key) {
+        removeEntry(key);
+    }
+
+    /**
+     * Drops every entry
+     */
+    public synchronized void clear() {
+        mMemory.clear();
+        mMemoryBytes = 0;
+        for (String key : mDisk.keySet()) {
+            deleteFile(fileFor(key));
+        }
+        mDisk.clear();
+        mDiskBytes = 0;
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = mMemory.remove(key);
+        if (entry != null) {
+            mMemoryBytes -= entry.size;
+        }
+        Integer size = mDisk.remove(key);
+        if (size != null) {
+            mDiskBytes -= size;
+            deleteFile(fileFor(key));
+        }
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        mMemory.put(key, entry);
+        mMemoryBytes += entry.size;
+        Iterator<Map.Entry<String, Entry>> eldest = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> victim = eldest.next();
+            if (victim.getValue() == entry) {
+                continue;
+            }
+            eldest.remove();
+            mMemoryBytes -= victim.getValue().size;
+            spillToDisk(victim.getKey(), victim.getValue());
+        }
+    }
+
+    private void spillToDisk(String key, Entry entry) {
+        if (mDirectory == null || entry.size > mMaxDiskBytes ||
+                !writeEntry(fileFor(key), key, entry)) {
+            mEvictions++;
+            return;
+        }
+        mDisk.put(key, entry.size);
+        mDiskBytes += entry.size;
+        Iterator<Map.Entry<String, Integer>> eldest = mDisk.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Integer> victim = eldest.next();
+            eldest.remove();
+            mDiskBytes -= victim.getValue();
+            deleteFile(fileFor(victim.getKey()));
+            mEvictions++;
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + DISK_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(mDirectory, name.append(DISK_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean writeEntry(File file, String key, Entry entry) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            byte[] keyBytes = key.getBytes(UTF_8);
+            byte[] head = entry.head.toBytes();
+            out.writeInt(DISK_MAGIC);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeLong(entry.responseMillis);
+            out.writeInt(head.length);
+            out.write(head);
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+            out.close();
+            return true;
+        } catch (IOException e) {
+            MuxLog.w(TAG, "Unable to write cache entry: " + e.getMessage());
+            MuxUtils.closeItem(out);
+            deleteFile(file);
+            return false;
+        }
+    }
+
+    private static Entry readEntry(File file, String key) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != DISK_MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            byte[] keyBytes = new byte[in.readInt()];
+            in.readFully(keyBytes);
+            if (!key.equals(new String(keyBytes, UTF_8))) {
+                throw new IOException("Key mismatch");
+            }
+            long responseMillis = in.readLong();
+            byte[] head = new byte[in.readInt()];
+            in.readFully(head);
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(HttpHead.parse(head), body, responseMillis);
+        } catch (IOException e) {
+            MuxLog.w(TAG, "Unable to read cache entry: " + e.getMessage());
+            return null;
+        } finally {
+            MuxUtils.closeItem(in);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            MuxLog.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    void onRequest() {
+        mRequests.incrementAndGet();
+    }
+
+    void onHit(long bytes) {
+        mHits.incrementAndGet();
+        mBytesSaved.addAndGet(bytes);
+    }
+
+    void onRevalidated(long bytes) {
+        mRevalidations.incrementAndGet();
+        mBytesSaved.addAndGet(bytes);
+    }
+
+    void onMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    void onPassed() {
+        mPassed.incrementAndGet();
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(mRequests.get(), mHits.get(), mRevalidations.get(), mMisses.get(),
+                mPassed.get(), mBytesSaved.get(), mEvictions, mMemory.size(), mMemoryBytes,
+                mDisk.size(), mDiskBytes);
+    }
+
+    /**
+     * Returns how long a response stays fresh from when it was generated
+     */
+    static long freshnessMillis(HttpHead response) {
+        if (response.hasToken("Cache-Control", "no-cache")) {
+            return 0;
+        }
+        String maxAge = response.getDirective("Cache-Control", "s-maxage");
+        if (maxAge == null) {
+            maxAge = response.getDirective("Cache-Control", "max-age");
+        }
+        if (maxAge != null) {
+            return parseSeconds(maxAge) * 1000;
+        }
+
+        long date = parseDate(response.get("Date"));
+        String expires = response.get("Expires");
+        if (expires != null) {
+            // An invalid date means already expired
+            long expiresMillis = parseDate(expires);
+            return (expiresMillis < 0 || date < 0) ? 0 : Math.max(0, expiresMillis - date);
+        }
+        long lastModified = parseDate(response.get("Last-Modified"));
+        if (lastModified >= 0 && date >= lastModified) {
+            return Math.min(MAX_HEURISTIC_MILLIS, (date - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    private static long ageMillis(HttpHead response) {
+        String age = response.get("Age");
+        return (age == null) ? 0 : parseSeconds(age) * 1000;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parses an HTTP date, returning -1 if it is missing or invalid
+     */
+    static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return dateFormat().parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    static String formatDate(long millis) {
+        return dateFormat().format(new Date(millis));
+    }
+
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
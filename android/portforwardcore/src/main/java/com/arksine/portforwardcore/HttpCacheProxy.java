@@ -0,0 +1,659 @@
+package com.arksine.portforwardcore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caching HTTP/1.1 proxy in front of a forwarded port.  Clients connect to the proxy's port as
+ * they would to the mapping, and requests are passed to the upstream port, the listener the
+ * MuxServer opened for the mapping.  Cacheable GET responses are kept in an HttpCache and
+ * answered from it while fresh, without crossing the link at all.  Stale ones are revalidated
+ * with If-None-Match or If-Modified-Since, and a 304 from the host is answered from the cache
+ * too.  Fresh entries are answered even while the link is down.
+ *
+ * Each client connection gets a thread and a connection of its own to the upstream port, kept
+ * open across requests while both sides allow it.  Bodies are relayed as they arrive, a
+ * response being stored is copied aside as it goes.  Requests the cache can't use are passed
+ * through unchanged, and a PUT, POST or DELETE drops the entry for its target.  CONNECT and
+ * Upgrade requests switch the connection to a plain tunnel.
+ */
+
+public class HttpCacheProxy {
+    private static final String TAG = HttpCacheProxy.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final String[] HOP_BY_HOP = {"Connection", "Keep-Alive", "Proxy-Connection",
+            "TE", "Trailer", "Upgrade", "Proxy-Authenticate", "Proxy-Authorization"};
+    private static final AtomicInteger sClientCount = new AtomicInteger(0);
+
+    private final int mPort;
+    // 0 while there is no listener to pass requests to
+    private volatile int mUpstreamPort;
+    private final HttpCache mCache;
+    private final Set<ClientConnection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+    private volatile boolean mRunning = false;
+    private ServerSocket mServerSocket = null;
+    private Thread mAcceptThread = null;
+
+    public HttpCacheProxy(int port, int upstreamPort, HttpCache cache) {
+        this.mPort = port;
+        this.mUpstreamPort = upstreamPort;
+        this.mCache = cache;
+    }
+
+    /**
+     * Binds the proxy's port on the loopback interface and starts accepting clients
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+        } catch (IOException e) {
+            MuxUtils.closeItem(serverSocket);
+            throw e;
+        }
+        mServerSocket = serverSocket;
+        mRunning = true;
+        mAcceptThread = new Thread(null, mAcceptRunnable, "Cache Proxy Accept " + getPort());
+        mAcceptThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        MuxUtils.closeItem(mServerSocket);
+        for (ClientConnection connection : mConnections) {
+            connection.close();
+        }
+        MuxUtils.stopThread(mAcceptThread);
+        mAcceptThread = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the port clients connect to, the bound port if it was chosen by the system
+     */
+    public int getPort() {
+        ServerSocket serverSocket = mServerSocket;
+        return (serverSocket != null && mPort == 0) ? serverSocket.getLocalPort() : mPort;
+    }
+
+    public int getUpstreamPort() {
+        return mUpstreamPort;
+    }
+
+    /**
+     * Points requests at a new upstream listener, or at none with 0, for a mapping whose
+     * listener is bound afresh on each link.  Connections already open upstream are kept.
+     */
+    public void setUpstreamPort(int upstreamPort) {
+        mUpstreamPort = upstreamPort;
+    }
+
+    public HttpCache getCache() {
+        return mCache;
+    }
+
+    private final Runnable mAcceptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (mRunning) {
+                Socket client;
+                try {
+                    client = mServerSocket.accept();
+                } catch (IOException e) {
+                    if (mRunning) {
+                        MuxLog.w(TAG, "Cache proxy accept failed: " + e.getMessage());
+                    }
+                    break;
+                }
+                ClientConnection connection = new ClientConnection(client);
+                mConnections.add(connection);
+                if (!mRunning) {
+                    connection.close();
+                    break;
+                }
+                Thread thread = new Thread(null, connection,
+                        "Cache Proxy Client " + sClientCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    };
+
+    /**
+     * Bytes of a response being stored, given up once it grows past the largest entry
+     */
+    private static final class Capture {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final int mLimit;
+        private boolean mOverflowed = false;
+
+        Capture(int limit) {
+            this.mLimit = limit;
+        }
+
+        void write(byte[] data, int offset, int length) {
+            if (mOverflowed) {
+                return;
+            }
+            if (mBytes.size() + length > mLimit) {
+                mOverflowed = true;
+                mBytes.reset();
+                return;
+            }
+            mBytes.write(data, offset, length);
+        }
+
+        boolean isComplete() {
+            return !mOverflowed;
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+    }
+
+    private class ClientConnection implements Runnable {
+        private final Socket mClient;
+        private InputStream mClientIn;
+        private OutputStream mClientOut;
+        private volatile Socket mUpstream = null;
+        private InputStream mUpstreamIn;
+        private OutputStream mUpstreamOut;
+        // Set once the upstream connection has carried a request
+        private boolean mUpstreamUsed = false;
+
+        ClientConnection(Socket client) {
+            this.mClient = client;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mClient.setTcpNoDelay(true);
+                mClientIn = new BufferedInputStream(mClient.getInputStream(), BUFFER_SIZE);
+                mClientOut = new BufferedOutputStream(mClient.getOutputStream(), BUFFER_SIZE);
+                while (mRunning) {
+                    HttpHead request = HttpHead.read(mClientIn);
+                    if (request == null || !handleRequest(request)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Cache proxy client closed: " + e.getMessage());
+            } finally {
+                close();
+                mConnections.remove(this);
+            }
+        }
+
+        void close() {
+            MuxUtils.closeItem(mClient);
+            closeUpstream();
+        }
+
+        /**
+         * Answers one request
+         *
+         * @return true if the client connection can take another request
+         */
+        private boolean handleRequest(HttpHead request) throws IOException {
+            mCache.onRequest();
+            String method = request.getMethod();
+            if ("CONNECT".equals(method) || request.contains("Upgrade")) {
+                mCache.onPassed();
+                tunnel(request);
+                return false;
+            }
+
+            String key = cacheKey(request);
+            if (!isCacheableRequest(request)) {
+                if (!isSafeMethod(method)) {
+                    mCache.remove(key);
+                }
+                mCache.onPassed();
+                return forward(request, null, null, false);
+            }
+
+            long now = System.currentTimeMillis();
+            HttpCache.Entry entry = mCache.get(key);
+            boolean clientRevalidates = request.hasToken("Cache-Control", "no-cache") ||
+                    "0".equals(request.getDirective("Cache-Control", "max-age")) ||
+                    request.hasToken("Pragma", "no-cache");
+            if (entry != null && entry.isFresh(now) && !clientRevalidates) {
+                mCache.onHit(entry.body.length);
+                return serve(request, entry, now);
+            }
+
+            // A client sending its own validators gets the host's answer to them
+            boolean validate = entry != null && entry.hasValidator() &&
+                    !request.contains("If-None-Match") && !request.contains("If-Modified-Since");
+            return forward(request, key, entry, validate);
+        }
+
+        /**
+         * Passes a request to the upstream port and relays its response, storing it under
+         * the key if there is one and the response allows it.  If validate is set the request
+         * is made conditional on the stored entry, which answers it if the host says it is
+         * unchanged.  Otherwise a Not Modified answer to the client's own validators goes to
+         * the client, and refreshes the stored entry if they name it.
+         */
+        private boolean forward(HttpHead request, String key, HttpCache.Entry entry,
+                                boolean validate) throws IOException {
+            HttpCache.Entry validated = validate ? entry : null;
+            boolean clientKeepAlive = request.isKeepAlive();
+            boolean headRequest = "HEAD".equals(request.getMethod());
+            HttpHead upstreamRequest = new HttpHead(request);
+            for (String name : HOP_BY_HOP) {
+                upstreamRequest.remove(name);
+            }
+            if (validated != null) {
+                String etag = validated.head.get("ETag");
+                if (etag != null) {
+                    upstreamRequest.set("If-None-Match", etag);
+                }
+                String lastModified = validated.head.get("Last-Modified");
+                if (lastModified != null) {
+                    upstreamRequest.set("If-Modified-Since", lastModified);
+                }
+            }
+            boolean requestHasBody = request.isChunked() || request.getContentLength() > 0;
+            // A request without a body can be retried on a fresh connection if a kept one had
+            // been closed by the far end in the meantime
+            boolean retryable = !requestHasBody && isSafeMethod(request.getMethod());
+
+            HttpHead response;
+            while (true) {
+                boolean reused = mUpstream != null && mUpstreamUsed;
+                try {
+                    openUpstream();
+                    mUpstreamUsed = true;
+                    upstreamRequest.writeTo(mUpstreamOut);
+                    relayBody(mClientIn, mUpstreamOut, request, false, null);
+                    mUpstreamOut.flush();
+                    response = readResponse(headRequest);
+                    break;
+                } catch (IOException e) {
+                    closeUpstream();
+                    if (reused && retryable) {
+                        continue;
+                    }
+                    if (DEBUG)
+                        MuxLog.d(TAG, "Upstream failed: " + e.getMessage());
+                    sendBadGateway();
+                    return false;
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            boolean upstreamKeepAlive = response.isKeepAlive();
+            if (validated != null && response.getStatus() == 304) {
+                if (!upstreamKeepAlive) {
+                    closeUpstream();
+                }
+                HttpCache.Entry refreshed = validated.revalidated(response, now);
+                mCache.put(key, refreshed);
+                mCache.onRevalidated(refreshed.body.length);
+                return serve(request, refreshed, now);
+            }
+            boolean clientRevalidated = false;
+            if (entry != null && response.getStatus() == 304 &&
+                    isSameEntity(request, response, entry)) {
+                // The client's copy is the stored one, still current, though the body is
+                // the client's own and saves nothing
+                mCache.put(key, entry.revalidated(response, now));
+                mCache.onRevalidated(0);
+                clientRevalidated = true;
+            }
+
+            boolean hasBody = !headRequest && hasResponseBody(response.getStatus());
+            boolean untilClose = hasBody && !response.isChunked() &&
+                    response.getContentLength() < 0;
+            boolean keepAlive = clientKeepAlive && !untilClose;
+            Capture capture = (key != null && isCacheableResponse(response))
+                    ? new Capture(mCache.getMaxEntryBytes()) : null;
+
+            HttpHead clientResponse = new HttpHead(response);
+            for (String name : HOP_BY_HOP) {
+                clientResponse.remove(name);
+            }
+            if (!keepAlive) {
+                clientResponse.set("Connection", "close");
+            }
+            clientResponse.writeTo(mClientOut);
+            relayBody(mUpstreamIn, mClientOut, response, untilClose, capture);
+            if (untilClose || !upstreamKeepAlive) {
+                closeUpstream();
+            }
+
+            // Stored before the end of the response goes out, so a client that asks again
+            // straight away finds it
+            if (key != null) {
+                if (capture != null && capture.isComplete()) {
+                    HttpHead stored = new HttpHead(response);
+                    for (String name : HOP_BY_HOP) {
+                        stored.remove(name);
+                    }
+                    stored.remove("Transfer-Encoding");
+                    byte[] body = capture.toByteArray();
+                    stored.set("Content-Length", String.valueOf(body.length));
+                    mCache.put(key, new HttpCache.Entry(stored, body, now));
+                    mCache.onMiss();
+                } else if (response.getStatus() / 100 == 2) {
+                    // A new response the cache couldn't keep, whatever was stored is outdated
+                    mCache.remove(key);
+                    mCache.onPassed();
+                } else if (!clientRevalidated) {
+                    mCache.onPassed();
+                }
+            }
+            mClientOut.flush();
+            return keepAlive;
+        }
+
+        /**
+         * Reads the response head, passing any interim responses to the client
+         */
+        private HttpHead readResponse(boolean headRequest) throws IOException {
+            while (true) {
+                HttpHead response = HttpHead.read(mUpstreamIn);
+                if (response == null) {
+                    throw new EOFException("Upstream closed");
+                }
+                int status = response.getStatus();
+                if (status < 100) {
+                    throw new IOException("Malformed status line: " + response);
+                }
+                if (status >= 200 || status == 101) {
+                    return response;
+                }
+                response.writeTo(mClientOut);
+                mClientOut.flush();
+            }
+        }
+
+        /**
+         * Returns true if a Not Modified answer to the request's own validators is about the
+         * stored entry.  If-None-Match decides when it is present, as it does for the host.
+         */
+        private boolean isSameEntity(HttpHead request, HttpHead notModified,
+                                     HttpCache.Entry entry) {
+            String etag = entry.head.get("ETag");
+            String responseEtag = notModified.get("ETag");
+            if (responseEtag != null && !responseEtag.equals(etag)) {
+                return false;
+            }
+            String ifNoneMatch = request.get("If-None-Match");
+            if (ifNoneMatch != null) {
+                return etag != null && ifNoneMatch.contains(etag);
+            }
+            String lastModified = entry.head.get("Last-Modified");
+            return lastModified != null && lastModified.equals(request.get("If-Modified-Since"));
+        }
+
+        private boolean serve(HttpHead request, HttpCache.Entry entry, long now)
+                throws IOException {
+            boolean keepAlive = request.isKeepAlive();
+            HttpHead response = new HttpHead(entry.head);
+            response.set("Age", String.valueOf(entry.getAgeSeconds(now)));
+            if (!keepAlive) {
+                response.set("Connection", "close");
+            }
+            String etag = entry.head.get("ETag");
+            String ifNoneMatch = request.get("If-None-Match");
+            if (etag != null && ifNoneMatch != null &&
+                    (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) {
+                response.setStartLine("HTTP/1.1 304 Not Modified");
+                response.remove("Content-Length");
+                response.writeTo(mClientOut);
+            } else {
+                response.writeTo(mClientOut);
+                mClientOut.write(entry.body);
+            }
+            mClientOut.flush();
+            return keepAlive;
+        }
+
+        /**
+         * Connects the client straight to the upstream port, for the rest of the connection
+         */
+        private void tunnel(HttpHead request) throws IOException {
+            try {
+                openUpstream();
+            } catch (IOException e) {
+                sendBadGateway();
+                return;
+            }
+            request.writeTo(mUpstreamOut);
+            mUpstreamOut.flush();
+
+            final InputStream upstreamIn = mUpstreamIn;
+            Thread reverse = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        copy(upstreamIn, mClientOut);
+                        mClient.shutdownOutput();
+                    } catch (IOException e) {
+                        MuxUtils.closeItem(mClient);
+                    }
+                }
+            }, Thread.currentThread().getName() + " Tunnel");
+            reverse.setDaemon(true);
+            reverse.start();
+            try {
+                copy(mClientIn, mUpstreamOut);
+                mUpstream.shutdownOutput();
+                reverse.join();
+            } catch (InterruptedException e) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Tunnel interrupted");
+            }
+        }
+
+        private void openUpstream() throws IOException {
+            if (mUpstream != null) {
+                return;
+            }
+            int upstreamPort = mUpstreamPort;
+            if (upstreamPort == 0) {
+                throw new ConnectException("No upstream listener");
+            }
+            Socket upstream = new Socket();
+            try {
+                upstream.setTcpNoDelay(true);
+                upstream.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                        upstreamPort), CONNECT_TIMEOUT);
+                mUpstreamIn = new BufferedInputStream(upstream.getInputStream(), BUFFER_SIZE);
+                mUpstreamOut = new BufferedOutputStream(upstream.getOutputStream(), BUFFER_SIZE);
+            } catch (IOException e) {
+                MuxUtils.closeItem(upstream);
+                throw e;
+            }
+            mUpstream = upstream;
+            mUpstreamUsed = false;
+        }
+
+        private void closeUpstream() {
+            Socket upstream = mUpstream;
+            mUpstream = null;
+            MuxUtils.closeItem(upstream);
+        }
+
+        private void sendBadGateway() throws IOException {
+            HttpHead response = new HttpHead("HTTP/1.1 502 Bad Gateway");
+            response.add("Content-Length", "0");
+            response.add("Connection", "close");
+            response.writeTo(mClientOut);
+            mClientOut.flush();
+        }
+
+        private String cacheKey(HttpHead request) {
+            String host = request.get("Host");
+            String encoding = request.get("Accept-Encoding");
+            return getPort() + " " + (host == null ? "" : host) + " " + request.getTarget() +
+                    " " + (encoding == null ? "" : encoding);
+        }
+    }
+
+    /**
+     * Relays a message body framed as its head says, copying it aside when capturing
+     */
+    private static void relayBody(InputStream in, OutputStream out, HttpHead head,
+                                  boolean untilClose, Capture capture) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (head.isChunked()) {
+            relayChunked(in, out, buffer, capture);
+            return;
+        }
+        long remaining = head.getContentLength();
+        if (remaining == -2) {
+            throw new IOException("Invalid Content-Length");
+        }
+        if (remaining < 0) {
+            remaining = untilClose ? Long.MAX_VALUE : 0;
+        }
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                if (untilClose) {
+                    return;
+                }
+                throw new EOFException("HTTP body truncated");
+            }
+            out.write(buffer, 0, read);
+            if (capture != null) {
+                capture.write(buffer, 0, read);
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Relays a chunked body as it came, capturing it decoded
+     */
+    private static void relayChunked(InputStream in, OutputStream out, byte[] buffer,
+                                     Capture capture) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        while (true) {
+            raw.reset();
+            String line = HttpHead.readLine(in, raw);
+            if (line == null) {
+                throw new EOFException("HTTP chunk truncated");
+            }
+            out.write(raw.toByteArray());
+            int extension = line.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension < 0 ? line : line.substring(0, extension))
+                        .trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+
+            if (size == 0) {
+                // Trailers, up to a blank line
+                do {
+                    raw.reset();
+                    line = HttpHead.readLine(in, raw);
+                    if (line == null) {
+                        throw new EOFException("HTTP trailer truncated");
+                    }
+                    out.write(raw.toByteArray());
+                } while (line.length() > 0);
+                return;
+            }
+
+            while (size > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+                if (read < 0) {
+                    throw new EOFException("HTTP chunk truncated");
+                }
+                out.write(buffer, 0, read);
+                if (capture != null) {
+                    capture.write(buffer, 0, read);
+                }
+                size -= read;
+            }
+            raw.reset();
+            if (HttpHead.readLine(in, raw) == null) {
+                throw new EOFException("HTTP chunk truncated");
+            }
+            out.write(raw.toByteArray());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    private static boolean isSafeMethod(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ||
+                "TRACE".equals(method);
+    }
+
+    private static boolean hasResponseBody(int status) {
+        return status >= 200 && status != 204 && status != 304;
+    }
+
+    static boolean isCacheableRequest(HttpHead request) {
+        return "GET".equals(request.getMethod()) && !request.contains("Authorization") &&
+                !request.contains("Range") && !request.hasToken("Cache-Control", "no-store") &&
+                !request.isChunked() && request.getContentLength() <= 0;
+    }
+
+    static boolean isCacheableResponse(HttpHead response) {
+        if (response.getStatus() != 200 || response.hasToken("Cache-Control", "no-store") ||
+                response.hasToken("Cache-Control", "private") || response.contains("Set-Cookie")) {
+            return false;
+        }
+        String vary = response.get("Vary");
+        if (vary != null) {
+            // The key only tells responses apart by Accept-Encoding
+            for (String field : vary.split(",")) {
+                String name = field.trim();
+                if (name.length() > 0 && !name.equalsIgnoreCase("Accept-Encoding")) {
+                    return false;
+                }
+            }
+        }
+        return HttpCache.freshnessMillis(response) > 0 || response.contains("ETag") ||
+                response.contains("Last-Modified");
+    }
+}
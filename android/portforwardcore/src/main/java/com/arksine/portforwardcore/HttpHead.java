@@ -0,0 +1,305 @@
+package com.arksine.portforwardcore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * The start line and headers of an HTTP/1.x request or response, as read off a socket.
+ * Header names keep their case but are matched without it, and headers are written back in
+ * the order they came.  Only what the cache proxy needs is interpreted.
+ */
+
+final class HttpHead {
+    static final int MAX_HEAD_SIZE = 65536;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private String mStartLine;
+    private final ArrayList<String> mNames = new ArrayList<>();
+    private final ArrayList<String> mValues = new ArrayList<>();
+
+    HttpHead(String startLine) {
+        this.mStartLine = startLine;
+    }
+
+    HttpHead(HttpHead other) {
+        this.mStartLine = other.mStartLine;
+        mNames.addAll(other.mNames);
+        mValues.addAll(other.mValues);
+    }
+
+    /**
+     * Reads a head up to and including its blank line.  The stream should be buffered, it is
+     * read a byte at a time.
+     *
+     * @return the head, or null if the stream ended before it started
+     * @throws IOException if the stream ends part way through, or the head is too large
+     */
+    static HttpHead read(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        HttpHead head = null;
+        int total = 0;
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                if (head == null && total == 0) {
+                    return null;
+                }
+                throw new EOFException("HTTP head truncated");
+            }
+            if (++total > MAX_HEAD_SIZE) {
+                throw new IOException("HTTP head too large");
+            }
+            if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            if (head == null) {
+                // Blank lines ahead of a request are allowed
+                if (line.length() > 0) {
+                    head = new HttpHead(line.toString());
+                }
+            } else if (line.length() == 0) {
+                return head;
+            } else {
+                head.parseHeader(line);
+            }
+            line.setLength(0);
+        }
+    }
+
+    private void parseHeader(CharSequence line) throws IOException {
+        if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+            // Folded onto the previous header
+            if (mValues.isEmpty()) {
+                throw new IOException("Malformed HTTP header");
+            }
+            int last = mValues.size() - 1;
+            mValues.set(last, mValues.get(last) + " " + line.toString().trim());
+            return;
+        }
+        String header = line.toString();
+        int colon = header.indexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Malformed HTTP header");
+        }
+        add(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+    }
+
+    String getStartLine() {
+        return mStartLine;
+    }
+
+    void setStartLine(String startLine) {
+        this.mStartLine = startLine;
+    }
+
+    /**
+     * Returns the first word of a request line
+     */
+    String getMethod() {
+        int space = mStartLine.indexOf(' ');
+        return (space < 0) ? mStartLine : mStartLine.substring(0, space);
+    }
+
+    /**
+     * Returns the request target, between the method and the version
+     */
+    String getTarget() {
+        int first = mStartLine.indexOf(' ');
+        int last = mStartLine.lastIndexOf(' ');
+        return (first < 0 || last <= first) ? "" : mStartLine.substring(first + 1, last);
+    }
+
+    /**
+     * Returns the version of a request or response, the part starting HTTP/
+     */
+    String getVersion() {
+        if (mStartLine.startsWith("HTTP/")) {
+            int space = mStartLine.indexOf(' ');
+            return (space < 0) ? mStartLine : mStartLine.substring(0, space);
+        }
+        return mStartLine.substring(mStartLine.lastIndexOf(' ') + 1);
+    }
+
+    /**
+     * Returns the status code of a response line, or -1 if it has none
+     */
+    int getStatus() {
+        int space = mStartLine.indexOf(' ');
+        if (space < 0 || mStartLine.length() < space + 4) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(mStartLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the first value of a header, or null if it isn't present
+     */
+    String get(String name) {
+        for (int i = 0; i < mNames.size(); i++) {
+            if (mNames.get(i).equalsIgnoreCase(name)) {
+                return mValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    /**
+     * Returns true if any value of a comma separated header lists the token, which is
+     * matched without case up to any parameter
+     */
+    boolean hasToken(String name, String token) {
+        return getDirective(name, token) != null;
+    }
+
+    /**
+     * Returns the value of a directive in a comma separated header, such as max-age in
+     * Cache-Control.  A directive without a value returns an empty string, one that isn't
+     * present returns null.
+     */
+    String getDirective(String name, String directive) {
+        for (int i = 0; i < mNames.size(); i++) {
+            if (!mNames.get(i).equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (String part : mValues.get(i).split(",")) {
+                String item = part.trim();
+                int equals = item.indexOf('=');
+                String key = (equals < 0) ? item : item.substring(0, equals).trim();
+                if (key.equalsIgnoreCase(directive)) {
+                    if (equals < 0) {
+                        return "";
+                    }
+                    String value = item.substring(equals + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Content-Length, -1 if there is none, or -2 if it can't be parsed
+     */
+    long getContentLength() {
+        String value = get("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long length = Long.parseLong(value);
+            return (length < 0) ? -2 : length;
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+    boolean isChunked() {
+        return hasToken("Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * Returns true if the sender wants the connection kept open after this message
+     */
+    boolean isKeepAlive() {
+        if (hasToken("Connection", "close")) {
+            return false;
+        }
+        return !"HTTP/1.0".equals(getVersion()) || hasToken("Connection", "keep-alive");
+    }
+
+    void add(String name, String value) {
+        mNames.add(name);
+        mValues.add(value);
+    }
+
+    void remove(String name) {
+        for (int i = mNames.size() - 1; i >= 0; i--) {
+            if (mNames.get(i).equalsIgnoreCase(name)) {
+                mNames.remove(i);
+                mValues.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Replaces every value of a header with a single one
+     */
+    void set(String name, String value) {
+        remove(name);
+        add(name, value);
+    }
+
+    byte[] toBytes() {
+        StringBuilder text = new StringBuilder(mStartLine.length() + 32 * mNames.size());
+        text.append(mStartLine).append("\r\n");
+        for (int i = 0; i < mNames.size(); i++) {
+            text.append(mNames.get(i)).append(": ").append(mValues.get(i)).append("\r\n");
+        }
+        text.append("\r\n");
+        return text.toString().getBytes(ISO_8859_1);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+
+    static HttpHead parse(byte[] bytes) throws IOException {
+        HttpHead head = read(new ByteArrayInputStream(bytes));
+        if (head == null) {
+            throw new EOFException("Empty HTTP head");
+        }
+        return head;
+    }
+
+    /**
+     * Reads a line ending in LF, returning it without the line ending, or null at the end of
+     * the stream.  Used for chunk sizes and trailers, which are also relayed as they came.
+     */
+    static String readLine(InputStream in, ByteArrayOutputStream raw) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            raw.write(c);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_HEAD_SIZE) {
+                throw new IOException("HTTP line too long");
+            }
+            line.append((char) c);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return mStartLine;
+    }
+}
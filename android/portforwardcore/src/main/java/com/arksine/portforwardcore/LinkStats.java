@@ -0,0 +1,300 @@
+package com.arksine.portforwardcore;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Snapshot of the counters of an accessory link.  Sent is everything written to the host,
+ * received everything read from it, counted in frames and in bytes on the wire including
+ * headers.  Taking two snapshots and dividing the difference in bytes by the difference in
+ * uptime gives the throughput of the link over that period.
+ *
+ * Each counter has a single writer, or is only touched on a slow path, so keeping them costs
+ * the forwarding threads no locking.  Counters read while traffic flows may be a frame apart
+ * from each other.
+ */
+
+public final class LinkStats {
+    long uptimeMillis;
+    long bytesSent;
+    long framesSent;
+    long transfersSent;
+    long bytesReceived;
+    long framesReceived;
+    long transfersReceived;
+    int readRingOccupancy;
+    int peakReadRingOccupancy;
+    long readStalls;
+    long readStallNanos;
+    long splitHeaders;
+    long splitPayloads;
+    long streamedPayloads;
+    long writeWaitNanos;
+    int writeQueueDepth;
+    int peakWriteQueueDepth;
+    int activeConnections;
+    int peakConnections;
+    long rejectedAccepts;
+    long refusedConnects;
+    long socketErrors;
+    int probesSent;
+    int unansweredProbes;
+    long rttLastMicros;
+    long rttMedianMicros;
+    long rttP99Micros;
+    long connectMedianMicros;
+    long connectP99Micros;
+    long firstByteMedianMicros;
+    long firstByteP99Micros;
+    long datagramsSent;
+    long datagramsReceived;
+    long datagramsDropped;
+    int datagramPeers;
+    List<StreamStats> streams = Collections.emptyList();
+    List<ShardStats> shards = Collections.emptyList();
+
+    LinkStats() {}
+
+    /**
+     * Time since the link was started
+     */
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * Writes made to the transport, each packing one or more frames
+     */
+    public long getTransfersSent() {
+        return transfersSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Reads made from the transport
+     */
+    public long getTransfersReceived() {
+        return transfersReceived;
+    }
+
+    /**
+     * Transfers read from the transport and waiting to be dispatched
+     */
+    public int getReadRingOccupancy() {
+        return readRingOccupancy;
+    }
+
+    public int getPeakReadRingOccupancy() {
+        return peakReadRingOccupancy;
+    }
+
+    /**
+     * Times the reader found every transfer buffer waiting to be dispatched, and had to
+     * leave the transport unread until one was free
+     */
+    public long getReadStalls() {
+        return readStalls;
+    }
+
+    public long getReadStallNanos() {
+        return readStallNanos;
+    }
+
+    /**
+     * Frames whose header was split between two transport reads
+     */
+    public long getSplitHeaders() {
+        return splitHeaders;
+    }
+
+    /**
+     * Frames whose payload was split between transport reads and had to be reassembled
+     */
+    public long getSplitPayloads() {
+        return splitPayloads;
+    }
+
+    /**
+     * Data frames split between transport reads that were passed to their socket as they
+     * arrived, without reassembly
+     */
+    public long getStreamedPayloads() {
+        return streamedPayloads;
+    }
+
+    /**
+     * Total time threads were blocked handing frames to the accessory writer because its
+     * queue was full.  A steadily rising value means the link is saturated.
+     */
+    public long getWriteWaitNanos() {
+        return writeWaitNanos;
+    }
+
+    public int getWriteQueueDepth() {
+        return writeQueueDepth;
+    }
+
+    public int getPeakWriteQueueDepth() {
+        return peakWriteQueueDepth;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getPeakConnections() {
+        return peakConnections;
+    }
+
+    /**
+     * Clients turned away because every socket id was in use
+     */
+    public long getRejectedAccepts() {
+        return rejectedAccepts;
+    }
+
+    /**
+     * Clients reset because the host couldn't connect their stream
+     */
+    public long getRefusedConnects() {
+        return refusedConnects;
+    }
+
+    /**
+     * Failed accepts, connects, reads and writes on local sockets
+     */
+    public long getSocketErrors() {
+        return socketErrors;
+    }
+
+    /**
+     * Heartbeat probes sent to the host, 0 if it doesn't answer probes
+     */
+    public int getProbesSent() {
+        return probesSent;
+    }
+
+    /**
+     * Probes sent since the last one the host answered
+     */
+    public int getUnansweredProbes() {
+        return unansweredProbes;
+    }
+
+    public long getRttLastMicros() {
+        return rttLastMicros;
+    }
+
+    /**
+     * Median round trip time of the recent probes, see RttHistogram
+     */
+    public long getRttMedianMicros() {
+        return rttMedianMicros;
+    }
+
+    public long getRttP99Micros() {
+        return rttP99Micros;
+    }
+
+    /**
+     * Median time from accepting a client to the host answering its CONNECT_SOCKET
+     */
+    public long getConnectMedianMicros() {
+        return connectMedianMicros;
+    }
+
+    public long getConnectP99Micros() {
+        return connectP99Micros;
+    }
+
+    /**
+     * Median time from accepting a client to the first data from the host reaching it
+     */
+    public long getFirstByteMedianMicros() {
+        return firstByteMedianMicros;
+    }
+
+    public long getFirstByteP99Micros() {
+        return firstByteP99Micros;
+    }
+
+    /**
+     * Datagrams from clients of datagram mappings forwarded to the host
+     */
+    public long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    /**
+     * Datagrams from the host delivered to clients of datagram mappings
+     */
+    public long getDatagramsReceived() {
+        return datagramsReceived;
+    }
+
+    /**
+     * Datagrams dropped in either direction, for a congested link, a full socket buffer or
+     * a client that is no longer known
+     */
+    public long getDatagramsDropped() {
+        return datagramsDropped;
+    }
+
+    /**
+     * Clients of datagram mappings currently tracked
+     */
+    public int getDatagramPeers() {
+        return datagramPeers;
+    }
+
+    /**
+     * The counters of every open stream
+     */
+    public List<StreamStats> getStreams() {
+        return streams;
+    }
+
+    /**
+     * The counters of each shard thread reading sockets
+     */
+    public List<ShardStats> getShards() {
+        return shards;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Up %d ms, sent %d bytes/%d frames/%d transfers, " +
+                        "received %d bytes/%d frames/%d transfers, read ring %d (peak %d), " +
+                        "read stalls %d (%d us), split headers %d, split payloads %d, " +
+                        "streamed payloads %d, write wait %d us, " +
+                        "queue %d (peak %d), connections %d (peak %d), rejected %d, " +
+                        "refused %d, errors %d, rtt %d us (median %d, p99 %d), " +
+                        "connect median %d us (p99 %d), first byte median %d us (p99 %d), " +
+                        "datagrams sent %d/received %d/dropped %d, datagram peers %d",
+                uptimeMillis, bytesSent, framesSent, transfersSent, bytesReceived,
+                framesReceived, transfersReceived, readRingOccupancy, peakReadRingOccupancy,
+                readStalls, readStallNanos / 1000, splitHeaders, splitPayloads, streamedPayloads,
+                writeWaitNanos / 1000, writeQueueDepth, peakWriteQueueDepth, activeConnections,
+                peakConnections, rejectedAccepts, refusedConnects, socketErrors, rttLastMicros,
+                rttMedianMicros, rttP99Micros, connectMedianMicros, connectP99Micros,
+                firstByteMedianMicros, firstByteP99Micros, datagramsSent, datagramsReceived,
+                datagramsDropped, datagramPeers);
+    }
+}
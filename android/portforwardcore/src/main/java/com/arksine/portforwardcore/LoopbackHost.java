@@ -0,0 +1,873 @@
+package com.arksine.portforwardcore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Host side of the accessory protocol, written against an AccessoryTransport.  This mirrors
+ * python/android_accessory_sync.py: each CONNECT_SOCKET opens a socket to the port it names,
+ * or the port announced with ACCESSORY_CONNECTED, and data is pumped in both directions until
+ * either side disconnects.
+ *
+ * Reverse mappings work the other way around: clients accepted on a host port are connected to
+ * a port on the device with REVERSE_CONNECT, and carried like any other stream once the device
+ * answers with the socket id it assigned.
+ *
+ * Streams the device flags as compressed have their data deflated one frame at a time, once
+ * the capabilities announced with ACCESSORY_CONNECTED have been answered.  Once jumbo frames
+ * are agreed, sockets are read in larger chunks and frames too large for the short header are
+ * sent with an extended one.
+ *
+ * Once half close is agreed, a socket reaching end of stream is reported with SHUTDOWN_WRITE
+ * and kept open for the other direction, and the device's SHUTDOWN_WRITE shuts down output on
+ * the socket.  A stream is dropped once both directions have finished.
+ *
+ * Once datagrams are agreed, each flow id the device sends DATAGRAM frames for gets a UDP
+ * socket of its own connected to the port the frame names.  Replies read from that socket are
+ * sent back under the same flow id, and the socket is closed once the flow has been quiet for
+ * the device's idle time.  Datagrams that can't be sent are dropped.
+ *
+ * Probes from the device are answered as they arrive, unless answering has been switched off
+ * to stand in for a wedged link.
+ *
+ * Both directions are flow controlled.  The device's window arrives with CONNECT_SOCKET, the
+ * host's window is advertised in CONNECTION_RESP and refilled as data is written out.
+ *
+ * Connects run off the read thread, so a slow one doesn't hold up the other streams.  Data the
+ * device sends while a stream is connecting is held, up to the device's early window, and
+ * written out once the socket connects.  A connect that fails is refused with CONNECTION_RESP.
+ *
+ * Paired with a MuxServer over a LoopbackTransport, the whole forwarder can be run and
+ * profiled on a plain JVM without USB hardware.
+ */
+
+public class LoopbackHost {
+    private static final String TAG = LoopbackHost.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int RECEIVE_WINDOW = 65536;
+    public static final int JUMBO_RECEIVE_WINDOW = MuxServer.JUMBO_RECEIVE_WINDOW;
+    public static final int CAPABILITIES = FrameCodec.CAPABILITY_DEFLATE |
+            FrameCodec.CAPABILITY_JUMBO_FRAMES | FrameCodec.CAPABILITY_HEARTBEAT |
+            FrameCodec.CAPABILITY_HALF_CLOSE | FrameCodec.CAPABILITY_DATAGRAM;
+    private static final int READ_SIZE = 8192;
+    private static final int JUMBO_READ_SIZE = BufferPool.JUMBO_SLAB_SIZE;
+
+    private final Object TRANSPORT_WRITE_LOCK = new Object();
+
+    private final AccessoryTransport mTransport;
+    private final ConcurrentHashMap<Short, HostStream> mSocketMap = new ConcurrentHashMap<>();
+    // Reverse clients waiting on the device, by request tag
+    private final ConcurrentHashMap<Short, Socket> mPendingReverse = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextRequestTag = new AtomicInteger(0);
+    private final CopyOnWriteArrayList<ServerSocket> mReverseListeners =
+            new CopyOnWriteArrayList<>();
+    private volatile boolean mRunning = false;
+    private volatile boolean mAppConnected = false;
+    private volatile int mPort = 8000;
+    private volatile boolean mJumboFrames = false;
+    private volatile boolean mHalfClose = false;
+    private volatile boolean mAnswerProbes = true;
+    private volatile long mConnectDelayMs = 0;
+    // Streams whose socket is still connecting, by socket id
+    private final ConcurrentHashMap<Short, PendingConnect> mPendingConnects =
+            new ConcurrentHashMap<>();
+    // Sockets carrying the device's datagram flows, by flow id
+    private final ConcurrentHashMap<Short, DatagramSocket> mDatagramSockets =
+            new ConcurrentHashMap<>();
+    private Thread mReadThread = null;
+    // Only used by the read thread
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mInflateBuffer = new byte[16384];
+
+    /**
+     * A connected socket and its flow control state
+     */
+    private static class HostStream {
+        final Socket socket;
+        final boolean compressed;
+        final int receiveWindow;
+        private long mSendLimit;
+        private long mBytesSent = 0;
+        private int mBytesConsumed = 0;
+        // Directions that have finished, the socket's and the device's
+        private boolean mInputShutdown = false;
+        private boolean mOutputShutdown = false;
+
+        HostStream(Socket socket, long sendLimit, boolean compressed, int receiveWindow) {
+            this.socket = socket;
+            this.compressed = compressed;
+            this.receiveWindow = receiveWindow;
+            this.mSendLimit = sendLimit;
+        }
+
+        /**
+         * Blocks until the device will accept data, returns how much
+         */
+        synchronized int awaitWindow(int max) throws InterruptedException {
+            if (mSendLimit == MuxStream.UNLIMITED) {
+                return max;
+            }
+            while (mSendLimit - mBytesSent <= 0 && !socket.isClosed()) {
+                wait(100);
+            }
+            return (int) Math.min(max, mSendLimit - mBytesSent);
+        }
+
+        synchronized void onDataSent(int length) {
+            mBytesSent += length;
+        }
+
+        synchronized void addSendWindow(int increment) {
+            if (mSendLimit != MuxStream.UNLIMITED) {
+                mSendLimit += increment & 0xFFFFFFFFL;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Records the socket's end of stream, returns true if the device had finished too
+         */
+        synchronized boolean shutdownInput() {
+            mInputShutdown = true;
+            return mOutputShutdown;
+        }
+
+        synchronized boolean shutdownOutput() {
+            mOutputShutdown = true;
+            return mInputShutdown;
+        }
+
+        int onDataConsumed(int length) {
+            mBytesConsumed += length;
+            if (mBytesConsumed >= receiveWindow / 2) {
+                int increment = mBytesConsumed;
+                mBytesConsumed = 0;
+                return increment;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A stream waiting for its socket to connect, and the data the device sent meanwhile.
+     * Guarded by its own lock.
+     */
+    private static class PendingConnect {
+        final ByteArrayOutputStream early = new ByteArrayOutputStream();
+        // Set once the device has been answered
+        boolean answered = false;
+        // Set if the device finished sending before the socket connected
+        boolean shutdown = false;
+    }
+
+    public LoopbackHost(AccessoryTransport transport) {
+        this.mTransport = transport;
+    }
+
+    public void start() {
+        mRunning = true;
+        mReadThread = new Thread(null, mTransportReadRunnable, "Loopback Host Read Thread");
+        mReadThread.start();
+    }
+
+    public boolean isAppConnected() {
+        return mAppConnected;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public boolean isJumboFramesNegotiated() {
+        return mJumboFrames;
+    }
+
+    public boolean isHalfCloseNegotiated() {
+        return mHalfClose;
+    }
+
+    /**
+     * Stops or resumes answering the device's probes, everything else carries on as usual
+     */
+    public void setAnswerProbes(boolean answer) {
+        mAnswerProbes = answer;
+    }
+
+    /**
+     * Delays every connect, standing in for a slow server on the host
+     */
+    public void setConnectDelay(long delayMs) {
+        mConnectDelayMs = delayMs;
+    }
+
+    /**
+     * Listens on a host port, connecting each client accepted to a port on the device.  The
+     * device must have exposed the port as a reverse port.
+     *
+     * @param hostPort the port to listen on, or 0 for any free port
+     * @return the port listened on
+     */
+    public int addReverseMapping(int hostPort, final int devicePort) throws IOException {
+        final ServerSocket server = new ServerSocket(hostPort, 50,
+                InetAddress.getByName("127.0.0.1"));
+        mReverseListeners.add(server);
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    Socket client;
+                    try {
+                        client = server.accept();
+                        client.setTcpNoDelay(true);
+                    } catch (IOException e) {
+                        break;
+                    }
+                    short tag = (short) mNextRequestTag.getAndIncrement();
+                    mPendingReverse.put(tag, client);
+                    sendCommand(PortCommand.REVERSE_CONNECT, tag, (short) devicePort);
+                }
+            }
+        }, "Loopback Host Reverse Listener " + devicePort);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Signals the app to exit, disconnects all sockets and closes the transport
+     */
+    public void stop() {
+        if (mAppConnected) {
+            mAppConnected = false;
+            sendCommand(PortCommand.TERMINATE_ACCESSORY, null, 0, 0);
+        }
+        mRunning = false;
+        for (ServerSocket server : mReverseListeners) {
+            MuxUtils.closeItem(server);
+        }
+        mReverseListeners.clear();
+        for (Socket client : mPendingReverse.values()) {
+            MuxUtils.closeItem(client);
+        }
+        mPendingReverse.clear();
+        for (PendingConnect pending : mPendingConnects.values()) {
+            synchronized (pending) {
+                pending.answered = true;
+            }
+        }
+        mPendingConnects.clear();
+        for (Short id : mSocketMap.keySet()) {
+            disconnectSocket(id, false);
+        }
+        for (DatagramSocket socket : mDatagramSockets.values()) {
+            socket.close();
+        }
+        mDatagramSockets.clear();
+        MuxUtils.closeItem(mTransport);
+        MuxUtils.stopThread(mReadThread, 1000);
+    }
+
+    private void sendCommand(PortCommand command, byte[] payload, int offset, int length) {
+        ByteBuffer header;
+        if (length > FrameCodec.MAX_SHORT_PAYLOAD) {
+            header = ByteBuffer.allocate(FrameCodec.EXTENDED_HEADER_SIZE)
+                    .putShort((short) (command.getValue() | FrameCodec.EXTENDED_HEADER_FLAG))
+                    .putInt(length);
+        } else {
+            header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE)
+                    .putShort(command.getValue())
+                    .putShort((short) length);
+        }
+
+        synchronized (TRANSPORT_WRITE_LOCK) {
+            try {
+                mTransport.write(header.array(), 0, header.capacity());
+                if (length > 0) {
+                    mTransport.write(payload, offset, length);
+                }
+                mTransport.flush();
+            } catch (IOException e) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Transport write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sendCommand(PortCommand command, short... data) {
+        ByteBuffer payload = ByteBuffer.allocate(data.length * 2);
+        for (short value : data) {
+            payload.putShort(value);
+        }
+        sendCommand(command, payload.array(), 0, payload.capacity());
+    }
+
+    /**
+     * Connects a socket for the device on its own thread.  The stream is started with whatever
+     * the device sent while it connected, or refused if the connect fails.
+     */
+    private void connectSocket(final short socketId, final long sendLimit, final int port,
+                               final boolean compressed) {
+        if (DEBUG)
+            MuxLog.d(TAG, "Connecting socket " + socketId + " on port " + port);
+        final PendingConnect pending = new PendingConnect();
+        mPendingConnects.put(socketId, pending);
+
+        Thread connector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Socket socket = null;
+                try {
+                    long delay = mConnectDelayMs;
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+                    socket.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    MuxLog.i(TAG, "Unable to connect to socket: " + e.getMessage());
+                    MuxUtils.closeItem(socket);
+                    socket = null;
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                synchronized (pending) {
+                    if (pending.answered) {
+                        // Given up on while connecting
+                        MuxUtils.closeItem(socket);
+                    } else if (socket == null) {
+                        pending.answered = true;
+                        sendCommand(PortCommand.CONNECTION_RESP, socketId, (short) 0);
+                    } else {
+                        pending.answered = true;
+                        startStream(socketId, socket, sendLimit, compressed, pending.early);
+                        if (pending.shutdown) {
+                            shutdownSocket(socketId);
+                        }
+                    }
+                    // Only now, frames the read thread has for the stream wait on the lock
+                    // until it is mapped rather than finding neither
+                    mPendingConnects.remove(socketId, pending);
+                }
+            }
+        }, "Loopback Host Connect " + socketId);
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * Refuses a stream that is still connecting, its socket is closed once the connect
+     * finishes.  Called with the pending connect's lock held.
+     */
+    private void abandonConnect(short socketId, PendingConnect pending) {
+        mPendingConnects.remove(socketId, pending);
+        pending.answered = true;
+        sendCommand(PortCommand.CONNECTION_RESP, socketId, (short) 0);
+    }
+
+    private void reverseConnected(short requestTag, short socketId, long sendLimit,
+                                  boolean compressed) {
+        Socket client = mPendingReverse.remove(requestTag);
+        if (socketId == FrameCodec.NO_SOCKET_ID) {
+            MuxLog.i(TAG, "Device refused reverse connection, tag: " + requestTag);
+            MuxUtils.closeItem(client);
+        } else if (client == null) {
+            // Stopped while the device was connecting
+            sendCommand(PortCommand.CONNECTION_RESP, socketId, (short) 0);
+        } else {
+            startStream(socketId, client, sendLimit, compressed, null);
+        }
+    }
+
+    /**
+     * Maps a connected socket to its id, acknowledges the id to the device and starts pumping
+     * the socket's data.  Data the device sent before the socket connected is written first.
+     */
+    private void startStream(final short socketId, final Socket socket, long sendLimit,
+                             boolean compressed, ByteArrayOutputStream early) {
+        final boolean jumbo = mJumboFrames;
+        final HostStream stream = new HostStream(socket, sendLimit, compressed,
+                jumbo ? JUMBO_RECEIVE_WINDOW : RECEIVE_WINDOW);
+        int increment = 0;
+        if (early != null && early.size() > 0) {
+            try {
+                early.writeTo(socket.getOutputStream());
+                increment = stream.onDataConsumed(early.size());
+            } catch (IOException e) {
+                // The socket reader finds it closed and disconnects the stream
+                MuxUtils.closeItem(socket);
+            }
+        }
+        // Answered before the stream is mapped, the device ignores window updates for
+        // unanswered streams and the read thread sends one for each frame it writes out
+        ByteBuffer resp = ByteBuffer.allocate(8)
+                .putShort(socketId)
+                .putShort((short) 1)
+                .putInt(stream.receiveWindow);
+        sendCommand(PortCommand.CONNECTION_RESP, resp.array(), 0, 8);
+        mSocketMap.put(socketId, stream);
+        if (increment > 0) {
+            sendWindowUpdate(socketId, increment);
+        }
+
+        Thread socketReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Leave room for the socket id at the start of the payload
+                byte[] buffer = new byte[(jumbo ? JUMBO_READ_SIZE : READ_SIZE) + 2];
+                ByteBuffer.wrap(buffer).putShort(socketId);
+                byte[] deflated = null;
+                Deflater deflater = null;
+                if (stream.compressed) {
+                    deflated = new byte[buffer.length];
+                    ByteBuffer.wrap(deflated).putShort(socketId);
+                    deflater = new Deflater(Deflater.BEST_SPEED, true);
+                }
+                boolean endOfStream = false;
+                try {
+                    InputStream in = socket.getInputStream();
+                    int bytesRead = 0;
+                    int window;
+                    while ((window = stream.awaitWindow(buffer.length - 2)) > 0 &&
+                            (bytesRead = in.read(buffer, 2, window)) > 0) {
+                        int compressed = (deflater != null)
+                                ? deflate(deflater, buffer, bytesRead, deflated) : -1;
+                        if (compressed > 0) {
+                            sendCommand(PortCommand.DATA_PACKET_DEFLATE, deflated, 0,
+                                    compressed + 2);
+                        } else {
+                            sendCommand(PortCommand.DATA_PACKET, buffer, 0, bytesRead + 2);
+                        }
+                        stream.onDataSent(bytesRead);
+                    }
+                    endOfStream = bytesRead < 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    if (DEBUG)
+                        MuxLog.d(TAG, "Socket read error, id: " + socketId);
+                }
+                if (deflater != null) {
+                    deflater.end();
+                }
+                if (endOfStream && mHalfClose) {
+                    // The other direction carries on until the device finishes too
+                    sendCommand(PortCommand.SHUTDOWN_WRITE, socketId);
+                    if (stream.shutdownInput()) {
+                        releaseSocket(socketId, stream);
+                    }
+                } else if (mSocketMap.remove(socketId, stream)) {
+                    // Unless the device closed it first and may have reused the id since
+                    MuxUtils.closeItem(socket);
+                    if (mRunning) {
+                        sendCommand(PortCommand.DISCONNECT_SOCKET, socketId);
+                    }
+                }
+            }
+        }, "Loopback Host Socket " + socketId);
+        socketReader.setDaemon(true);
+        socketReader.start();
+    }
+
+    /**
+     * Deflates the data read after the socket id, into the space after the socket id of the
+     * output.  Returns the compressed length, or -1 if the data didn't shrink.
+     */
+    private static int deflate(Deflater deflater, byte[] input, int length, byte[] output) {
+        if (length < FrameDeflater.MIN_COMPRESS_SIZE) {
+            return -1;
+        }
+        deflater.reset();
+        deflater.setInput(input, 2, length);
+        deflater.finish();
+        int compressed = deflater.deflate(output, 2, length - 1);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    private void writeToSocket(short id, HostStream stream, byte[] data, int offset,
+                               int length) {
+        try {
+            OutputStream out = stream.socket.getOutputStream();
+            out.write(data, offset, length);
+        } catch (IOException e) {
+            disconnectSocket(id, true);
+            return;
+        }
+        int increment = stream.onDataConsumed(length);
+        if (increment > 0) {
+            sendWindowUpdate(id, increment);
+        }
+    }
+
+    private void sendWindowUpdate(short id, int increment) {
+        ByteBuffer update = ByteBuffer.allocate(6)
+                .putShort(id)
+                .putInt(increment);
+        sendCommand(PortCommand.WINDOW_UPDATE, update.array(), 0, 6);
+    }
+
+    /**
+     * Returns the stream data for an id should be written to, or null if there is none.  Data
+     * for a stream that is still connecting is held, or the stream refused if the device sends
+     * more than its early window.
+     */
+    private HostStream streamFor(short id, byte[] data, int offset, int length) {
+        HostStream stream = mSocketMap.get(id);
+        if (stream != null) {
+            return stream;
+        }
+        PendingConnect pending = mPendingConnects.get(id);
+        if (pending == null) {
+            return null;
+        }
+        synchronized (pending) {
+            if (!pending.answered) {
+                if (pending.early.size() + length > MuxServer.EARLY_DATA_WINDOW) {
+                    MuxLog.w(TAG, "Early data overflow, id: " + id);
+                    abandonConnect(id, pending);
+                } else {
+                    pending.early.write(data, offset, length);
+                }
+                return null;
+            }
+        }
+        // Connected meanwhile
+        return mSocketMap.get(id);
+    }
+
+    /**
+     * Inflates a compressed frame's data into the inflate buffer, returning its length, or -1
+     * if the data is corrupt
+     */
+    private int inflate(ByteBuffer payload) {
+        mInflater.reset();
+        mInflater.setInput(payload.array(), payload.arrayOffset() + payload.position(),
+                payload.remaining());
+        int total = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (total == mInflateBuffer.length) {
+                    byte[] larger = new byte[mInflateBuffer.length * 2];
+                    System.arraycopy(mInflateBuffer, 0, larger, 0, total);
+                    mInflateBuffer = larger;
+                }
+                int inflated = mInflater.inflate(mInflateBuffer, total,
+                        mInflateBuffer.length - total);
+                if (inflated == 0 && mInflater.needsInput()) {
+                    return -1;
+                }
+                total += inflated;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return total;
+    }
+
+    /**
+     * Passes the device's end of stream on to the socket, dropping the stream if the socket
+     * had already finished too
+     */
+    private void shutdownSocket(short socketId) {
+        HostStream stream = mSocketMap.get(socketId);
+        if (stream == null) {
+            return;
+        }
+        if (stream.shutdownOutput()) {
+            releaseSocket(socketId, stream);
+            return;
+        }
+        try {
+            stream.socket.shutdownOutput();
+        } catch (IOException e) {
+            disconnectSocket(socketId, true);
+        }
+    }
+
+    /**
+     * Drops a stream both sides have finished with, the device releases it on its own
+     */
+    private void releaseSocket(short socketId, HostStream stream) {
+        if (mSocketMap.remove(socketId, stream)) {
+            MuxUtils.closeItem(stream.socket);
+        }
+    }
+
+    private void disconnectSocket(short socketId, boolean sendResponse) {
+        HostStream stream = mSocketMap.remove(socketId);
+        if (stream != null) {
+            MuxUtils.closeItem(stream.socket);
+            if (sendResponse && mRunning) {
+                sendCommand(PortCommand.DISCONNECT_SOCKET, socketId);
+            }
+        }
+    }
+
+    /**
+     * Sends a datagram from the device on to the port it names, through the socket of its
+     * flow.  A flow id the device has given to a client of another mapping gets a new socket.
+     */
+    private void sendDatagram(short flowId, int port, ByteBuffer payload) {
+        DatagramSocket socket = mDatagramSockets.get(flowId);
+        if (socket != null && socket.getPort() != port) {
+            mDatagramSockets.remove(flowId, socket);
+            socket.close();
+            socket = null;
+        }
+        try {
+            if (socket == null) {
+                socket = openDatagramSocket(flowId, port);
+            }
+            socket.send(new DatagramPacket(payload.array(),
+                    payload.arrayOffset() + payload.position(), payload.remaining()));
+        } catch (IOException e) {
+            if (DEBUG)
+                MuxLog.d(TAG, "Datagram dropped, flow id: " + (flowId & 0xFFFF));
+        }
+    }
+
+    /**
+     * Opens the socket for a datagram flow and starts reading its replies, which are sent to
+     * the device until the flow goes quiet
+     */
+    private DatagramSocket openDatagramSocket(final short flowId, final int port)
+            throws IOException {
+        final DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.connect(InetAddress.getByName("127.0.0.1"), port);
+        socket.setSoTimeout((int) MuxServer.DATAGRAM_IDLE_MS);
+        mDatagramSockets.put(flowId, socket);
+
+        Thread readThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[4 + MuxServer.MAX_DATAGRAM_SIZE];
+                ByteBuffer.wrap(buffer).putShort(flowId).putShort((short) port);
+                DatagramPacket packet = new DatagramPacket(buffer, 4, buffer.length - 4);
+                while (mRunning && !socket.isClosed()) {
+                    try {
+                        packet.setData(buffer, 4, buffer.length - 4);
+                        socket.receive(packet);
+                    } catch (IOException e) {
+                        // Timed out with nothing to answer, or closed
+                        break;
+                    }
+                    sendCommand(PortCommand.DATAGRAM, buffer, 0, 4 + packet.getLength());
+                }
+                mDatagramSockets.remove(flowId, socket);
+                socket.close();
+            }
+        }, "Loopback Host Datagram " + (flowId & 0xFFFF));
+        readThread.setDaemon(true);
+        readThread.start();
+        return socket;
+    }
+
+    private void processPacket(PortCommand cmd, ByteBuffer payload) {
+        switch (cmd) {
+            case ACCESSORY_CONNECTED:
+                mPort = payload.getInt();
+                // Devices supporting optional features announce them, answer with ours
+                if (payload.remaining() >= 4) {
+                    int agreed = payload.getInt() & CAPABILITIES;
+                    // Jumbo frames also need a device that knows the extended header
+                    int version = (payload.remaining() >= 4) ? payload.getInt() : 1;
+                    if (version < FrameCodec.PROTOCOL_VERSION) {
+                        agreed &= ~FrameCodec.CAPABILITY_JUMBO_FRAMES;
+                    }
+                    mJumboFrames = (agreed & FrameCodec.CAPABILITY_JUMBO_FRAMES) != 0;
+                    mHalfClose = (agreed & FrameCodec.CAPABILITY_HALF_CLOSE) != 0;
+                    ByteBuffer caps = ByteBuffer.allocate(8)
+                            .putInt(agreed)
+                            .putInt(FrameCodec.PROTOCOL_VERSION);
+                    sendCommand(PortCommand.CAPABILITIES, caps.array(), 0, 8);
+                }
+                mAppConnected = true;
+                break;
+            case CONNECT_SOCKET: {
+                short id = payload.getShort();
+                // Devices supporting flow control append their receive window
+                long sendLimit = (payload.remaining() >= 4)
+                        ? payload.getInt() & 0xFFFFFFFFL : MuxStream.UNLIMITED;
+                // Devices forwarding several ports append the target port
+                int port = (payload.remaining() >= 2) ? payload.getShort() & 0xFFFF : mPort;
+                int flags = (payload.remaining() >= 2) ? payload.getShort() : 0;
+                connectSocket(id, sendLimit, port,
+                        (flags & FrameCodec.STREAM_FLAG_DEFLATE) != 0);
+                break;
+            }
+            case REVERSE_CONNECT_RESP: {
+                short tag = payload.getShort();
+                short id = payload.getShort();
+                long sendLimit = payload.getInt() & 0xFFFFFFFFL;
+                int flags = (payload.remaining() >= 2) ? payload.getShort() : 0;
+                reverseConnected(tag, id, sendLimit,
+                        (flags & FrameCodec.STREAM_FLAG_DEFLATE) != 0);
+                break;
+            }
+            case DISCONNECT_SOCKET: {
+                short id = payload.getShort();
+                // A stream closed while connecting is answered now, the device still expects
+                // a response for it
+                PendingConnect pending = mPendingConnects.get(id);
+                if (pending != null) {
+                    synchronized (pending) {
+                        if (!pending.answered) {
+                            abandonConnect(id, pending);
+                        }
+                    }
+                }
+                disconnectSocket(id, false);
+                break;
+            }
+            case SHUTDOWN_WRITE: {
+                short id = payload.getShort();
+                PendingConnect pending = mPendingConnects.get(id);
+                if (pending != null) {
+                    synchronized (pending) {
+                        if (!pending.answered) {
+                            // Passed on once the socket connects
+                            pending.shutdown = true;
+                            break;
+                        }
+                    }
+                }
+                shutdownSocket(id);
+                break;
+            }
+            case DATA_PACKET: {
+                short id = payload.getShort();
+                byte[] data = payload.array();
+                int offset = payload.arrayOffset() + payload.position();
+                HostStream stream = streamFor(id, data, offset, payload.remaining());
+                if (stream != null) {
+                    writeToSocket(id, stream, data, offset, payload.remaining());
+                }
+                break;
+            }
+            case DATA_PACKET_DEFLATE: {
+                short id = payload.getShort();
+                if (!mSocketMap.containsKey(id) && !mPendingConnects.containsKey(id)) {
+                    break;
+                }
+                int length = inflate(payload);
+                if (length < 0) {
+                    MuxLog.w(TAG, "Corrupt compressed frame, id: " + id);
+                    disconnectSocket(id, true);
+                    break;
+                }
+                HostStream stream = streamFor(id, mInflateBuffer, 0, length);
+                if (stream != null) {
+                    writeToSocket(id, stream, mInflateBuffer, 0, length);
+                }
+                break;
+            }
+            case WINDOW_UPDATE: {
+                HostStream stream = mSocketMap.get(payload.getShort());
+                if (stream != null) {
+                    stream.addSendWindow(payload.getInt());
+                }
+                break;
+            }
+            case PING:
+                if (mAnswerProbes) {
+                    ByteBuffer pong = ByteBuffer.allocate(12).put(payload);
+                    sendCommand(PortCommand.PONG, pong.array(), 0, 12);
+                }
+                break;
+            case PONG:
+                break;
+            case DATAGRAM: {
+                short flowId = payload.getShort();
+                int port = payload.getShort() & 0xFFFF;
+                sendDatagram(flowId, port, payload);
+                break;
+            }
+            case TERMINATE_ACCESSORY:
+                if (mAppConnected) {
+                    mAppConnected = false;
+                    sendCommand(PortCommand.TERMINATE_ACCESSORY, null, 0, 0);
+                }
+                break;
+            default:
+                MuxLog.i(TAG, "Unknown Command: " + cmd);
+        }
+    }
+
+    private final Runnable mTransportReadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Frames are accumulated and parsed once complete, any partial frame is
+            // compacted to the start of the buffer before the next read.  The buffer grows
+            // when an extended frame doesn't fit.
+            ByteBuffer inputBuffer = ByteBuffer.allocate(65536 + FrameCodec.HEADER_SIZE);
+            byte[] inputArray = inputBuffer.array();
+            while (mRunning) {
+                int bytesRead;
+                try {
+                    bytesRead = mTransport.read(inputArray, inputBuffer.position(),
+                            inputBuffer.remaining());
+                } catch (IOException e) {
+                    break;
+                }
+                if (bytesRead < 0) {
+                    break;
+                }
+
+                inputBuffer.position(inputBuffer.position() + bytesRead);
+                inputBuffer.flip();
+                int frameSize = 0;
+                while (inputBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+                    int start = inputBuffer.position();
+                    short value = inputBuffer.getShort();
+                    PortCommand cmd = FrameCodec.decodeCommand(value);
+                    int payloadSize;
+                    if (FrameCodec.isExtendedHeader(value)) {
+                        if (inputBuffer.remaining() < 4) {
+                            inputBuffer.position(start);
+                            break;
+                        }
+                        payloadSize = inputBuffer.getInt();
+                    } else {
+                        payloadSize = inputBuffer.getShort() & 0xFFFF;
+                    }
+                    if (inputBuffer.remaining() < payloadSize) {
+                        frameSize = inputBuffer.position() - start + payloadSize;
+                        inputBuffer.position(start);
+                        break;
+                    }
+
+                    int limit = inputBuffer.limit();
+                    inputBuffer.limit(inputBuffer.position() + payloadSize);
+                    processPacket(cmd, inputBuffer.slice());
+                    inputBuffer.position(inputBuffer.limit());
+                    inputBuffer.limit(limit);
+                }
+                inputBuffer.compact();
+                if (frameSize > inputBuffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(frameSize);
+                    inputBuffer.flip();
+                    larger.put(inputBuffer);
+                    inputBuffer = larger;
+                    inputArray = inputBuffer.array();
+                }
+            }
+            mAppConnected = false;
+        }
+    };
+}
@@ -0,0 +1,123 @@
+package com.arksine.portforwardcore;
+
+import java.io.IOException;
+
+/**
+ * In-memory AccessoryTransport.  Transports are created in connected pairs, bytes written
+ * to one end are read from the other.  This allows the mux to be driven without any USB
+ * hardware, with one end handed to a MuxServer and the other to a LoopbackHost.
+ */
+
+public class LoopbackTransport implements AccessoryTransport {
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private final Pipe mInPipe;
+    private final Pipe mOutPipe;
+
+    private LoopbackTransport(Pipe inPipe, Pipe outPipe) {
+        this.mInPipe = inPipe;
+        this.mOutPipe = outPipe;
+    }
+
+    public static LoopbackTransport[] createPair() {
+        return createPair(DEFAULT_CAPACITY);
+    }
+
+    public static LoopbackTransport[] createPair(int capacity) {
+        Pipe first = new Pipe(capacity);
+        Pipe second = new Pipe(capacity);
+        return new LoopbackTransport[] {
+                new LoopbackTransport(first, second),
+                new LoopbackTransport(second, first)
+        };
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInPipe.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mOutPipe.write(buffer, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Writes are immediately visible to the reader
+    }
+
+    @Override
+    public void close() {
+        mInPipe.close();
+        mOutPipe.close();
+    }
+
+    /**
+     * Bounded byte ring, one direction of the link.  Writers block while the ring is full,
+     * readers block while it is empty.
+     */
+    private static class Pipe {
+        private final byte[] mRing;
+        private int mReadIndex = 0;
+        private int mCount = 0;
+        private boolean mClosed = false;
+
+        Pipe(int capacity) {
+            this.mRing = new byte[capacity];
+        }
+
+        synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            while (mCount == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                awaitChange();
+            }
+
+            int total = Math.min(length, mCount);
+            int first = Math.min(total, mRing.length - mReadIndex);
+            System.arraycopy(mRing, mReadIndex, buffer, offset, first);
+            System.arraycopy(mRing, 0, buffer, offset + first, total - first);
+            mReadIndex = (mReadIndex + total) % mRing.length;
+            mCount -= total;
+            notifyAll();
+            return total;
+        }
+
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mCount == mRing.length && !mClosed) {
+                    awaitChange();
+                }
+                if (mClosed) {
+                    throw new IOException("Loopback transport closed");
+                }
+
+                int writeIndex = (mReadIndex + mCount) % mRing.length;
+                int total = Math.min(length, mRing.length - mCount);
+                int first = Math.min(total, mRing.length - writeIndex);
+                System.arraycopy(buffer, offset, mRing, writeIndex, first);
+                System.arraycopy(buffer, offset + first, mRing, 0, total - first);
+                mCount += total;
+                offset += total;
+                length -= total;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void awaitChange() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting on loopback transport");
+            }
+        }
+    }
+}
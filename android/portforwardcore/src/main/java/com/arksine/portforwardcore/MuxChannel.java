@@ -0,0 +1,236 @@
+package com.arksine.portforwardcore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A stream to the host that a client in the same process reads and writes directly, with no
+ * socket in between.  Data written is framed straight from the caller's buffer, and the
+ * host's data is copied straight out of the frames queued for the stream.
+ *
+ * Both directions are non-blocking and flow controlled.  write takes only as much as the
+ * host's window allows and returns 0 once it is shut, read returns only what has arrived
+ * and grants the host more window as it is read, so a client that stops reading holds the
+ * host back.  A Listener is told when a read or write that made no progress is worth trying
+ * again.
+ *
+ * Opened with MuxServer.openChannel.  One thread may read while another writes.
+ */
+
+public final class MuxChannel implements ByteChannel {
+    private static final String TAG = MuxChannel.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /**
+     * Told when the channel is ready.  Called from the link's threads, sometimes with the
+     * stream's lock held, so a listener should only wake the client's own thread.
+     */
+    public interface Listener {
+        /**
+         * Data, end of stream or a close has arrived with nothing left unread before it
+         */
+        void onReadable(MuxChannel channel);
+
+        /**
+         * The host will take more data
+         */
+        void onWritable(MuxChannel channel);
+    }
+
+    private final MuxServer mServer;
+    private volatile MuxStream mStream = null;
+    private volatile Listener mListener = null;
+
+    // Guards the writing side, starting the stream and closing
+    private final Object mWriteLock = new Object();
+    private final Object mReadLock = new Object();
+    private FrameDeflater mDeflater = null;
+    private boolean mOutputShutdown = false;
+    private volatile boolean mClosed = false;
+
+    // Cleared when the stream is released, by either side
+    private volatile boolean mOpen = true;
+    private volatile boolean mInputEnded = false;
+
+    MuxChannel(MuxServer server) {
+        this.mServer = server;
+    }
+
+    StreamEndpoint endpoint() {
+        return mEndpoint;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reads what the host has sent, without waiting for more
+     *
+     * @return the number of bytes read, 0 if nothing is waiting, or -1 once the host has
+     *         finished sending or the stream has been closed
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (mReadLock) {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            MuxStream stream = mStream;
+            if (stream != null && dst.hasRemaining()) {
+                int count = mServer.takeOutbound(stream, dst);
+                if (count > 0) {
+                    mServer.outboundDelivered(stream, count);
+                    return count;
+                }
+            }
+            return (mInputEnded || !mOpen) ? -1 : 0;
+        }
+    }
+
+    /**
+     * Sends as much of the buffer as the host's window allows, without waiting for more.
+     * Nothing is taken until the stream has been given an id.
+     *
+     * @return the number of bytes sent
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (mWriteLock) {
+            if (mClosed || mOutputShutdown || !mOpen) {
+                throw new ClosedChannelException();
+            }
+            MuxStream stream = mStream;
+            if (stream == null) {
+                return 0;
+            }
+            if (stream.compressed && mDeflater == null) {
+                mDeflater = new FrameDeflater();
+            }
+            int written = 0;
+            int count;
+            while (src.hasRemaining()
+                    && (count = mServer.sendFromEndpoint(stream, src, mDeflater)) > 0) {
+                written += count;
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Tells the host nothing more will be written, leaving the channel readable.  Hosts that
+     * don't carry half close have the whole stream closed instead.
+     */
+    public void shutdownOutput() throws IOException {
+        MuxStream stream;
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            if (mOutputShutdown) {
+                return;
+            }
+            mOutputShutdown = true;
+            stream = mStream;
+        }
+        // Otherwise passed on when the stream starts
+        if (stream != null) {
+            mServer.clientShutdown(stream);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !mClosed;
+    }
+
+    /**
+     * Closes the stream at once, anything the host has sent that hasn't been read is dropped
+     */
+    @Override
+    public void close() {
+        MuxStream stream;
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            stream = mStream;
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+        }
+        if (stream != null) {
+            mServer.closeEndpoint(stream);
+        } else {
+            // Never given an id, the acceptor skips it
+            mOpen = false;
+        }
+    }
+
+    private final StreamEndpoint mEndpoint = new StreamEndpoint() {
+        @Override
+        void start(MuxStream stream) {
+            boolean closed;
+            boolean shutdown;
+            synchronized (mWriteLock) {
+                mStream = stream;
+                closed = mClosed;
+                shutdown = mOutputShutdown;
+            }
+            if (closed) {
+                mServer.closeEndpoint(stream);
+                return;
+            }
+            if (shutdown) {
+                mServer.clientShutdown(stream);
+            }
+            if (DEBUG)
+                MuxLog.d(TAG, "Channel started, id: " + (stream.socketId & 0xFFFF));
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onWritable(MuxChannel.this);
+            }
+        }
+
+        @Override
+        void onOutboundReady() {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onReadable(MuxChannel.this);
+            }
+        }
+
+        @Override
+        void onSendWindow() {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onWritable(MuxChannel.this);
+            }
+        }
+
+        @Override
+        void shutdownOutput() {
+            mInputEnded = true;
+            onOutboundReady();
+        }
+
+        @Override
+        boolean isOpen() {
+            return mOpen;
+        }
+
+        @Override
+        void close() {
+            mOpen = false;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onReadable(MuxChannel.this);
+                listener.onWritable(MuxChannel.this);
+            }
+        }
+    };
+}
@@ -0,0 +1,45 @@
+package com.arksine.portforwardcore;
+
+/**
+ * Minimal logging facade for the mux core.  The core has no access to android.util.Log,
+ * so the platform installs a Printer that routes messages wherever it likes.  By default
+ * messages are written to stderr.
+ */
+
+public class MuxLog {
+
+    public interface Printer {
+        void println(char level, String tag, String msg);
+    }
+
+    private static volatile Printer sPrinter = new Printer() {
+        @Override
+        public void println(char level, String tag, String msg) {
+            System.err.println(level + "/" + tag + ": " + msg);
+        }
+    };
+
+    private MuxLog() {}
+
+    public static void setPrinter(Printer printer) {
+        if (printer != null) {
+            sPrinter = printer;
+        }
+    }
+
+    public static void d(String tag, String msg) {
+        sPrinter.println('D', tag, msg);
+    }
+
+    public static void i(String tag, String msg) {
+        sPrinter.println('I', tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        sPrinter.println('W', tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sPrinter.println('E', tag, msg);
+    }
+}
@@ -0,0 +1,2332 @@
+package com.arksine.portforwardcore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  The frame engine behind the accessory.  Listens on the local port of each mapping for
+ *  connections, which are forwarded over an AccessoryTransport to the mapping's remote port on
+ *  the host, each socket with its own unique ID.  Socket data is muxed when sending over the
+ *  transport and demuxed when received.
+ *
+ *  Listeners are served by an acceptor selector thread.  Mappings may be added and removed
+ *  while the link is up, the change is applied on the acceptor thread.  Removing a mapping
+ *  stops new connections, clients already connected through it are left open.  Mapping a
+ *  bound port again only points its new connections at the new remote port.
+ *
+ *  Connected sockets are read by a pool of shard threads, each with its own selector.  Socket
+ *  ids are spread over the shards by id, so every stream has one owning shard for its whole
+ *  life.  The acceptor publishes a new stream and announces it to the host, then hands the
+ *  channel to its shard, which registers it on its own thread.
+ *
+ *  The host may also open streams to local ports on the device that have been exposed as
+ *  reverse ports.  A REVERSE_CONNECT is connected from the acceptor thread, and once
+ *  connected the stream is given an id and carried exactly like an accepted client.
+ *
+ *  Mappings and reverse ports may ask for their streams to be compressed.  The device announces
+ *  the features it supports with ACCESSORY_CONNECTED and the host answers with the ones it
+ *  shares.  Once deflate is agreed, frames of compressed streams are deflated one at a time,
+ *  and sent as they are when that doesn't make them smaller.
+ *
+ *  Hosts that agree on CAPABILITY_HEARTBEAT are probed with a PING at a fixed interval and
+ *  answer each with a PONG, which gives a continuous measure of the link's round trip time.
+ *  When too many probes in a row go unanswered the link is taken to be wedged: every stream
+ *  is closed at once, rather than leaving clients hanging until the transport fails, and the
+ *  link is reported closed.
+ *
+ *  Hosts that agree on CAPABILITY_HALF_CLOSE carry each direction of a stream separately.  A
+ *  side that reads end of stream sends SHUTDOWN_WRITE behind its last data and keeps reading,
+ *  the other side shuts down output on its socket once that data is written.  A stream is
+ *  released on each side, without a DISCONNECT_SOCKET, once both directions have finished.
+ *  DISCONNECT_SOCKET still aborts a stream outright.
+ *
+ *  Hosts that agree on CAPABILITY_DATAGRAM also carry datagram mappings, UDP ports read by the
+ *  acceptor thread.  Each datagram travels whole in its own DATAGRAM frame, tagged with a flow
+ *  id standing for the client that sent it, and the host's replies are sent back to that
+ *  client.  A datagram is worth nothing late, so rather than queue behind a congested link
+ *  it is dropped once its mapping has a backlog of frames waiting for the writer.  Clients
+ *  that have been quiet for DATAGRAM_IDLE_MS are forgotten.
+ *
+ *  Clients the selectors can't serve, such as local domain sockets, may be accepted by the
+ *  caller and attached with attachClient.  An attached stream is announced like any other,
+ *  but its data is moved by a StreamEndpoint with threads of its own in place of a shard.
+ *  Clients in the same process can skip the socket altogether with openChannel, which
+ *  returns a MuxChannel the caller reads and writes directly.
+ *
+ *  Traffic and connection counters for the link and each stream are kept as the frames pass
+ *  and can be read at any time with getLinkStats().
+ *
+ *  This class has no Android dependencies, so it can be run against a LoopbackTransport
+ *  on a plain JVM.
+ */
+
+public class MuxServer {
+    private static final String TAG = MuxServer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+
+    // Bytes the host may send on a stream before it must wait for a WINDOW_UPDATE
+    public static final int RECEIVE_WINDOW = 65536;
+    // Receive window once jumbo frames are agreed, room for a couple of full frames
+    public static final int JUMBO_RECEIVE_WINDOW = 4 * BufferPool.JUMBO_SLAB_SIZE;
+    // Data a stream may hold for a socket that isn't reading.  Hosts that honour the window
+    // never get near it, one that doesn't has the stream closed rather than exhaust memory.
+    public static final int MAX_QUEUED_BYTES = 2 * JUMBO_RECEIVE_WINDOW;
+    // Data a client may send before the host has connected its end.  The host holds it until
+    // its connect finishes, so it must fit any host's receive window.
+    public static final int EARLY_DATA_WINDOW = 65536;
+    // Datagrams a mapping may have waiting for the writer, any more are dropped
+    public static final int MAX_QUEUED_DATAGRAMS = 32;
+    // Largest datagram carried, the most a UDP datagram over IPv4 can hold
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+    // Clients of datagram mappings tracked at once, and how long a quiet one is kept
+    public static final int MAX_DATAGRAM_PEERS = 1024;
+    public static final long DATAGRAM_IDLE_MS = 120000;
+    private static final long DATAGRAM_SWEEP_MS = 1000;
+    // Datagrams read from a listener before the acceptor looks at its other keys
+    private static final int DATAGRAM_BATCH = 16;
+
+    // Features offered to the host
+    public static final int CAPABILITIES = FrameCodec.CAPABILITY_DEFLATE |
+            FrameCodec.CAPABILITY_JUMBO_FRAMES | FrameCodec.CAPABILITY_HEARTBEAT |
+            FrameCodec.CAPABILITY_HALF_CLOSE | FrameCodec.CAPABILITY_DATAGRAM;
+
+    // Shard threads reading sockets, one per core up to a point
+    public static final int DEFAULT_SELECTOR_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_HEARTBEAT_MAX_MISSED = 3;
+
+    public interface Callbacks {
+        void onConnectionUpdate(int connectionCount);
+        void onLinkClosed();
+    }
+
+    /**
+     * A connected client with blocking streams, such as a local domain socket accepted by the
+     * caller, that can be forwarded with attachClient
+     */
+    public interface ClientStream extends Closeable {
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Tells the client the host has finished sending, leaving its input open
+         */
+        void shutdownOutput() throws IOException;
+    }
+
+    private final AccessoryTransport mTransport;
+    private final BufferPool mBufferPool = new BufferPool();
+    private final AccessoryWriter mAccessoryWriter;
+    private final AccessoryReader mAccessoryReader;
+    private final Callbacks mCallbacks;
+    private AtomicBoolean mLinkActive = new AtomicBoolean(false);
+    // Features the host agreed to and its protocol version, none until it answers
+    private volatile int mPeerCapabilities = 0;
+    private volatile int mPeerVersion = 1;
+
+    // Link counters.  Rejected accepts are only written by the acceptor thread, refused
+    // connects by the dispatch thread, socket errors come from several.
+    private volatile long mStartNanos = 0;
+    private volatile long mRejectedAccepts = 0;
+    private volatile long mRefusedConnects = 0;
+    private final AtomicLong mSocketErrors = new AtomicLong(0);
+    // Time from accepting a client to the host's answer, and to the host's first data
+    private final RttHistogram mConnectHistogram = new RttHistogram();
+    private final RttHistogram mFirstByteHistogram = new RttHistogram();
+
+    // Heartbeat.  Probes are sent by the monitor thread and answered on the dispatch thread.
+    private final Object mMonitorLock = new Object();
+    private volatile long mHeartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+    private volatile int mHeartbeatMaxMissed = DEFAULT_HEARTBEAT_MAX_MISSED;
+    private volatile int mProbesSent = 0;
+    private volatile int mProbesAnswered = 0;
+    private final RttHistogram mRttHistogram = new RttHistogram();
+    private Thread mMonitorThread = null;
+
+    // The acceptor's selector and its tasks
+    private volatile Selector mSelector = null;
+    private final SocketTable mSocketTable = new SocketTable();
+    private final ConcurrentLinkedQueue<Runnable> mSelectorTasks = new ConcurrentLinkedQueue<>();
+    private int mShardCount = DEFAULT_SELECTOR_THREADS;
+    private volatile Shard[] mShards = new Shard[0];
+
+    // Requested mappings by local port, and the listeners serving them.  Listeners are only
+    // touched by the acceptor thread.
+    private final ConcurrentHashMap<Integer, PortMapping> mMappings = new ConcurrentHashMap<>();
+    private final HashMap<Integer, Listener> mListeners = new HashMap<>();
+    private volatile PortMapping mDefaultMapping = null;
+
+    // Device ports the host may connect to, with whether they are compressed, and reverse
+    // connects still in progress.  Pending connects are only touched by the acceptor thread.
+    // The ports are typed as the interface, as ConcurrentHashMap.keySet() would link to a
+    // view Android lacks before API 24.
+    private final ConcurrentMap<Integer, Boolean> mReversePorts = new ConcurrentHashMap<>();
+    private final HashSet<ReverseConnect> mPendingConnects = new HashSet<>();
+
+    // Datagram mappings by local port and their listeners, which are only touched by the
+    // acceptor thread.  Clients are added and swept by the acceptor, and looked up by flow id
+    // from the dispatch thread.
+    private final ConcurrentHashMap<Integer, PortMapping> mDatagramMappings =
+            new ConcurrentHashMap<>();
+    private final HashMap<Integer, DatagramListener> mDatagramListeners = new HashMap<>();
+    private final ConcurrentHashMap<Integer, DatagramPeer> mDatagramPeers =
+            new ConcurrentHashMap<>();
+    // Only used by the acceptor thread
+    private ByteBuffer mDatagramBuffer = null;
+    private int mNextFlowId = 0;
+    private long mLastSweepMillis = 0;
+
+    // Datagram counters.  Sent is only written by the acceptor thread, received by the
+    // dispatch thread.
+    private volatile long mDatagramsSent = 0;
+    private volatile long mDatagramsReceived = 0;
+    private final AtomicLong mDatagramsDropped = new AtomicLong(0);
+
+    private Thread mSocketThread = null;
+
+    /**
+     * A bound server socket and the mapping it accepts connections for
+     */
+    private static class Listener {
+        final ServerSocketChannel channel;
+        PortMapping mapping;
+
+        Listener(ServerSocketChannel channel, PortMapping mapping) {
+            this.channel = channel;
+            this.mapping = mapping;
+        }
+    }
+
+    /**
+     * An outbound connection to a device port requested by the host, not yet connected
+     */
+    private static class ReverseConnect {
+        final short requestTag;
+        final SocketChannel channel;
+        final boolean compressed;
+
+        ReverseConnect(short requestTag, SocketChannel channel, boolean compressed) {
+            this.requestTag = requestTag;
+            this.channel = channel;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * A client attached by the caller, waiting for the acceptor to give it an id
+     */
+    private class AttachTask implements Runnable {
+        final PortMapping mapping;
+        final StreamEndpoint endpoint;
+
+        AttachTask(PortMapping mapping, StreamEndpoint endpoint) {
+            this.mapping = mapping;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void run() {
+            attachClient(this);
+        }
+
+        void cancel() {
+            endpoint.close();
+        }
+    }
+
+    /**
+     * A listener bound by the caller, waiting for the acceptor to register it
+     */
+    private class ListenTask implements Runnable {
+        final ServerSocketChannel channel;
+        final PortMapping mapping;
+
+        ListenTask(ServerSocketChannel channel, PortMapping mapping) {
+            this.channel = channel;
+            this.mapping = mapping;
+        }
+
+        @Override
+        public void run() {
+            registerListener(channel, mapping);
+        }
+
+        void cancel() {
+            mMappings.remove(mapping.getLocalPort(), mapping);
+            MuxUtils.closeItem(channel);
+        }
+    }
+
+    /**
+     * A bound datagram channel, the mapping it forwards and the clients heard from on it
+     */
+    private static class DatagramListener {
+        final DatagramChannel channel;
+        final FrameScheduler.Flow flow;
+        final HashMap<SocketAddress, DatagramPeer> peers = new HashMap<>();
+        PortMapping mapping;
+
+        DatagramListener(DatagramChannel channel, PortMapping mapping) {
+            this.channel = channel;
+            this.mapping = mapping;
+            this.flow = new FrameScheduler.Flow(mapping.getPriority());
+        }
+    }
+
+    /**
+     * A client of a datagram mapping, named on the link by its flow id
+     */
+    private static class DatagramPeer {
+        final short flowId;
+        final SocketAddress address;
+        final DatagramListener listener;
+        volatile long lastActiveMillis;
+
+        DatagramPeer(short flowId, SocketAddress address, DatagramListener listener) {
+            this.flowId = flowId;
+            this.address = address;
+            this.listener = listener;
+        }
+    }
+
+    public MuxServer(AccessoryTransport transport, Callbacks callbacks) {
+        this.mTransport = transport;
+        this.mCallbacks = callbacks;
+        this.mAccessoryWriter = new AccessoryWriter(transport, mBufferPool,
+                new AccessoryWriter.ErrorListener() {
+                    @Override
+                    public void onWriteError(IOException e) {
+                        if (mLinkActive.get()) {
+                            linkClosed();
+                        }
+                    }
+                });
+        this.mAccessoryReader = new AccessoryReader(transport, new AccessoryReader.Consumer() {
+            @Override
+            public boolean onTransfer(ByteBuffer transfer) {
+                if (DEBUG)
+                    MuxLog.d(TAG, "Bytes read: " + transfer.remaining());
+                return mFrameParser.parse(transfer);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                if (mLinkActive.compareAndSet(true, false)) {
+                    // Accessory disconnected, either due to error or socket disconnection
+                    linkClosed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Announces the connection to the host and starts the reader and listener threads.  The
+     * first mapping's remote port is announced as the default, hosts that don't read the
+     * port sent with each connection forward everything there.
+     */
+    public void start(int lPort, int rPort) {
+        if (!mLinkActive.compareAndSet(false, true)) {
+            return;
+        }
+
+        mDefaultMapping = new PortMapping(lPort, rPort);
+        mStartNanos = System.nanoTime();
+        mAccessoryWriter.start();
+        ByteBuffer frame = FrameCodec.encodeAccessoryConnected(acquireControlFrame(), rPort,
+                CAPABILITIES);
+        writeToAccessory((ByteBuffer) frame.flip());
+        mAccessoryReader.start();
+        // Shards are in place before the acceptor can hand anything to them
+        Shard[] shards = new Shard[mShardCount];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+            shards[i].thread = new Thread(null, shards[i], "Socket Shard Thread " + i);
+            shards[i].thread.start();
+        }
+        mShards = shards;
+        mSocketThread = new Thread(null, mSocketAcceptor, "Connection Listener Thread");
+        mSocketThread.start();
+        mMonitorThread = new Thread(null, mLinkMonitor, "Link Monitor Thread");
+        mMonitorThread.setDaemon(true);
+        mMonitorThread.start();
+        addMapping(lPort, rPort);
+    }
+
+    /**
+     * Sets the number of shard threads reading sockets.  Only applies to the next start.
+     */
+    public void setSelectorThreads(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid selector thread count " + count);
+        }
+        mShardCount = count;
+    }
+
+    public int getSelectorThreads() {
+        return mShardCount;
+    }
+
+    /**
+     * Sets how often the host is probed, and how many probes in a row may go unanswered
+     * before the link is declared dead.  An interval of 0 stops probing.  May be changed
+     * while the link is up.
+     */
+    public void setHeartbeat(long intervalMs, int maxMissed) {
+        if (intervalMs < 0 || maxMissed < 1) {
+            throw new IllegalArgumentException("Invalid heartbeat " + intervalMs + " ms, " +
+                    maxMissed + " missed");
+        }
+        mHeartbeatIntervalMs = intervalMs;
+        mHeartbeatMaxMissed = maxMissed;
+        synchronized (mMonitorLock) {
+            mMonitorLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts forwarding connections on a local port to a remote port.  If the local port is
+     * already mapped, new connections go to the new remote port.  Returns immediately, the
+     * port is bound on the acceptor thread.
+     */
+    public void addMapping(int lPort, int rPort) {
+        addMapping(lPort, rPort, false);
+    }
+
+    /**
+     * As above, deflating the data of the mapping's streams if the host supports it
+     */
+    public void addMapping(int lPort, int rPort, boolean compressed) {
+        addMapping(lPort, rPort, compressed, FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * As above, giving the mapping's streams a priority on the link, one of the
+     * FrameScheduler priorities
+     */
+    public void addMapping(int lPort, int rPort, boolean compressed, int priority) {
+        final PortMapping mapping = new PortMapping(lPort, rPort, compressed, priority);
+        mMappings.put(lPort, mapping);
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                openListener(mapping);
+            }
+        });
+    }
+
+    /**
+     * Starts forwarding connections on a free loopback port, for internal listeners such as
+     * the one behind a cache proxy.  The port is bound before it is returned, so nothing else
+     * can take it in between, and is removed with removeMapping like any other.
+     *
+     * @return the port bound
+     * @throws IOException if the link is down or no port could be bound
+     */
+    public int addEphemeralMapping(int rPort, boolean compressed, int priority)
+            throws IOException {
+        if (!mLinkActive.get()) {
+            throw new IOException("Link down");
+        }
+        ServerSocketChannel serverChannel = bindListener(0);
+        int port = serverChannel.socket().getLocalPort();
+        PortMapping mapping = new PortMapping(port, rPort, compressed, priority);
+        mMappings.put(port, mapping);
+        ListenTask listen = new ListenTask(serverChannel, mapping);
+        runOnSelector(listen);
+        // The acceptor may have exited since the link was checked
+        if (!mLinkActive.get() && mSelectorTasks.remove(listen)) {
+            listen.cancel();
+            throw new IOException("Link down");
+        }
+        return port;
+    }
+
+    /**
+     * Stops listening on a local port.  Clients already connected through it stay open.
+     */
+    public void removeMapping(final int lPort) {
+        if (mMappings.remove(lPort) != null) {
+            runOnSelector(new Runnable() {
+                @Override
+                public void run() {
+                    closeListener(lPort);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts forwarding datagrams sent to a local UDP port to a remote port on the host, and
+     * the host's replies back to the client that sent them.  Returns immediately, the port is
+     * bound on the acceptor thread.  Datagrams are dropped while the host hasn't agreed to
+     * carry them.
+     */
+    public void addDatagramMapping(int lPort, int rPort) {
+        addDatagramMapping(lPort, rPort, FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    public void addDatagramMapping(int lPort, int rPort, int priority) {
+        final PortMapping mapping = new PortMapping(lPort, rPort, false, priority);
+        mDatagramMappings.put(lPort, mapping);
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                openDatagramListener(mapping);
+            }
+        });
+    }
+
+    /**
+     * Stops listening on a local UDP port and forgets its clients
+     */
+    public void removeDatagramMapping(final int lPort) {
+        if (mDatagramMappings.remove(lPort) != null) {
+            runOnSelector(new Runnable() {
+                @Override
+                public void run() {
+                    closeDatagramListener(lPort);
+                }
+            });
+        }
+    }
+
+    public List<PortMapping> getDatagramMappings() {
+        return new ArrayList<>(mDatagramMappings.values());
+    }
+
+    /**
+     * Forwards a client the caller has accepted itself, for listeners the selectors can't
+     * serve such as local domain sockets.  The client is carried like one accepted on the
+     * mapping, its local port is only used to label its stream.  Two threads serve the client
+     * until it closes.  Returns immediately, the client is given an id on the acceptor thread.
+     *
+     * @return false if the link is down or the client's streams can't be opened, in which
+     *         case the client has been closed
+     */
+    public boolean attachClient(PortMapping mapping, ClientStream client) {
+        if (!mLinkActive.get()) {
+            MuxUtils.closeItem(client);
+            return false;
+        }
+        StreamEndpoint endpoint;
+        try {
+            endpoint = new BlockingEndpoint(this, client);
+        } catch (IOException e) {
+            MuxLog.i(TAG, "Unable to attach client");
+            mSocketErrors.incrementAndGet();
+            MuxUtils.closeItem(client);
+            return false;
+        }
+        return attachEndpoint(mapping, endpoint);
+    }
+
+    /**
+     * Opens a stream to the mapping's remote port that is read and written directly by the
+     * caller, for clients in this process that would otherwise connect to the mapping's local
+     * port and have every byte copied through the loopback socket.  Its local port is only
+     * used to label the stream.  Returns immediately, the channel takes writes once it has
+     * been given an id on the acceptor thread.
+     *
+     * @return the channel, or null if the link is down
+     */
+    public MuxChannel openChannel(PortMapping mapping) {
+        if (!mLinkActive.get()) {
+            return null;
+        }
+        MuxChannel channel = new MuxChannel(this);
+        return attachEndpoint(mapping, channel.endpoint()) ? channel : null;
+    }
+
+    private boolean attachEndpoint(PortMapping mapping, StreamEndpoint endpoint) {
+        AttachTask attach = new AttachTask(mapping, endpoint);
+        runOnSelector(attach);
+        // The acceptor may have exited since the link was checked
+        if (!mLinkActive.get() && mSelectorTasks.remove(attach)) {
+            attach.cancel();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Allows the host to open connections to a local port on the device.  Connections already
+     * made are unaffected when the port is removed.
+     */
+    public void addReversePort(int port) {
+        addReversePort(port, false);
+    }
+
+    public void addReversePort(int port, boolean compressed) {
+        if (port <= 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid reverse port " + port);
+        }
+        mReversePorts.put(port, compressed);
+    }
+
+    public void removeReversePort(int port) {
+        mReversePorts.remove(port);
+    }
+
+    public List<Integer> getReversePorts() {
+        return new ArrayList<>(mReversePorts.keySet());
+    }
+
+    public boolean hasMapping(int lPort, int rPort) {
+        PortMapping mapping = mMappings.get(lPort);
+        return mapping != null && mapping.getRemotePort() == rPort;
+    }
+
+    public List<PortMapping> getMappings() {
+        return new ArrayList<>(mMappings.values());
+    }
+
+    public boolean isActive() {
+        return mLinkActive.get();
+    }
+
+    public int getConnectionCount() {
+        return mSocketTable.size();
+    }
+
+    /**
+     * Returns true once the host has agreed to deflate compressed streams
+     */
+    public boolean isCompressionNegotiated() {
+        return (mPeerCapabilities & FrameCodec.CAPABILITY_DEFLATE) != 0;
+    }
+
+    /**
+     * Returns true once the host has agreed to frames with extended headers
+     */
+    public boolean isJumboFramesNegotiated() {
+        return (mPeerCapabilities & FrameCodec.CAPABILITY_JUMBO_FRAMES) != 0;
+    }
+
+    /**
+     * Returns true once the host has agreed to answer probes
+     */
+    public boolean isHeartbeatNegotiated() {
+        return (mPeerCapabilities & FrameCodec.CAPABILITY_HEARTBEAT) != 0;
+    }
+
+    /**
+     * Returns true once the host has agreed to carry each direction of a stream separately
+     */
+    public boolean isHalfCloseNegotiated() {
+        return (mPeerCapabilities & FrameCodec.CAPABILITY_HALF_CLOSE) != 0;
+    }
+
+    /**
+     * Returns true once the host has agreed to carry datagrams
+     */
+    public boolean isDatagramNegotiated() {
+        return (mPeerCapabilities & FrameCodec.CAPABILITY_DATAGRAM) != 0;
+    }
+
+    /**
+     * Returns the round trip times of the most recent probes
+     */
+    public RttHistogram getRttHistogram() {
+        return mRttHistogram;
+    }
+
+    /**
+     * Returns the frame format version of the host, 1 for hosts that never sent one
+     */
+    public int getPeerProtocolVersion() {
+        return mPeerVersion;
+    }
+
+    /**
+     * Returns the compression counters of every open compressed stream
+     */
+    public List<CompressionStats> getCompressionStats() {
+        List<CompressionStats> stats = new ArrayList<>();
+        int highWater = mSocketTable.getHighWaterMark();
+        for (int i = 0; i < highWater; i++) {
+            MuxStream stream = mSocketTable.get(i);
+            if (stream != null && stream.compressed) {
+                stats.add(stream.getCompressionStats());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a snapshot of the link's counters and those of every open stream
+     */
+    public LinkStats getLinkStats() {
+        LinkStats stats = new LinkStats();
+        long start = mStartNanos;
+        stats.uptimeMillis = (start == 0) ? 0 : (System.nanoTime() - start) / 1000000;
+        stats.bytesSent = mAccessoryWriter.getByteCount();
+        stats.framesSent = mAccessoryWriter.getFrameCount();
+        stats.transfersSent = mAccessoryWriter.getTransferCount();
+        stats.writeWaitNanos = mAccessoryWriter.getWriteWaitNanos();
+        stats.writeQueueDepth = mAccessoryWriter.getQueueDepth();
+        stats.peakWriteQueueDepth = mAccessoryWriter.getPeakQueueDepth();
+        stats.bytesReceived = mAccessoryReader.getByteCount();
+        stats.transfersReceived = mAccessoryReader.getTransferCount();
+        stats.readRingOccupancy = mAccessoryReader.getOccupancy();
+        stats.peakReadRingOccupancy = mAccessoryReader.getPeakOccupancy();
+        stats.readStalls = mAccessoryReader.getStallCount();
+        stats.readStallNanos = mAccessoryReader.getStallNanos();
+        stats.framesReceived = mFrameParser.getFrameCount();
+        stats.splitHeaders = mFrameParser.getSplitHeaderCount();
+        stats.splitPayloads = mFrameParser.getSplitPayloadCount();
+        stats.streamedPayloads = mFrameParser.getStreamedPayloadCount();
+        stats.activeConnections = mSocketTable.size();
+        stats.peakConnections = mSocketTable.peakSize();
+        stats.rejectedAccepts = mRejectedAccepts;
+        stats.refusedConnects = mRefusedConnects;
+        stats.socketErrors = mSocketErrors.get();
+        stats.probesSent = mProbesSent;
+        stats.unansweredProbes = mProbesSent - mProbesAnswered;
+        stats.rttLastMicros = mRttHistogram.getLastMicros();
+        stats.rttMedianMicros = mRttHistogram.getPercentileMicros(50);
+        stats.rttP99Micros = mRttHistogram.getPercentileMicros(99);
+        stats.connectMedianMicros = mConnectHistogram.getPercentileMicros(50);
+        stats.connectP99Micros = mConnectHistogram.getPercentileMicros(99);
+        stats.firstByteMedianMicros = mFirstByteHistogram.getPercentileMicros(50);
+        stats.firstByteP99Micros = mFirstByteHistogram.getPercentileMicros(99);
+        stats.datagramsSent = mDatagramsSent;
+        stats.datagramsReceived = mDatagramsReceived;
+        stats.datagramsDropped = mDatagramsDropped.get();
+        stats.datagramPeers = mDatagramPeers.size();
+
+        Shard[] shards = mShards;
+        int[] shardStreams = new int[shards.length];
+        List<StreamStats> streams = new ArrayList<>();
+        int highWater = mSocketTable.getHighWaterMark();
+        for (int i = 0; i < highWater; i++) {
+            MuxStream stream = mSocketTable.get(i);
+            if (stream != null) {
+                streams.add(stream.getStreamStats());
+                if (shards.length > 0 && stream.channel != null) {
+                    shardStreams[i % shards.length]++;
+                }
+            }
+        }
+        stats.streams = streams;
+
+        List<ShardStats> shardStats = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            shardStats.add(shards[i].getStats(shardStreams[i]));
+        }
+        stats.shards = shardStats;
+        return stats;
+    }
+
+    /**
+     * Changes the priority of an open stream's data on the link
+     *
+     * @return false if no stream is open at the id
+     */
+    public boolean setStreamPriority(int socketId, int priority) {
+        FrameScheduler.checkPriority(priority);
+        MuxStream stream = mSocketTable.get(socketId);
+        if (stream == null) {
+            return false;
+        }
+        stream.flow.setPriority(priority);
+        return true;
+    }
+
+    public AccessoryWriter getAccessoryWriter() {
+        return mAccessoryWriter;
+    }
+
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Terminates the link, disconnects all clients and closes the transport.  This call
+     * blocks while the worker threads are stopped, so it should not be made from a UI thread.
+     */
+    public void stop() {
+        if (mLinkActive.compareAndSet(true, false)) {
+            if (DEBUG)
+                MuxLog.d(TAG, "Sending Termination Command");
+            writeCommand(PortCommand.TERMINATE_ACCESSORY);
+        }
+
+        // Attempt to close socket items.  Selectors are woken so that their threads see the
+        // link is down, each closes its own selector as it exits, listeners included.
+        disconnectAllClients();
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        for (Shard shard : mShards) {
+            shard.wakeup();
+        }
+
+        // Stop socket threads, giving the writer a chance to send the queued termination
+        synchronized (mMonitorLock) {
+            mMonitorLock.notifyAll();
+        }
+        MuxUtils.stopThread(mMonitorThread);
+        MuxUtils.stopThread(mSocketThread);
+        for (Shard shard : mShards) {
+            MuxUtils.stopThread(shard.thread);
+        }
+        mAccessoryWriter.shutdown(1000);
+        mAccessoryReader.stop(1000);
+        MuxUtils.closeItem(mTransport);
+
+        mSocketThread = null;
+        mMonitorThread = null;
+    }
+
+    private void linkClosed() {
+        mCallbacks.onLinkClosed();
+    }
+
+    /**
+     * The host stopped answering probes.  Clients are dropped straight away, as nothing
+     * more will get through for them, before the link is reported closed.
+     */
+    private void linkDead(int missed) {
+        if (mLinkActive.compareAndSet(true, false)) {
+            MuxLog.w(TAG, "Link dead, " + missed + " probes unanswered");
+            disconnectAllClients(false);
+            linkClosed();
+        }
+    }
+
+    private void writeProbe(PortCommand command, int sequence, long timestamp) {
+        ByteBuffer frame = FrameCodec.encodeProbe(acquireControlFrame(), command, sequence,
+                timestamp);
+        writeToAccessory((ByteBuffer) frame.flip());
+    }
+
+    private void writeToAccessory(ByteBuffer frame) {
+        // Frames are packed into transfers by the writer thread, which releases them
+        mAccessoryWriter.write(frame);
+    }
+
+    private ByteBuffer acquireControlFrame() {
+        return mBufferPool.acquire(BufferPool.CONTROL_SLAB_SIZE);
+    }
+
+    /**
+     * Returns a pooled frame to read socket data into, positioned past the room left for the
+     * header.  Reads go into frame slabs, bulk reads into jumbo slabs once the host accepts
+     * jumbo frames, so a stream only holds a jumbo slab while it has that much to send.
+     */
+    private ByteBuffer acquireReadFrame(boolean bulk) {
+        ByteBuffer frame = mBufferPool.acquire((bulk && isJumboFramesNegotiated())
+                ? BufferPool.JUMBO_SLAB_SIZE : BufferPool.FRAME_SLAB_SIZE);
+        frame.position(readDataOffset(frame));
+        return frame;
+    }
+
+    private static boolean isBulkFrame(ByteBuffer frame) {
+        return frame.capacity() > BufferPool.FRAME_SLAB_SIZE;
+    }
+
+    /**
+     * Jumbo slabs leave room for an extended header, in case the read doesn't fit a short one
+     */
+    private static int readDataOffset(ByteBuffer frame) {
+        return isBulkFrame(frame)
+                ? FrameCodec.EXTENDED_DATA_HEADER_SIZE : FrameCodec.DATA_HEADER_SIZE;
+    }
+
+    /**
+     * Returns the receive window to advertise for a new stream
+     */
+    private int receiveWindow() {
+        return isJumboFramesNegotiated() ? JUMBO_RECEIVE_WINDOW : RECEIVE_WINDOW;
+    }
+
+    private void writeCommand(PortCommand command) {
+        ByteBuffer frame = FrameCodec.encodeCommand(acquireControlFrame(), command);
+        writeToAccessory((ByteBuffer) frame.flip());
+    }
+
+    private void writeCommand(PortCommand command, short data) {
+        ByteBuffer frame = FrameCodec.encodeCommand(acquireControlFrame(), command, data);
+        writeToAccessory((ByteBuffer) frame.flip());
+    }
+
+    private void writeCommand(PortCommand command, int data) {
+        ByteBuffer frame = FrameCodec.encodeCommand(acquireControlFrame(), command, data);
+        writeToAccessory((ByteBuffer) frame.flip());
+    }
+
+    private void writeCommand(PortCommand command, short socketId, int data) {
+        ByteBuffer frame = FrameCodec.encodeCommand(acquireControlFrame(), command,
+                socketId, data);
+        writeToAccessory((ByteBuffer) frame.flip());
+    }
+
+    /**
+     * Runs a task on the acceptor thread.  Interest ops are only changed from the thread
+     * owning the selector, as doing so from another thread may block until select() returns.
+     */
+    private void runOnSelector(Runnable task) {
+        Selector selector = mSelector;
+        mSelectorTasks.offer(task);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns the shard that owns a stream's id
+     */
+    private Shard shardOf(MuxStream stream) {
+        Shard[] shards = mShards;
+        return shards[(stream.socketId & 0xFFFF) % shards.length];
+    }
+
+    /**
+     * Hands a published stream to its shard, which starts reading it.  An endpoint starts
+     * moving its own data.
+     */
+    private void handOff(final MuxStream stream) {
+        if (stream.endpoint != null) {
+            stream.endpoint.start(stream);
+            return;
+        }
+        final Shard shard = shardOf(stream);
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                shard.register(stream);
+            }
+        });
+    }
+
+    /**
+     * Called on the stream's shard thread
+     */
+    private void pauseReading(MuxStream stream) {
+        if (stream.key != null && stream.key.isValid()) {
+            stream.key.interestOps(stream.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        stream.readPaused = true;
+
+        // A window update may have arrived before the flag was set
+        if (stream.sendWindow(1) > 0) {
+            resumeReading(stream);
+        }
+    }
+
+    private void resumeReading(MuxStream stream) {
+        stream.readPaused = false;
+        if (!stream.inputShutdown && stream.key != null && stream.key.isValid()) {
+            stream.key.interestOps(stream.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * The host has raised a stream's send window.  A paused socket is read again on its
+     * shard, an endpoint is told directly.  Called from the accessory dispatch thread.
+     */
+    private void windowOpened(final MuxStream stream) {
+        if (stream.endpoint != null) {
+            stream.endpoint.onSendWindow();
+        } else if (stream.readPaused) {
+            shardOf(stream).execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeReading(stream);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Hands data from the host to a socket.  Whatever the socket takes straight away is
+     * written, the rest is copied to the stream's outbound queue and the shard is asked to
+     * finish the write once the socket drains, so a slow client never holds up the dispatch
+     * thread.  Called from the accessory dispatch thread.
+     *
+     * @return false if the socket failed or its queue overflowed, the caller closes it
+     */
+    private boolean writeToSocket(MuxStream stream, ByteBuffer outBuf) {
+        return writeToSocket(stream, outBuf, true);
+    }
+
+    /**
+     * As above, for a whole frame's data or a piece of a streamed one
+     */
+    private boolean writeToSocket(MuxStream stream, ByteBuffer outBuf, boolean endOfFrame) {
+        SocketChannel socketChannel = stream.channel;
+        int length = outBuf.remaining();
+        int written = 0;
+        int increment = 0;
+        boolean startDraining = false;
+        synchronized (stream.lock) {
+            if (DEBUG)
+                MuxLog.d(TAG, "Writing to socket: " + (stream.socketId & 0xFFFF) + "\n" +
+                        " Length: " + length);
+            if (!stream.isOpen()) {
+                // Closed by another thread, the frame is dropped
+                outBuf.position(outBuf.limit());
+                return true;
+            }
+            // Queued data goes first, so nothing can be written ahead of it.  An endpoint
+            // takes everything from the queue.
+            if (socketChannel != null && stream.outbound.isEmpty()) {
+                try {
+                    written = socketChannel.write(outBuf);
+                } catch (IOException e) {
+                    MuxLog.i(TAG, "Connection write error");
+                    mSocketErrors.incrementAndGet();
+                    // because the connection failed, whatever is left in this buffer
+                    outBuf.position(outBuf.limit());
+                    return false;
+                }
+            }
+            if (outBuf.hasRemaining()) {
+                if (stream.getQueuedBytes() + outBuf.remaining() > MAX_QUEUED_BYTES) {
+                    MuxLog.w(TAG, "Outbound queue overflow, Socket Id: " +
+                            (stream.socketId & 0xFFFF));
+                    mSocketErrors.incrementAndGet();
+                    outBuf.position(outBuf.limit());
+                    return false;
+                }
+                startDraining = stream.outbound.isEmpty();
+                queueForSocket(stream, outBuf);
+            }
+            if (stream.isPeerFlowControlled() && written > 0) {
+                increment = stream.onDataConsumed(written, stream.receiveWindow);
+            }
+        }
+        stream.onDataReceived(length, endOfFrame);
+        if (stream.connectNanos != 0 && length > 0) {
+            mFirstByteHistogram.record((System.nanoTime() - stream.connectNanos) / 1000);
+            stream.connectNanos = 0;
+        }
+
+        // Grant consumed bytes back to the host
+        if (increment > 0) {
+            writeCommand(PortCommand.WINDOW_UPDATE, stream.socketId, increment);
+        }
+        if (startDraining && stream.endpoint != null) {
+            stream.endpoint.onOutboundReady();
+        } else if (startDraining) {
+            final MuxStream drainStream = stream;
+            shardOf(stream).execute(new Runnable() {
+                @Override
+                public void run() {
+                    setWriteInterest(drainStream, true);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Copies the rest of a frame to the stream's outbound queue, in pooled buffers no larger
+     * than a jumbo slab.  Called with the stream's lock held.
+     */
+    private void queueForSocket(MuxStream stream, ByteBuffer data) {
+        while (data.hasRemaining()) {
+            int chunk = Math.min(data.remaining(), BufferPool.JUMBO_SLAB_SIZE);
+            ByteBuffer queued = mBufferPool.acquire(chunk);
+            int limit = data.limit();
+            data.limit(data.position() + chunk);
+            queued.put(data);
+            data.limit(limit);
+            queued.flip();
+            stream.enqueue(queued);
+        }
+    }
+
+    /**
+     * Writes as much of the stream's outbound queue as the socket will take.  Once the queue
+     * is empty write interest is dropped, and a stream the host has already closed is
+     * disconnected.  Called on the stream's shard when the socket is writable.
+     */
+    private void drainToSocket(MuxStream stream) {
+        SocketChannel socketChannel = stream.channel;
+        int written = 0;
+        int increment = 0;
+        boolean failed = false;
+        boolean hostClosed;
+        boolean drained;
+        boolean closeNow;
+        boolean shutdownNow;
+        synchronized (stream.lock) {
+            try {
+                ByteBuffer head;
+                while ((head = stream.outbound.peek()) != null) {
+                    int count = socketChannel.write(head);
+                    written += count;
+                    stream.onDequeued(count);
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    mBufferPool.release(stream.outbound.poll());
+                }
+            } catch (IOException e) {
+                MuxLog.i(TAG, "Connection write error");
+                mSocketErrors.incrementAndGet();
+                failed = true;
+            }
+            drained = stream.outbound.isEmpty();
+            hostClosed = stream.closeWhenDrained;
+            closeNow = drained && hostClosed;
+            shutdownNow = drained && stream.shutdownWhenDrained;
+            if (shutdownNow) {
+                stream.shutdownWhenDrained = false;
+            }
+            if (stream.isPeerFlowControlled() && written > 0) {
+                increment = stream.onDataConsumed(written, stream.receiveWindow);
+            }
+        }
+
+        if (increment > 0) {
+            writeCommand(PortCommand.WINDOW_UPDATE, stream.socketId, increment);
+        }
+        if (failed) {
+            // The host only needs telling if it hasn't closed the stream itself
+            disconnectSocket(stream, !hostClosed, true);
+        } else if (closeNow) {
+            disconnectSocket(stream, false, true);
+        } else if (drained) {
+            setWriteInterest(stream, false);
+            if (shutdownNow) {
+                shutdownOutput(stream);
+            }
+        }
+    }
+
+    /**
+     * The client has finished sending.  With half close agreed the host is told behind the
+     * client's data and the stream is kept open for the rest of the response, otherwise the
+     * stream is closed.  Called on the stream's shard, or an endpoint's reading thread.
+     */
+    void clientShutdown(MuxStream stream) {
+        if (!isHalfCloseNegotiated()) {
+            disconnectSocket(stream, true, true);
+            return;
+        }
+        boolean finished;
+        synchronized (stream.lock) {
+            stream.inputShutdown = true;
+            finished = stream.outputShutdown;
+        }
+        if (stream.key != null && stream.key.isValid()) {
+            stream.key.interestOps(stream.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        ByteBuffer frame = FrameCodec.encodeCommand(acquireControlFrame(),
+                PortCommand.SHUTDOWN_WRITE, stream.socketId);
+        mAccessoryWriter.writeAfter((ByteBuffer) frame.flip(), stream.flow);
+        if (finished) {
+            disconnectSocket(stream, false, true);
+        }
+    }
+
+    /**
+     * The host has finished sending, its end of stream is passed on once the data queued for
+     * the client is written.  Called from the accessory dispatch thread.
+     */
+    private void hostShutdown(MuxStream stream) {
+        synchronized (stream.lock) {
+            if (stream.hasOutbound()) {
+                stream.shutdownWhenDrained = true;
+                return;
+            }
+        }
+        shutdownOutput(stream);
+    }
+
+    /**
+     * Shuts down output on the client's socket, releasing the stream if the client had
+     * already finished sending too
+     */
+    private void shutdownOutput(MuxStream stream) {
+        boolean finished;
+        boolean failed = false;
+        synchronized (stream.lock) {
+            stream.outputShutdown = true;
+            finished = stream.inputShutdown;
+            if (!finished && stream.isOpen()) {
+                try {
+                    if (stream.channel != null) {
+                        // SocketChannel.shutdownOutput is missing before Android API 24
+                        stream.channel.socket().shutdownOutput();
+                    } else {
+                        stream.endpoint.shutdownOutput();
+                    }
+                } catch (IOException e) {
+                    MuxLog.i(TAG, "Socket shutdown error, id: " + (stream.socketId & 0xFFFF));
+                    mSocketErrors.incrementAndGet();
+                    failed = true;
+                }
+            }
+        }
+        if (failed) {
+            disconnectSocket(stream, true, true);
+        } else if (finished) {
+            disconnectSocket(stream, false, true);
+        }
+    }
+
+    /**
+     * Closes a stream the host has disconnected once the data queued for it is written.
+     * Called from the accessory dispatch thread.
+     */
+    private void closeWhenDrained(MuxStream stream) {
+        synchronized (stream.lock) {
+            if (stream.hasOutbound()) {
+                stream.closeWhenDrained = true;
+                return;
+            }
+        }
+        disconnectSocket(stream, false, true);
+    }
+
+    /**
+     * Sends as much of an endpoint's data as fits the stream's send window and a single
+     * frame, deflating it if the stream is compressed.  Called from the endpoint's reading
+     * thread.
+     *
+     * @return the number of bytes sent, zero while the window is shut
+     */
+    int sendFromEndpoint(MuxStream stream, ByteBuffer src, FrameDeflater deflater) {
+        ByteBuffer frame = acquireReadFrame(
+                src.remaining() > BufferPool.FRAME_SLAB_SIZE - FrameCodec.DATA_HEADER_SIZE);
+        int dataOffset = readDataOffset(frame);
+        int count = Math.min(src.remaining(), stream.sendWindow(frame.capacity() - dataOffset));
+        if (count == 0) {
+            mBufferPool.release(frame);
+            return 0;
+        }
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        frame.put(src);
+        src.limit(limit);
+        frame.flip();
+
+        PortCommand command = PortCommand.DATA_PACKET;
+        if (stream.compressed && deflater != null && deflater.deflate(frame, dataOffset, stream)) {
+            command = PortCommand.DATA_PACKET_DEFLATE;
+        }
+        FrameCodec.putDataHeader(frame, dataOffset, command, stream.socketId);
+        mAccessoryWriter.write(frame, stream.flow);
+        stream.onDataSent(count);
+        return count;
+    }
+
+    /**
+     * Moves the host's data queued for an endpoint into its buffer.  What is taken counts as
+     * queued until the endpoint reports it delivered.  Called from the endpoint's writing
+     * thread.
+     *
+     * @return the number of bytes taken
+     */
+    int takeOutbound(MuxStream stream, ByteBuffer dst) {
+        int taken = 0;
+        synchronized (stream.lock) {
+            ByteBuffer head;
+            while (dst.hasRemaining() && (head = stream.outbound.peek()) != null) {
+                int count = Math.min(dst.remaining(), head.remaining());
+                int limit = head.limit();
+                head.limit(head.position() + count);
+                dst.put(head);
+                head.limit(limit);
+                taken += count;
+                if (!head.hasRemaining()) {
+                    mBufferPool.release(stream.outbound.poll());
+                }
+            }
+            stream.onDequeued(taken);
+            stream.undelivered += taken;
+        }
+        return taken;
+    }
+
+    /**
+     * An endpoint has delivered data it took from the queue.  The bytes are granted back to
+     * the host, and a close or shutdown from the host waiting on them is carried out.  Called
+     * from the endpoint's writing thread.
+     */
+    void outboundDelivered(MuxStream stream, int length) {
+        int increment = 0;
+        boolean closeNow;
+        boolean shutdownNow;
+        synchronized (stream.lock) {
+            stream.undelivered = Math.max(0, stream.undelivered - length);
+            boolean drained = !stream.hasOutbound();
+            closeNow = drained && stream.closeWhenDrained;
+            shutdownNow = drained && stream.shutdownWhenDrained;
+            if (shutdownNow) {
+                stream.shutdownWhenDrained = false;
+            }
+            if (stream.isPeerFlowControlled() && length > 0) {
+                increment = stream.onDataConsumed(length, stream.receiveWindow);
+            }
+        }
+
+        if (increment > 0) {
+            writeCommand(PortCommand.WINDOW_UPDATE, stream.socketId, increment);
+        }
+        if (closeNow) {
+            disconnectSocket(stream, false, true);
+        } else if (shutdownNow) {
+            shutdownOutput(stream);
+        }
+    }
+
+    /**
+     * An endpoint's client failed.  The host only needs telling if it hasn't closed the
+     * stream itself.
+     */
+    void endpointFailed(MuxStream stream) {
+        mSocketErrors.incrementAndGet();
+        closeEndpoint(stream);
+    }
+
+    /**
+     * An endpoint's owner has closed it.  Anything still queued for it is dropped.
+     */
+    void closeEndpoint(MuxStream stream) {
+        boolean hostClosed;
+        synchronized (stream.lock) {
+            hostClosed = stream.closeWhenDrained;
+        }
+        disconnectSocket(stream, !hostClosed, true);
+    }
+
+    /**
+     * Adds or drops write interest.  Called on the stream's shard.
+     */
+    private void setWriteInterest(MuxStream stream, boolean write) {
+        SelectionKey key = stream.key;
+        if (key != null && key.isValid()) {
+            int ops = key.interestOps();
+            key.interestOps(write ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void disconnectAllClients() {
+        disconnectAllClients(true);
+    }
+
+    private void disconnectAllClients(boolean sendResponse) {
+        if (mSocketTable.size() > 0) {
+            int highWater = mSocketTable.getHighWaterMark();
+            for (int i = 0; i < highWater; i++) {
+                MuxStream stream = mSocketTable.get(i);
+                if (stream != null) {
+                    disconnectSocket(stream, sendResponse, false);
+                }
+            }
+        }
+    }
+
+    private void disconnectSocket(MuxStream stream, boolean sendResponse, boolean updateService) {
+        // Only the caller that unmaps the stream closes it, a stream that has been replaced
+        // at the same id is left alone
+        if (mSocketTable.remove(stream)) {
+            if (DEBUG)
+                MuxLog.d(TAG, "Disconnect socket id: "+ (stream.socketId & 0xFFFF));
+
+            synchronized (stream.lock) {
+                stream.closeClient();
+                stream.clearOutbound(mBufferPool);
+            }
+            int count = mSocketTable.size();
+
+            if (sendResponse) {
+                // Sent after the data the stream still has waiting for the link
+                ByteBuffer frame = FrameCodec.encodeCommand(acquireControlFrame(),
+                        PortCommand.DISCONNECT_SOCKET, stream.socketId);
+                mAccessoryWriter.writeAfter((ByteBuffer) frame.flip(), stream.flow);
+            }
+
+            if (stream.compressed) {
+                MuxLog.i(TAG, "Closed compressed stream: " + stream.getCompressionStats());
+            }
+
+            if (updateService) {
+                mCallbacks.onConnectionUpdate(count);
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending client, maps it to a free id and asks the host to connect it.  When
+     * every id is in use the client is turned away.  Called from the acceptor thread.
+     */
+    private void acceptClient(Listener listener) {
+        SocketChannel client;
+        try {
+            client = listener.channel.accept();
+        } catch (IOException e) {
+            MuxLog.i(TAG, "Unable to connect to client");
+            mSocketErrors.incrementAndGet();
+            return;
+        }
+        if (client == null) {
+            return;
+        }
+
+        int socketId = mSocketTable.allocate();
+        if (socketId == SocketTable.NO_SOCKET_ID) {
+            MuxLog.w(TAG, "No free socket ids, rejecting client");
+            mRejectedAccepts++;
+            MuxUtils.closeItem(client);
+            return;
+        }
+
+        MuxStream stream;
+        try {
+            client.configureBlocking(false);
+            // Frames are relayed as they arrive, often in pieces.  Nagle would hold back the
+            // tail of a frame until the client acknowledges the rest.
+            client.socket().setTcpNoDelay(true);
+            stream = new MuxStream((short) socketId, client, listener.mapping,
+                    listener.mapping.isCompressed() && isCompressionNegotiated());
+        } catch (IOException e) {
+            MuxLog.i(TAG, "Unable to connect to client");
+            mSocketErrors.incrementAndGet();
+            mSocketTable.free(socketId);
+            MuxUtils.closeItem(client);
+            return;
+        }
+
+        announceClient(stream);
+    }
+
+    /**
+     * Publishes a new client's stream, asks the host to connect it and hands it off.  Called
+     * from the acceptor thread.
+     */
+    private void announceClient(MuxStream stream) {
+        stream.receiveWindow = receiveWindow();
+        // The client is read straight away, the host holds what arrives before its
+        // connect finishes
+        stream.setEarlyWindow(EARLY_DATA_WINDOW);
+        stream.connectNanos = System.nanoTime();
+
+        // The stream must be mapped before the host can answer
+        mSocketTable.publish(stream);
+        // tell connection to start, advertising our receive window and where it goes
+        ByteBuffer frame = FrameCodec.encodeConnectSocket(acquireControlFrame(), stream.socketId,
+                stream.receiveWindow, stream.mapping.getRemotePort(), streamFlags(stream));
+        writeToAccessory((ByteBuffer) frame.flip());
+        handOff(stream);
+    }
+
+    /**
+     * Gives an attached client an id and announces it, or turns it away when every id is in
+     * use.  Called from the acceptor thread.
+     */
+    private void attachClient(AttachTask attach) {
+        if (!attach.endpoint.isOpen()) {
+            // Closed by its owner while waiting for an id
+            return;
+        }
+        int socketId = mSocketTable.allocate();
+        if (socketId == SocketTable.NO_SOCKET_ID) {
+            MuxLog.w(TAG, "No free socket ids, rejecting client");
+            mRejectedAccepts++;
+            attach.cancel();
+            return;
+        }
+        announceClient(new MuxStream((short) socketId, attach.endpoint, attach.mapping,
+                attach.mapping.isCompressed() && isCompressionNegotiated()));
+    }
+
+    /**
+     * Starts connecting to a device port on behalf of the host.  Called from the acceptor
+     * thread.
+     */
+    private void connectReverse(short requestTag, int port) {
+        Boolean compressed = mReversePorts.get(port);
+        if (compressed == null) {
+            MuxLog.i(TAG, "Host requested a port that is not exposed: " + port);
+            writeReverseConnectResp(requestTag, FrameCodec.NO_SOCKET_ID);
+            return;
+        }
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            ReverseConnect pending = new ReverseConnect(requestTag, channel,
+                    compressed && isCompressionNegotiated());
+            if (channel.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port))) {
+                publishReverse(pending, channel.register(mSelector, 0));
+            } else {
+                mPendingConnects.add(pending);
+                channel.register(mSelector, SelectionKey.OP_CONNECT, pending);
+            }
+        } catch (IOException e) {
+            MuxLog.i(TAG, "Unable to connect to device port " + port);
+            mSocketErrors.incrementAndGet();
+            MuxUtils.closeItem(channel);
+            writeReverseConnectResp(requestTag, FrameCodec.NO_SOCKET_ID);
+        }
+    }
+
+    /**
+     * Completes a pending reverse connect once the selector reports it.  Called from the
+     * acceptor thread.
+     */
+    private void finishReverseConnect(SelectionKey key, ReverseConnect pending) {
+        mPendingConnects.remove(pending);
+        try {
+            pending.channel.finishConnect();
+        } catch (IOException e) {
+            MuxLog.i(TAG, "Reverse connection refused, tag: " + pending.requestTag);
+            mSocketErrors.incrementAndGet();
+            MuxUtils.closeItem(pending.channel);
+            writeReverseConnectResp(pending.requestTag, FrameCodec.NO_SOCKET_ID);
+            return;
+        }
+        publishReverse(pending, key);
+    }
+
+    /**
+     * Maps a connected reverse stream to a free id and tells the host which id it was given.
+     * From here on the stream is handled like any accepted client, the host acknowledges the
+     * id with a CONNECTION_RESP.  The acceptor's key is dropped as the stream is handed to its
+     * shard.
+     */
+    private void publishReverse(ReverseConnect pending, SelectionKey key) {
+        int socketId = mSocketTable.allocate();
+        if (socketId == SocketTable.NO_SOCKET_ID) {
+            MuxLog.w(TAG, "No free socket ids, refusing reverse connection");
+            MuxUtils.closeItem(pending.channel);
+            writeReverseConnectResp(pending.requestTag, FrameCodec.NO_SOCKET_ID);
+            return;
+        }
+
+        MuxStream stream = new MuxStream((short) socketId, pending.channel, null,
+                pending.compressed);
+        stream.receiveWindow = receiveWindow();
+        key.cancel();
+
+        mSocketTable.publish(stream);
+        writeReverseConnectResp(pending.requestTag, stream.socketId, stream.receiveWindow,
+                streamFlags(stream));
+        handOff(stream);
+    }
+
+    private void writeReverseConnectResp(short requestTag, short socketId) {
+        writeReverseConnectResp(requestTag, socketId, RECEIVE_WINDOW, (short) 0);
+    }
+
+    private void writeReverseConnectResp(short requestTag, short socketId, int window,
+                                         short flags) {
+        ByteBuffer frame = FrameCodec.encodeReverseConnectResp(acquireControlFrame(), requestTag,
+                socketId, window, flags);
+        writeToAccessory((ByteBuffer) frame.flip());
+    }
+
+    private static short streamFlags(MuxStream stream) {
+        return stream.compressed ? FrameCodec.STREAM_FLAG_DEFLATE : 0;
+    }
+
+    /**
+     * Binds the listener for a mapping, or points an existing listener at the mapping's
+     * remote port.  Called from the acceptor thread.
+     */
+    private void openListener(PortMapping mapping) {
+        if (mMappings.get(mapping.getLocalPort()) != mapping) {
+            // Replaced or removed since it was requested
+            return;
+        }
+
+        Listener listener = mListeners.get(mapping.getLocalPort());
+        if (listener != null) {
+            listener.mapping = mapping;
+            return;
+        }
+
+        ServerSocketChannel serverChannel;
+        try {
+            serverChannel = bindListener(mapping.getLocalPort());
+        } catch (IOException e) {
+            MuxLog.e(TAG, "Unable to Open and configure server socket connection on port " +
+                    mapping.getLocalPort());
+            if (DEBUG) {
+                e.printStackTrace();
+            }
+            mMappings.remove(mapping.getLocalPort(), mapping);
+            return;
+        }
+        registerListener(serverChannel, mapping);
+    }
+
+    private static ServerSocketChannel bindListener(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                    port));
+        } catch (IOException e) {
+            MuxUtils.closeItem(serverChannel);
+            throw e;
+        }
+        return serverChannel;
+    }
+
+    /**
+     * Starts accepting on a bound channel for its mapping.  Called from the acceptor thread.
+     */
+    private void registerListener(ServerSocketChannel serverChannel, PortMapping mapping) {
+        if (mMappings.get(mapping.getLocalPort()) != mapping) {
+            // Removed since it was bound
+            MuxUtils.closeItem(serverChannel);
+            return;
+        }
+        Listener listener = new Listener(serverChannel, mapping);
+        try {
+            serverChannel.register(mSelector, SelectionKey.OP_ACCEPT, listener);
+        } catch (IOException e) {
+            MuxLog.e(TAG, "Unable to register listener on port " + mapping.getLocalPort());
+            MuxUtils.closeItem(serverChannel);
+            mMappings.remove(mapping.getLocalPort(), mapping);
+            return;
+        }
+        mListeners.put(mapping.getLocalPort(), listener);
+    }
+
+    private void closeListener(int lPort) {
+        if (mMappings.containsKey(lPort)) {
+            // Added again since the removal was requested
+            return;
+        }
+        Listener listener = mListeners.remove(lPort);
+        if (listener != null) {
+            MuxUtils.closeItem(listener.channel);
+        }
+    }
+
+    /**
+     * Binds the channel for a datagram mapping, or points an existing one at the mapping's
+     * remote port.  Called from the acceptor thread.
+     */
+    private void openDatagramListener(PortMapping mapping) {
+        if (mDatagramMappings.get(mapping.getLocalPort()) != mapping) {
+            // Replaced or removed since it was requested
+            return;
+        }
+
+        DatagramListener listener = mDatagramListeners.get(mapping.getLocalPort());
+        if (listener != null) {
+            listener.mapping = mapping;
+            listener.flow.setPriority(mapping.getPriority());
+            return;
+        }
+
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                    mapping.getLocalPort()));
+            listener = new DatagramListener(channel, mapping);
+            channel.register(mSelector, SelectionKey.OP_READ, listener);
+        } catch (IOException e) {
+            MuxLog.e(TAG, "Unable to open datagram socket on port " + mapping.getLocalPort());
+            if (DEBUG) {
+                e.printStackTrace();
+            }
+            MuxUtils.closeItem(channel);
+            mDatagramMappings.remove(mapping.getLocalPort(), mapping);
+            return;
+        }
+        if (mDatagramBuffer == null) {
+            mDatagramBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        }
+        mDatagramListeners.put(mapping.getLocalPort(), listener);
+    }
+
+    private void closeDatagramListener(int lPort) {
+        if (mDatagramMappings.containsKey(lPort)) {
+            // Added again since the removal was requested
+            return;
+        }
+        DatagramListener listener = mDatagramListeners.remove(lPort);
+        if (listener != null) {
+            closeDatagramListener(listener);
+        }
+    }
+
+    private void closeDatagramListener(DatagramListener listener) {
+        for (DatagramPeer peer : listener.peers.values()) {
+            mDatagramPeers.remove(peer.flowId & 0xFFFF);
+        }
+        listener.peers.clear();
+        MuxUtils.closeItem(listener.channel);
+    }
+
+    /**
+     * Reads the datagrams waiting on a listener, up to a batch, and forwards each in a frame
+     * of its own.  Datagrams are dropped while the host hasn't agreed to them, and while the
+     * mapping already has a backlog waiting for the link.  Called from the acceptor thread.
+     */
+    private void receiveDatagrams(DatagramListener listener) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < DATAGRAM_BATCH; i++) {
+            SocketAddress from;
+            mDatagramBuffer.clear();
+            try {
+                from = listener.channel.receive(mDatagramBuffer);
+            } catch (IOException e) {
+                MuxLog.i(TAG, "Datagram read error on port " + listener.mapping.getLocalPort());
+                mSocketErrors.incrementAndGet();
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+            mDatagramBuffer.flip();
+
+            DatagramPeer peer = isDatagramNegotiated() ? peerFor(listener, from) : null;
+            if (peer == null) {
+                mDatagramsDropped.incrementAndGet();
+                continue;
+            }
+            peer.lastActiveMillis = now;
+            ByteBuffer frame = FrameCodec.encodeDatagram(
+                    mBufferPool.acquire(FrameCodec.DATAGRAM_HEADER_SIZE +
+                            mDatagramBuffer.remaining()),
+                    peer.flowId, listener.mapping.getRemotePort(), mDatagramBuffer);
+            if (mAccessoryWriter.tryWrite((ByteBuffer) frame.flip(), listener.flow,
+                    MAX_QUEUED_DATAGRAMS)) {
+                mDatagramsSent++;
+            } else {
+                mDatagramsDropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the peer for a client of a datagram listener, giving a new client a free flow
+     * id.  Returns null if too many clients are tracked already.  Called from the acceptor
+     * thread.
+     */
+    private DatagramPeer peerFor(DatagramListener listener, SocketAddress address) {
+        DatagramPeer peer = listener.peers.get(address);
+        if (peer != null) {
+            return peer;
+        }
+        if (mDatagramPeers.size() >= MAX_DATAGRAM_PEERS) {
+            MuxLog.w(TAG, "Too many datagram clients, dropping datagram from " + address);
+            return null;
+        }
+        // Ids are handed out in turn, so one is only reused long after its client went quiet
+        while (mDatagramPeers.containsKey(mNextFlowId)) {
+            mNextFlowId = (mNextFlowId + 1) & 0xFFFF;
+        }
+        peer = new DatagramPeer((short) mNextFlowId, address, listener);
+        mNextFlowId = (mNextFlowId + 1) & 0xFFFF;
+        listener.peers.put(address, peer);
+        mDatagramPeers.put(peer.flowId & 0xFFFF, peer);
+        return peer;
+    }
+
+    /**
+     * Forgets datagram clients that have been quiet for DATAGRAM_IDLE_MS, at most once per
+     * sweep interval.  Called from the acceptor thread.
+     */
+    private void sweepDatagramPeers() {
+        long now = System.currentTimeMillis();
+        if (now - mLastSweepMillis < DATAGRAM_SWEEP_MS) {
+            return;
+        }
+        mLastSweepMillis = now;
+        for (DatagramListener listener : mDatagramListeners.values()) {
+            Iterator<DatagramPeer> iter = listener.peers.values().iterator();
+            while (iter.hasNext()) {
+                DatagramPeer peer = iter.next();
+                if (now - peer.lastActiveMillis >= DATAGRAM_IDLE_MS) {
+                    iter.remove();
+                    mDatagramPeers.remove(peer.flowId & 0xFFFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a datagram from the host to the client it answers.  The channel's send buffer is
+     * the only queue, a datagram that doesn't fit is dropped.  Called from the accessory
+     * dispatch thread.
+     */
+    private void sendDatagram(DatagramPeer peer, ByteBuffer data) {
+        int length = data.remaining();
+        try {
+            if (peer.listener.channel.send(data, peer.address) < length) {
+                mDatagramsDropped.incrementAndGet();
+                return;
+            }
+        } catch (IOException e) {
+            // Closed with its mapping, or the client can't be reached
+            if (DEBUG)
+                MuxLog.d(TAG, "Datagram send failed, flow id: " + (peer.flowId & 0xFFFF));
+            mDatagramsDropped.incrementAndGet();
+            return;
+        }
+        mDatagramsReceived++;
+        peer.lastActiveMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Accepts clients on every mapped port and connects reverse streams, handing each new
+     * stream to its shard.  Datagram listeners are read here too.  Listener and pending
+     * connect state is only touched here.
+     */
+    private final Runnable mSocketAcceptor = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                MuxLog.e(TAG, "Unable to open selector");
+                return;
+            }
+
+            while (mLinkActive.get()) {
+                // Tasks queued before the selector was opened are picked up here
+                Runnable task;
+                while ((task = mSelectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Set<SelectionKey> selectedKeys;
+                try {
+                    if (mDatagramPeers.isEmpty()) {
+                        mSelector.select();
+                    } else {
+                        // Woken now and then to sweep quiet datagram clients
+                        mSelector.select(DATAGRAM_SWEEP_MS);
+                    }
+                    selectedKeys = mSelector.selectedKeys();
+                } catch (IOException e) {
+                    MuxLog.e(TAG, "Selector failed, exiting accept loop");
+                    break;
+                } catch (ClosedSelectorException e) {
+                    break;
+                }
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+                try {
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        if (key.isAcceptable()) {
+                            acceptClient((Listener) key.attachment());
+                        } else if (key.isConnectable()) {
+                            finishReverseConnect(key, (ReverseConnect) key.attachment());
+                        } else if (key.isReadable()) {
+                            receiveDatagrams((DatagramListener) key.attachment());
+                        }
+                    }
+                } catch (CancelledKeyException e) {
+                    if (DEBUG)
+                        MuxLog.d(TAG, "Selection key cancelled");
+                }
+                if (!mDatagramPeers.isEmpty()) {
+                    sweepDatagramPeers();
+                }
+            }
+
+            for (Listener listener : mListeners.values()) {
+                MuxUtils.closeItem(listener.channel);
+            }
+            mListeners.clear();
+            for (ReverseConnect pending : mPendingConnects) {
+                MuxUtils.closeItem(pending.channel);
+            }
+            mPendingConnects.clear();
+            for (DatagramListener listener : mDatagramListeners.values()) {
+                closeDatagramListener(listener);
+            }
+            mDatagramListeners.clear();
+            // Attached clients that never got an id and listeners never registered are closed
+            Iterator<Runnable> tasks = mSelectorTasks.iterator();
+            while (tasks.hasNext()) {
+                Runnable task = tasks.next();
+                if (task instanceof AttachTask) {
+                    tasks.remove();
+                    ((AttachTask) task).cancel();
+                } else if (task instanceof ListenTask) {
+                    tasks.remove();
+                    ((ListenTask) task).cancel();
+                }
+            }
+            MuxUtils.closeItem(mSelector);
+        }
+    };
+
+    /**
+     * A worker selector and the streams whose ids map to it.  Streams are registered, and
+     * their interest ops changed, only on the shard's own thread; other threads queue a task
+     * and wake the selector.  Counters are only written by the shard's thread.
+     */
+    private class Shard implements Runnable {
+        final int index;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private volatile Selector mShardSelector = null;
+        Thread thread = null;
+
+        private volatile long mBytesRead = 0;
+        private volatile long mFramesSent = 0;
+        private volatile long mSelects = 0;
+        private volatile long mBusyNanos = 0;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Runs a task on the shard's thread
+         */
+        void execute(Runnable task) {
+            Selector selector = mShardSelector;
+            mTasks.offer(task);
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        void wakeup() {
+            Selector selector = mShardSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Starts reading a stream handed over by the acceptor.  Called on the shard's thread.
+         */
+        void register(MuxStream stream) {
+            try {
+                // Data from the host may already be waiting for the socket
+                int ops = SelectionKey.OP_READ;
+                synchronized (stream.lock) {
+                    if (!stream.outbound.isEmpty()) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                }
+                stream.key = stream.channel.register(mShardSelector, ops, stream);
+            } catch (IOException e) {
+                // Closed before it got here
+                if (DEBUG)
+                    MuxLog.d(TAG, "Stream closed before registration, id: " + stream.socketId);
+            }
+        }
+
+        ShardStats getStats(int streams) {
+            return new ShardStats(index, streams, mBytesRead, mFramesSent, mSelects,
+                    mBusyNanos);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mShardSelector = Selector.open();
+            } catch (IOException e) {
+                MuxLog.e(TAG, "Unable to open selector for shard " + index);
+                return;
+            }
+
+            // Socket data is read straight into a pooled frame, which is handed to the writer
+            // once filled.  The next one is acquired for the stream that reads into it, sized
+            // by whether that stream's reads have been filling their slabs.
+            FrameDeflater deflater = new FrameDeflater();
+            ByteBuffer inputBuffer = null;
+            int bytesRead;
+
+            while (mLinkActive.get()) {
+                // Tasks queued before the selector was opened are picked up here
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Set<SelectionKey> selectedKeys;
+                try {
+                    mShardSelector.select();
+                    selectedKeys = mShardSelector.selectedKeys();
+                } catch (IOException e) {
+                    MuxLog.e(TAG, "Selector failed, exiting shard " + index);
+                    break;
+                } catch (ClosedSelectorException e) {
+                    break;
+                }
+                mSelects++;
+                long start = System.nanoTime();
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+                try {
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (!key.isValid()) {
+                            // Channel closed by another thread since select returned
+                            continue;
+                        }
+                        MuxStream stream = (MuxStream) key.attachment();
+                        if (key.isWritable()) {
+                            drainToSocket(stream);
+                        }
+                        if (!key.isValid() || !key.isReadable()) {
+                            continue;
+                        }
+
+                        boolean bulk = stream.bulkReads && isJumboFramesNegotiated();
+                        if (inputBuffer != null && isBulkFrame(inputBuffer) != bulk) {
+                            mBufferPool.release(inputBuffer);
+                            inputBuffer = null;
+                        }
+                        if (inputBuffer == null) {
+                            inputBuffer = acquireReadFrame(bulk);
+                        }
+
+                        // Only read as much as the host is willing to accept
+                        int dataOffset = readDataOffset(inputBuffer);
+                        int window = stream.sendWindow(inputBuffer.capacity() - dataOffset);
+                        if (window == 0) {
+                            pauseReading(stream);
+                            continue;
+                        }
+                        inputBuffer.limit(dataOffset + window);
+
+                        try {
+                            bytesRead = stream.channel.read(inputBuffer);
+                        } catch (IOException e) {
+                            MuxLog.i(TAG, "Socket read error, id: " + stream.socketId);
+                            mSocketErrors.incrementAndGet();
+                            disconnectSocket(stream, true, true);
+                            inputBuffer.clear();
+                            inputBuffer.position(dataOffset);
+                            continue;
+                        }
+                        if (bytesRead > 0) {
+                            // A read that fills its slab moves the stream to jumbo slabs, one
+                            // that would have fit a frame slab moves it back
+                            if (bytesRead == inputBuffer.capacity() - dataOffset) {
+                                stream.bulkReads = true;
+                            } else if (bytesRead <= BufferPool.FRAME_SLAB_SIZE - dataOffset) {
+                                stream.bulkReads = false;
+                            }
+
+                            // Add the header
+                            inputBuffer.flip();
+                            PortCommand command = PortCommand.DATA_PACKET;
+                            if (stream.compressed &&
+                                    deflater.deflate(inputBuffer, dataOffset, stream)) {
+                                command = PortCommand.DATA_PACKET_DEFLATE;
+                            }
+                            FrameCodec.putDataHeader(inputBuffer, dataOffset, command,
+                                    stream.socketId);
+                            mAccessoryWriter.write(inputBuffer, stream.flow);
+                            stream.onDataSent(bytesRead);
+                            mBytesRead += bytesRead;
+                            mFramesSent++;
+                            if (stream.sendWindow(1) == 0) {
+                                pauseReading(stream);
+                            }
+
+                            // Handed off, the next read acquires its own
+                            inputBuffer = null;
+                        } else if (bytesRead == -1) {
+                            // Client finished sending
+                            if (DEBUG)
+                                MuxLog.d(TAG, "EOF Reached, Socket Id: " + stream.socketId);
+                            clientShutdown(stream);
+                        }
+                    }
+                } catch (CancelledKeyException e) {
+                    // A socket was closed by another thread while its key was being handled
+                    if (DEBUG)
+                        MuxLog.d(TAG, "Selection key cancelled");
+                }
+                mBusyNanos += System.nanoTime() - start;
+            }
+
+            if (inputBuffer != null) {
+                mBufferPool.release(inputBuffer);
+            }
+            deflater.end();
+            MuxUtils.closeItem(mShardSelector);
+        }
+    }
+
+    private final Runnable mLinkMonitor = new Runnable() {
+        @Override
+        public void run() {
+            while (mLinkActive.get()) {
+                long interval = mHeartbeatIntervalMs;
+                try {
+                    synchronized (mMonitorLock) {
+                        mMonitorLock.wait((interval == 0) ? 1000 : interval);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (!mLinkActive.get() || mHeartbeatIntervalMs == 0 ||
+                        !isHeartbeatNegotiated()) {
+                    continue;
+                }
+
+                int missed = mProbesSent - mProbesAnswered;
+                if (missed >= mHeartbeatMaxMissed) {
+                    linkDead(missed);
+                    break;
+                }
+                int sequence = mProbesSent + 1;
+                mProbesSent = sequence;
+                writeProbe(PortCommand.PING, sequence, System.nanoTime());
+            }
+        }
+    };
+
+    // Only used by the accessory dispatch thread
+    private final FrameInflater mFrameInflater = new FrameInflater();
+
+    private final FrameParser.StreamingFrameHandler mFrameHandler =
+            new FrameParser.StreamingFrameHandler() {
+        @Override
+        public boolean onFrame(PortCommand cmd, ByteBuffer packetBuffer) {
+            return processPacket(cmd, packetBuffer);
+        }
+
+        @Override
+        public int getStreamPrefixLength(PortCommand cmd) {
+            // Plain data split across reads goes to the socket as it arrives, compressed data
+            // is inflated a whole frame at a time
+            return (cmd == PortCommand.DATA_PACKET) ? 2 : -1;
+        }
+
+        @Override
+        public boolean onFramePiece(PortCommand cmd, ByteBuffer prefix, ByteBuffer piece,
+                                    boolean last) {
+            int id = prefix.getShort(0) & 0xFFFF;
+            MuxStream stream = mSocketTable.getConnected(id);
+            if (stream == null) {
+                // Closed, possibly by an earlier piece of this frame
+                if (DEBUG)
+                    MuxLog.w(TAG, "No Socket Mapped to id: " + id);
+            } else {
+                if (stream.compressed) {
+                    stream.onReceivedUncompressed(piece.remaining());
+                }
+                if (!writeToSocket(stream, piece, last)) {
+                    disconnectSocket(stream, true, true);
+                }
+            }
+            return true;
+        }
+
+        private boolean processPacket(PortCommand cmd ,ByteBuffer packetBuffer) {
+            switch (cmd) {
+                case CAPABILITIES:
+                    // Hosts that version the frame format append their version
+                    if (packetBuffer.remaining() >= 8) {
+                        mPeerVersion = packetBuffer.getInt(packetBuffer.position() + 4);
+                    }
+                    mPeerCapabilities = packetBuffer.getInt() & CAPABILITIES;
+                    if (DEBUG)
+                        MuxLog.d(TAG, "Host capabilities: " + mPeerCapabilities +
+                                " version: " + mPeerVersion);
+                    break;
+                case CONNECT_SOCKET:
+                case REVERSE_CONNECT_RESP:
+                case ACCESSORY_CONNECTED:
+                    MuxLog.i(TAG, "Should not receive command from server: " + cmd);
+                    break;
+                case REVERSE_CONNECT: {
+                    final short requestTag = packetBuffer.getShort();
+                    final int port = packetBuffer.getShort() & 0xFFFF;
+                    runOnSelector(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectReverse(requestTag, port);
+                        }
+                    });
+                    break;
+                }
+                case DISCONNECT_SOCKET: {
+                    MuxLog.i(TAG, "Server disconnected socket");
+                    MuxStream stream = mSocketTable.getConnected(packetBuffer.getShort() & 0xFFFF);
+                    if (stream != null) {
+                        closeWhenDrained(stream);
+                    }
+                    break;
+                }
+                case SHUTDOWN_WRITE: {
+                    int id = packetBuffer.getShort() & 0xFFFF;
+                    MuxStream stream = mSocketTable.getConnected(id);
+                    if (stream != null) {
+                        hostShutdown(stream);
+                    }
+                    break;
+                }
+                case DATA_PACKET: {
+                    int id = packetBuffer.getShort() & 0xFFFF;
+                    MuxStream stream = mSocketTable.getConnected(id);
+                    if (stream == null) {
+                        // Closed, or the id has been reused since the host sent this
+                        if (DEBUG)
+                            MuxLog.w(TAG, "No Socket Mapped to id: " + id);
+                    } else {
+                        if (stream.compressed) {
+                            stream.onReceivedUncompressed(packetBuffer.remaining());
+                        }
+                        if (!writeToSocket(stream, packetBuffer)) {
+                            disconnectSocket(stream, true, true);
+                        }
+                    }
+                    break;
+                }
+                case DATA_PACKET_DEFLATE: {
+                    int id = packetBuffer.getShort() & 0xFFFF;
+                    MuxStream stream = mSocketTable.getConnected(id);
+                    if (stream == null) {
+                        if (DEBUG)
+                            MuxLog.w(TAG, "No Socket Mapped to id: " + id);
+                        break;
+                    }
+                    ByteBuffer data = mFrameInflater.inflate(packetBuffer, stream);
+                    if (data == null) {
+                        MuxLog.w(TAG, "Corrupt compressed frame, Socket Id: " + id);
+                        disconnectSocket(stream, true, true);
+                    } else if (!writeToSocket(stream, data)) {
+                        disconnectSocket(stream, true, true);
+                    }
+                    break;
+                }
+                case CONNECTION_RESP: {
+                    int id = packetBuffer.getShort() & 0xFFFF;
+                    boolean response = (packetBuffer.getShort() > 0);
+
+                    // Responses to streams that have already closed are dropped
+                    final MuxStream stream = mSocketTable.acknowledge(id);
+                    if (stream == null) {
+                        if (DEBUG)
+                            MuxLog.d(TAG, "Stale response, Socket Id: " + id);
+                        break;
+                    }
+                    if (stream.connectNanos != 0) {
+                        mConnectHistogram.record((System.nanoTime() - stream.connectNanos) / 1000);
+                    }
+                    if (response) {
+                        if (DEBUG)
+                            MuxLog.d(TAG, "Response success, Socket Id: " + id);
+                        // Hosts supporting flow control append their receive window, the
+                        // early window is lifted for those that don't
+                        if (packetBuffer.remaining() >= 4) {
+                            stream.setInitialWindow(packetBuffer.getInt());
+                        } else {
+                            stream.clearSendLimit();
+                        }
+                        windowOpened(stream);
+                        mCallbacks.onConnectionUpdate(mSocketTable.size());
+                    } else {
+                        // Socket didn't connect.  The client is reset rather than closed, so
+                        // it fails fast instead of reading an empty response.
+                        if (DEBUG)
+                            MuxLog.d(TAG, "Response failure, Socket Id: " + id);
+                        mRefusedConnects++;
+                        if (stream.channel != null) {
+                            try {
+                                stream.channel.socket().setSoLinger(true, 0);
+                            } catch (IOException e) {
+                                if (DEBUG)
+                                    MuxLog.d(TAG, "Unable to reset socket: " + id);
+                            }
+                        }
+                        disconnectSocket(stream, false, false);
+                        // The socket is only released, and the reset sent, once its shard
+                        // selects again
+                        shardOf(stream).wakeup();
+                    }
+                    break;
+                }
+                case WINDOW_UPDATE: {
+                    int id = packetBuffer.getShort() & 0xFFFF;
+                    int increment = packetBuffer.getInt();
+                    final MuxStream stream = mSocketTable.getConnected(id);
+                    if (stream != null) {
+                        stream.addSendWindow(increment);
+                        windowOpened(stream);
+                    }
+                    break;
+                }
+                case PING:
+                    // Echoed as it came, the host times its own probes
+                    writeProbe(PortCommand.PONG, packetBuffer.getInt(), packetBuffer.getLong());
+                    break;
+                case PONG: {
+                    int sequence = packetBuffer.getInt();
+                    long rtt = System.nanoTime() - packetBuffer.getLong();
+                    if (sequence - mProbesAnswered > 0 && sequence - mProbesSent <= 0) {
+                        mProbesAnswered = sequence;
+                        mRttHistogram.record(rtt / 1000);
+                    }
+                    break;
+                }
+                case DATAGRAM: {
+                    int id = packetBuffer.getShort() & 0xFFFF;
+                    // The host's port, the client is found by its flow id alone
+                    packetBuffer.getShort();
+                    DatagramPeer peer = mDatagramPeers.get(id);
+                    if (peer == null) {
+                        // Forgotten, or its mapping removed, since the host sent this
+                        mDatagramsDropped.incrementAndGet();
+                    } else {
+                        sendDatagram(peer, packetBuffer);
+                    }
+                    break;
+                }
+                case TERMINATE_ACCESSORY:
+                    MuxLog.d(TAG, "Terminating Server");
+                    return false;
+                default:
+                    MuxLog.i(TAG, "Unknown Command received");
+            }
+
+            return true;
+        }
+    };
+
+    private final FrameParser mFrameParser = new FrameParser(mFrameHandler);
+
+}
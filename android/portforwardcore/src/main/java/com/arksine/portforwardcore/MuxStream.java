@@ -0,0 +1,288 @@
+package com.arksine.portforwardcore;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * State for one forwarded socket.  Attached to the socket's SelectionKey, and stored in the
+ * socket table at its ID.
+ *
+ * Flow control is credit based.  The peer advertises how many bytes it will accept for the
+ * stream, the send limit, and raises it with WINDOW_UPDATE frames as data is consumed.  A
+ * peer that doesn't advertise a window is not flow controlled.  Bytes sent is only touched
+ * by the shard thread owning the stream, the send limit only by the accessory dispatch thread.
+ *
+ * Data from the host that the socket can't take straight away is copied to the stream's
+ * outbound queue, which the owning shard drains when the selector reports the socket writable.
+ * The queue, and closing the channel, are guarded by the stream's lock.
+ *
+ * A client that isn't a socket channel has an endpoint in place of the channel, which moves
+ * its data instead of a shard.  All host data goes through the queue for such a stream, and
+ * what the endpoint has taken off the queue but not yet delivered still holds back a close or
+ * shutdown from the host.  Bytes sent is then only touched by the endpoint's reading thread.
+ *
+ * Every stream counts the bytes and frames it carries.  A compressed stream also counts its
+ * raw and wire bytes and the time spent deflating and inflating.  Send side counters are only
+ * written by the owning shard thread, or the endpoint's reading thread, and receive side
+ * counters by the accessory dispatch thread.
+ */
+
+class MuxStream {
+    static final long UNLIMITED = -1;
+
+    final short socketId;
+    // One of the two is set, the channel for socket clients
+    final SocketChannel channel;
+    final StreamEndpoint endpoint;
+    // Guards the outbound queue, the half close state and closing the client
+    final Object lock = new Object();
+    // The mapping the client was accepted on, null for streams opened by the host
+    final PortMapping mapping;
+    final boolean compressed;
+    SelectionKey key;
+    // Set when the stream is published to the socket table
+    int generation;
+    // Window advertised to the peer, set before the stream is announced
+    int receiveWindow;
+    // The stream's data frames waiting for the link
+    final FrameScheduler.Flow flow;
+    // When the client was accepted, cleared once the host's first data reaches it.  Zero for
+    // streams opened by the host.  Set before the stream is published, then only touched by
+    // the accessory dispatch thread.
+    long connectNanos = 0;
+
+    // Send side (device to host)
+    private volatile long mSendLimit = UNLIMITED;
+    private volatile long mBytesSent = 0;
+    private volatile long mFramesSent = 0;
+    volatile boolean readPaused = false;
+    // Set once a read fills a frame slab, so the client's reads go into jumbo slabs.  Only
+    // touched by the stream's shard.
+    boolean bulkReads = false;
+
+    // Receive side (host to device)
+    private volatile boolean mPeerFlowControl = false;
+    private int mBytesConsumed = 0;
+    private volatile long mBytesReceived = 0;
+    private volatile long mFramesReceived = 0;
+
+    // Outbound queue, guarded by the lock.  The sizes are volatile for metrics.
+    final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    // Bytes an endpoint has taken off the queue and not yet delivered, guarded by the lock
+    int undelivered = 0;
+    private volatile int mQueuedBytes = 0;
+    private volatile int mPeakQueuedBytes = 0;
+    // Set when the host closed the stream with data still queued
+    boolean closeWhenDrained = false;
+
+    // Half close state, changed with the lock held and volatile for metrics.  Input is
+    // the client's side of the stream, shut once it has sent everything, output the host's,
+    // shut once its end of stream has been passed on.  Shutting output may wait for the
+    // outbound queue to drain.
+    volatile boolean inputShutdown = false;
+    volatile boolean outputShutdown = false;
+    boolean shutdownWhenDrained = false;
+
+    // Compression counters
+    private volatile long mRawBytesSent = 0;
+    private volatile long mWireBytesSent = 0;
+    private volatile long mDeflateNanos = 0;
+    private volatile long mRawBytesReceived = 0;
+    private volatile long mWireBytesReceived = 0;
+    private volatile long mInflateNanos = 0;
+
+    MuxStream(short socketId, SocketChannel channel, PortMapping mapping) {
+        this(socketId, channel, mapping, false);
+    }
+
+    MuxStream(short socketId, SocketChannel channel, PortMapping mapping, boolean compressed) {
+        this(socketId, channel, null, mapping, compressed);
+    }
+
+    MuxStream(short socketId, StreamEndpoint endpoint, PortMapping mapping, boolean compressed) {
+        this(socketId, null, endpoint, mapping, compressed);
+    }
+
+    private MuxStream(short socketId, SocketChannel channel, StreamEndpoint endpoint,
+                      PortMapping mapping, boolean compressed) {
+        this.socketId = socketId;
+        this.channel = channel;
+        this.endpoint = endpoint;
+        this.mapping = mapping;
+        this.compressed = compressed;
+        this.flow = new FrameScheduler.Flow((mapping != null)
+                ? mapping.getPriority() : FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    boolean isOpen() {
+        return (channel != null) ? channel.isOpen() : endpoint.isOpen();
+    }
+
+    /**
+     * Closes the client.  Called with the lock held.
+     */
+    void closeClient() {
+        if (channel != null) {
+            MuxUtils.closeItem(channel);
+        } else {
+            endpoint.close();
+        }
+    }
+
+    /**
+     * Returns true while host data is queued, or taken by an endpoint and not yet delivered.
+     * Called with the lock held.
+     */
+    boolean hasOutbound() {
+        return !outbound.isEmpty() || undelivered > 0;
+    }
+
+    /**
+     * Returns the number of bytes that may be sent before the window is exhausted
+     */
+    int sendWindow(int max) {
+        long limit = mSendLimit;
+        if (limit == UNLIMITED) {
+            return max;
+        }
+        long window = limit - mBytesSent;
+        return (window <= 0) ? 0 : (int) Math.min(max, window);
+    }
+
+    void onDataSent(int length) {
+        mBytesSent += length;
+        mFramesSent++;
+    }
+
+    /**
+     * Records data written toward the socket.  A streamed frame arrives in several pieces,
+     * the frame is counted with its last.
+     */
+    void onDataReceived(int length, boolean endOfFrame) {
+        mBytesReceived += length;
+        if (endOfFrame) {
+            mFramesReceived++;
+        }
+    }
+
+    /**
+     * Queues a buffer for the socket.  Called with the lock held.
+     */
+    void enqueue(ByteBuffer data) {
+        outbound.add(data);
+        int queued = mQueuedBytes + data.remaining();
+        mQueuedBytes = queued;
+        if (queued > mPeakQueuedBytes) {
+            mPeakQueuedBytes = queued;
+        }
+    }
+
+    /**
+     * Records queued bytes written to the socket.  Called with the lock held.
+     */
+    void onDequeued(int length) {
+        mQueuedBytes -= length;
+    }
+
+    /**
+     * Drops everything queued, returning the buffers to the pool.  Called with the lock held.
+     */
+    void clearOutbound(BufferPool pool) {
+        ByteBuffer data;
+        while ((data = outbound.poll()) != null) {
+            pool.release(data);
+        }
+        mQueuedBytes = 0;
+    }
+
+    int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    StreamStats getStreamStats() {
+        int port = (mapping != null) ? mapping.getLocalPort() : channel.socket().getPort();
+        return new StreamStats(socketId & 0xFFFF, port, mapping == null, mBytesSent,
+                mFramesSent, mBytesReceived, mFramesReceived, mQueuedBytes, mPeakQueuedBytes,
+                flow.getPriority(), inputShutdown, outputShutdown);
+    }
+
+    /**
+     * Limits what may be sent before the peer acknowledges the connection.  Called before the
+     * stream is published.
+     */
+    void setEarlyWindow(int window) {
+        mSendLimit = window;
+    }
+
+    /**
+     * The peer acknowledged the connection without a window, it isn't flow controlled
+     */
+    void clearSendLimit() {
+        mSendLimit = UNLIMITED;
+    }
+
+    /**
+     * The peer acknowledged the connection, advertising its initial receive window.  Data
+     * sent before the acknowledgement counts against it.
+     */
+    void setInitialWindow(int window) {
+        mPeerFlowControl = true;
+        mSendLimit = window & 0xFFFFFFFFL;
+    }
+
+    void addSendWindow(int increment) {
+        if (mSendLimit != UNLIMITED) {
+            mSendLimit += increment & 0xFFFFFFFFL;
+        }
+    }
+
+    boolean isPeerFlowControlled() {
+        return mPeerFlowControl;
+    }
+
+    void onDeflate(int rawLength, int wireLength, long nanos) {
+        mRawBytesSent += rawLength;
+        mWireBytesSent += wireLength;
+        mDeflateNanos += nanos;
+    }
+
+    void onDeflateSkipped(int length) {
+        mRawBytesSent += length;
+        mWireBytesSent += length;
+    }
+
+    void onInflate(int wireLength, int rawLength, long nanos) {
+        mRawBytesReceived += rawLength;
+        mWireBytesReceived += wireLength;
+        mInflateNanos += nanos;
+    }
+
+    void onReceivedUncompressed(int length) {
+        mRawBytesReceived += length;
+        mWireBytesReceived += length;
+    }
+
+    CompressionStats getCompressionStats() {
+        return new CompressionStats(socketId & 0xFFFF, mRawBytesSent, mWireBytesSent,
+                mDeflateNanos, mRawBytesReceived, mWireBytesReceived, mInflateNanos);
+    }
+
+    /**
+     * Records bytes delivered to the local socket.  Once at least half of the receive window
+     * has been consumed the total is returned, so it can be granted back to the peer.  Called
+     * with the lock held, by the dispatch thread or whichever drains the queue.
+     *
+     * @return the window increment to send, or 0 if no update is due
+     */
+    int onDataConsumed(int length, int receiveWindow) {
+        mBytesConsumed += length;
+        if (mBytesConsumed >= receiveWindow / 2) {
+            int increment = mBytesConsumed;
+            mBytesConsumed = 0;
+            return increment;
+        }
+        return 0;
+    }
+}
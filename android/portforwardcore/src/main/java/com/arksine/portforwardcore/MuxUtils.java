@@ -0,0 +1,73 @@
+package com.arksine.portforwardcore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Static Utility Functions used by the mux core
+ */
+
+public class MuxUtils {
+    private static final String TAG = MuxUtils.class.getSimpleName();
+    private static final boolean DEBUG = true;
+    private MuxUtils(){}
+
+    public static void closeItem(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                if (DEBUG)
+                    e.printStackTrace();
+
+            }
+        }
+    }
+
+    public static void stopThread(Thread thread) {
+        stopThread(thread, 100);
+    }
+
+    public static void stopThread(Thread thread, int timeout) {
+        if (thread != null && thread.isAlive()) {
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException e) {
+                if (DEBUG)
+                    e.printStackTrace();
+            } finally {
+                if (thread.isAlive())
+                    thread.interrupt();
+            }
+        }
+    }
+
+    public static void bufferFill(ByteBuffer dest, ByteBuffer source) {
+        int destRem = dest.remaining();
+        if (destRem >= source.remaining()) {
+            dest.put(source);
+        } else {
+            byte[] sourceArray;
+            if (source.hasArray()) {
+                sourceArray = source.array();
+            } else {
+                sourceArray = new byte[destRem];
+                source.get(sourceArray);
+            }
+            int sourceEnd = source.position() + destRem;
+            dest.put(sourceArray, source.position(), destRem);
+            source.position(sourceEnd);
+        }
+    }
+
+    // Like the above, but always reads from source array
+    public static void bufferFill(ByteBuffer dest, ByteBuffer source, byte[] sourceArray) {
+        int transfer = (dest.remaining() < source.remaining())
+                ? dest.remaining() : source.remaining();
+        int sourceEnd = source.position() + transfer;
+        dest.put(sourceArray, source.position(), transfer);
+        source.position(sourceEnd);
+    }
+
+}
@@ -1,6 +1,4 @@
-package com.arksine.aoaportforward;
-
-import java.nio.ByteBuffer;
+package com.arksine.portforwardcore;
 
 /**
  * Created by Eric on 3/19/2017.
@@ -10,16 +8,27 @@ public enum PortCommand {
     NONE(new byte[]{(byte)0x00, (byte)0x00}),
     CONNECT_SOCKET(new byte[]{(byte)0x01, (byte)0x01}),
     CONNECTION_RESP(new byte[]{(byte)0x01, (byte)0x02}),
+    REVERSE_CONNECT(new byte[]{(byte)0x01, (byte)0x03}),
+    REVERSE_CONNECT_RESP(new byte[]{(byte)0x01, (byte)0x04}),
     DISCONNECT_SOCKET(new byte[]{(byte)0x02, (byte)0x01}),
+    SHUTDOWN_WRITE(new byte[]{(byte)0x02, (byte)0x02}),
     DATA_PACKET(new byte[]{(byte)0x03, (byte)0x01}),
+    DATA_PACKET_DEFLATE(new byte[]{(byte)0x03, (byte)0x02}),
     ACCESSORY_CONNECTED(new byte[]{(byte)0x04, (byte)0x01}),
-    TERMINATE_ACCESSORY(new byte[]{(byte)0x05, (byte)0x0F});
+    CAPABILITIES(new byte[]{(byte)0x04, (byte)0x02}),
+    TERMINATE_ACCESSORY(new byte[]{(byte)0x05, (byte)0x0F}),
+    WINDOW_UPDATE(new byte[]{(byte)0x06, (byte)0x01}),
+    PING(new byte[]{(byte)0x07, (byte)0x01}),
+    PONG(new byte[]{(byte)0x07, (byte)0x02}),
+    DATAGRAM(new byte[]{(byte)0x08, (byte)0x01});
 
     private static final PortCommand[] COMMAND_ARRAY = PortCommand.values();
     private final byte[] mBytes;
+    private final short mValue;
 
     PortCommand(byte[] b) {
         this.mBytes = b;
+        this.mValue = (short)(((b[0] & 0xFF) << 8) | (b[1] & 0xFF));
     }
 
     public byte[] getBytes() {
@@ -27,7 +36,7 @@ public enum PortCommand {
     }
 
     public short getValue() {
-        return ByteBuffer.wrap(mBytes).getShort();
+        return mValue;
     }
 
     public static PortCommand getCommandFromOrdinal(int ordinal) {
@@ -39,21 +48,14 @@ public enum PortCommand {
     }
 
     public static PortCommand getCommandFromValue(short value) {
-        for (PortCommand cmd : COMMAND_ARRAY) {
-            if (cmd.getValue() == value) {
-                return cmd;
-            }
-        }
-
-        // Not found
-        return PortCommand.NONE;
+        return FrameCodec.decodeCommand(value);
     }
 
     public static PortCommand getCommandFromBytes(byte[] bytes) {
         if (bytes.length != 2) {
             return PortCommand.NONE;
         } else {
-            return getCommandFromValue(ByteBuffer.wrap(bytes).getShort());
+            return getCommandFromValue((short)(((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF)));
         }
     }
 }
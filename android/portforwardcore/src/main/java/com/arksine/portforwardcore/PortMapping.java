@@ -0,0 +1,74 @@
+package com.arksine.portforwardcore;
+
+/**
+ * A local port the mux listens on, and the port on the host its connections are forwarded to.
+ * Streams of a compressed mapping have their data deflated when the host supports it, and
+ * share the link with other streams according to the mapping's FrameScheduler priority.
+ */
+
+public final class PortMapping {
+    private final int mLocalPort;
+    private final int mRemotePort;
+    private final boolean mCompressed;
+    private final int mPriority;
+
+    public PortMapping(int localPort, int remotePort) {
+        this(localPort, remotePort, false);
+    }
+
+    public PortMapping(int localPort, int remotePort, boolean compressed) {
+        this(localPort, remotePort, compressed, FrameScheduler.PRIORITY_NORMAL);
+    }
+
+    public PortMapping(int localPort, int remotePort, boolean compressed, int priority) {
+        if (localPort < 0 || localPort > 0xFFFF || remotePort <= 0 || remotePort > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid mapping " + localPort + " -> " +
+                    remotePort);
+        }
+        this.mLocalPort = localPort;
+        this.mRemotePort = remotePort;
+        this.mCompressed = compressed;
+        this.mPriority = FrameScheduler.checkPriority(priority);
+    }
+
+    public int getLocalPort() {
+        return mLocalPort;
+    }
+
+    public int getRemotePort() {
+        return mRemotePort;
+    }
+
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PortMapping)) {
+            return false;
+        }
+        PortMapping other = (PortMapping) o;
+        return mLocalPort == other.mLocalPort && mRemotePort == other.mRemotePort &&
+                mCompressed == other.mCompressed && mPriority == other.mPriority;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * mLocalPort + mRemotePort) + (mCompressed ? 1 : 0)) + mPriority;
+    }
+
+    @Override
+    public String toString() {
+        return mLocalPort + " -> " + mRemotePort + (mCompressed ? " (deflate)" : "") +
+                (mPriority != FrameScheduler.PRIORITY_NORMAL
+                        ? " (priority " + mPriority + ")" : "");
+    }
+}
@@ -0,0 +1,103 @@
+package com.arksine.portforwardcore;
+
+/**
+ * Round trip times of the most recent link probes, or other latencies such as how long new
+ * streams take to connect.  Samples are counted in buckets of powers of two microseconds, and
+ * once the window is full the oldest sample drops out as each new one is recorded, so the
+ * percentiles follow current conditions rather than the whole life of the link.
+ *
+ * Samples are recorded by the accessory dispatch thread and may be read from any thread.  Both
+ * happen about once per probe or stream, so access is simply synchronized.
+ */
+
+public class RttHistogram {
+    public static final int DEFAULT_WINDOW = 256;
+    // Bucket 0 holds samples under a microsecond, bucket i samples under 2^i microseconds
+    public static final int BUCKET_COUNT = 32;
+
+    private final long[] mSamples;
+    private final int[] mBuckets = new int[BUCKET_COUNT];
+    private int mNext = 0;
+    private int mCount = 0;
+    private long mTotal = 0;
+    private long mLast = 0;
+
+    public RttHistogram() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public RttHistogram(int window) {
+        this.mSamples = new long[window];
+    }
+
+    public synchronized void record(long micros) {
+        if (mCount == mSamples.length) {
+            long oldest = mSamples[mNext];
+            mBuckets[bucket(oldest)]--;
+            mTotal -= oldest;
+        } else {
+            mCount++;
+        }
+        mSamples[mNext] = micros;
+        mBuckets[bucket(micros)]++;
+        mTotal += micros;
+        mLast = micros;
+        mNext = (mNext + 1) % mSamples.length;
+    }
+
+    /**
+     * Returns the number of samples in the window
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getLastMicros() {
+        return mLast;
+    }
+
+    public synchronized long getMeanMicros() {
+        return (mCount == 0) ? 0 : mTotal / mCount;
+    }
+
+    public synchronized long getMaxMicros() {
+        long max = 0;
+        for (int i = 0; i < mCount; i++) {
+            max = Math.max(max, mSamples[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, capped at the
+     * largest sample, or 0 if there are no samples
+     *
+     * @param percentile between 0 and 100
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                long bound = (i == 0) ? 0 : (1L << i) - 1;
+                return Math.min(bound, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Returns a copy of the bucket counts
+     */
+    public synchronized int[] getBuckets() {
+        return mBuckets.clone();
+    }
+
+    private static int bucket(long micros) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+}
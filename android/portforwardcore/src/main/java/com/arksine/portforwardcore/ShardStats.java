@@ -0,0 +1,64 @@
+package com.arksine.portforwardcore;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the counters of one shard thread.  Busy time is spent handling ready sockets
+ * between selects, so busy time over uptime is the share of a core the shard is using.
+ */
+
+public final class ShardStats {
+    private final int mIndex;
+    private final int mStreams;
+    private final long mBytesRead;
+    private final long mFramesSent;
+    private final long mSelects;
+    private final long mBusyNanos;
+
+    ShardStats(int index, int streams, long bytesRead, long framesSent, long selects,
+               long busyNanos) {
+        this.mIndex = index;
+        this.mStreams = streams;
+        this.mBytesRead = bytesRead;
+        this.mFramesSent = framesSent;
+        this.mSelects = selects;
+        this.mBusyNanos = busyNanos;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Open streams owned by the shard
+     */
+    public int getStreams() {
+        return mStreams;
+    }
+
+    /**
+     * Socket data read by the shard, before compression
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public long getSelects() {
+        return mSelects;
+    }
+
+    public long getBusyNanos() {
+        return mBusyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Shard %d: %d streams, read %d bytes/%d frames, %d selects, busy %d us",
+                mIndex, mStreams, mBytesRead, mFramesSent, mSelects, mBusyNanos / 1000);
+    }
+}
@@ -0,0 +1,196 @@
+package com.arksine.portforwardcore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps socket ids to streams, and hands out ids from the full 16 bit space.  Allocation and
+ * release are lock free and constant time: released ids are kept on a free list whose head is
+ * tagged with a counter, so a concurrent pop and push of the same id can't corrupt it.  Ids
+ * never used before are taken from a high water mark.  Storage is allocated a page at a time,
+ * so memory follows the most connections ever open rather than the id space.
+ *
+ * Frames carry no generation, so recycled ids are told apart by counting.  Each time an id is
+ * published for a new stream its generation is bumped and a CONNECT_SOCKET, or a
+ * REVERSE_CONNECT_RESP for a stream the host opened, is sent.  The host answers each of these
+ * in order with a CONNECTION_RESP, each of which acknowledges the next generation of the id.
+ * Until a stream's own generation is acknowledged, anything the host sends for its id was
+ * meant for an earlier stream and is dropped.  Acknowledgements are only made by the accessory
+ * dispatch thread.
+ */
+
+class SocketTable {
+    static final int MAX_SOCKETS = 0xFFFF;  // ids 0 to 65534
+    static final int NO_SOCKET_ID = -1;
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static class Page {
+        final AtomicReferenceArray<MuxStream> streams = new AtomicReferenceArray<>(PAGE_SIZE);
+        // Free list links, holding the next id + 1 so that 0 ends the list
+        final AtomicIntegerArray next = new AtomicIntegerArray(PAGE_SIZE);
+        final AtomicIntegerArray generations = new AtomicIntegerArray(PAGE_SIZE);
+        final int[] acknowledged = new int[PAGE_SIZE];
+    }
+
+    private final AtomicReferenceArray<Page> mPages =
+            new AtomicReferenceArray<>((MAX_SOCKETS + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+    // Tag in the upper 32 bits, top id + 1 in the lower 32 bits
+    private final AtomicLong mFreeHead = new AtomicLong(0);
+    private final AtomicInteger mHighWater = new AtomicInteger(0);
+    private final AtomicInteger mStreamCount = new AtomicInteger(0);
+    // Only written by the acceptor thread, which is the only one publishing
+    private volatile int mPeakCount = 0;
+
+    private Page page(int id) {
+        return mPages.get(id >>> PAGE_SHIFT);
+    }
+
+    /**
+     * Reserves an id.  It must either be published or freed.
+     *
+     * @return the id, or NO_SOCKET_ID if every id is in use
+     */
+    int allocate() {
+        for (;;) {
+            long head = mFreeHead.get();
+            int top = (int) head;
+            if (top == 0) {
+                break;
+            }
+            int id = top - 1;
+            int next = page(id).next.get(id & PAGE_MASK);
+            long newHead = (((head >>> 32) + 1) << 32) | (next & 0xFFFFFFFFL);
+            if (mFreeHead.compareAndSet(head, newHead)) {
+                return id;
+            }
+        }
+
+        for (;;) {
+            int id = mHighWater.get();
+            if (id >= MAX_SOCKETS) {
+                return NO_SOCKET_ID;
+            }
+            if (mHighWater.compareAndSet(id, id + 1)) {
+                int pageIndex = id >>> PAGE_SHIFT;
+                if (mPages.get(pageIndex) == null) {
+                    mPages.compareAndSet(pageIndex, null, new Page());
+                }
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Returns an id to the free list
+     */
+    void free(int id) {
+        Page page = page(id);
+        for (;;) {
+            long head = mFreeHead.get();
+            page.next.set(id & PAGE_MASK, (int) head);
+            long newHead = (((head >>> 32) + 1) << 32) | ((id + 1) & 0xFFFFFFFFL);
+            if (mFreeHead.compareAndSet(head, newHead)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Maps a stream to its allocated id and starts a new generation of the id.  The caller
+     * must send the CONNECT_SOCKET or REVERSE_CONNECT_RESP for the stream once this returns.
+     */
+    void publish(MuxStream stream) {
+        int id = stream.socketId & 0xFFFF;
+        Page page = page(id);
+        stream.generation = page.generations.incrementAndGet(id & PAGE_MASK);
+        page.streams.set(id & PAGE_MASK, stream);
+        int count = mStreamCount.incrementAndGet();
+        if (count > mPeakCount) {
+            mPeakCount = count;
+        }
+    }
+
+    /**
+     * Unmaps a stream and frees its id.  Returns false if the stream was already removed.
+     */
+    boolean remove(MuxStream stream) {
+        int id = stream.socketId & 0xFFFF;
+        if (page(id).streams.compareAndSet(id & PAGE_MASK, stream, null)) {
+            mStreamCount.decrementAndGet();
+            free(id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the stream currently mapped to an id, connected or not
+     */
+    MuxStream get(int id) {
+        Page page = page(id);
+        return (page != null) ? page.streams.get(id & PAGE_MASK) : null;
+    }
+
+    /**
+     * Returns the stream for a frame received from the host, or null if there is none or the
+     * host hasn't yet seen it, in which case the frame was meant for an earlier stream.
+     */
+    MuxStream getConnected(int id) {
+        Page page = page(id);
+        if (page == null) {
+            return null;
+        }
+        MuxStream stream = page.streams.get(id & PAGE_MASK);
+        if (stream != null && stream.generation == page.acknowledged[id & PAGE_MASK]) {
+            return stream;
+        }
+        return null;
+    }
+
+    /**
+     * Records a CONNECTION_RESP for an id.
+     *
+     * @return the stream the response belongs to, or null if it answered a stream that has
+     * since been removed
+     */
+    MuxStream acknowledge(int id) {
+        Page page = page(id);
+        if (page == null) {
+            return null;
+        }
+        int slot = id & PAGE_MASK;
+        if (page.acknowledged[slot] == page.generations.get(slot)) {
+            // Nothing is waiting on a response
+            return null;
+        }
+        int generation = ++page.acknowledged[slot];
+        MuxStream stream = page.streams.get(slot);
+        return (stream != null && stream.generation == generation) ? stream : null;
+    }
+
+    /**
+     * Returns the number of mapped streams
+     */
+    int size() {
+        return mStreamCount.get();
+    }
+
+    /**
+     * Returns the most streams ever mapped at once
+     */
+    int peakSize() {
+        return mPeakCount;
+    }
+
+    /**
+     * Returns one past the highest id ever allocated
+     */
+    int getHighWaterMark() {
+        return mHighWater.get();
+    }
+}
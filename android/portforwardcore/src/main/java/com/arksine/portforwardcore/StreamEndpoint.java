@@ -0,0 +1,42 @@
+package com.arksine.portforwardcore;
+
+import java.io.IOException;
+
+/**
+ * The client end of a stream that isn't a socket channel, so can't be served by a shard.
+ * The endpoint moves the stream's data itself: it sends what the client writes with
+ * MuxServer.sendFromEndpoint as the send window allows, and takes the host's data off the
+ * stream's outbound queue with MuxServer.takeOutbound, reporting each delivery back so the
+ * window can be granted to the host again.
+ */
+
+abstract class StreamEndpoint {
+    /**
+     * Starts moving data for a stream that has been published and announced to the host.
+     * Called once, from the acceptor thread.
+     */
+    abstract void start(MuxStream stream);
+
+    /**
+     * The host's data has been queued for a stream whose queue was empty
+     */
+    abstract void onOutboundReady();
+
+    /**
+     * The host has opened the stream's send window, more may be sent
+     */
+    abstract void onSendWindow();
+
+    /**
+     * Passes the host's end of stream on to the client.  Called with the stream's lock held,
+     * once everything queued has been delivered.
+     */
+    abstract void shutdownOutput() throws IOException;
+
+    abstract boolean isOpen();
+
+    /**
+     * Closes the client, waking anything waiting on it.  Called with the stream's lock held.
+     */
+    abstract void close();
+}
@@ -0,0 +1,117 @@
+package com.arksine.portforwardcore;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the traffic counters of one stream.  Sent is socket data carried from the device
+ * to the host, received is data from the host written to the socket, both counted before any
+ * compression.
+ */
+
+public final class StreamStats {
+    private final int mSocketId;
+    private final int mLocalPort;
+    private final boolean mReverse;
+    private final long mBytesSent;
+    private final long mFramesSent;
+    private final long mBytesReceived;
+    private final long mFramesReceived;
+    private final int mQueuedBytes;
+    private final int mPeakQueuedBytes;
+    private final int mPriority;
+    private final boolean mSendShutdown;
+    private final boolean mReceiveShutdown;
+
+    StreamStats(int socketId, int localPort, boolean reverse, long bytesSent, long framesSent,
+                long bytesReceived, long framesReceived, int queuedBytes, int peakQueuedBytes,
+                int priority, boolean sendShutdown, boolean receiveShutdown) {
+        this.mSocketId = socketId;
+        this.mLocalPort = localPort;
+        this.mReverse = reverse;
+        this.mBytesSent = bytesSent;
+        this.mFramesSent = framesSent;
+        this.mBytesReceived = bytesReceived;
+        this.mFramesReceived = framesReceived;
+        this.mQueuedBytes = queuedBytes;
+        this.mPeakQueuedBytes = peakQueuedBytes;
+        this.mPriority = priority;
+        this.mSendShutdown = sendShutdown;
+        this.mReceiveShutdown = receiveShutdown;
+    }
+
+    public int getSocketId() {
+        return mSocketId;
+    }
+
+    /**
+     * The mapped port the client was accepted on, or the device port of a reverse stream
+     */
+    public int getLocalPort() {
+        return mLocalPort;
+    }
+
+    /**
+     * True for streams opened by the host
+     */
+    public boolean isReverse() {
+        return mReverse;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    /**
+     * Data from the host waiting for the socket to accept it
+     */
+    public int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public int getPeakQueuedBytes() {
+        return mPeakQueuedBytes;
+    }
+
+    /**
+     * The stream's FrameScheduler priority
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * True once the client has finished sending and the host has been told
+     */
+    public boolean isSendShutdown() {
+        return mSendShutdown;
+    }
+
+    /**
+     * True once the host has finished sending and the client has been told
+     */
+    public boolean isReceiveShutdown() {
+        return mReceiveShutdown;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Socket %d (%s %d) sent %d bytes/%d frames%s, received %d bytes/%d frames%s, " +
+                        "queued %d (peak %d), priority %d",
+                mSocketId, mReverse ? "reverse" : "port", mLocalPort, mBytesSent, mFramesSent,
+                mSendShutdown ? " (shut)" : "", mBytesReceived, mFramesReceived,
+                mReceiveShutdown ? " (shut)" : "", mQueuedBytes, mPeakQueuedBytes, mPriority);
+    }
+}
@@ -0,0 +1,91 @@
+package com.arksine.portforwardcore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The read thread keeps draining the transport while dispatch is busy, up to the size of
+ * the ring.
+ */
+public class AccessoryReaderTest {
+
+    @Test
+    public void reads_continueWhileDispatchIsBusy() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AccessoryReader reader = new AccessoryReader(pair[0], new AccessoryReader.Consumer() {
+            @Override
+            public boolean onTransfer(ByteBuffer transfer) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                received.write(transfer.array(), transfer.position(), transfer.remaining());
+                return true;
+            }
+
+            @Override
+            public void onEndOfStream() {
+                ended.countDown();
+            }
+        }, 3);
+        reader.start();
+
+        byte[] sent = new byte[8 * 100];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = (byte) i;
+        }
+        for (int i = 0; i < 8; i++) {
+            pair[1].write(sent, i * 100, 100);
+            Thread.sleep(20);
+        }
+
+        // One slot is being dispatched, the other two were read behind it
+        for (int i = 0; i < 100 && reader.getStallCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(reader.getStallCount() > 0);
+        assertEquals(2, reader.getOccupancy());
+        assertEquals(2, reader.getPeakOccupancy());
+
+        release.countDown();
+        pair[1].close();
+        assertTrue(ended.await(2, TimeUnit.SECONDS));
+        assertTrue(Arrays.equals(sent, received.toByteArray()));
+        assertEquals(sent.length, reader.getByteCount());
+        assertTrue(reader.getStallNanos() > 0);
+        reader.stop(1000);
+    }
+
+    @Test
+    public void consumer_canStopReading() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        final CountDownLatch ended = new CountDownLatch(1);
+        AccessoryReader reader = new AccessoryReader(pair[0], new AccessoryReader.Consumer() {
+            @Override
+            public boolean onTransfer(ByteBuffer transfer) {
+                return false;
+            }
+
+            @Override
+            public void onEndOfStream() {
+                ended.countDown();
+            }
+        });
+        reader.start();
+        pair[1].write(new byte[10], 0, 10);
+        assertTrue(ended.await(2, TimeUnit.SECONDS));
+        pair[1].close();
+        reader.stop(1000);
+    }
+}
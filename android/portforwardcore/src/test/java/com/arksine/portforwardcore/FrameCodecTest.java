@@ -0,0 +1,261 @@
+package com.arksine.portforwardcore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Command table lookups and the allocation behaviour of the data frame path.
+ */
+public class FrameCodecTest {
+    private static final int FRAMES_PER_TRANSFER = 16;
+    private static final int DATA_LENGTH = 1000;
+
+    @Test
+    public void decodeCommand_roundTripsEveryCommand() {
+        for (PortCommand cmd : PortCommand.values()) {
+            assertSame(cmd, FrameCodec.decodeCommand(cmd.getValue()));
+        }
+    }
+
+    @Test
+    public void decodeCommand_unknownValueIsNone() {
+        assertSame(PortCommand.NONE, FrameCodec.decodeCommand((short) 0x01FF));
+        assertSame(PortCommand.NONE, FrameCodec.decodeCommand((short) 0x7F7F));
+        assertSame(PortCommand.NONE, FrameCodec.decodeCommand((short) 0xFFFF));
+    }
+
+    @Test
+    public void putDataHeader_leavesFrameReadyToWrite() {
+        ByteBuffer frame = ByteBuffer.allocateDirect(64);
+        frame.position(FrameCodec.DATA_HEADER_SIZE + 10);
+        frame.flip();
+
+        assertEquals(16, FrameCodec.putDataHeader(frame, (short) 513));
+        assertEquals(0, frame.position());
+        assertSame(PortCommand.DATA_PACKET, FrameCodec.decodeCommand(frame.getShort()));
+        assertEquals(12, frame.getShort());
+        assertEquals(513, frame.getShort());
+    }
+
+    @Test
+    public void putDataHeader_usesExtendedHeaderForLargePayloads() {
+        ByteBuffer frame = ByteBuffer.allocate(BufferPool.JUMBO_SLAB_SIZE);
+        frame.position(FrameCodec.EXTENDED_DATA_HEADER_SIZE + 100);
+        frame.flip();
+        assertEquals(FrameCodec.DATA_HEADER_SIZE + 100, FrameCodec.putDataHeader(frame,
+                FrameCodec.EXTENDED_DATA_HEADER_SIZE, PortCommand.DATA_PACKET, (short) 7));
+        assertEquals(2, frame.position());
+
+        frame.clear();
+        assertEquals(frame.capacity(), FrameCodec.putDataHeader(frame,
+                FrameCodec.EXTENDED_DATA_HEADER_SIZE, PortCommand.DATA_PACKET, (short) 7));
+        assertEquals(0, frame.position());
+        short value = frame.getShort();
+        assertTrue(FrameCodec.isExtendedHeader(value));
+        assertSame(PortCommand.DATA_PACKET, FrameCodec.decodeCommand(value));
+        assertEquals(frame.capacity() - FrameCodec.EXTENDED_HEADER_SIZE, frame.getInt());
+        assertEquals(7, frame.getShort());
+    }
+
+    /**
+     * Extended frames fed to the parser a few bytes at a time, so both the header and the
+     * payload are split across reads
+     */
+    @Test
+    public void parser_reassemblesSplitExtendedFrames() {
+        final int[] received = new int[2];
+        FrameParser parser = new FrameParser(new FrameParser.FrameHandler() {
+            @Override
+            public boolean onFrame(PortCommand command, ByteBuffer payload) {
+                assertSame(PortCommand.DATA_PACKET, command);
+                assertEquals(received[0], payload.getShort());
+                while (payload.hasRemaining()) {
+                    assertEquals((byte) received[1]++, payload.get());
+                }
+                received[0]++;
+                return true;
+            }
+        });
+
+        ByteBuffer stream = ByteBuffer.allocate(3 * BufferPool.JUMBO_SLAB_SIZE);
+        int[] sizes = {100000, 10, 70000};
+        int value = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.EXTENDED_DATA_HEADER_SIZE + sizes[i]);
+            frame.position(FrameCodec.EXTENDED_DATA_HEADER_SIZE);
+            for (int j = 0; j < sizes[i]; j++) {
+                frame.put((byte) value++);
+            }
+            frame.flip();
+            FrameCodec.putDataHeader(frame, FrameCodec.EXTENDED_DATA_HEADER_SIZE,
+                    PortCommand.DATA_PACKET, (short) i);
+            stream.put(frame);
+        }
+
+        byte[] bytes = stream.array();
+        int length = stream.position();
+        int[] chunks = {3, 1, 5000, 16384, 7};
+        for (int offset = 0, c = 0; offset < length; c++) {
+            int chunk = Math.min(chunks[c % chunks.length], length - offset);
+            byte[] read = new byte[chunk];
+            System.arraycopy(bytes, offset, read, 0, chunk);
+            assertTrue(parser.parse(read, chunk));
+            offset += chunk;
+        }
+        assertEquals(sizes.length, received[0]);
+        assertEquals(value, received[1]);
+        assertEquals(sizes.length, parser.getFrameCount());
+        assertTrue(parser.getSplitHeaderCount() > 0);
+        assertTrue(parser.getSplitPayloadCount() > 0);
+    }
+
+    /**
+     * Split data frames are handed over in pieces straight from the input, whatever the split
+     * position, while other split frames are still reassembled
+     */
+    @Test
+    public void parser_streamsSplitDataFrames() {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final int[] frames = new int[3];
+        final byte[][] input = new byte[1][];
+        FrameParser parser = new FrameParser(new FrameParser.StreamingFrameHandler() {
+            @Override
+            public boolean onFrame(PortCommand command, ByteBuffer payload) {
+                if (command == PortCommand.DATA_PACKET) {
+                    assertEquals(frames[0]++, payload.getShort());
+                    data.write(payload.array(), payload.position(), payload.remaining());
+                } else {
+                    assertEquals(1000, payload.remaining());
+                    frames[2]++;
+                }
+                return true;
+            }
+
+            @Override
+            public int getStreamPrefixLength(PortCommand command) {
+                return (command == PortCommand.DATA_PACKET) ? 2 : -1;
+            }
+
+            @Override
+            public boolean onFramePiece(PortCommand command, ByteBuffer prefix,
+                                        ByteBuffer piece, boolean last) {
+                assertEquals(frames[0], prefix.getShort(0));
+                // A slice of the input, not a copy
+                assertSame(input[0], piece.array());
+                data.write(piece.array(), piece.position(), piece.remaining());
+                if (last) {
+                    frames[0]++;
+                    frames[1]++;
+                }
+                return true;
+            }
+        });
+
+        ByteBuffer stream = ByteBuffer.allocate(2 * BufferPool.JUMBO_SLAB_SIZE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int[] sizes = {70000, 0, 300, 20000};
+        int value = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.EXTENDED_DATA_HEADER_SIZE + sizes[i]);
+            frame.position(FrameCodec.EXTENDED_DATA_HEADER_SIZE);
+            for (int j = 0; j < sizes[i]; j++) {
+                frame.put((byte) value);
+                expected.write((byte) value++);
+            }
+            frame.flip();
+            FrameCodec.putDataHeader(frame, FrameCodec.EXTENDED_DATA_HEADER_SIZE,
+                    PortCommand.DATA_PACKET, (short) i);
+            stream.put(frame);
+        }
+        stream.putShort(PortCommand.DATA_PACKET_DEFLATE.getValue()).putShort((short) 1000);
+        stream.put(new byte[1000]);
+
+        byte[] bytes = stream.array();
+        int length = stream.position();
+        int[] chunks = {1, 3, 5000, 16384, 7, 2};
+        for (int offset = 0, c = 0; offset < length; c++) {
+            int chunk = Math.min(chunks[c % chunks.length], length - offset);
+            input[0] = new byte[chunk];
+            System.arraycopy(bytes, offset, input[0], 0, chunk);
+            assertTrue(parser.parse(input[0], chunk));
+            offset += chunk;
+        }
+        assertEquals(sizes.length, frames[0]);
+        assertTrue(frames[1] > 0);
+        assertEquals(1, frames[2]);
+        assertTrue(Arrays.equals(expected.toByteArray(), data.toByteArray()));
+        assertEquals(sizes.length + 1, parser.getFrameCount());
+        assertEquals(frames[1], parser.getStreamedPayloadCount());
+        assertEquals(1, parser.getSplitPayloadCount());
+    }
+
+    /**
+     * Encodes data frames into pooled slabs and parses a stream of them, as the selector and
+     * accessory read threads do.  Once warm, neither side may allocate.
+     */
+    @Test
+    public void steadyStateDataFrames_doNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final long[] checksum = new long[1];
+        FrameParser parser = new FrameParser(new FrameParser.FrameHandler() {
+            @Override
+            public boolean onFrame(PortCommand command, ByteBuffer payload) {
+                if (command == PortCommand.DATA_PACKET) {
+                    short socketId = payload.getShort();
+                    checksum[0] += socketId + payload.remaining();
+                }
+                return true;
+            }
+        });
+        BufferPool pool = new BufferPool();
+        byte[] transfer =
+                new byte[FRAMES_PER_TRANSFER * (FrameCodec.DATA_HEADER_SIZE + DATA_LENGTH)];
+
+        // Warm up the pool, the parser and the JIT
+        for (int i = 0; i < 20000; i++) {
+            runTransfer(pool, parser, transfer);
+        }
+
+        int transfers = 20000;
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < transfers; i++) {
+            runTransfer(pool, parser, transfer);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Any allocation on the frame path is at least one object per frame, far more than
+        // the few bytes the measurement itself may cost
+        long frames = (long) transfers * FRAMES_PER_TRANSFER;
+        assertTrue("Allocated " + allocated + " bytes over " + frames + " frames",
+                allocated < frames);
+        assertTrue(checksum[0] > 0);
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    private static void runTransfer(BufferPool pool, FrameParser parser, byte[] transfer) {
+        int offset = 0;
+        for (int i = 0; i < FRAMES_PER_TRANSFER; i++) {
+            ByteBuffer frame = pool.acquire(BufferPool.FRAME_SLAB_SIZE);
+            frame.position(FrameCodec.DATA_HEADER_SIZE + DATA_LENGTH);
+            frame.flip();
+            int length = FrameCodec.putDataHeader(frame, (short) i);
+            frame.get(transfer, offset, length);
+            offset += length;
+            pool.release(frame);
+        }
+        assertTrue(parser.parse(transfer, offset));
+    }
+}
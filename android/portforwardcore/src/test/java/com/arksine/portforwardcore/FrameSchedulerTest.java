@@ -0,0 +1,135 @@
+package com.arksine.portforwardcore;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering of control frames, and the weighted interleaving of stream data.
+ */
+public class FrameSchedulerTest {
+
+    private static ByteBuffer frame(int length, int tag) {
+        ByteBuffer frame = ByteBuffer.allocate(Math.max(length, 1));
+        frame.put(0, (byte) tag);
+        return frame;
+    }
+
+    @Test
+    public void controlFrames_jumpTheQueue() {
+        FrameScheduler scheduler = new FrameScheduler(100);
+        FrameScheduler.Flow bulk = new FrameScheduler.Flow(FrameScheduler.PRIORITY_BULK);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scheduler.offer(frame(8192, 1), bulk));
+        }
+        ByteBuffer control = frame(8, 2);
+        assertTrue(scheduler.offer(control, null));
+
+        assertSame(control, scheduler.poll());
+        assertEquals(10, scheduler.size());
+    }
+
+    @Test
+    public void smallFrame_waitsOneRoundBehindBulk() {
+        FrameScheduler scheduler = new FrameScheduler(1000);
+        FrameScheduler.Flow bulk = new FrameScheduler.Flow(FrameScheduler.PRIORITY_NORMAL);
+        FrameScheduler.Flow interactive = new FrameScheduler.Flow(FrameScheduler.PRIORITY_NORMAL);
+        for (int i = 0; i < 100; i++) {
+            scheduler.offer(frame(8192, 1), bulk);
+        }
+        ByteBuffer request = frame(100, 2);
+        scheduler.offer(request, interactive);
+
+        // A normal flow's quantum covers eight of the bulk frames
+        int position = 0;
+        while (scheduler.poll() != request) {
+            position++;
+        }
+        assertEquals(8, position);
+    }
+
+    @Test
+    public void busyFlows_shareByWeight() {
+        FrameScheduler scheduler = new FrameScheduler(10000);
+        FrameScheduler.Flow interactive =
+                new FrameScheduler.Flow(FrameScheduler.PRIORITY_INTERACTIVE);
+        FrameScheduler.Flow bulk = new FrameScheduler.Flow(FrameScheduler.PRIORITY_BULK);
+        for (int i = 0; i < 2000; i++) {
+            scheduler.offer(frame(1024, 1), interactive);
+            scheduler.offer(frame(1024, 2), bulk);
+        }
+
+        int[] counts = new int[3];
+        for (int i = 0; i < 1800; i++) {
+            counts[scheduler.poll().get(0)]++;
+        }
+        assertEquals(8.0, (double) counts[1] / counts[2], 0.5);
+    }
+
+    @Test
+    public void jumboFrames_stillGetTheirTurn() {
+        FrameScheduler scheduler = new FrameScheduler(100);
+        FrameScheduler.Flow small = new FrameScheduler.Flow(FrameScheduler.PRIORITY_INTERACTIVE);
+        FrameScheduler.Flow jumbo = new FrameScheduler.Flow(FrameScheduler.PRIORITY_BULK);
+        ByteBuffer large = frame(BufferPool.JUMBO_SLAB_SIZE, 2);
+        scheduler.offer(large, jumbo);
+        for (int i = 0; i < 50; i++) {
+            scheduler.offer(frame(1024, 1), small);
+        }
+
+        boolean seen = false;
+        for (int i = 0; i < 51; i++) {
+            seen |= scheduler.poll() == large;
+        }
+        assertTrue(seen);
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void streamControl_followsItsData() {
+        FrameScheduler scheduler = new FrameScheduler(100);
+        FrameScheduler.Flow flow = new FrameScheduler.Flow(FrameScheduler.PRIORITY_NORMAL);
+        ByteBuffer data = frame(100, 1);
+        ByteBuffer disconnect = frame(6, 2);
+        scheduler.offer(data, flow);
+        scheduler.offerControl(disconnect, flow);
+        assertSame(data, scheduler.poll());
+        assertSame(disconnect, scheduler.poll());
+
+        // With nothing queued it goes straight out
+        ByteBuffer idle = frame(6, 3);
+        scheduler.offerControl(idle, flow);
+        scheduler.offer(frame(100, 1), flow);
+        assertSame(idle, scheduler.poll());
+    }
+
+    @Test
+    public void lastFrame_comesAfterEverything() {
+        FrameScheduler scheduler = new FrameScheduler(100);
+        FrameScheduler.Flow flow = new FrameScheduler.Flow(FrameScheduler.PRIORITY_BULK);
+        ByteBuffer end = ByteBuffer.allocate(0);
+        scheduler.offer(frame(100, 1), flow);
+        scheduler.offerLast(end);
+        scheduler.offer(frame(6, 2), null);
+        scheduler.offer(frame(100, 1), flow);
+
+        assertEquals(2, scheduler.poll().get(0));
+        assertEquals(1, scheduler.poll().get(0));
+        assertEquals(1, scheduler.poll().get(0));
+        assertSame(end, scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void fullScheduler_refusesData() {
+        FrameScheduler scheduler = new FrameScheduler(2);
+        FrameScheduler.Flow flow = new FrameScheduler.Flow(FrameScheduler.PRIORITY_NORMAL);
+        assertTrue(scheduler.offer(frame(10, 1), flow));
+        assertTrue(scheduler.offer(frame(10, 1), flow));
+        assertFalse(scheduler.offer(frame(10, 1), flow));
+        scheduler.poll();
+        assertTrue(scheduler.offer(frame(10, 1), flow));
+    }
+}
@@ -0,0 +1,307 @@
+package com.arksine.portforwardcore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs an HttpCacheProxy in front of a small HTTP server that counts the requests reaching it,
+ * standing in for the mapping's listener.
+ */
+public class HttpCacheProxyTest {
+    private ServerSocket mOrigin;
+    private final ConcurrentHashMap<String, AtomicInteger> mOriginRequests =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger mNotModified = new AtomicInteger(0);
+    private HttpCacheProxy mProxy;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mOrigin = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mOrigin.isClosed()) {
+                    final Socket client;
+                    try {
+                        client = mOrigin.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serveOrigin(client);
+                        }
+                    }).start();
+                }
+            }
+        }).start();
+        mCacheDir = new File(System.getProperty("java.io.tmpdir"),
+                "httpcache-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mProxy != null) {
+            mProxy.stop();
+        }
+        MuxUtils.closeItem(mOrigin);
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mCacheDir.delete();
+    }
+
+    private void startProxy(HttpCache cache) throws IOException {
+        mProxy = new HttpCacheProxy(0, mOrigin.getLocalPort(), cache);
+        mProxy.start();
+    }
+
+    /**
+     * Answers requests on one connection by path:
+     * /fresh/* for a minute, /etag/* always revalidated, /nostore/* never stored, and
+     * /size/N/* with N bytes kept a minute.
+     */
+    private void serveOrigin(Socket client) {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            HttpHead request;
+            while ((request = HttpHead.read(in)) != null) {
+                String target = request.getTarget();
+                AtomicInteger count = mOriginRequests.get(target);
+                if (count == null) {
+                    mOriginRequests.putIfAbsent(target, new AtomicInteger(0));
+                    count = mOriginRequests.get(target);
+                }
+                count.incrementAndGet();
+
+                HttpHead response = new HttpHead("HTTP/1.1 200 OK");
+                byte[] body = ("body of " + target).getBytes("UTF-8");
+                if (target.startsWith("/fresh/")) {
+                    response.add("Cache-Control", "max-age=60");
+                } else if (target.startsWith("/etag/")) {
+                    response.add("Cache-Control", "no-cache");
+                    response.add("ETag", "\"v1\"");
+                    if ("\"v1\"".equals(request.get("If-None-Match"))) {
+                        mNotModified.incrementAndGet();
+                        response.setStartLine("HTTP/1.1 304 Not Modified");
+                        body = new byte[0];
+                    }
+                } else if (target.startsWith("/nostore/")) {
+                    response.add("Cache-Control", "no-store");
+                } else if (target.startsWith("/size/")) {
+                    response.add("Cache-Control", "max-age=60");
+                    body = new byte[Integer.parseInt(target.split("/")[2])];
+                    Arrays.fill(body, (byte) target.length());
+                }
+                if (response.getStatus() != 304) {
+                    response.add("Content-Length", String.valueOf(body.length));
+                }
+                response.writeTo(out);
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client gone
+        }
+        MuxUtils.closeItem(client);
+    }
+
+    private static final class Response {
+        final HttpHead head;
+        final byte[] body;
+
+        Response(HttpHead head, byte[] body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        String text() throws IOException {
+            return new String(body, "UTF-8");
+        }
+    }
+
+    private Response get(Socket client, InputStream in, String target) throws IOException {
+        return get(client, in, target, null);
+    }
+
+    /**
+     * As above, made conditional on the ETag if there is one
+     */
+    private Response get(Socket client, InputStream in, String target, String ifNoneMatch)
+            throws IOException {
+        HttpHead request = new HttpHead("GET " + target + " HTTP/1.1");
+        request.add("Host", "localhost");
+        if (ifNoneMatch != null) {
+            request.add("If-None-Match", ifNoneMatch);
+        }
+        request.writeTo(client.getOutputStream());
+        HttpHead response = HttpHead.read(in);
+        assertNotNull(response);
+        long length = response.getContentLength();
+        byte[] body = new byte[(length < 0 || response.getStatus() == 304) ? 0 : (int) length];
+        int read = 0;
+        while (read < body.length) {
+            int count = in.read(body, read, body.length - read);
+            assertTrue(count > 0);
+            read += count;
+        }
+        return new Response(response, body);
+    }
+
+    private int originCount(String target) {
+        AtomicInteger count = mOriginRequests.get(target);
+        return (count == null) ? 0 : count.get();
+    }
+
+    @Test
+    public void freshResponse_servedFromCache() throws Exception {
+        HttpCache cache = new HttpCache(HttpCache.DEFAULT_MEMORY_BYTES);
+        startProxy(cache);
+        Socket client = new Socket("127.0.0.1", mProxy.getPort());
+        InputStream in = new BufferedInputStream(client.getInputStream());
+
+        Response first = get(client, in, "/fresh/a");
+        assertEquals(200, first.head.getStatus());
+        assertEquals("body of /fresh/a", first.text());
+        Response second = get(client, in, "/fresh/a");
+        assertEquals("body of /fresh/a", second.text());
+        assertNotNull(second.head.get("Age"));
+        assertEquals(1, originCount("/fresh/a"));
+
+        // Still answered once the host side is gone
+        mOrigin.close();
+        Socket offline = new Socket("127.0.0.1", mProxy.getPort());
+        Response third = get(offline, new BufferedInputStream(offline.getInputStream()),
+                "/fresh/a");
+        assertEquals("body of /fresh/a", third.text());
+        offline.close();
+        client.close();
+
+        CacheStats stats = cache.getStats();
+        assertEquals(3, stats.getRequests());
+        assertEquals(2, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(2 * first.body.length, stats.getBytesSaved());
+        assertEquals(1, stats.getMemoryEntries());
+    }
+
+    @Test
+    public void staleResponse_revalidatedWithETag() throws Exception {
+        HttpCache cache = new HttpCache(HttpCache.DEFAULT_MEMORY_BYTES);
+        startProxy(cache);
+        Socket client = new Socket("127.0.0.1", mProxy.getPort());
+        InputStream in = new BufferedInputStream(client.getInputStream());
+
+        assertEquals("body of /etag/a", get(client, in, "/etag/a").text());
+        Response second = get(client, in, "/etag/a");
+        assertEquals(200, second.head.getStatus());
+        assertEquals("body of /etag/a", second.text());
+        assertEquals(2, originCount("/etag/a"));
+        assertEquals(1, mNotModified.get());
+        client.close();
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getRevalidations());
+        assertEquals(0.5, stats.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void clientConditional_keepsStaleEntry() throws Exception {
+        HttpCache cache = new HttpCache(HttpCache.DEFAULT_MEMORY_BYTES);
+        startProxy(cache);
+        Socket client = new Socket("127.0.0.1", mProxy.getPort());
+        InputStream in = new BufferedInputStream(client.getInputStream());
+
+        assertEquals("body of /etag/a", get(client, in, "/etag/a").text());
+        // A browser revalidating its own copy gets the host's answer
+        Response conditional = get(client, in, "/etag/a", "\"v1\"");
+        assertEquals(304, conditional.head.getStatus());
+        assertEquals(1, cache.getStats().getMemoryEntries());
+
+        // The stored entry still answers a plain request once revalidated
+        Response plain = get(client, in, "/etag/a");
+        assertEquals(200, plain.head.getStatus());
+        assertEquals("body of /etag/a", plain.text());
+        assertEquals(3, originCount("/etag/a"));
+        assertEquals(2, mNotModified.get());
+        client.close();
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getMisses());
+        assertEquals(2, stats.getRevalidations());
+        assertEquals(0, stats.getPassed());
+    }
+
+    @Test
+    public void noStore_passedThrough() throws Exception {
+        HttpCache cache = new HttpCache(HttpCache.DEFAULT_MEMORY_BYTES);
+        startProxy(cache);
+        Socket client = new Socket("127.0.0.1", mProxy.getPort());
+        InputStream in = new BufferedInputStream(client.getInputStream());
+
+        assertEquals("body of /nostore/a", get(client, in, "/nostore/a").text());
+        assertEquals("body of /nostore/a", get(client, in, "/nostore/a").text());
+        assertEquals(2, originCount("/nostore/a"));
+        client.close();
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getPassed());
+        assertEquals(0, stats.getMemoryEntries());
+    }
+
+    @Test
+    public void leastRecentlyUsed_spillsToDiskThenEvicted() throws Exception {
+        // Room for two 1000 byte bodies in memory and two more on disk
+        HttpCache cache = new HttpCache(2500, mCacheDir, 2500);
+        startProxy(cache);
+        Socket client = new Socket("127.0.0.1", mProxy.getPort());
+        InputStream in = new BufferedInputStream(client.getInputStream());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1000, get(client, in, "/size/1000/" + i).body.length);
+        }
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getMemoryEntries());
+        assertEquals(2, stats.getDiskEntries());
+        assertEquals(0, stats.getEvictions());
+
+        // Coming back from disk, the oldest in memory goes out to take its place
+        Response fromDisk = get(client, in, "/size/1000/0");
+        byte[] expected = new byte[1000];
+        Arrays.fill(expected, (byte) "/size/1000/0".length());
+        assertTrue(Arrays.equals(expected, fromDisk.body));
+        assertEquals(1, originCount("/size/1000/0"));
+
+        // A fifth entry pushes the least recently used one off the end
+        get(client, in, "/size/1000/4");
+        stats = cache.getStats();
+        assertEquals(2, stats.getMemoryEntries());
+        assertEquals(2, stats.getDiskEntries());
+        assertEquals(1, stats.getEvictions());
+        get(client, in, "/size/1000/1");
+        assertEquals(2, originCount("/size/1000/1"));
+        client.close();
+    }
+}
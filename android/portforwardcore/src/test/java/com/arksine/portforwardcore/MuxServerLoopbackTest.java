@@ -0,0 +1,928 @@
+package com.arksine.portforwardcore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a MuxServer against a LoopbackHost over a LoopbackTransport, with an echo server
+ * standing in for the real server on the host.
+ */
+public class MuxServerLoopbackTest {
+    private ServerSocket mEchoServer;
+    private Thread mEchoThread;
+    private MuxServer mMuxServer;
+    private LoopbackHost mHost;
+    private int mLocalPort;
+
+    @Before
+    public void setUp() throws Exception {
+        mEchoServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mEchoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mEchoServer.isClosed()) {
+                    final Socket client;
+                    try {
+                        client = mEchoServer.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            byte[] buf = new byte[4096];
+                            try {
+                                InputStream in = client.getInputStream();
+                                OutputStream out = client.getOutputStream();
+                                int read;
+                                while ((read = in.read(buf)) > 0) {
+                                    out.write(buf, 0, read);
+                                }
+                            } catch (IOException e) {
+                                // client gone
+                            }
+                            MuxUtils.closeItem(client);
+                        }
+                    }).start();
+                }
+            }
+        });
+        mEchoThread.start();
+
+        mLocalPort = freePort();
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        mHost = new LoopbackHost(pair[1]);
+        mHost.start();
+        mMuxServer = new MuxServer(pair[0], new MuxServer.Callbacks() {
+            @Override
+            public void onConnectionUpdate(int connectionCount) {}
+
+            @Override
+            public void onLinkClosed() {}
+        });
+        mMuxServer.start(mLocalPort, mEchoServer.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mMuxServer.stop();
+        mHost.stop();
+        mEchoServer.close();
+        mEchoThread.join(1000);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        return port;
+    }
+
+    private Socket connectClient() throws Exception {
+        return connectClient(mLocalPort);
+    }
+
+    private Socket connectClient(int port) throws Exception {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try {
+                return new Socket(InetAddress.getByName("127.0.0.1"), port);
+            } catch (ConnectException e) {
+                // listener not bound yet
+                Thread.sleep(20);
+            }
+        }
+        fail("Mux listener never came up");
+        return null;
+    }
+
+    @Test
+    public void echo_isForwarded() throws Exception {
+        byte[] payload = new byte[100000];
+        new Random(42).nextBytes(payload);
+
+        Socket client = connectClient();
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(payload);
+
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(client.getInputStream()).readFully(echoed);
+        assertTrue(Arrays.equals(payload, echoed));
+        client.close();
+    }
+
+    @Test
+    public void slowHostConnect_carriesEarlyData() throws Exception {
+        mHost.setConnectDelay(300);
+        final byte[] payload = new byte[200000];
+        new Random(19).nextBytes(payload);
+
+        final Socket client = connectClient();
+        client.setSoTimeout(5000);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.getOutputStream().write(payload);
+                } catch (IOException e) {
+                    // checked by the echo
+                }
+            }
+        });
+        writer.start();
+
+        // Only the early window goes out before the host has connected
+        Thread.sleep(150);
+        LinkStats stats = mMuxServer.getLinkStats();
+        assertEquals(1, stats.getStreams().size());
+        long early = stats.getStreams().get(0).getBytesSent();
+        assertTrue("sent " + early, early > 0 && early <= MuxServer.EARLY_DATA_WINDOW);
+
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(client.getInputStream()).readFully(echoed);
+        assertTrue(Arrays.equals(payload, echoed));
+        writer.join(1000);
+
+        stats = mMuxServer.getLinkStats();
+        assertTrue(stats.toString(), stats.getConnectMedianMicros() >= 250000);
+        assertTrue(stats.toString(),
+                stats.getFirstByteMedianMicros() >= stats.getConnectMedianMicros());
+        assertEquals(0, stats.getRefusedConnects());
+        client.close();
+    }
+
+    @Test
+    public void halfClose_keepsResponseAfterClientShutdown() throws Exception {
+        for (int i = 0; i < 50 && !mMuxServer.isHalfCloseNegotiated(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isHalfCloseNegotiated());
+        byte[] request = new byte[30000];
+        new Random(20).nextBytes(request);
+
+        // The echo server only closes once it reads the client's end of stream
+        Socket client = connectClient();
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(request);
+        client.shutdownOutput();
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        InputStream in = client.getInputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            response.write(buf, 0, read);
+        }
+        assertTrue(Arrays.equals(request, response.toByteArray()));
+
+        // Both directions finished, the stream is released without a disconnect
+        for (int i = 0; i < 50 && mMuxServer.getConnectionCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, mMuxServer.getConnectionCount());
+        client.close();
+    }
+
+    @Test
+    public void refusedConnect_resetsClient() throws Exception {
+        int port = freePort();
+        mMuxServer.addMapping(port, freePort(), false);
+
+        Socket client = connectClient(port);
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(new byte[100]);
+        try {
+            client.getInputStream().read();
+            fail("Expected a reset");
+        } catch (SocketException e) {
+            // Reset rather than closed cleanly
+        }
+        assertEquals(1, mMuxServer.getLinkStats().getRefusedConnects());
+        assertEquals(0, mMuxServer.getConnectionCount());
+        client.close();
+    }
+
+    @Test
+    public void linkStats_countTraffic() throws Exception {
+        byte[] payload = new byte[50000];
+        new Random(5).nextBytes(payload);
+
+        Socket client = connectClient();
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(payload);
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(client.getInputStream()).readFully(echoed);
+
+        // The echo can reach the client just before the last write is counted
+        LinkStats stats = mMuxServer.getLinkStats();
+        for (int i = 0; i < 50 && stats.getStreams().get(0).getBytesReceived() < payload.length;
+             i++) {
+            Thread.sleep(10);
+            stats = mMuxServer.getLinkStats();
+        }
+        assertEquals(1, stats.getActiveConnections());
+        assertEquals(1, stats.getPeakConnections());
+        assertEquals(0, stats.getRejectedAccepts());
+        assertTrue(stats.toString(), stats.getBytesSent() > payload.length);
+        assertTrue(stats.toString(), stats.getBytesReceived() > payload.length);
+        assertTrue(stats.getTransfersSent() > 0);
+        assertTrue(stats.getFramesReceived() > 0);
+        assertTrue(stats.getTransfersReceived() > 0);
+        assertTrue(stats.getPeakReadRingOccupancy() >= 1);
+        assertTrue(stats.getReadRingOccupancy() <= AccessoryReader.DEFAULT_RING_SIZE);
+
+        assertEquals(1, stats.getStreams().size());
+        StreamStats stream = stats.getStreams().get(0);
+        assertEquals(mLocalPort, stream.getLocalPort());
+        assertFalse(stream.isReverse());
+        assertEquals(payload.length, stream.getBytesSent());
+        assertEquals(payload.length, stream.getBytesReceived());
+        assertTrue(stream.getFramesSent() > 0);
+        assertTrue(stats.getFirstByteMedianMicros() > 0);
+        client.close();
+    }
+
+    @Test
+    public void multipleClients_areDemuxed() throws Exception {
+        Socket[] clients = new Socket[8];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = connectClient();
+            clients[i].setSoTimeout(5000);
+        }
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].getOutputStream().write(("client " + i).getBytes("US-ASCII"));
+        }
+        for (int i = 0; i < clients.length; i++) {
+            byte[] expected = ("client " + i).getBytes("US-ASCII");
+            byte[] echoed = new byte[expected.length];
+            new DataInputStream(clients[i].getInputStream()).readFully(echoed);
+            assertTrue(Arrays.equals(expected, echoed));
+            clients[i].close();
+        }
+    }
+
+    @Test
+    public void shardedSelectors_spreadStreams() throws Exception {
+        // Restart the link with a fixed number of shards
+        mMuxServer.stop();
+        mHost.stop();
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        mHost = new LoopbackHost(pair[1]);
+        mHost.start();
+        mMuxServer = new MuxServer(pair[0], new MuxServer.Callbacks() {
+            @Override
+            public void onConnectionUpdate(int connectionCount) {}
+
+            @Override
+            public void onLinkClosed() {}
+        });
+        mMuxServer.setSelectorThreads(3);
+        mLocalPort = freePort();
+        mMuxServer.start(mLocalPort, mEchoServer.getLocalPort());
+
+        Socket[] clients = new Socket[9];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = connectClient();
+            clients[i].setSoTimeout(5000);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].getOutputStream().write(new byte[] {(byte) i, (byte) round});
+            }
+            for (int i = 0; i < clients.length; i++) {
+                byte[] echoed = new byte[2];
+                new DataInputStream(clients[i].getInputStream()).readFully(echoed);
+                assertEquals(i, echoed[0]);
+                assertEquals(round, echoed[1]);
+            }
+        }
+
+        List<ShardStats> shards = mMuxServer.getLinkStats().getShards();
+        assertEquals(3, shards.size());
+        int streams = 0;
+        for (ShardStats shard : shards) {
+            assertTrue(shard.toString(), shard.getStreams() > 0);
+            assertTrue(shard.toString(), shard.getBytesRead() > 0);
+            streams += shard.getStreams();
+        }
+        assertEquals(clients.length, streams);
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+
+    @Test
+    public void hostTermination_closesLink() throws Exception {
+        assertTrue(mMuxServer.isActive());
+        mHost.stop();
+        for (int i = 0; i < 50 && mMuxServer.isActive(); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(mMuxServer.isActive());
+    }
+
+    @Test
+    public void addedMapping_forwardsToItsRemotePort() throws Exception {
+        // A second host server that greets each client
+        final ServerSocket greeter = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread greeterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = greeter.accept();
+                    client.getOutputStream().write("hello".getBytes("US-ASCII"));
+                    client.close();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        greeterThread.start();
+
+        int port = freePort();
+        mMuxServer.addMapping(port, greeter.getLocalPort());
+        assertTrue(mMuxServer.hasMapping(port, greeter.getLocalPort()));
+        assertEquals(2, mMuxServer.getMappings().size());
+
+        Socket client = connectClient(port);
+        client.setSoTimeout(5000);
+        byte[] greeting = new byte[5];
+        new DataInputStream(client.getInputStream()).readFully(greeting);
+        assertEquals("hello", new String(greeting, "US-ASCII"));
+        client.close();
+
+        // The first mapping is unaffected
+        Socket echoClient = connectClient();
+        echoClient.setSoTimeout(5000);
+        echoClient.getOutputStream().write(1);
+        assertEquals(1, echoClient.getInputStream().read());
+        echoClient.close();
+
+        greeter.close();
+        greeterThread.join(1000);
+    }
+
+    @Test
+    public void removedMapping_keepsConnectedClients() throws Exception {
+        Socket client = connectClient();
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(1);
+        assertEquals(1, client.getInputStream().read());
+
+        mMuxServer.removeMapping(mLocalPort);
+        assertTrue(mMuxServer.getMappings().isEmpty());
+        boolean refused = false;
+        for (int attempt = 0; attempt < 50 && !refused; attempt++) {
+            try {
+                new Socket(InetAddress.getByName("127.0.0.1"), mLocalPort).close();
+                Thread.sleep(20);
+            } catch (ConnectException e) {
+                refused = true;
+            }
+        }
+        assertTrue(refused);
+
+        client.getOutputStream().write(2);
+        assertEquals(2, client.getInputStream().read());
+        client.close();
+    }
+
+    @Test
+    public void ephemeralMapping_isBoundWhenReturned() throws Exception {
+        int port = mMuxServer.addEphemeralMapping(mEchoServer.getLocalPort(), false,
+                FrameScheduler.PRIORITY_NORMAL);
+        assertTrue(mMuxServer.hasMapping(port, mEchoServer.getLocalPort()));
+
+        // No retry, the listener is already bound
+        Socket client = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(7);
+        assertEquals(7, client.getInputStream().read());
+        client.close();
+
+        mMuxServer.stop();
+        try {
+            mMuxServer.addEphemeralMapping(mEchoServer.getLocalPort(), false,
+                    FrameScheduler.PRIORITY_NORMAL);
+            fail("Mapped on a stopped link");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void retargetedMapping_keepsConnectedClients() throws Exception {
+        Socket client = connectClient();
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(1);
+        assertEquals(1, client.getInputStream().read());
+
+        final ServerSocket greeter = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread greeterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket greeted = greeter.accept();
+                    greeted.getOutputStream().write("hello".getBytes("US-ASCII"));
+                    greeted.close();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        greeterThread.start();
+
+        // The listener stays bound, only new clients go to the new remote port
+        mMuxServer.addMapping(mLocalPort, greeter.getLocalPort());
+        assertTrue(mMuxServer.hasMapping(mLocalPort, greeter.getLocalPort()));
+        byte[] greeting = new byte[5];
+        for (int attempt = 0; attempt < 50; attempt++) {
+            Socket retargeted = connectClient();
+            retargeted.setSoTimeout(200);
+            try {
+                new DataInputStream(retargeted.getInputStream()).readFully(greeting);
+                retargeted.close();
+                break;
+            } catch (SocketTimeoutException e) {
+                // Accepted before the change reached the acceptor, an echo client
+                retargeted.close();
+            }
+        }
+        assertEquals("hello", new String(greeting, "US-ASCII"));
+
+        client.getOutputStream().write(2);
+        assertEquals(2, client.getInputStream().read());
+        client.close();
+        greeter.close();
+        greeterThread.join(1000);
+    }
+
+    @Test
+    public void reverseConnection_reachesDevicePort() throws Exception {
+        // The echo server stands in for a server running on the device
+        mMuxServer.addReversePort(mEchoServer.getLocalPort());
+        int hostPort = mHost.addReverseMapping(0, mEchoServer.getLocalPort());
+
+        byte[] payload = new byte[100000];
+        new Random(7).nextBytes(payload);
+        Socket client = connectClient(hostPort);
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(payload);
+
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(client.getInputStream()).readFully(echoed);
+        assertTrue(Arrays.equals(payload, echoed));
+
+        // Forward streams share the link with it
+        Socket forwardClient = connectClient();
+        forwardClient.setSoTimeout(5000);
+        forwardClient.getOutputStream().write(3);
+        assertEquals(3, forwardClient.getInputStream().read());
+        forwardClient.close();
+        client.close();
+    }
+
+    @Test
+    public void reverseConnection_toUnexposedPortIsRefused() throws Exception {
+        int hostPort = mHost.addReverseMapping(0, mEchoServer.getLocalPort());
+
+        Socket client = connectClient(hostPort);
+        client.setSoTimeout(5000);
+        assertEquals(-1, client.getInputStream().read());
+        client.close();
+        assertEquals(0, mMuxServer.getConnectionCount());
+    }
+
+    @Test
+    public void jumboFrames_carryLargeReads() throws Exception {
+        for (int i = 0; i < 50 && !mMuxServer.isJumboFramesNegotiated(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isJumboFramesNegotiated());
+        assertEquals(FrameCodec.PROTOCOL_VERSION, mMuxServer.getPeerProtocolVersion());
+
+        byte[] payload = new byte[4 * 1024 * 1024];
+        new Random(11).nextBytes(payload);
+        final Socket client = connectClient();
+        client.setSoTimeout(5000);
+        final byte[] data = payload;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.getOutputStream().write(data);
+                } catch (IOException e) {
+                    // Reported by the reader coming up short
+                }
+            }
+        });
+        writer.start();
+
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(client.getInputStream()).readFully(echoed);
+        writer.join();
+        assertTrue(Arrays.equals(payload, echoed));
+
+        // Reads are no longer capped at the short frame size
+        assertTrue(mMuxServer.getAccessoryWriter().getFrameCount() <
+                payload.length / BufferPool.FRAME_SLAB_SIZE);
+        // Frames larger than a transfer reach the socket without being reassembled
+        assertTrue(mMuxServer.getLinkStats().getStreamedPayloads() > 0);
+        client.close();
+    }
+
+    @Test
+    public void slowClient_doesNotStallOtherStreams() throws Exception {
+        // A host server that sends far more than a client buffers, then closes
+        final byte[] bulk = new byte[8 * 1024 * 1024];
+        new Random(5).nextBytes(bulk);
+        final ServerSocket firehose = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread firehoseThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = firehose.accept();
+                    client.getOutputStream().write(bulk);
+                    client.close();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        firehoseThread.start();
+
+        int port = freePort();
+        mMuxServer.addMapping(port, firehose.getLocalPort());
+        Socket slow = null;
+        for (int attempt = 0; attempt < 50 && slow == null; attempt++) {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+                slow = socket;
+            } catch (ConnectException e) {
+                socket.close();
+                Thread.sleep(20);
+            }
+        }
+        assertNotNull(slow);
+        slow.setSoTimeout(5000);
+
+        // The slow client's data backs up in its queue
+        StreamStats queued = null;
+        for (int i = 0; i < 100 && queued == null; i++) {
+            for (StreamStats stream : mMuxServer.getLinkStats().getStreams()) {
+                if (stream.getLocalPort() == port && stream.getQueuedBytes() > 0) {
+                    queued = stream;
+                }
+            }
+            Thread.sleep(20);
+        }
+        assertNotNull(queued);
+        assertTrue(queued.getQueuedBytes() <= MuxServer.MAX_QUEUED_BYTES);
+        assertTrue(queued.getPeakQueuedBytes() >= queued.getQueuedBytes());
+
+        // Meanwhile other streams are served promptly
+        Socket echoClient = connectClient();
+        echoClient.setSoTimeout(2000);
+        for (int i = 0; i < 10; i++) {
+            echoClient.getOutputStream().write(i);
+            assertEquals(i, echoClient.getInputStream().read());
+        }
+        echoClient.close();
+
+        // Everything queued is delivered before the host's close
+        byte[] received = new byte[bulk.length];
+        new DataInputStream(slow.getInputStream()).readFully(received);
+        assertTrue(Arrays.equals(bulk, received));
+        assertEquals(-1, slow.getInputStream().read());
+        slow.close();
+
+        firehose.close();
+        firehoseThread.join(1000);
+    }
+
+    @Test
+    public void heartbeat_measuresRoundTrip() throws Exception {
+        mMuxServer.setHeartbeat(10, 3);
+        RttHistogram rtt = mMuxServer.getRttHistogram();
+        for (int i = 0; i < 100 && rtt.getCount() < 5; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isHeartbeatNegotiated());
+        assertTrue(rtt.getCount() >= 5);
+        assertTrue(rtt.getPercentileMicros(50) <= rtt.getMaxMicros());
+        assertTrue(mMuxServer.isActive());
+        assertTrue(mMuxServer.getLinkStats().getProbesSent() >= 5);
+    }
+
+    @Test
+    public void missedProbes_failStreamsFast() throws Exception {
+        Socket client = connectClient();
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(1);
+        assertEquals(1, client.getInputStream().read());
+
+        mHost.setAnswerProbes(false);
+        mMuxServer.setHeartbeat(10, 3);
+        long start = System.nanoTime();
+        assertEquals(-1, client.getInputStream().read());
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertFalse(mMuxServer.isActive());
+        assertEquals(0, mMuxServer.getConnectionCount());
+        client.close();
+    }
+
+    @Test
+    public void compressedMapping_deflatesBothDirections() throws Exception {
+        for (int i = 0; i < 50 && !mMuxServer.isCompressionNegotiated(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isCompressionNegotiated());
+        int port = freePort();
+        mMuxServer.addMapping(port, mEchoServer.getLocalPort(), true);
+
+        // Repetitive text shrinks, random bytes are sent as they are
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; json.length() < 50000; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"ok\":true},");
+        }
+        byte[] text = json.toString().getBytes("US-ASCII");
+        byte[] noise = new byte[20000];
+        new Random(3).nextBytes(noise);
+
+        Socket client = connectClient(port);
+        client.setSoTimeout(5000);
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        for (byte[] payload : new byte[][] {text, noise}) {
+            client.getOutputStream().write(payload);
+            byte[] echoed = new byte[payload.length];
+            in.readFully(echoed);
+            assertTrue(Arrays.equals(payload, echoed));
+        }
+
+        assertEquals(1, mMuxServer.getCompressionStats().size());
+        CompressionStats stats = mMuxServer.getCompressionStats().get(0);
+        assertEquals(text.length + noise.length, stats.getRawBytesSent());
+        assertEquals(text.length + noise.length, stats.getRawBytesReceived());
+        assertTrue(stats.toString(), stats.getSendRatio() > 1.5);
+        assertTrue(stats.toString(), stats.getReceiveRatio() > 1.5);
+        client.close();
+    }
+
+    @Test
+    public void datagramMapping_answersEachClient() throws Exception {
+        final DatagramSocket echo = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        Thread echoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[MuxServer.MAX_DATAGRAM_SIZE];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        packet.setData(buf);
+                        echo.receive(packet);
+                        echo.send(packet);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        echoThread.start();
+        for (int i = 0; i < 50 && !mMuxServer.isDatagramNegotiated(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isDatagramNegotiated());
+        int port = freePort();
+        mMuxServer.addDatagramMapping(port, echo.getLocalPort());
+        InetSocketAddress mapped = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+
+        DatagramSocket first = new DatagramSocket();
+        DatagramSocket second = new DatagramSocket();
+        first.setSoTimeout(200);
+        second.setSoTimeout(2000);
+        byte[] reply = new byte[MuxServer.MAX_DATAGRAM_SIZE];
+        DatagramPacket received = new DatagramPacket(reply, reply.length);
+
+        // Datagrams sent before the port is bound are lost, so the first is repeated
+        byte[] hello = "hello".getBytes("US-ASCII");
+        boolean answered = false;
+        for (int attempt = 0; attempt < 25 && !answered; attempt++) {
+            first.send(new DatagramPacket(hello, hello.length, mapped));
+            try {
+                first.receive(received);
+                answered = true;
+            } catch (SocketTimeoutException e) {
+                // not bound yet
+            }
+        }
+        assertTrue(answered);
+        assertEquals("hello", new String(reply, 0, received.getLength(), "US-ASCII"));
+        first.setSoTimeout(2000);
+
+        // Each comes back whole to the client that sent it, larger than a frame slab included
+        Random random = new Random(22);
+        for (int size : new int[] {1, 1400, 30000}) {
+            for (DatagramSocket client : new DatagramSocket[] {first, second}) {
+                byte[] payload = new byte[size];
+                random.nextBytes(payload);
+                client.send(new DatagramPacket(payload, size, mapped));
+                received.setData(reply);
+                client.receive(received);
+                assertEquals(size, received.getLength());
+                assertTrue(Arrays.equals(payload, Arrays.copyOf(reply, size)));
+            }
+        }
+
+        // The last delivery is counted just after the client has it
+        LinkStats stats = mMuxServer.getLinkStats();
+        for (int i = 0; i < 50 && stats.getDatagramsReceived() < 7; i++) {
+            Thread.sleep(20);
+            stats = mMuxServer.getLinkStats();
+        }
+        assertEquals(2, stats.getDatagramPeers());
+        assertTrue(stats.toString(), stats.getDatagramsSent() >= 7);
+        assertTrue(stats.toString(), stats.getDatagramsReceived() >= 7);
+        first.close();
+        second.close();
+        echo.close();
+        echoThread.join(1000);
+    }
+
+    /**
+     * Wraps a socket as a client accepted by the caller, as a local domain socket would be
+     */
+    private static MuxServer.ClientStream clientStream(final Socket socket) {
+        return new MuxServer.ClientStream() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public void shutdownOutput() throws IOException {
+                socket.shutdownOutput();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    @Test
+    public void attachedClient_isForwardedAndHalfClosed() throws Exception {
+        for (int i = 0; i < 50 && !mMuxServer.isHalfCloseNegotiated(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isHalfCloseNegotiated());
+        ServerSocket accepting = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Socket client = new Socket(InetAddress.getByName("127.0.0.1"),
+                accepting.getLocalPort());
+        Socket attached = accepting.accept();
+        accepting.close();
+        assertTrue(mMuxServer.attachClient(new PortMapping(0, mEchoServer.getLocalPort()),
+                clientStream(attached)));
+
+        // More than the windows hold, written while the echo is read
+        final byte[] payload = new byte[1024 * 1024];
+        new Random(23).nextBytes(payload);
+        client.setSoTimeout(5000);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.getOutputStream().write(payload);
+                    client.shutdownOutput();
+                } catch (IOException e) {
+                    // Reported by the reader coming up short
+                }
+            }
+        });
+        writer.start();
+        byte[] echoed = new byte[payload.length];
+        new DataInputStream(client.getInputStream()).readFully(echoed);
+        writer.join();
+        assertTrue(Arrays.equals(payload, echoed));
+
+        // The client's end of stream reaches the echo server, which closes in turn
+        assertEquals(-1, client.getInputStream().read());
+        client.close();
+        for (int i = 0; i < 50 && mMuxServer.getConnectionCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, mMuxServer.getConnectionCount());
+    }
+
+    private static byte channelByte(long offset) {
+        return (byte) (offset % 251);
+    }
+
+    @Test
+    public void channel_isFlowControlledAndHalfClosed() throws Exception {
+        for (int i = 0; i < 50 && !mMuxServer.isHalfCloseNegotiated(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(mMuxServer.isHalfCloseNegotiated());
+        MuxChannel channel = mMuxServer.openChannel(
+                new PortMapping(0, mEchoServer.getLocalPort()));
+        assertNotNull(channel);
+        final Semaphore ready = new Semaphore(0);
+        channel.setListener(new MuxChannel.Listener() {
+            @Override
+            public void onReadable(MuxChannel channel) {
+                ready.release();
+            }
+
+            @Override
+            public void onWritable(MuxChannel channel) {
+                ready.release();
+            }
+        });
+
+        // More than the windows hold, written and read back on one thread.  Each write takes
+        // no more than the host's window, the echo only flows again as it is read.
+        final long total = 4 * 1024 * 1024;
+        ByteBuffer out = ByteBuffer.allocate(65536);
+        ByteBuffer in = ByteBuffer.allocate(8192);
+        long written = 0;
+        long read = 0;
+        long deadline = System.nanoTime() + 20000000000L;
+        while (System.nanoTime() < deadline) {
+            int sent = 0;
+            if (written < total) {
+                out.clear();
+                out.limit((int) Math.min(out.capacity(), total - written));
+                for (int i = 0; i < out.limit(); i++) {
+                    out.put(channelByte(written + i));
+                }
+                out.flip();
+                sent = channel.write(out);
+                written += sent;
+                if (written == total) {
+                    channel.shutdownOutput();
+                }
+            }
+            in.clear();
+            int count = channel.read(in);
+            if (count < 0) {
+                break;
+            }
+            in.flip();
+            while (in.hasRemaining()) {
+                assertEquals(channelByte(read++), in.get());
+            }
+            if (sent == 0 && count == 0) {
+                ready.tryAcquire(100, TimeUnit.MILLISECONDS);
+            }
+        }
+        // The echo server's end of stream came back once it had everything
+        assertEquals(total, written);
+        assertEquals(total, read);
+        try {
+            channel.write(ByteBuffer.allocate(1));
+            fail("Written after shutdown");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+
+        channel.close();
+        assertFalse(channel.isOpen());
+        for (int i = 0; i < 50 && mMuxServer.getConnectionCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, mMuxServer.getConnectionCount());
+    }
+}
@@ -0,0 +1,123 @@
+package com.arksine.portforwardcore;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * Id allocation and the generation checks that keep late frames off recycled ids.
+ */
+public class SocketTableTest {
+
+    private static MuxStream publish(SocketTable table) {
+        int id = table.allocate();
+        assertNotEquals(SocketTable.NO_SOCKET_ID, id);
+        MuxStream stream = new MuxStream((short) id, null, null);
+        table.publish(stream);
+        return stream;
+    }
+
+    @Test
+    public void allocate_usesTheFullIdSpace() {
+        SocketTable table = new SocketTable();
+        BitSet seen = new BitSet();
+        for (int i = 0; i < SocketTable.MAX_SOCKETS; i++) {
+            int id = table.allocate();
+            assertTrue(id >= 0 && id < SocketTable.MAX_SOCKETS);
+            assertFalse(seen.get(id));
+            seen.set(id);
+        }
+        assertEquals(SocketTable.NO_SOCKET_ID, table.allocate());
+
+        table.free(40000);
+        assertEquals(40000, table.allocate());
+    }
+
+    @Test
+    public void framesBeforeResponse_belongToThePreviousStream() {
+        SocketTable table = new SocketTable();
+        MuxStream first = publish(table);
+        int id = first.socketId & 0xFFFF;
+
+        // Not connected until the host answers
+        assertNull(table.getConnected(id));
+        assertSame(first, table.acknowledge(id));
+        assertSame(first, table.getConnected(id));
+
+        // The id is recycled before the host has seen the disconnect
+        assertTrue(table.remove(first));
+        MuxStream second = publish(table);
+        assertEquals(id, second.socketId & 0xFFFF);
+        assertNull(table.getConnected(id));
+
+        assertSame(second, table.acknowledge(id));
+        assertSame(second, table.getConnected(id));
+        assertFalse(table.remove(first));
+    }
+
+    @Test
+    public void responseToClosedStream_isDropped() {
+        SocketTable table = new SocketTable();
+        MuxStream first = publish(table);
+        int id = first.socketId & 0xFFFF;
+        assertTrue(table.remove(first));
+        MuxStream second = publish(table);
+
+        // The first response answers the closed stream
+        assertNull(table.acknowledge(id));
+        assertNull(table.getConnected(id));
+        assertSame(second, table.acknowledge(id));
+
+        // Responses nobody asked for are ignored
+        assertNull(table.acknowledge(id));
+        assertSame(second, table.getConnected(id));
+    }
+
+    @Test
+    public void concurrentAllocateAndFree_neverSharesAnId() throws Exception {
+        final SocketTable table = new SocketTable();
+        final AtomicIntegerArray owners = new AtomicIntegerArray(SocketTable.MAX_SOCKETS);
+        final AtomicInteger conflicts = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] held = new int[64];
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int round = 0; round < 2000; round++) {
+                        for (int i = 0; i < held.length; i++) {
+                            held[i] = table.allocate();
+                            if (!owners.compareAndSet(held[i], 0, 1)) {
+                                conflicts.incrementAndGet();
+                            }
+                        }
+                        for (int id : held) {
+                            owners.set(id, 0);
+                            table.free(id);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, conflicts.get());
+        assertTrue(table.getHighWaterMark() <= threads.length * 64);
+    }
+}
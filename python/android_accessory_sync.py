@@ -14,8 +14,10 @@ import time
 import signal
 import threading
 import os
+import errno
 import socket
 import select
+import zlib
 import usb1
 from constants import *
 import bytebuffer
@@ -25,6 +27,81 @@ else:  # Python 2.6 - 3.4
     import selectors2 as selectors
 
 
+# connect_ex results for a non-blocking connect still in progress
+CONNECT_IN_PROGRESS = (errno.EINPROGRESS, errno.EWOULDBLOCK,
+                       getattr(errno, 'WSAEWOULDBLOCK', errno.EWOULDBLOCK))
+
+
+class PendingConnect(object):
+    """
+    A socket still connecting for the accessory.  The accessory reads its client
+    straight away, data it sends before the connect finishes is held here, up
+    to its early window, and written once the socket connects.
+    """
+    def __init__(self, session_id, sock, send_limit=None, compressed=False):
+        self.session_id = session_id
+        self.sock = sock
+        self.send_limit = send_limit
+        self.compressed = compressed
+        self.early = bytearray()
+        # Set if the accessory finished sending before the socket connected
+        self.shutdown = False
+
+
+class DatagramFlow(object):
+    """
+    A UDP socket carrying one of the accessory's datagram flows, connected to
+    the port its DATAGRAM frames name.  Replies are sent back under the same
+    flow id.
+    """
+    def __init__(self, flow_id, port, sock):
+        self.flow_id = flow_id
+        self.port = port
+        self.sock = sock
+        self.last_active = time.time()
+
+
+class StreamWindow(object):
+    """
+    Flow control state for one socket.  The accessory advertises its receive
+    window with CONNECT_SOCKET and raises it with WINDOW_UPDATE, our own window
+    is advertised in CONNECTION_RESP and refilled as data is sent to the server.
+    A send limit of None means the accessory is not flow controlled.  Data of
+    compressed streams is deflated one frame at a time.
+
+    With half close agreed each direction finishes on its own, input once the
+    server has sent everything and output once the accessory has.
+    """
+    def __init__(self, send_limit=None, compressed=False):
+        self.send_limit = send_limit
+        self.compressed = compressed
+        self.bytes_sent = 0
+        self.bytes_consumed = 0
+        self.paused = False
+        self.input_shutdown = False
+        self.output_shutdown = False
+
+    def send_window(self, maximum):
+        if self.send_limit is None:
+            return maximum
+        return max(0, min(maximum, self.send_limit - self.bytes_sent))
+
+    def add_send_window(self, increment):
+        if self.send_limit is not None:
+            self.send_limit += increment
+
+    def data_consumed(self, length):
+        """
+        Returns the window increment to grant back, or 0 if no update is due
+        """
+        self.bytes_consumed += length
+        if self.bytes_consumed >= RECEIVE_WINDOW // 2:
+            increment = self.bytes_consumed
+            self.bytes_consumed = 0
+            return increment
+        return 0
+
+
 class ReadCallback(object):
     """
     TODO: Docstring
@@ -37,7 +114,8 @@ class ReadCallback(object):
         self._split_payload = False
 
         self._split_header_buffer = bytebuffer.allocate(4)
-        self._split_payload_buffer = bytebuffer.allocate(8192)
+        # Room for any short payload, datagrams arrive whole in a single frame
+        self._split_payload_buffer = bytebuffer.allocate(65536)
 
     def __call__(self, in_buffer):
         """
@@ -109,36 +187,74 @@ class ReadCallback(object):
     def _process_packet(self, payload):
         if self._command == CMD_CONNECT_SOCKET:
             socket_id = payload.getShort()
-            self._accessory.connect_socket(socket_id)
+            # Accessories supporting flow control append their receive window
+            send_limit = None
+            if payload.remaining() >= 4:
+                send_limit = payload.getInt()
+            # Accessories forwarding several ports append the target port
+            port = None
+            if payload.remaining() >= 2:
+                port = payload.getShort()
+            flags = 0
+            if payload.remaining() >= 2:
+                flags = payload.getShort()
+            self._accessory.connect_socket(socket_id, send_limit, port,
+                                           bool(flags & STREAM_FLAG_DEFLATE))
+        elif self._command == CMD_REVERSE_CONNECT_RESP:
+            request_tag = payload.getShort()
+            socket_id = payload.getShort()
+            send_limit = payload.getInt()
+            flags = 0
+            if payload.remaining() >= 2:
+                flags = payload.getShort()
+            self._accessory.reverse_connected(request_tag, socket_id, send_limit,
+                                              bool(flags & STREAM_FLAG_DEFLATE))
         elif self._command == CMD_DISCONNECT_SOCKET:
             socket_id = payload.getShort()
             self._accessory.disconnect_socket(socket_id)
+        elif self._command == CMD_SHUTDOWN_WRITE:
+            socket_id = payload.getShort()
+            self._accessory.shutdown_socket(socket_id)
         elif self._command == CMD_DATA_PACKET:
             # Demux and write to socket
             socket_id = payload.getShort()
-            sock = self._accessory.get_socket(socket_id)
-            if sock:
-                while payload.hasRemaining():
-                    r, w, x = select.select([], [sock.fileno()], [])
-                    if w:
-                        bytes_sent = sock.send(payload[payload.position:payload.limit])
-                        if bytes_sent == 0:
-                            eprint("Write error, socket broken")
-                            self._accessory.disconnect_socket(socket_id)
-                            # Error on server end, let app know
-                            self._accessory.send_accessory_command(CMD_DISCONNECT_SOCKET,
-                                                                   socket_id)
-                            payload.position = payload.limit
-                            break
-                        else:
-                            payload.position = payload.position + bytes_sent
+            self._write_to_socket(socket_id, payload[payload.position:payload.limit])
+        elif self._command == CMD_DATA_PACKET_DEFLATE:
+            socket_id = payload.getShort()
+            try:
+                data = zlib.decompress(bytes(payload[payload.position:payload.limit]), -15)
+            except zlib.error:
+                eprint("Corrupt compressed frame: {0}".format(socket_id))
+                self._accessory.disconnect_socket(socket_id)
+                self._accessory.send_accessory_command(CMD_DISCONNECT_SOCKET, socket_id)
             else:
-                eprint("Socket not valid: {0}".format(socket_id))
+                self._write_to_socket(socket_id, data)
+        elif self._command == CMD_WINDOW_UPDATE:
+            socket_id = payload.getShort()
+            increment = payload.getInt()
+            self._accessory.add_send_window(socket_id, increment)
         elif self._command == CMD_ACCESSORY_CONNECTED:
             port = payload.getInt()
             self._accessory.app_connected = True
             self._accessory.port = port
             eprint("App connected, fowarding port: {0}".format(port))
+            # Apps supporting optional features announce them, answer with ours
+            if payload.remaining() >= 4:
+                capabilities = payload.getInt() & HOST_CAPABILITIES
+                self._accessory.half_close = bool(capabilities & CAPABILITY_HALF_CLOSE)
+                self._accessory.send_accessory_command(CMD_CAPABILITIES,
+                                                       pack('>I', capabilities))
+        elif self._command == CMD_DATAGRAM:
+            flow_id = payload.getShort()
+            port = payload.getShort()
+            self._accessory.send_datagram(flow_id, port,
+                                          bytes(payload[payload.position:payload.limit]))
+        elif self._command == CMD_PING:
+            # Probes are echoed as they came, the accessory times the round trip
+            self._accessory.send_accessory_command(
+                CMD_PONG, bytes(payload[payload.position:payload.limit]))
+        elif self._command == CMD_PONG:
+            pass
         elif self._command == CMD_CLOSE_ACCESSORY:
             eprint("Close accessory request recieved")
             self._accessory.signal_app_exit()
@@ -147,6 +263,33 @@ class ReadCallback(object):
             eprint(self._command)
 
 
+    def _write_to_socket(self, socket_id, data):
+        sock = self._accessory.get_socket(socket_id)
+        if not sock:
+            if self._accessory.hold_early_data(socket_id, data):
+                return
+            # The connect may have finished meanwhile
+            sock = self._accessory.get_socket(socket_id)
+        if not sock:
+            eprint("Socket not valid: {0}".format(socket_id))
+            return
+        data = memoryview(data)
+        while data:
+            r, w, x = select.select([], [sock.fileno()], [])
+            if w:
+                bytes_sent = sock.send(data)
+                if bytes_sent == 0:
+                    eprint("Write error, socket broken")
+                    self._accessory.disconnect_socket(socket_id)
+                    # Error on server end, let app know
+                    self._accessory.send_accessory_command(CMD_DISCONNECT_SOCKET,
+                                                           socket_id)
+                    break
+                else:
+                    data = data[bytes_sent:]
+                    self._accessory.data_consumed(socket_id, bytes_sent)
+
+
 class AndroidAccessory(object):
     """docstring for AndroidAccessory."""
     def __init__(self, usb_context, vendor_id=None, product_id=None):
@@ -180,6 +323,7 @@ class AndroidAccessory(object):
 
         self.port = 8000  # port to forward sockets to
         self.app_connected = False
+        self.half_close = False
         self._is_running = True
 
         self._read_callback = ReadCallback(self)
@@ -187,10 +331,27 @@ class AndroidAccessory(object):
         self._accessory_read_thread.start()
 
         self._socket_dict = {}
+        self._window_dict = {}
+        # Sockets still connecting, by session ID
+        self._pending_connects = {}
+        self._connect_lock = threading.Lock()
+        # Guards the half close state of every stream
+        self._shutdown_lock = threading.Lock()
+        # Sockets carrying the accessory's datagram flows, by flow ID
+        self._datagram_flows = {}
+        self._datagram_lock = threading.Lock()
         self._socket_selector = selectors.DefaultSelector()
         self._socket_read_thread = threading.Thread(target=self._socket_read_thread_proc)
         self._socket_read_thread.start()
 
+        # Reverse clients waiting on the accessory, by request tag
+        self._pending_reverse = {}
+        self._next_request_tag = 0
+        self._reverse_lock = threading.Lock()
+        self._reverse_listeners = []
+        for host_port, device_port in REVERSE_MAPPINGS:
+            self.add_reverse_mapping(host_port, device_port)
+
     def _find_handle(self, vendor_id=None, product_id=None, attempts_left=5):
         handle = None
         found_dev = None
@@ -313,7 +474,8 @@ class AndroidAccessory(object):
         android device via usb
         """
         def _win_select():
-            while len(self._socket_dict) == 0:
+            while (len(self._socket_dict) == 0 and len(self._pending_connects) == 0 and
+                   len(self._datagram_flows) == 0):
                 time.sleep(.001)
                 if not self._is_running:
                     return []
@@ -330,14 +492,30 @@ class AndroidAccessory(object):
         buffer = bytearray(8192)
         buff_view = memoryview(buffer)
         buff_view[0:2] = CMD_DATA_PACKET
+        last_sweep = time.time()
         while self._is_running:
             events = select_func()
+            if self._datagram_flows and time.time() - last_sweep >= 1:
+                last_sweep = time.time()
+                self._sweep_datagram_flows()
             if len(events) == 0:
                 continue
             for key, event in events:
-                if event & selectors.EVENT_READ:
+                if isinstance(key.data, PendingConnect):
+                    self._finish_connect(key.data)
+                elif isinstance(key.data, DatagramFlow):
+                    self._read_datagram(key.data)
+                elif event & selectors.EVENT_READ:
+                    # Only read as much as the accessory is willing to accept
+                    window = self._window_dict.get(key.data)
+                    max_read = len(buffer) - 6
+                    if window is not None:
+                        max_read = window.send_window(max_read)
+                        if max_read == 0:
+                            self._pause_socket(key.data)
+                            continue
                     try:
-                        bytes_read = key.fileobj.recv_into(buff_view[6:])
+                        bytes_read = key.fileobj.recv_into(buff_view[6:6 + max_read])
                     except EOFError:
                         # This socket has been closed, disconnect it
                         eprint("Read error, EOF Reached")
@@ -346,66 +524,378 @@ class AndroidAccessory(object):
                                                                key.data)
                         continue
                     if bytes_read > 0:
-                        # payload size (socket id is part of payload)
-                        payload_size = bytes_read + 2
-                        payload_bytes = pack('>H', payload_size)
-                        id_bytes = pack('>H', key.data)
-                        buff_view[2:4] = payload_bytes
-                        buff_view[4:6] = id_bytes
-                        length = bytes_read + 6
+                        packet = None
+                        if (window is not None and window.compressed and
+                                bytes_read >= MIN_COMPRESS_SIZE):
+                            deflater = zlib.compressobj(1, zlib.DEFLATED, -15)
+                            deflated = (deflater.compress(buff_view[6:6 + bytes_read]) +
+                                        deflater.flush())
+                            if len(deflated) < bytes_read:
+                                packet = (CMD_DATA_PACKET_DEFLATE +
+                                          pack('>HH', len(deflated) + 2, key.data) + deflated)
+                        if packet is None:
+                            # payload size (socket id is part of payload)
+                            payload_size = bytes_read + 2
+                            payload_bytes = pack('>H', payload_size)
+                            id_bytes = pack('>H', key.data)
+                            buff_view[2:4] = payload_bytes
+                            buff_view[4:6] = id_bytes
+                            packet = buff_view[:bytes_read + 6]
                         try:
-                            self._handle.bulkWrite(self._out_endpoint, buff_view[:length])
+                            self._handle.bulkWrite(self._out_endpoint, packet)
                         except usb1.USBError as err:
                             eprint("Error writing data: %s" % err)
+                        if window is not None:
+                            window.bytes_sent += bytes_read
                     else:
-                        # TODO: disconnect?
-                        pass
+                        # The server finished sending
+                        self._socket_ended(key.data)
 
-    def connect_socket(self, session_id):
+    def connect_socket(self, session_id, send_limit=None, port=None, compressed=False):
         """
-        Attempts to connect a new socket on the requested port.  If successful,
-        to socket is registered to the selector, with its session ID, and the
-        socket is added to the dictionary
+        Starts connecting a new socket on the requested port, or the port
+        announced when the app connected.  The connect doesn't block the
+        accessory, the socket is registered to the selector until it finishes
+        and the stream is started from there.  Returns False if the connect
+        failed straight away.
         """
-        eprint("Connecting socket {0} on port {1}".format(session_id, self.port))
+        if port is None:
+            port = self.port
+        eprint("Connecting socket {0} on port {1}".format(session_id, port))
         new_sock = socket.socket()
+        new_sock.setblocking(False)
         try:
-            new_sock.connect(('localhost', self.port))
-        except socket.error as err:
-            eprint("Unable to connect to socket:")
-            eprint(err)
+            err = new_sock.connect_ex(('localhost', port))
+        except socket.error as error:
+            err = error.errno
+        if err == 0:
+            eprint("Socket Connected")
+            self._start_stream(session_id, new_sock, send_limit, compressed)
+            return True
+        elif err in CONNECT_IN_PROGRESS:
+            pending = PendingConnect(session_id, new_sock, send_limit, compressed)
+            with self._connect_lock:
+                self._pending_connects[session_id] = pending
+                self._socket_selector.register(new_sock, selectors.EVENT_WRITE, pending)
+            return True
+        else:
+            eprint("Unable to connect to socket: {0}".format(os.strerror(err)))
+            new_sock.close()
             resp = pack('>HH', session_id, 0)
             self.send_accessory_command(CMD_CONNECTION_RESP, resp)
             return False
-        else:
-            eprint("Socket Connected")
-            new_sock.setblocking(False)
-            try:
-                # store the socket Id in the selector
-                self._socket_selector.register(new_sock, selectors.EVENT_READ, session_id)
-            except KeyError:
-                # somehow selector already registered
-                pass
 
-            # Add to map associating socket IDs with sockets
-            self._socket_dict[session_id] = new_sock
-            resp = pack('>HH', session_id, 1)
-            self.send_accessory_command(CMD_CONNECTION_RESP, resp)
+    def _finish_connect(self, pending):
+        """
+        Completes a connect once the selector reports it.  The data held for the
+        socket is written before the stream is started, so nothing from the
+        accessory can overtake it.  A failed connect is refused.
+        """
+        try:
+            self._socket_selector.unregister(pending.sock)
+        except KeyError:
+            pass
+        with self._connect_lock:
+            if self._pending_connects.get(pending.session_id) is not pending:
+                # Given up on while connecting
+                pending.sock.close()
+                return
+            del self._pending_connects[pending.session_id]
+            err = pending.sock.getsockopt(socket.SOL_SOCKET, socket.SO_ERROR)
+            if err == 0 and pending.early:
+                try:
+                    pending.sock.setblocking(True)
+                    pending.sock.sendall(pending.early)
+                except socket.error as error:
+                    err = error.errno or errno.EPIPE
+            if err != 0:
+                eprint("Unable to connect to socket: {0}".format(os.strerror(err)))
+                pending.sock.close()
+                resp = pack('>HH', pending.session_id, 0)
+                self.send_accessory_command(CMD_CONNECTION_RESP, resp)
+                return
+            eprint("Socket Connected")
+            self._start_stream(pending.session_id, pending.sock, pending.send_limit,
+                               pending.compressed)
+            # The accessory ignores window updates for sockets it hasn't had a
+            # response for
+            if pending.early:
+                self.data_consumed(pending.session_id, len(pending.early))
+            shutdown = pending.shutdown
+        if shutdown:
+            self.shutdown_socket(pending.session_id)
+
+    def hold_early_data(self, session_id, data):
+        """
+        Holds data for a socket that is still connecting, returns False if the
+        socket isn't connecting.  An accessory sending more than the early
+        window has the connection refused.
+        """
+        with self._connect_lock:
+            pending = self._pending_connects.get(session_id)
+            if pending is None:
+                return False
+            if len(pending.early) + len(data) > EARLY_DATA_WINDOW:
+                eprint("Early data overflow: {0}".format(session_id))
+                self._abandon_connect(pending)
+            else:
+                pending.early += data
             return True
 
+    def _abandon_connect(self, pending):
+        """
+        Closes a socket that is still connecting and refuses it, the accessory
+        still expects a response for it.  Called with the connect lock held.
+        """
+        del self._pending_connects[pending.session_id]
+        try:
+            self._socket_selector.unregister(pending.sock)
+        except KeyError:
+            pass
+        pending.sock.close()
+        resp = pack('>HH', pending.session_id, 0)
+        self.send_accessory_command(CMD_CONNECTION_RESP, resp)
+
+    def _start_stream(self, session_id, sock, send_limit, compressed=False):
+        """
+        Registers a connected socket to the selector with its session ID, and
+        acknowledges the ID to the accessory
+        """
+        sock.setblocking(False)
+        try:
+            # store the socket Id in the selector
+            self._socket_selector.register(sock, selectors.EVENT_READ, session_id)
+        except KeyError:
+            # somehow selector already registered
+            pass
+
+        # Add to map associating socket IDs with sockets
+        self._socket_dict[session_id] = sock
+        self._window_dict[session_id] = StreamWindow(send_limit, compressed)
+        # Advertise our receive window after the response
+        resp = pack('>HHI', session_id, 1, RECEIVE_WINDOW)
+        self.send_accessory_command(CMD_CONNECTION_RESP, resp)
+
+    def add_reverse_mapping(self, host_port, device_port):
+        """
+        Listens on a host port, connecting each client accepted to a port on
+        the device.  The app must expose the device port as a reverse port.
+        """
+        server = socket.socket()
+        server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+        server.bind(('localhost', host_port))
+        server.listen(50)
+        self._reverse_listeners.append(server)
+
+        def _accept_proc():
+            while self._is_running:
+                try:
+                    client, _ = server.accept()
+                except (socket.error, OSError):
+                    break
+                with self._reverse_lock:
+                    request_tag = self._next_request_tag
+                    self._next_request_tag = (request_tag + 1) & 0xFFFF
+                    self._pending_reverse[request_tag] = client
+                eprint("Reverse connecting to device port {0}".format(device_port))
+                self.send_accessory_command(CMD_REVERSE_CONNECT,
+                                            pack('>HH', request_tag, device_port))
+
+        accept_thread = threading.Thread(target=_accept_proc)
+        accept_thread.daemon = True
+        accept_thread.start()
+
+    def reverse_connected(self, request_tag, session_id, send_limit, compressed=False):
+        """
+        Handles the accessory's answer to a reverse connect.  On success the
+        client is carried like any other socket under the ID it was given.
+        """
+        with self._reverse_lock:
+            client = self._pending_reverse.pop(request_tag, None)
+        if session_id == NO_SOCKET_ID:
+            eprint("Accessory refused reverse connection")
+            if client:
+                client.close()
+        elif client is None:
+            # Stopped while the accessory was connecting
+            self.send_accessory_command(CMD_CONNECTION_RESP, pack('>HH', session_id, 0))
+        else:
+            self._start_stream(session_id, client, send_limit, compressed)
+
 
     def disconnect_socket(self, session_id):
         eprint("Disconnecting socket: {0}".format(session_id))
+        with self._connect_lock:
+            pending = self._pending_connects.get(session_id)
+            if pending is not None:
+                self._abandon_connect(pending)
+                return
+        self._window_dict.pop(session_id, None)
+        sock = self._socket_dict.pop(session_id, None)
+        if sock:
+            try:
+                self._socket_selector.unregister(sock)
+            except KeyError:
+                # Paused, or finished reading
+                pass
+            sock.close()
+
+    def _socket_ended(self, session_id):
+        """
+        Handles the server's end of stream.  With half close agreed the
+        accessory is told and the other direction carries on, the socket is
+        released once the accessory has finished too.  Otherwise the socket is
+        disconnected.
+        """
+        window = self._window_dict.get(session_id)
+        sock = self._socket_dict.get(session_id)
+        if not self.half_close or window is None or sock is None:
+            self.disconnect_socket(session_id)
+            self.send_accessory_command(CMD_DISCONNECT_SOCKET, session_id)
+            return
         try:
-            sock = self._socket_dict[session_id]
             self._socket_selector.unregister(sock)
-            del self._socket_dict[session_id]
         except KeyError:
             pass
-        finally:
-            # TODO: send command back to android?
-            if sock:
-                sock.close()
+        self.send_accessory_command(CMD_SHUTDOWN_WRITE, session_id)
+        with self._shutdown_lock:
+            window.input_shutdown = True
+            finished = window.output_shutdown
+        if finished:
+            # The accessory releases its end on its own
+            self.disconnect_socket(session_id)
+
+    def shutdown_socket(self, session_id):
+        """
+        Passes the accessory's end of stream on to the server, releasing the
+        socket if the server had already finished too
+        """
+        with self._connect_lock:
+            pending = self._pending_connects.get(session_id)
+            if pending is not None:
+                # Passed on once the socket connects
+                pending.shutdown = True
+                return
+        window = self._window_dict.get(session_id)
+        sock = self._socket_dict.get(session_id)
+        if window is None or sock is None:
+            return
+        with self._shutdown_lock:
+            window.output_shutdown = True
+            finished = window.input_shutdown
+        if finished:
+            self.disconnect_socket(session_id)
+            return
+        try:
+            sock.shutdown(socket.SHUT_WR)
+        except socket.error:
+            self.disconnect_socket(session_id)
+            self.send_accessory_command(CMD_DISCONNECT_SOCKET, session_id)
+
+    def _pause_socket(self, session_id):
+        """
+        Stops reading from a socket until the accessory grants more window
+        """
+        window = self._window_dict.get(session_id)
+        sock = self._socket_dict.get(session_id)
+        if window and sock and not window.paused:
+            window.paused = True
+            try:
+                self._socket_selector.unregister(sock)
+            except KeyError:
+                pass
+
+    def add_send_window(self, session_id, increment):
+        window = self._window_dict.get(session_id)
+        if not window:
+            return
+        window.add_send_window(increment)
+        sock = self._socket_dict.get(session_id)
+        if window.paused and sock and not window.input_shutdown:
+            window.paused = False
+            try:
+                self._socket_selector.register(sock, selectors.EVENT_READ, session_id)
+            except KeyError:
+                pass
+
+    def data_consumed(self, session_id, length):
+        """
+        Grants bytes written to the server back to the accessory
+        """
+        window = self._window_dict.get(session_id)
+        if window:
+            increment = window.data_consumed(length)
+            if increment:
+                self.send_accessory_command(CMD_WINDOW_UPDATE,
+                                            pack('>HI', session_id, increment))
+
+    def send_datagram(self, flow_id, port, data):
+        """
+        Sends a datagram from the accessory on to the port it names, through
+        the socket of its flow.  A flow ID the accessory has given to a client
+        of another mapping gets a new socket.  A datagram that can't be sent is
+        dropped, there is no queue to hold it.
+        """
+        with self._datagram_lock:
+            flow = self._datagram_flows.get(flow_id)
+            if flow is not None and flow.port != port:
+                self._close_datagram_flow(flow)
+                flow = None
+            if flow is None:
+                sock = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+                try:
+                    sock.connect(('127.0.0.1', port))
+                except socket.error as err:
+                    eprint("Unable to open datagram flow {0}: {1}".format(flow_id, err))
+                    sock.close()
+                    return
+                sock.setblocking(False)
+                flow = DatagramFlow(flow_id, port, sock)
+                self._datagram_flows[flow_id] = flow
+                self._socket_selector.register(sock, selectors.EVENT_READ, flow)
+        flow.last_active = time.time()
+        try:
+            flow.sock.send(data)
+        except socket.error as err:
+            eprint("Datagram dropped, flow {0}: {1}".format(flow_id, err))
+
+    def _read_datagram(self, flow):
+        """
+        Sends a reply read from a datagram flow's socket to the accessory.  A
+        write that fails drops the datagram, it is never retried.
+        """
+        try:
+            data = flow.sock.recv(MAX_DATAGRAM_SIZE)
+        except socket.error:
+            # Nothing waiting after all, or the port refused the last datagram
+            return
+        flow.last_active = time.time()
+        packet = CMD_DATAGRAM + pack('>HHH', len(data) + 4, flow.flow_id, flow.port) + data
+        try:
+            self._handle.bulkWrite(self._out_endpoint, packet)
+        except usb1.USBError as err:
+            eprint("Datagram dropped, flow {0}: {1}".format(flow.flow_id, err))
+
+    def _sweep_datagram_flows(self):
+        """
+        Closes the datagram flows that have been quiet for DATAGRAM_IDLE_TIMEOUT
+        """
+        now = time.time()
+        with self._datagram_lock:
+            for flow in list(self._datagram_flows.values()):
+                if now - flow.last_active >= DATAGRAM_IDLE_TIMEOUT:
+                    self._close_datagram_flow(flow)
+
+    def _close_datagram_flow(self, flow):
+        """
+        Called with the datagram lock held
+        """
+        self._datagram_flows.pop(flow.flow_id, None)
+        try:
+            self._socket_selector.unregister(flow.sock)
+        except KeyError:
+            pass
+        flow.sock.close()
 
     def get_socket(self, session_id):
         """
@@ -448,6 +938,16 @@ class AndroidAccessory(object):
             eprint("Stopping Accessory")
             self.signal_app_exit()
             self._is_running = False
+            for server in self._reverse_listeners:
+                server.close()
+            with self._reverse_lock:
+                for client in self._pending_reverse.values():
+                    client.close()
+                self._pending_reverse.clear()
+            with self._connect_lock:
+                for pending in self._pending_connects.values():
+                    pending.sock.close()
+                self._pending_connects.clear()
             # give one second for transfers to complete
             time.sleep(1)
             for sock in self._socket_dict.values():
@@ -459,6 +959,9 @@ class AndroidAccessory(object):
                     sock.close()
 
             self._socket_dict.clear()
+            with self._datagram_lock:
+                for flow in list(self._datagram_flows.values()):
+                    self._close_datagram_flow(flow)
             self._socket_selector.close()
             eprint("Waiting for socket thread to close...")
             self._socket_read_thread.join()
@@ -21,10 +21,52 @@ ACCESSORY_PID = (0x2D00, 0x2D01, 0x2D04, 0x2D05)
 CMD_NONE = b'\x00\x00'
 CMD_CONNECT_SOCKET = b'\x01\x01'
 CMD_CONNECTION_RESP = b'\x01\x02'
+CMD_REVERSE_CONNECT = b'\x01\x03'
+CMD_REVERSE_CONNECT_RESP = b'\x01\x04'
 CMD_DISCONNECT_SOCKET = b'\x02\x01'
+CMD_SHUTDOWN_WRITE = b'\x02\x02'
 CMD_DATA_PACKET = b'\x03\x01'
+CMD_DATA_PACKET_DEFLATE = b'\x03\x02'
 CMD_ACCESSORY_CONNECTED = b'\x04\x01'
+CMD_CAPABILITIES = b'\x04\x02'
 CMD_CLOSE_ACCESSORY = b'\x05\x0F'
+CMD_WINDOW_UPDATE = b'\x06\x01'
+CMD_PING = b'\x07\x01'
+CMD_PONG = b'\x07\x02'
+CMD_DATAGRAM = b'\x08\x01'
+
+# Bytes the accessory may send on a socket before waiting for a window update
+RECEIVE_WINDOW = 65536
+
+# Bytes the accessory may send on a socket before it has been connected, held
+# until the connect finishes
+EARLY_DATA_WINDOW = 65536
+
+# Optional features announced by the accessory, and the ones we support
+CAPABILITY_DEFLATE = 0x01
+CAPABILITY_HEARTBEAT = 0x04
+CAPABILITY_HALF_CLOSE = 0x08
+CAPABILITY_DATAGRAM = 0x10
+HOST_CAPABILITIES = (CAPABILITY_DEFLATE | CAPABILITY_HEARTBEAT | CAPABILITY_HALF_CLOSE |
+                     CAPABILITY_DATAGRAM)
+
+# Stream flags sent with CONNECT_SOCKET and REVERSE_CONNECT_RESP
+STREAM_FLAG_DEFLATE = 0x01
+
+# Largest datagram carried, and how long a datagram flow may be quiet before
+# its socket is closed, in seconds
+MAX_DATAGRAM_SIZE = 65507
+DATAGRAM_IDLE_TIMEOUT = 120
+
+# Reads smaller than this are not worth compressing
+MIN_COMPRESS_SIZE = 128
+
+# Socket id the accessory answers a reverse connect with when the device port is unreachable
+NO_SOCKET_ID = 0xFFFF
+
+# (host port, device port) pairs.  Clients connecting to the host port are
+# forwarded to the device port, which the app must expose as a reverse port.
+REVERSE_MAPPINGS = ()
 
 
 